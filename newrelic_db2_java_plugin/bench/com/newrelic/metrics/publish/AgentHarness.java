@@ -0,0 +1,51 @@
+package com.newrelic.metrics.publish;
+
+import com.newrelic.metrics.publish.binding.Context;
+import com.newrelic.metrics.publish.binding.Request;
+
+/**
+ * Gives an agent the context and request the Runner would give it, so benchmarks and load tests can run pollCycle and reportMetrics without a
+ * license key or a Runner. Requests are never delivered. It lives in the SDK package for access to Agent.getCollector.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class AgentHarness {
+
+    private final Context context = new Context();
+
+    /**
+     * Set up an agent the way Runner.setupAgentContext does
+     */
+    public void attach(Agent agent) {
+        agent.getCollector().setContext(context);
+        agent.getCollector().createComponent(agent.getGUID(), agent.getComponentHumanLabel());
+        agent.prepareToRun();
+        agent.setupMetrics();
+        newRequest(agent);
+    }
+
+    /**
+     * Start a new poll cycle for the agent, dropping the metrics it reported so far
+     */
+    public Request newRequest(Agent agent) {
+        Request request = context.createRequest();
+        agent.getCollector().setRequest(request);
+        return request;
+    }
+
+    /**
+     * Start a new poll cycle for several agents, all reporting into one request like under the Runner
+     */
+    public Request newRequest(Iterable<? extends Agent> agents) {
+        Request request = context.createRequest();
+        for (Agent agent : agents) {
+            agent.getCollector().setRequest(request);
+        }
+        return request;
+    }
+
+    public Context getContext() {
+        return context;
+    }
+}
@@ -0,0 +1,116 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures time and heap allocation of a piece of code on the current thread, using the HotSpot per-thread allocation counter, and the garbage
+ * collections that happened while it ran
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class AllocationMeter {
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * A piece of code to measure, run once per operation
+     */
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    private final long nanosPerOp;
+    private final long bytesPerOp;
+    private final long gcCount;
+    private final long gcMillis;
+
+    private AllocationMeter(long nanosPerOp, long bytesPerOp, long gcCount, long gcMillis) {
+        this.nanosPerOp = nanosPerOp;
+        this.bytesPerOp = bytesPerOp;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+    }
+
+    /**
+     * Run the operation for warmup iterations, then measure it over the given number of iterations
+     */
+    public static AllocationMeter measure(Operation op, int warmup, int iterations) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            op.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long bytes = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = THREADS.getThreadAllocatedBytes(threadId) - bytes;
+        return new AllocationMeter(elapsed / iterations, bytes / iterations, gcCount() - gcCount, gcMillis() - gcMillis);
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0L, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0L, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Scale warmup and iterations to the size of the operation, so large cases do not run for minutes
+     */
+    public static int iterationsFor(int rows) {
+        return iterationsFor(rows, 20);
+    }
+
+    /**
+     * Scale iterations to the size of the operation, with a lower minimum for operations that do not scale linearly
+     */
+    public static int iterationsFor(int rows, int minimum) {
+        return Math.max(minimum, 200000 / Math.max(1, rows));
+    }
+
+    public long getNanosPerOp() {
+        return nanosPerOp;
+    }
+
+    public long getBytesPerOp() {
+        return bytesPerOp;
+    }
+
+    /**
+     * Garbage collections during the measured iterations
+     */
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    public long getGcMillis() {
+        return gcMillis;
+    }
+
+    /**
+     * Allocation rate in MB/s while the operation runs back to back
+     */
+    public double getAllocationRate() {
+        return nanosPerOp == 0 ? 0.0 : bytesPerOp * 1000.0 / nanosPerOp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,12d ns/op %,14d B/op %10.1f MB/s %5d gc %6d ms", nanosPerOp, bytesPerOp, getAllocationRate(), gcCount, gcMillis);
+    }
+}
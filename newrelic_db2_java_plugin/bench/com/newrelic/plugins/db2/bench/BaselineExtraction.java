@@ -0,0 +1,178 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * A verbatim copy of the result set extraction of the plugin before typed extraction and metric registries: every cell is read with getString,
+ * transformed, checked against a regular expression and parsed into a boxed Float of a new HashMap. Only the statement handling around it is left out,
+ * so ExtractionBenchmark measures the extraction the current code replaced against the current one.
+ *
+ * The constants it used, since removed from Constants, are copied along with it.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class BaselineExtraction {
+
+    private static final Logger logger = Logger.getLogger(BaselineExtraction.class);
+
+    private static final String SPACE = " ";
+    private static final String EMPTY_STRING = "";
+    private static final String UNDERSCORE = "_";
+    private static final String SEPARATOR = "/";
+    private static final Pattern VALID_METRIC_PATTERN = Pattern.compile("(-)?(\\.)?\\d+(\\.\\d+)?"); // Only integers and floats are valid metric values
+    private static final Pattern SPACE_PATTERN = Pattern.compile(" ");
+
+    private static final String ROW = "row";
+    private static final String SET = "set";
+
+    private static final String ON = "ON";
+    private static final String OFF = "OFF";
+    private static final String TRUE = "TRUE";
+    private static final String NONE = "NONE";
+    private static final String YES = "YES";
+    private static final String NO = "NO";
+    private static final String NULL = "NULL";
+    // For HADR state & connect_status metrics transform
+    private static final String DISCONNECTED = "DISCONNECTED";
+    private static final String LOCAL_CATCHUP = "LOCAL_CATCHUP";
+    private static final String REMOTE_CATCHUP_PENDING = "REMOTE_CATCHUP_PENDING";
+    private static final String REMOTE_CATCHUP = "REMOTE_CATCHUP";
+    private static final String PEER = "PEER";
+    private static final String CONNECTED = "CONNECTED";
+    private static final String CONGESTED = "CONGESTED";
+
+    private static final String ONE = "1";
+    private static final String NEG_ONE = "-1";
+    private static final String ZERO = "0";
+    private static final String TWO = "2";
+    private static final String THREE = "3";
+    private static final String FOUR = "4";
+    private static final String FIVE = "5";
+
+    private static final String TBSP_COLUMN_NAME = "TBSP_NAME";
+    private static final String BP_COLUMN_NAME = "BP_NAME";
+    private static final String HADR_COLUMN_NAME = "STANDBY_ID";
+
+    /**
+     * The body of the baseline DB2.runSQL, once the statement was executed
+     *
+     * @param rs ResultSet of the category SQL
+     * @param category String Metric category
+     * @param type String row or set
+     * @return Map of key/value pairs
+     */
+    public static Map<String, Float> extract(ResultSet rs, String category, String type) throws SQLException {
+        Map<String, Float> results = new HashMap<String, Float>();
+        ResultSetMetaData md = rs.getMetaData(); // Obtain Meta data about the SQL query (column names etc)
+
+        if (ROW.equals(type)) { // If we expect a single row of results
+            if (rs.next()) {
+                for (int i = 1; i <= md.getColumnCount(); i++) { // use column names as the "key"
+                    String value = transformStringMetric(rs.getString(i));
+                    String columnName = md.getColumnName(i).toLowerCase();
+                    if (validMetricValue(value)) {
+                        String key = buildString(category, SEPARATOR, columnName);
+                        results.put(key, translateStringToNumber(value));
+                    }
+
+                }
+            }
+        } else if (SET.equals(type)) { //currently support bufferpool,tablespace utilization and HADR report
+            String firstColumnName = md.getColumnName(1);
+            if (firstColumnName.equalsIgnoreCase(TBSP_COLUMN_NAME) ||
+                    firstColumnName.equalsIgnoreCase(BP_COLUMN_NAME) ||
+                    firstColumnName.equalsIgnoreCase(HADR_COLUMN_NAME)) {
+                while (rs.next()) {
+                    //The format of key for each bufferpool & tablespace is like: bufferpool_MYBP
+                    String newCategory = category + UNDERSCORE + rs.getString(1);
+                    for (int i = 2; i <= md.getColumnCount(); i++) { // use column names as the "key"
+                        String value = transformStringMetric(rs.getString(i));
+                        String columnName = md.getColumnName(i).toLowerCase();
+                        if (validMetricValue(value)) {
+                            String key = buildString(newCategory, SEPARATOR, columnName);
+                            results.put(key, translateStringToNumber(value));
+                        }
+                    }//for
+                } //while
+            }//if
+        }
+        return results;
+    }
+
+    /**
+     * This method will convert the provided string into a Number (either int or float)
+     *
+     * @param String value to convert
+     * @return Number A int or float representation of the provided string
+     */
+    public static Float translateStringToNumber(String val) {
+        try {
+            if (val.contains(SPACE)) {
+                val = SPACE_PATTERN.matcher(val).replaceAll(EMPTY_STRING); // Strip any spaces
+            }
+            return Float.parseFloat(val);
+        } catch (Exception e) {
+            logger.error("Unable to parse int/float number from value ", val);
+        }
+        return 0.0f;
+    }
+
+    /**
+     * Perform some preliminary transformation of string values that can be represented in integer values for monitoring
+     *
+     * @param val String value to evaluate
+     * @return String value that best represents and integer
+     */
+    static String transformStringMetric(String val) {
+        if (ON.equalsIgnoreCase(val) || TRUE.equalsIgnoreCase(val)) return ONE; // Convert some TEXT metrics into numerics
+        if (OFF.equalsIgnoreCase(val) || NONE.equalsIgnoreCase(val)) return ZERO;
+        if (YES.equalsIgnoreCase(val)) return ONE; // For slave/slave_*_running
+        if (NO.equalsIgnoreCase(val)) return ZERO; // For slave/slave_*_running
+        if (NULL.equalsIgnoreCase(val)) return NEG_ONE; // For slave/seconds_behind_master
+
+        //for HADR metrics string transform
+        if (DISCONNECTED.equalsIgnoreCase(val)) return ZERO;
+        if (LOCAL_CATCHUP.equalsIgnoreCase(val)) return ONE;
+        if (REMOTE_CATCHUP_PENDING.equalsIgnoreCase(val)) return THREE;
+        if (REMOTE_CATCHUP.equalsIgnoreCase(val)) return FOUR;
+        if (PEER.equalsIgnoreCase(val)) return FIVE;
+        if (CONNECTED.equalsIgnoreCase(val)) return ONE;
+        if (CONGESTED.equalsIgnoreCase(val)) return TWO;
+        return val;
+    }
+
+    /**
+     * Check if the value is a valid New Relic Metric value
+     *
+     * @param val String to validate
+     * @return TRUE if string is a numeric supported by New Relic
+     */
+    static boolean validMetricValue(String val) {
+        if (val == null || EMPTY_STRING.equals(val)) {
+            return false;
+        }
+        if (VALID_METRIC_PATTERN.matcher(val).matches()) {
+            return true;
+        }
+        return false;
+    }
+
+    static String buildString(String... strings) {
+        StringBuilder builder = new StringBuilder(50);
+        for (String string : strings) {
+            if (string == null || EMPTY_STRING.equals(string)) {
+                continue;
+            }
+            builder.append(string);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package com.newrelic.plugins.db2.bench;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.newrelic.plugins.db2.ColumnPlan;
+import com.newrelic.plugins.db2.DB2;
+import com.newrelic.plugins.db2.MetricRegistry;
+
+/**
+ * Compares the time and allocation of reading category result sets the way the plugin did before typed extraction (BaselineExtraction: every cell
+ * through getString, the string transformation, a regular expression and Float.parseFloat into a new HashMap) against the current path (getLong/getDouble
+ * for numeric columns into the category registry).
+ *
+ * Run from the plugin directory, with the gc profiler for the allocation per operation:
+ * mvn -Pbench package && java -cp "target/benchmarks.jar:lib/*" org.openjdk.jmh.Main -prof gc ExtractionBenchmark -p tablespaces=1000
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ExtractionBenchmark {
+
+    @Param({ "overview", "bufferpool", "HADR", "tablespace" })
+    public String category;
+
+    @Param({ "baseline", "typed" })
+    public String path;
+
+    @Param({ "1000" })
+    public int tablespaces;
+
+    private SyntheticResultSet rs;
+    private String type;
+    private MetricRegistry registry;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SyntheticTable table;
+        if ("overview".equals(category)) {
+            table = SyntheticTable.monDbSummary();
+        } else if ("bufferpool".equals(category)) {
+            table = SyntheticTable.monBpUtilization(8);
+        } else if ("HADR".equals(category)) {
+            table = SyntheticTable.monGetHadr(1);
+        } else {
+            table = SyntheticTable.monTbspUtilization(tablespaces);
+        }
+        rs = table.resultSet();
+        type = "overview".equals(category) ? ROW : SET;
+        registry = new MetricRegistry(category);
+        registry.setPlan(ColumnPlan.typed(category, rs.getMetaData()));
+    }
+
+    @Benchmark
+    public void extract(Blackhole blackhole) throws Exception {
+        rs.rewind();
+        if ("baseline".equals(path)) {
+            Map<String, Float> results = BaselineExtraction.extract(rs, category, type);
+            blackhole.consume(results);
+            return;
+        }
+        registry.beginCycle();
+        DB2.collectResults(rs, category, type, registry);
+        blackhole.consume(registry);
+    }
+}
@@ -0,0 +1,199 @@
+package com.newrelic.plugins.db2.bench;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.newrelic.metrics.publish.AgentHarness;
+import com.newrelic.metrics.publish.util.Logger;
+import com.newrelic.plugins.db2.ConnectionManager;
+import com.newrelic.plugins.db2.DB2;
+import com.newrelic.plugins.db2.MetricRegistry;
+import com.newrelic.plugins.db2.ValueMapping;
+import com.newrelic.plugins.db2.instance.DB2Agent;
+import com.newrelic.plugins.db2.instance.DB2AgentOptions;
+
+/**
+ * JMH benchmarks of the collection and reporting hot paths, for 10 to 50,000 metric series per agent:
+ *
+ * - runSQL: DB2.runSQL of the tablespace category, through the statement cache, against a SyntheticDriver connection
+ * - stringHelpers: ValueMapping.map of state and numeric strings, translateStringToNumber and buildString
+ * - createMetaData: DB2Agent construction, i.e. createMetaData, for a category defining the given number of metrics
+ * - reportMetrics: DB2Agent.reportMetrics of an agent whose tablespace, bufferpool and overview categories hold the given number of series
+ *
+ * The categories are read from bench/config/metric.category.json. Run from the plugin directory, with the gc profiler for the allocation per operation:
+ * mvn -Pbench package && java -cp "target/benchmarks.jar:lib/*" org.openjdk.jmh.Main -prof gc HotPathBenchmark -p series=10,1000
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotPathBenchmark {
+
+    private static final int SERIES_PER_TABLESPACE = 16; // Numeric and state columns of MON_TBSP_UTILIZATION
+    private static final String[] STRING_VALUES = { "PEER", "CONNECTED", "DISCONNECTED", "NORMAL", "1234", "98.72", "12 345", "YES" };
+    private static final ValueMapping HADR_STATES = ValueMapping.compile("HADR",
+            JSONValue.parse("{ \"HADR_STATE\" : { \"PEER\" : 5, \"CONNECTED\" : 1, \"DISCONNECTED\" : 0 } }")).get("hadr_state");
+
+    /**
+     * An agent, a connection and a category definition for the given number of series
+     */
+    @State(Scope.Thread)
+    public static class Series {
+
+        @Param({ "10", "100", "1000", "10000", "50000" })
+        public int series;
+
+        private DB2 db2;
+        private String tablespaceSQL;
+        private MetricRegistry registry;
+        private Map<String, Object> defined;
+        private Set<String> synthetic;
+        private DB2AgentOptions options;
+        private DB2Agent agent;
+        private AgentHarness harness;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Logger.init("warn", System.getProperty("java.io.tmpdir"), "db2_plugin_bench.log", 1024);
+            SyntheticDriver.install();
+            Map<String, Object> categories = readCategories(new File(SyntheticDriver.CONFIG_DIRECTORY, "metric.category.json"));
+            options = DB2AgentOptions.defaultOptions();
+
+            db2 = new DB2(new ConnectionManager(SyntheticDriver.HOST, register("runsql", series), "bench", "bench", EMPTY_STRING));
+            db2.getConnection();
+            tablespaceSQL = (String) ((Map<?, ?>) categories.get("tablespace")).get(SQL);
+            registry = new MetricRegistry("tablespace");
+
+            defined = withSyntheticCategory(categories, series);
+            synthetic = new HashSet<String>(Arrays.asList("synthetic"));
+
+            Set<String> metrics = new HashSet<String>(Arrays.asList("overview", "bufferpool", "tablespace"));
+            agent = new DB2Agent("bench", SyntheticDriver.HOST, register("report", series), "bench", "bench", EMPTY_STRING, metrics, categories, options);
+            harness = new AgentHarness();
+            harness.attach(agent);
+            agent.pollCycle(); // Populate the registries, twice so counters have a rate
+            agent.pollCycle();
+        }
+    }
+
+    @Benchmark
+    public boolean runSQL(Series state) {
+        state.registry.beginCycle();
+        return state.db2.runSQL("tablespace", state.tablespaceSQL, SET, state.registry);
+    }
+
+    @Benchmark
+    public void stringHelpers(Blackhole blackhole) {
+        for (String value : STRING_VALUES) {
+            blackhole.consume(HADR_STATES.map(value));
+        }
+        blackhole.consume(DB2.buildString("tablespace", SEPARATOR, "tbsp_used_size_kb"));
+    }
+
+    @Benchmark
+    public void baselineStringHelpers(Blackhole blackhole) {
+        for (String value : STRING_VALUES) {
+            String transformed = BaselineExtraction.transformStringMetric(value);
+            if (BaselineExtraction.validMetricValue(transformed)) {
+                blackhole.consume(BaselineExtraction.translateStringToNumber(transformed));
+            }
+        }
+        blackhole.consume(BaselineExtraction.translateStringToNumber("12 345"));
+        blackhole.consume(BaselineExtraction.buildString("tablespace", SEPARATOR, "tbsp_used_size_kb"));
+    }
+
+    @Benchmark
+    public DB2Agent createMetaData(Series state) {
+        return new DB2Agent("bench", SyntheticDriver.HOST, "metadata", "bench", "bench", EMPTY_STRING, state.synthetic, state.defined, state.options);
+    }
+
+    /**
+     * Reports into a new request each time, the SDK request aggregates metrics in a linked list so reporting into one request is quadratic
+     */
+    @Benchmark
+    public void reportMetrics(Series state) {
+        state.harness.newRequest(state.agent);
+        state.agent.reportMetrics();
+    }
+
+    /**
+     * Add a row category defining the given number of metrics, half of them counters
+     */
+    private static Map<String, Object> withSyntheticCategory(Map<String, Object> categories, int series) {
+        Map<String, Object> defined = new HashMap<String, Object>(categories);
+        StringBuilder values = new StringBuilder();
+        StringBuilder counters = new StringBuilder();
+        for (int i = 0; i < series; i++) {
+            (i % 2 == 0 ? values : counters).append("METRIC_").append(i).append(COMMA);
+        }
+        Map<String, Object> synthetic = new HashMap<String, Object>();
+        synthetic.put("category", "synthetic");
+        synthetic.put(SQL, "select * from SYSIBMADM.MON_DB_SUMMARY");
+        synthetic.put(RESULT, ROW);
+        synthetic.put("value_metrics", values.toString());
+        synthetic.put("counter_metrics", counters.toString());
+        defined.put("synthetic", synthetic);
+        return defined;
+    }
+
+    /**
+     * Register a synthetic database whose tablespace category yields about the given number of series
+     */
+    private static String register(String prefix, int series) {
+        String database = prefix + series;
+        SyntheticDriver.register(database, SyntheticDatabase.standard(8, Math.max(1, series / SERIES_PER_TABLESPACE), 1));
+        return database;
+    }
+
+    /**
+     * Read the categories the way DB2AgentFactory does. Intervals are dropped so every category runs in every cycle, and top_k so the tablespace
+     * category reports the given number of series.
+     */
+    static Map<String, Object> readCategories(File file) throws Exception {
+        Map<String, Object> categories = new HashMap<String, Object>();
+        Reader reader = new FileReader(file);
+        try {
+            JSONArray json = (JSONArray) new JSONParser().parse(reader);
+            for (Object entry : json) {
+                JSONObject obj = (JSONObject) entry;
+                obj.remove(INTERVAL);
+                obj.remove(TOP_K);
+                categories.put(((String) obj.get("category")).toLowerCase(), obj);
+            }
+        } finally {
+            reader.close();
+        }
+        return categories;
+    }
+}
@@ -0,0 +1,253 @@
+package com.newrelic.plugins.db2.bench;
+
+import static com.newrelic.plugins.db2.util.Constants.INTERVAL;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONObject;
+
+import com.newrelic.metrics.publish.AgentHarness;
+import com.newrelic.metrics.publish.configuration.ConfigurationException;
+import com.newrelic.metrics.publish.util.Logger;
+import com.newrelic.plugins.db2.LatencyHistogram;
+import com.newrelic.plugins.db2.instance.CollectorStats;
+import com.newrelic.plugins.db2.instance.DB2Agent;
+import com.newrelic.plugins.db2.instance.DB2AgentFactory;
+
+/**
+ * Starts N DB2 agents through DB2AgentFactory, each against its own SyntheticDatabase, and runs their poll cycles back to back. For every combination
+ * of agent count and tablespace count it reports the agent poll cycles completed per second, the percentiles of the time a poll cycle took, the
+ * SQL errors and reconnects of the agents and the heap they retain.
+ *
+ * Options are given as key=value, lists are comma separated:
+ * - agents=1,10,100,500 agent counts
+ * - tablespaces=10,100 tablespaces of each synthetic database, the bufferpools are an eighth of them. Past about 1,000 the SDK's reporting of an
+ *   agent's metrics dominates, it takes time quadratic in the number of metrics (see HotPathBenchmark)
+ * - databases=0 synthetic databases the agents are spread over, 0 gives every agent its own. Agents of the same database share its connections
+ * - cycles=5 measured poll cycles per agent, after 2 warmup cycles
+ * - threads=1 agents polled at once, 1 polls them one after another like the SDK Runner
+ * - metrics=... categories of each agent, default all categories of 'metric.category.json'
+ * - intervals=false whether category intervals apply, by default every category runs in every cycle
+ * - latency=0 and jitter=0 milliseconds added to every query
+ * - failures=0, drops=0 and refusals=0 fraction of queries failing, of queries dropping their connection and of connection attempts refused. The
+ *   agents log the injected failures as errors
+ * - db_members=1 members each synthetic database lists in SYSIBMADM.DB2_MEMBER, each collected on connections of its own with the agent option members=auto
+ * - any other key (e.g. parallelism=4, query_timeout=5) is passed to the agents as an agent option of 'plugin.json'
+ *
+ * Run from the plugin directory, after compiling src and bench against lib/*:
+ * java -cp "classes:lib/*" com.newrelic.plugins.db2.bench.LoadHarness agents=10,100,500 tablespaces=10,1000 latency=2 failures=0.01
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class LoadHarness {
+
+    private static final int WARMUP_CYCLES = 2;
+    private static final String HARNESS_OPTIONS = "|agents|tablespaces|databases|cycles|threads|metrics|intervals|latency|jitter|failures|drops|refusals|db_members|";
+
+    private final Map<String, String> options = new HashMap<String, String>();
+    private final Map<String, Object> agentOptions = new HashMap<String, Object>();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private int scenario = 0;
+
+    public static void main(String[] args) throws Exception {
+        SyntheticDriver.useBenchConfig();
+        LoadHarness harness = new LoadHarness();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            harness.option(arg.substring(0, eq).toLowerCase(), arg.substring(eq + 1));
+        }
+        harness.run();
+    }
+
+    void option(String key, String value) {
+        if (HARNESS_OPTIONS.contains("|" + key + "|")) {
+            options.put(key, value);
+        } else {
+            agentOptions.put(key, value);
+        }
+    }
+
+    void run() throws Exception {
+        Logger.init("warn", System.getProperty("java.io.tmpdir"), "db2_plugin_load.log", 1024);
+        SyntheticDriver.install();
+
+        System.out.println(String.format("%7s %11s %7s %12s %10s %10s %10s %10s %8s %10s %12s", "Agents", "Tablespaces", "Cycles", "cycles/s",
+                "p50 ms", "p95 ms", "p99 ms", "max ms", "errors", "reconnects", "heap/agent"));
+        for (int tablespaces : ints("tablespaces", "10,100")) {
+            for (int agents : ints("agents", "1,10,100,500")) {
+                scenario(agents, tablespaces);
+            }
+        }
+    }
+
+    private void scenario(int agentCount, int tablespaces) throws Exception {
+        int cycles = ints("cycles", "5")[0];
+        int threads = Math.max(1, ints("threads", "1")[0]);
+        int databases = ints("databases", "0")[0];
+        databases = databases <= 0 ? agentCount : Math.min(databases, agentCount);
+        String prefix = "load" + (++scenario) + "_";
+
+        long heapBefore = usedHeap();
+        DB2AgentFactory factory = factory(Boolean.parseBoolean(string("intervals", "false")));
+        final AgentHarness harness = new AgentHarness();
+        List<DB2Agent> agents = new ArrayList<DB2Agent>(agentCount);
+        for (int i = 0; i < databases; i++) {
+            SyntheticDriver.register(prefix + i, SyntheticDatabase.standard(Math.max(1, tablespaces / 8), tablespaces, 1)
+                .latency(longs("latency"), longs("jitter"))
+                .failures(doubles("failures"))
+                .drops(doubles("drops"))
+                .refusals(doubles("refusals"))
+                .members(Math.max(1, ints("db_members", "1")[0])));
+        }
+        for (int i = 0; i < agentCount; i++) {
+            DB2Agent agent = (DB2Agent) factory.createConfiguredAgent(properties(prefix + "agent" + i, prefix + (i % databases), factory));
+            harness.attach(agent);
+            agents.add(agent);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final LatencyHistogram cycleTime = new LatencyHistogram();
+            for (int cycle = 0; cycle < WARMUP_CYCLES; cycle++) {
+                pollAll(pool, harness, agents, cycleTime);
+            }
+            cycleTime.mark();
+            long start = System.nanoTime();
+            for (int cycle = 0; cycle < cycles; cycle++) {
+                pollAll(pool, harness, agents, cycleTime);
+            }
+            double elapsed = (System.nanoTime() - start) / 1000000000.0;
+
+            long errors = 0L;
+            long reconnects = 0L;
+            for (DB2Agent agent : agents) {
+                CollectorStats stats = agent.getCollectorStats();
+                for (int i = 0; i < stats.getCategories().length; i++) {
+                    errors += stats.getErrors(i);
+                }
+                reconnects += stats.getReconnects();
+            }
+            long heapPerAgent = (usedHeap() - heapBefore) / agentCount;
+
+            System.out.println(String.format("%7d %11d %7d %12.1f %10.2f %10.2f %10.2f %10.2f %8d %10d %12s", agentCount, tablespaces, cycles,
+                    agentCount * cycles / elapsed, cycleTime.getIntervalPercentile(50.0), cycleTime.getIntervalPercentile(95.0),
+                    cycleTime.getIntervalPercentile(99.0), cycleTime.getIntervalMax(), errors, reconnects, String.format("%,d B", heapPerAgent)));
+        } finally {
+            pool.shutdown();
+            for (DB2Agent agent : agents) {
+                agent.shutdown();
+            }
+            for (int i = 0; i < databases; i++) {
+                SyntheticDriver.unregister(prefix + i);
+            }
+        }
+    }
+
+    /**
+     * Run one poll cycle of every agent. Each agent reports into its own request, as agents may be polled concurrently.
+     */
+    private void pollAll(ExecutorService pool, final AgentHarness harness, List<DB2Agent> agents, final LatencyHistogram cycleTime) throws Exception {
+        List<Future<Void>> polls = new ArrayList<Future<Void>>(agents.size());
+        for (final DB2Agent agent : agents) {
+            polls.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    harness.newRequest(agent);
+                    long start = System.nanoTime();
+                    agent.pollCycle();
+                    cycleTime.record(System.nanoTime() - start);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> poll : polls) {
+            poll.get();
+        }
+    }
+
+    /**
+     * A factory reading 'bench/config/metric.category.json', without the category intervals unless they apply
+     */
+    private DB2AgentFactory factory(final boolean intervals) {
+        return new DB2AgentFactory() {
+            private Map<String, Object> categories;
+
+            @Override
+            public synchronized Map<String, Object> readCategoryConfiguration() throws ConfigurationException {
+                if (categories == null) {
+                    categories = super.readCategoryConfiguration();
+                    if (!intervals) {
+                        for (Object category : categories.values()) {
+                            ((JSONObject) category).remove(INTERVAL);
+                        }
+                    }
+                }
+                return categories; // Read once, shared by all agents of the scenario
+            }
+        };
+    }
+
+    /**
+     * The agent entry 'plugin.json' would hold for an agent of the synthetic database
+     */
+    private Map<String, Object> properties(String name, String database, DB2AgentFactory factory) throws ConfigurationException {
+        Map<String, Object> properties = new HashMap<String, Object>(agentOptions);
+        properties.put("name", name);
+        properties.put("host", SyntheticDriver.HOST);
+        properties.put("database", database);
+        properties.put("user", "bench");
+        properties.put("passwd", "bench");
+        String metrics = options.get("metrics");
+        if (metrics == null) {
+            StringBuilder all = new StringBuilder();
+            for (String category : factory.readCategoryConfiguration().keySet()) {
+                all.append(category).append(',');
+            }
+            metrics = all.toString();
+        }
+        properties.put("metrics", metrics);
+        return properties;
+    }
+
+    private long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private String string(String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private int[] ints(String key, String defaultValue) {
+        String[] values = string(key, defaultValue).split(",");
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = Integer.parseInt(values[i].trim());
+        }
+        return ints;
+    }
+
+    private long longs(String key) {
+        return Long.parseLong(string(key, "0"));
+    }
+
+    private double doubles(String key) {
+        return Double.parseDouble(string(key, "0"));
+    }
+}
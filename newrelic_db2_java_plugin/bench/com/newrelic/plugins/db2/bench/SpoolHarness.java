@@ -0,0 +1,172 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import com.newrelic.metrics.publish.AgentHarness;
+import com.newrelic.metrics.publish.binding.Context;
+import com.newrelic.metrics.publish.binding.Request;
+import com.newrelic.plugins.db2.instance.DB2Agent;
+import com.newrelic.plugins.db2.instance.DB2AgentFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs a spooling DB2 agent against a SyntheticDatabase and a stub of the New Relic metrics endpoint that accepts or rejects requests on demand,
+ * and prints what the endpoint received and how many poll cycles the spool holds:
+ * - an outage shorter than the SDK's 20 minutes of aggregation, the SDK delivers the poll cycles itself and nothing is replayed
+ * - an outage the SDK gives up on, the spooled poll cycles are replayed once the endpoint accepts requests again
+ * - a restart of the agent during an outage, the poll cycles spooled before the restart are replayed by the new agent
+ *
+ * Run from the plugin directory, after compiling src and bench against lib/*:
+ * java -cp "classes:lib/*" com.newrelic.plugins.db2.bench.SpoolHarness
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class SpoolHarness {
+
+    private static final long AGGREGATION_LIMIT = 20 * 60 * 1000L + 1000L; // Past the SDK's
+    private static final long REPLAY_WAIT = 200L; // Milliseconds
+
+    private HttpServer server;
+    private volatile boolean accepting = true;
+    private volatile int posts = 0; // Counted on the thread of the endpoint
+    private volatile int accepted = 0;
+    private volatile int replays = 0; // Accepted posts that were not sent by the SDK
+    private volatile int cycles = 0; // Poll cycles of metrics the endpoint accepted
+
+    public static void main(String[] args) throws Exception {
+        SyntheticDriver.useBenchConfig();
+        new SpoolHarness().run();
+    }
+
+    private void run() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new Endpoint());
+        server.start();
+        File dir = new File(System.getProperty("java.io.tmpdir"), "db2-spool-harness");
+        dir.mkdirs();
+        new File(dir, "db2-spool.spool").delete();
+        SyntheticDriver.install();
+        SyntheticDriver.register("spool", SyntheticDatabase.standard(2, 8, 1));
+        try {
+            AgentHarness harness = new AgentHarness();
+            DB2Agent agent = attach(harness, dir);
+
+            cycles(harness, agent, true, 2);
+            report("Publishing");
+            cycles(harness, agent, false, 3);
+            report("3 cycles rejected");
+            cycles(harness, agent, true, 1);
+            report("Accepted again, the SDK delivered the 3 cycles");
+
+            cycles(harness, agent, false, 3);
+            expireAggregation(harness);
+            cycles(harness, agent, false, 2);
+            report("5 cycles rejected, the SDK dropped the first 3");
+            cycles(harness, agent, true, 3);
+            report("Accepted again, the dropped cycles were replayed");
+
+            cycles(harness, agent, false, 2);
+            expireAggregation(harness);
+            cycles(harness, agent, false, 4);
+            report("6 cycles rejected, then the agent stops");
+            AgentHarness restarted = new AgentHarness();
+            DB2Agent again = attach(restarted, dir);
+            report("Restarted");
+            cycles(restarted, again, true, 3);
+            report("Accepted after the restart, the spooled cycles were replayed");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private DB2Agent attach(AgentHarness harness, File dir) throws Exception {
+        Context context = harness.getContext();
+        context.licenseKey = "bench";
+        context.internalSetServiceURI("http://127.0.0.1:" + server.getAddress().getPort() + "/platform/v1/metrics");
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("name", "spool");
+        properties.put("host", SyntheticDriver.HOST);
+        properties.put("database", "spool");
+        properties.put("user", "bench");
+        properties.put("passwd", "bench");
+        properties.put("metrics", "database,bufferpool_activity");
+        properties.put("spool_size_mb", "1");
+        properties.put("spool_dir", dir.getPath());
+        properties.put("spool_replay_batches", "2");
+        DB2Agent agent = (DB2Agent) new DB2AgentFactory().createConfiguredAgent(properties);
+        harness.attach(agent);
+        return agent;
+    }
+
+    /**
+     * Run poll cycles of the agent and deliver their request the way the Runner does
+     */
+    private void cycles(AgentHarness harness, DB2Agent agent, boolean accept, int count) throws InterruptedException {
+        accepting = accept;
+        for (int i = 0; i < count; i++) {
+            Request request = harness.newRequest(agent);
+            agent.pollCycle();
+            request.deliver();
+            Thread.sleep(REPLAY_WAIT); // Spooled poll cycles are replayed on the replay thread of the DeliveryTracker
+        }
+    }
+
+    /**
+     * Make the SDK give up on the request it aggregates undelivered poll cycles into, as it does after 20 minutes
+     */
+    private static void expireAggregation(AgentHarness harness) throws Exception {
+        Field started = Context.class.getDeclaredField("aggregationStartedAt");
+        started.setAccessible(true);
+        started.set(harness.getContext(), new Date(System.currentTimeMillis() - AGGREGATION_LIMIT));
+    }
+
+    private void report(String step) {
+        System.out.printf("%-62s posts %3d accepted %3d (%2d replayed) cycles received %3d%n", step, posts, accepted, replays, cycles);
+    }
+
+    private class Endpoint implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            posts++;
+            Object body = JSONValue.parse(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+            String response;
+            int code;
+            if (accepting) {
+                accepted++;
+                JSONObject component = (JSONObject) ((JSONArray) ((JSONObject) body).get("components")).get(0);
+                String agent = exchange.getRequestHeaders().getFirst("User-Agent");
+                if (agent == null || !agent.startsWith("JavaSDK")) {
+                    replays++;
+                }
+                Object value = ((JSONObject) component.get("metrics")).values().iterator().next();
+                cycles += value instanceof Map ? ((Number) ((Map<?, ?>) value).get("count")).intValue() : 1; // The SDK aggregates cycles
+                response = "{\"status\":\"ok\"}";
+                code = 200;
+            } else {
+                response = "{\"error\":\"Service unavailable\"}";
+                code = 503;
+            }
+            byte[] bytes = response.getBytes("UTF-8");
+            exchange.sendResponseHeaders(code, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
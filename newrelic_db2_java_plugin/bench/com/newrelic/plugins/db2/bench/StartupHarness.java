@@ -0,0 +1,124 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.newrelic.metrics.publish.Agent;
+import com.newrelic.metrics.publish.util.Logger;
+import com.newrelic.plugins.db2.instance.DB2Agent;
+import com.newrelic.plugins.db2.instance.DB2AgentFactory;
+
+/**
+ * Creates N DB2 agents through DB2AgentFactory, as the SDK Runner does for the agents of 'plugin.json' at startup, each monitoring a database of
+ * its own with all categories of 'metric.category.json'. For every agent count it reports how long creating the agents took, the heap they retain
+ * and the resident set size of the JVM once they are created. No agent connects to DB2 or runs a poll cycle.
+ *
+ * Options are given as key=value, lists are comma separated:
+ * - agents=1,100,400,1000 agent counts
+ * - rounds=3 times each agent count is created, the fastest round is reported
+ *
+ * Run from the plugin directory, after compiling src and bench against lib/*, in a JVM of its own so the resident set size is that of the agents:
+ * java -cp "classes:lib/*" com.newrelic.plugins.db2.bench.StartupHarness agents=100,400,1000
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class StartupHarness {
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private int scenario = 0;
+
+    public static void main(String[] args) throws Exception {
+        SyntheticDriver.useBenchConfig();
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            options.put(arg.substring(0, eq).toLowerCase(), arg.substring(eq + 1));
+        }
+        String agents = options.containsKey("agents") ? options.get("agents") : "1,100,400,1000";
+        int rounds = Integer.parseInt(options.containsKey("rounds") ? options.get("rounds") : "3");
+        new StartupHarness().run(agents.split(","), Math.max(1, rounds));
+    }
+
+    void run(String[] agentCounts, int rounds) throws Exception {
+        Logger.init("warn", System.getProperty("java.io.tmpdir"), "db2_plugin_startup.log", 1024);
+        SyntheticDriver.install();
+
+        System.out.println(String.format("%7s %12s %12s %14s %12s", "Agents", "startup ms", "ms/agent", "heap/agent", "RSS MB"));
+        for (String agentCount : agentCounts) {
+            int count = Integer.parseInt(agentCount.trim());
+            double best = Double.MAX_VALUE;
+            long heapPerAgent = 0L;
+            for (int round = 0; round < rounds; round++) {
+                long heapBefore = usedHeap();
+                String prefix = "startup" + (++scenario) + "_";
+                DB2AgentFactory factory = new DB2AgentFactory();
+                List<Agent> agents = new ArrayList<Agent>(count);
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    agents.add(factory.createConfiguredAgent(properties(prefix + i)));
+                }
+                best = Math.min(best, (System.nanoTime() - start) / 1000000.0);
+                heapPerAgent = (usedHeap() - heapBefore) / count;
+                for (Agent agent : agents) { // Reachable until the heap was measured
+                    ((DB2Agent) agent).shutdown();
+                }
+            }
+            System.out.println(String.format("%7d %12.1f %12.3f %14s %12.1f", count, best, best / count, String.format("%,d B", heapPerAgent),
+                    residentSetSize() / (1024.0 * 1024.0)));
+        }
+    }
+
+    /**
+     * The agent entry 'plugin.json' would hold for an agent monitoring a database of its own
+     */
+    private Map<String, Object> properties(String name) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("name", name);
+        properties.put("host", SyntheticDriver.HOST);
+        properties.put("database", name);
+        properties.put("user", "bench");
+        properties.put("passwd", "bench");
+        properties.put("metrics", "overview,connection_overview,sql_overview,bufferpool,tablespace,hadr,database,bufferpool_activity");
+        return properties;
+    }
+
+    private long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return long bytes of the JVM resident in memory, from /proc on Linux, 0 elsewhere
+     */
+    private static long residentSetSize() throws IOException {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return 0L;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(status));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024L;
+                }
+            }
+            return 0L;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+/**
+ * A connection to a SyntheticDatabase, handed out by the SyntheticDriver
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class SyntheticConnection extends AbstractConnection {
+
+    private final SyntheticDatabase database;
+    private volatile boolean closed = false;
+
+    SyntheticConnection(SyntheticDatabase database) {
+        this.database = database;
+    }
+
+    SyntheticDatabase getDatabase() {
+        return database;
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        checkOpen();
+        return new SyntheticStatement(this, sql);
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        checkOpen();
+        return new SyntheticStatement(this, null);
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return !closed;
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection is closed", "08003", -4470);
+        }
+    }
+}
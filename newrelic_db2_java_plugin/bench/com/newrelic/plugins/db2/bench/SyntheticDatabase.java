@@ -0,0 +1,196 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.newrelic.plugins.db2.CategoryBatch;
+
+/**
+ * The monitoring views of one emulated DB2 database. A query is answered by the first table whose fragment (a view or table function name) appears
+ * in its SQL, so the category SQL of 'metric.category.json' runs unchanged. Each execution advances the counters of the table, as if the database
+ * had been busy since the last poll cycle. The compound query of a CategoryBatch is answered by the tables of its categories.
+ *
+ * Faults can be injected to see how agents behave against a slow or unhealthy server: a latency (with jitter) added to every query, queries failing
+ * with SQL0904N (resource not available), connections dropped by a communication error (SQL30081N) and connection attempts refused. Faults may be
+ * changed while agents are running.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class SyntheticDatabase {
+
+    // The SQL of one category of a compound query
+    private static final Pattern BATCH_PART = Pattern.compile("LEFT OUTER JOIN \\((.*?)\\) AS C\\d+ ON 1 = 1(?= LEFT OUTER JOIN \\(|$)");
+
+    private final List<String> fragments = new ArrayList<String>(); // Upper case
+    private final List<SyntheticTable> tables = new ArrayList<SyntheticTable>();
+    private long activity = 100L; // Counter increment per execution and row
+
+    private volatile long latency = 0L; // Milliseconds added to every query
+    private volatile long jitter = 0L; // Up to this many more milliseconds, uniformly distributed
+    private volatile double failureRate = 0.0; // Fraction of queries failing with SQL0904N
+    private volatile double dropRate = 0.0; // Fraction of queries losing their connection
+    private volatile double refusalRate = 0.0; // Fraction of connection attempts refused
+    private final Random random = new Random();
+
+    /**
+     * A database with the given number of bufferpools, tablespaces and HADR standbys, answering every category of 'metric.category.json'
+     */
+    public static SyntheticDatabase standard(int bufferpools, int tablespaces, int standbys) {
+        return new SyntheticDatabase()
+            .table("MON_GET_CONNECTION", SyntheticTable.monGetConnectionCost())
+            .table("MON_GET_BUFFERPOOL", SyntheticTable.monGetBufferpool(bufferpools)) // Before MON_GET_DATABASE, its SQL reads DB_CONN_TIME from it
+            .table("MON_GET_DATABASE", SyntheticTable.monGetDatabase())
+            .table("MON_DB_SUMMARY", SyntheticTable.monDbSummary())
+            .table("MON_CONNECTION_SUMMARY", SyntheticTable.monConnectionCount(57L))
+            .table("MON_CURRENT_SQL", SyntheticTable.monCurrentSqlCount(12L))
+            .table("MON_BP_UTILIZATION", SyntheticTable.monBpUtilization(bufferpools))
+            .table("MON_TBSP_UTILIZATION", SyntheticTable.monTbspUtilization(tablespaces))
+            .table("MON_GET_HADR", SyntheticTable.monGetHadr(standbys))
+            .table("SYSIBM.SYSDUMMY1", new SyntheticTable("SYSDUMMY1", 1).longColumn("1", 1L, 0));
+    }
+
+    /**
+     * Answer queries whose SQL contains the fragment with the table
+     */
+    public SyntheticDatabase table(String fragment, SyntheticTable table) {
+        fragments.add(fragment.toUpperCase());
+        tables.add(table);
+        return this;
+    }
+
+    /**
+     * List the given number of members in SYSIBMADM.DB2_MEMBER, as a partitioned database with logical members on one host. All members answer with
+     * the same tables.
+     */
+    public SyntheticDatabase members(int members) {
+        fragments.add(0, "DB2_MEMBER");
+        tables.add(0, SyntheticTable.db2Member(members));
+        return this;
+    }
+
+    public SyntheticDatabase activity(long activity) {
+        this.activity = activity;
+        return this;
+    }
+
+    /**
+     * Add a latency to every query. A query whose latency exceeds the query timeout of its statement fails with SQL0952N once the timeout elapsed.
+     *
+     * @param millis long fixed latency
+     * @param jitter long maximum random latency on top of it
+     */
+    public SyntheticDatabase latency(long millis, long jitter) {
+        this.latency = Math.max(0L, millis);
+        this.jitter = Math.max(0L, jitter);
+        return this;
+    }
+
+    /**
+     * @param rate double fraction of queries failing with SQLSTATE 57011, the connection stays usable
+     */
+    public SyntheticDatabase failures(double rate) {
+        this.failureRate = rate;
+        return this;
+    }
+
+    /**
+     * @param rate double fraction of queries failing with SQLSTATE 08001, which also closes their connection
+     */
+    public SyntheticDatabase drops(double rate) {
+        this.dropRate = rate;
+        return this;
+    }
+
+    /**
+     * @param rate double fraction of connection attempts refused with SQLSTATE 08001
+     */
+    public SyntheticDatabase refusals(double rate) {
+        this.refusalRate = rate;
+        return this;
+    }
+
+    /**
+     * Open a connection, unless the attempt is refused
+     */
+    SyntheticConnection connect() throws SQLException {
+        if (chance(refusalRate)) {
+            throw new SQLException("Injected refusal: communication error", "08001", -30081);
+        }
+        return new SyntheticConnection(this);
+    }
+
+    /**
+     * @param sql String
+     * @return SyntheticTable answering the SQL
+     * @throws SQLException with SQLSTATE 42704 (undefined name) if no table does
+     */
+    public SyntheticTable lookup(String sql) throws SQLException {
+        String upper = sql.toUpperCase();
+        if (upper.contains(CategoryBatch.MARKER_PREFIX)) { // Compound query of a batch of categories, answered by the tables of its parts
+            List<SyntheticTable> parts = new ArrayList<SyntheticTable>();
+            Matcher part = BATCH_PART.matcher(sql);
+            while (part.find()) {
+                parts.add(lookup(part.group(1)));
+            }
+            return SyntheticTable.compound(parts);
+        }
+        for (int i = 0; i < fragments.size(); i++) {
+            if (upper.contains(fragments.get(i))) {
+                return tables.get(i);
+            }
+        }
+        throw new SQLException("No synthetic table answers: " + sql, "42704", -204);
+    }
+
+    /**
+     * Run a query answered by the table: wait for the injected latency, inject failures, advance its counters and return a result set over it
+     *
+     * @param connection SyntheticConnection running the query
+     * @param table SyntheticTable answering it
+     * @param queryTimeout int seconds, 0 for none
+     */
+    SyntheticResultSet execute(SyntheticConnection connection, SyntheticTable table, int queryTimeout) throws SQLException {
+        delay(queryTimeout);
+        if (chance(dropRate)) {
+            connection.close();
+            throw new SQLException("Injected drop: communication error", "08001", -30081);
+        }
+        if (chance(failureRate)) {
+            throw new SQLException("Injected failure: resource not available", "57011", -904);
+        }
+        synchronized (table) {
+            table.advance(activity);
+        }
+        return table.resultSet();
+    }
+
+    private void delay(int queryTimeout) throws SQLException {
+        long millis = latency;
+        if (jitter > 0) {
+            millis += (long) (random.nextDouble() * jitter);
+        }
+        if (millis == 0) {
+            return;
+        }
+        boolean timedOut = queryTimeout > 0 && millis > queryTimeout * 1000L;
+        try {
+            Thread.sleep(timedOut ? queryTimeout * 1000L : millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Query interrupted", "57014", -952);
+        }
+        if (timedOut) {
+            throw new SQLTimeoutException("Injected latency of " + millis + " ms exceeded the query timeout", "57014", -952);
+        }
+    }
+
+    private boolean chance(double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+}
@@ -0,0 +1,109 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver for DB2 URLs whose host is 'synthetic', e.g. jdbc:db2://synthetic:50000/testdb. It connects to the SyntheticDatabase registered
+ * under the database name, so a DB2Agent configured with host "synthetic:50000" runs its categories against in-memory tables instead of a DB2 server.
+ *
+ * The driver is registered with DriverManager by install. It must be installed before the plugin first connects, so DriverManager asks it before the
+ * JCC driver.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class SyntheticDriver implements Driver {
+
+    public static final String HOST = "synthetic:50000";
+    public static final String CONFIG_DIRECTORY = "bench/config"; // Its 'metric.category.json' uses every category attribute
+    private static final String URL_PREFIX = "jdbc:db2://synthetic";
+
+    private static final Map<String, SyntheticDatabase> databases = new ConcurrentHashMap<String, SyntheticDatabase>();
+    private static boolean installed = false;
+
+    /**
+     * Register the driver with DriverManager, once
+     */
+    public static synchronized void install() throws SQLException {
+        if (!installed) {
+            DriverManager.registerDriver(new SyntheticDriver());
+            installed = true;
+        }
+    }
+
+    /**
+     * Have DB2AgentFactory read the categories of bench/config rather than the shipped ones, unless newrelic.platform.config.dir is set
+     */
+    public static void useBenchConfig() {
+        if (System.getProperty("newrelic.platform.config.dir") == null) {
+            System.setProperty("newrelic.platform.config.dir", CONFIG_DIRECTORY);
+        }
+    }
+
+    /**
+     * Make a database available under a name
+     */
+    public static void register(String name, SyntheticDatabase database) {
+        databases.put(name.toLowerCase(), database);
+    }
+
+    public static void unregister(String name) {
+        databases.remove(name.toLowerCase());
+    }
+
+    @Override
+    public boolean acceptsURL(String url) throws SQLException {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null; // Not ours, DriverManager asks the next driver
+        }
+        String name = url.substring(url.lastIndexOf('/') + 1);
+        int options = name.indexOf(':');
+        if (options >= 0) {
+            name = name.substring(0, options);
+        }
+        SyntheticDatabase database = databases.get(name.toLowerCase());
+        if (database == null) {
+            throw new SQLException("Unknown synthetic database: " + name, "08004", -30061);
+        }
+        return database.connect();
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+}
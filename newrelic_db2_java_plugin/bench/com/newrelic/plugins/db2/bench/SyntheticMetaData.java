@@ -0,0 +1,172 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Meta data of a SyntheticTable
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class SyntheticMetaData implements ResultSetMetaData {
+
+    private final SyntheticTable table;
+
+    public SyntheticMetaData(SyntheticTable table) {
+        this.table = table;
+    }
+
+    @Override
+    public int getColumnCount() throws SQLException {
+        return table.getColumnCount();
+    }
+
+    @Override
+    public String getColumnName(int column) throws SQLException {
+        return table.getColumnName(column);
+    }
+
+    @Override
+    public String getColumnLabel(int column) throws SQLException {
+        return table.getColumnName(column);
+    }
+
+    @Override
+    public int getColumnType(int column) throws SQLException {
+        return table.getColumnType(column);
+    }
+
+    @Override
+    public String getColumnTypeName(int column) throws SQLException {
+        switch (table.getColumnType(column)) {
+        case Types.BIGINT:
+            return "BIGINT";
+        case Types.SMALLINT:
+            return "SMALLINT";
+        case Types.DECIMAL:
+            return "DECIMAL";
+        case Types.TIMESTAMP:
+            return "TIMESTAMP";
+        default:
+            return "VARCHAR";
+        }
+    }
+
+    @Override
+    public String getColumnClassName(int column) throws SQLException {
+        switch (table.getColumnType(column)) {
+        case Types.BIGINT:
+            return Long.class.getName();
+        case Types.SMALLINT:
+            return Integer.class.getName();
+        case Types.DECIMAL:
+            return java.math.BigDecimal.class.getName();
+        case Types.TIMESTAMP:
+            return java.sql.Timestamp.class.getName();
+        default:
+            return String.class.getName();
+        }
+    }
+
+    @Override
+    public int getColumnDisplaySize(int column) throws SQLException {
+        return getPrecision(column) + 2;
+    }
+
+    @Override
+    public int getPrecision(int column) throws SQLException {
+        switch (table.getColumnType(column)) {
+        case Types.BIGINT:
+            return 19;
+        case Types.SMALLINT:
+            return 5;
+        case Types.DECIMAL:
+            return 5;
+        case Types.TIMESTAMP:
+            return 26;
+        default:
+            return 128;
+        }
+    }
+
+    @Override
+    public int getScale(int column) throws SQLException {
+        return table.getColumnType(column) == Types.DECIMAL ? 2 : 0;
+    }
+
+    @Override
+    public String getCatalogName(int column) throws SQLException {
+        return "";
+    }
+
+    @Override
+    public String getSchemaName(int column) throws SQLException {
+        return "SYSIBMADM";
+    }
+
+    @Override
+    public String getTableName(int column) throws SQLException {
+        return table.getName();
+    }
+
+    @Override
+    public boolean isAutoIncrement(int column) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public boolean isCaseSensitive(int column) throws SQLException {
+        return table.getColumnType(column) == Types.VARCHAR;
+    }
+
+    @Override
+    public boolean isCurrency(int column) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public boolean isDefinitelyWritable(int column) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public int isNullable(int column) throws SQLException {
+        return columnNullable;
+    }
+
+    @Override
+    public boolean isReadOnly(int column) throws SQLException {
+        return true;
+    }
+
+    @Override
+    public boolean isSearchable(int column) throws SQLException {
+        return true;
+    }
+
+    @Override
+    public boolean isSigned(int column) throws SQLException {
+        int type = table.getColumnType(column);
+        return type == Types.BIGINT || type == Types.SMALLINT || type == Types.DECIMAL;
+    }
+
+    @Override
+    public boolean isWritable(int column) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+}
@@ -0,0 +1,227 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.math.BigDecimal;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+ * A forward-only result set over a SyntheticTable. Like a real driver, numeric getters return primitives without allocating while getString
+ * converts (and allocates) on every call.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class SyntheticResultSet extends AbstractResultSet {
+
+    private final SyntheticTable table;
+    private final SyntheticMetaData metaData;
+    private Statement statement = null;
+    private int row = -1;
+    private boolean closed = false;
+    private boolean lastWasNull = false;
+
+    public SyntheticResultSet(SyntheticTable table) {
+        this.table = table;
+        this.metaData = new SyntheticMetaData(table);
+    }
+
+    SyntheticResultSet withStatement(Statement statement) {
+        this.statement = statement;
+        return this;
+    }
+
+    /**
+     * Rewind, so one result set can be read again by a benchmark loop
+     */
+    public void rewind() {
+        row = -1;
+        closed = false;
+    }
+
+    @Override
+    public boolean next() throws SQLException {
+        checkOpen();
+        return ++row < table.getRowCount();
+    }
+
+    @Override
+    public void beforeFirst() throws SQLException {
+        rewind();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return metaData;
+    }
+
+    @Override
+    public Statement getStatement() throws SQLException {
+        return statement;
+    }
+
+    @Override
+    public boolean wasNull() throws SQLException {
+        return lastWasNull;
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public int findColumn(String label) throws SQLException {
+        for (int c = 1; c <= table.getColumnCount(); c++) {
+            if (table.getColumnName(c).equalsIgnoreCase(label)) {
+                return c;
+            }
+        }
+        throw new SQLException("Column not found: " + label, "42703");
+    }
+
+    @Override
+    public String getString(int column) throws SQLException {
+        Object data = data(column);
+        if (data instanceof long[]) {
+            if (table.getColumnType(column) == java.sql.Types.TIMESTAMP) {
+                return new Timestamp(((long[]) data)[row]).toString();
+            }
+            return String.valueOf(((long[]) data)[row]);
+        }
+        if (data instanceof double[]) {
+            return String.valueOf(((double[]) data)[row]);
+        }
+        String value = ((String[]) data)[row];
+        lastWasNull = value == null;
+        return value == null ? null : new String(value.toCharArray()); // A driver decodes a new String for every call
+    }
+
+    @Override
+    public long getLong(int column) throws SQLException {
+        Object data = data(column);
+        if (data instanceof long[]) {
+            return ((long[]) data)[row];
+        }
+        if (data instanceof double[]) {
+            return (long) ((double[]) data)[row];
+        }
+        return Long.parseLong(((String[]) data)[row].trim());
+    }
+
+    @Override
+    public int getInt(int column) throws SQLException {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) throws SQLException {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) throws SQLException {
+        Object data = data(column);
+        if (data instanceof double[]) {
+            return ((double[]) data)[row];
+        }
+        if (data instanceof long[]) {
+            return ((long[]) data)[row];
+        }
+        return Double.parseDouble(((String[]) data)[row].trim());
+    }
+
+    @Override
+    public float getFloat(int column) throws SQLException {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(int column) throws SQLException {
+        return new BigDecimal(getString(column));
+    }
+
+    @Override
+    public Timestamp getTimestamp(int column) throws SQLException {
+        Object data = data(column);
+        if (data instanceof long[]) {
+            return new Timestamp(((long[]) data)[row]);
+        }
+        throw new SQLException("Column " + column + " is not a timestamp", "22007");
+    }
+
+    @Override
+    public Object getObject(int column) throws SQLException {
+        Object data = data(column);
+        if (data instanceof long[]) {
+            return table.getColumnType(column) == java.sql.Types.TIMESTAMP ? getTimestamp(column) : (Object) getLong(column);
+        }
+        if (data instanceof double[]) {
+            return getDouble(column);
+        }
+        return getString(column);
+    }
+
+    @Override
+    public String getString(String label) throws SQLException {
+        return getString(findColumn(label));
+    }
+
+    @Override
+    public long getLong(String label) throws SQLException {
+        return getLong(findColumn(label));
+    }
+
+    @Override
+    public int getInt(String label) throws SQLException {
+        return getInt(findColumn(label));
+    }
+
+    @Override
+    public double getDouble(String label) throws SQLException {
+        return getDouble(findColumn(label));
+    }
+
+    @Override
+    public Timestamp getTimestamp(String label) throws SQLException {
+        return getTimestamp(findColumn(label));
+    }
+
+    @Override
+    public Object getObject(String label) throws SQLException {
+        return getObject(findColumn(label));
+    }
+
+    private Object data(int column) throws SQLException {
+        checkOpen();
+        if (row < 0 || row >= table.getRowCount()) {
+            throw new SQLException("Result set is not positioned on a row", "24000");
+        }
+        if (column < 1 || column > table.getColumnCount()) {
+            throw new SQLException("Invalid column number " + column, "07009");
+        }
+        lastWasNull = false;
+        return table.getColumnData(column);
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Result set is closed", "24501");
+        }
+    }
+}
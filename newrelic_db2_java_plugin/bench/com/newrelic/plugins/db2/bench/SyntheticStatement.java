@@ -0,0 +1,79 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A statement on a SyntheticConnection. A prepared statement resolves the table answering its SQL once, like a real driver compiles the SQL once,
+ * so executing it again only builds a new result set.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class SyntheticStatement extends AbstractPreparedStatement {
+
+    private final SyntheticConnection connection;
+    private final SyntheticTable table; // null for a plain Statement
+    private int queryTimeout = 0;
+    private int fetchSize = 0;
+    private boolean closed = false;
+
+    SyntheticStatement(SyntheticConnection connection, String sql) throws SQLException {
+        this.connection = connection;
+        this.table = sql == null ? null : connection.getDatabase().lookup(sql);
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        checkOpen();
+        return connection.getDatabase().execute(connection, table, queryTimeout).withStatement(this);
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        checkOpen();
+        return connection.getDatabase().execute(connection, connection.getDatabase().lookup(sql), queryTimeout).withStatement(this);
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        this.queryTimeout = seconds;
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return queryTimeout;
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        this.fetchSize = rows;
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return fetchSize;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed || connection.isClosed()) {
+            throw new SQLException("Statement is closed", "08003", -4470);
+        }
+    }
+}
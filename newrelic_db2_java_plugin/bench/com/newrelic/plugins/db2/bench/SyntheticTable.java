@@ -0,0 +1,354 @@
+package com.newrelic.plugins.db2.bench;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.newrelic.plugins.db2.CategoryBatch;
+
+/**
+ * An in-memory table shaped like one of the DB2 monitoring views the plugin queries. Numeric columns keep their values in primitive arrays, so a
+ * result set over the table does not allocate unless the caller asks for a String.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class SyntheticTable {
+
+    private final String name;
+    private final List<String> columnNames = new ArrayList<String>();
+    private final List<Integer> columnTypes = new ArrayList<Integer>();
+    private final List<Object> columnData = new ArrayList<Object>(); // long[], double[] or String[] per column
+    private final int rowCount;
+
+    public SyntheticTable(String name, int rowCount) {
+        this.name = name;
+        this.rowCount = rowCount;
+    }
+
+    public SyntheticTable longColumn(String column, long base, long step) {
+        long[] values = new long[rowCount];
+        for (int r = 0; r < rowCount; r++) {
+            values[r] = base + step * r;
+        }
+        return add(column, Types.BIGINT, values);
+    }
+
+    public SyntheticTable smallintColumn(String column, long base, long step) {
+        long[] values = new long[rowCount];
+        for (int r = 0; r < rowCount; r++) {
+            values[r] = base + step * r;
+        }
+        return add(column, Types.SMALLINT, values);
+    }
+
+    public SyntheticTable decimalColumn(String column, double base, double step) {
+        double[] values = new double[rowCount];
+        for (int r = 0; r < rowCount; r++) {
+            values[r] = Math.round((base + step * r) % 100.0 * 100.0) / 100.0;
+        }
+        return add(column, Types.DECIMAL, values);
+    }
+
+    public SyntheticTable varcharColumn(String column, String... cycle) {
+        String[] values = new String[rowCount];
+        for (int r = 0; r < rowCount; r++) {
+            values[r] = cycle[r % cycle.length];
+        }
+        return add(column, Types.VARCHAR, values);
+    }
+
+    /**
+     * An entity name column, e.g. TBSP_NAME, with distinct values prefix0, prefix1, ...
+     */
+    public SyntheticTable nameColumn(String column, String prefix) {
+        String[] values = new String[rowCount];
+        for (int r = 0; r < rowCount; r++) {
+            values[r] = prefix + r;
+        }
+        return add(column, Types.VARCHAR, values);
+    }
+
+    public SyntheticTable timestampColumn(String column, long millis) {
+        long[] values = new long[rowCount];
+        for (int r = 0; r < rowCount; r++) {
+            values[r] = millis;
+        }
+        return add(column, Types.TIMESTAMP, values);
+    }
+
+    private SyntheticTable add(String column, int type, Object values) {
+        columnNames.add(column);
+        columnTypes.add(type);
+        columnData.add(values);
+        return this;
+    }
+
+    /**
+     * Advance every BIGINT column by delta times its row number, to emulate activity between two poll cycles
+     */
+    public void advance(long delta) {
+        for (int c = 0; c < columnData.size(); c++) {
+            if (columnTypes.get(c) == Types.BIGINT) {
+                long[] values = (long[]) columnData.get(c);
+                for (int r = 0; r < rowCount; r++) {
+                    values[r] += delta * (r + 1);
+                }
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columnNames.size();
+    }
+
+    /**
+     * @param column int JDBC column number
+     */
+    public String getColumnName(int column) {
+        return columnNames.get(column - 1);
+    }
+
+    public int getColumnType(int column) {
+        return columnTypes.get(column - 1);
+    }
+
+    Object getColumnData(int column) {
+        return columnData.get(column - 1);
+    }
+
+    public SyntheticResultSet resultSet() {
+        return new SyntheticResultSet(this);
+    }
+
+    /**
+     * The one row a CategoryBatch compound query over the given tables returns: the first row of each table, separated by the marker columns. Each
+     * execution advances the tables and takes their first rows again.
+     */
+    public static SyntheticTable compound(List<SyntheticTable> parts) {
+        return new Compound(parts);
+    }
+
+    private static class Compound extends SyntheticTable {
+
+        private final List<SyntheticTable> parts;
+
+        Compound(List<SyntheticTable> parts) {
+            super("COMPOUND", 1);
+            this.parts = parts;
+            for (int p = 0; p < parts.size(); p++) {
+                if (p > 0) {
+                    smallintColumn(CategoryBatch.MARKER_PREFIX + p, 0L, 0L);
+                }
+                SyntheticTable part = parts.get(p);
+                for (int c = 1; c <= part.getColumnCount(); c++) {
+                    ((SyntheticTable) this).add(part.getColumnName(c), part.getColumnType(c), null);
+                }
+            }
+            refresh();
+        }
+
+        @Override
+        public void advance(long delta) {
+            for (SyntheticTable part : parts) {
+                synchronized (part) {
+                    part.advance(delta);
+                }
+            }
+            refresh();
+        }
+
+        private void refresh() {
+            List<Object> data = ((SyntheticTable) this).columnData;
+            int index = 0;
+            for (int p = 0; p < parts.size(); p++) {
+                if (p > 0) {
+                    index++; // Marker
+                }
+                SyntheticTable part = parts.get(p);
+                for (int c = 1; c <= part.getColumnCount(); c++) {
+                    data.set(index++, firstRow(part.getColumnData(c)));
+                }
+            }
+        }
+
+        private static Object firstRow(Object values) {
+            if (values instanceof long[]) {
+                return new long[] { ((long[]) values)[0] };
+            }
+            if (values instanceof double[]) {
+                return new double[] { ((double[]) values)[0] };
+            }
+            return new String[] { ((String[]) values)[0] };
+        }
+    }
+
+    /**
+     * SYSIBMADM.MON_DB_SUMMARY, one row
+     */
+    public static SyntheticTable monDbSummary() {
+        return new SyntheticTable("MON_DB_SUMMARY", 1)
+            .longColumn("TOTAL_APP_COMMITS", 1200000L, 0)
+            .longColumn("TOTAL_APP_ROLLBACKS", 340L, 0)
+            .longColumn("ACT_COMPLETED_TOTAL", 5400000L, 0)
+            .longColumn("APP_RQSTS_COMPLETED_TOTAL", 7300000L, 0)
+            .longColumn("AVG_RQST_CPU_TIME", 812L, 0)
+            .decimalColumn("ROUTINE_TIME_RQST_PERCENT", 3.25, 0)
+            .decimalColumn("RQST_WAIT_TIME_PERCENT", 41.5, 0)
+            .decimalColumn("ACT_WAIT_TIME_PERCENT", 12.75, 0)
+            .decimalColumn("IO_WAIT_TIME_PERCENT", 8.1, 0)
+            .decimalColumn("LOCK_WAIT_TIME_PERCENT", 0.4, 0)
+            .decimalColumn("AGENT_WAIT_TIME_PERCENT", 0.0, 0)
+            .decimalColumn("NETWORK_WAIT_TIME_PERCENT", 22.3, 0)
+            .decimalColumn("SECTION_PROC_TIME_PERCENT", 51.0, 0)
+            .decimalColumn("SECTION_SORT_PROC_TIME_PERCENT", 2.2, 0)
+            .decimalColumn("COMPILE_PROC_TIME_PERCENT", 1.9, 0)
+            .decimalColumn("TRANSACT_END_PROC_TIME_PERCENT", 4.7, 0)
+            .decimalColumn("UTILS_PROC_TIME_PERCENT", 0.0, 0)
+            .longColumn("AVG_LOCK_WAITS_PER_ACT", 0L, 0)
+            .longColumn("AVG_LOCK_TIMEOUTS_PER_ACT", 0L, 0)
+            .longColumn("AVG_DEADLOCKS_PER_ACT", 0L, 0)
+            .longColumn("AVG_LOCK_ESCALS_PER_ACT", 0L, 0)
+            .longColumn("ROWS_READ_PER_ROWS_RETURNED", 14L, 0)
+            .decimalColumn("TOTAL_BP_HIT_RATIO_PERCENT", 98.72, 0);
+    }
+
+    /**
+     * select count(*) as connections from SYSIBMADM.MON_CONNECTION_SUMMARY
+     */
+    public static SyntheticTable monConnectionCount(long connections) {
+        return new SyntheticTable("MON_CONNECTION_SUMMARY", 1).longColumn("CONNECTIONS", connections, 0);
+    }
+
+    /**
+     * select count(*) as SQL_statements from SYSIBMADM.MON_CURRENT_SQL
+     */
+    public static SyntheticTable monCurrentSqlCount(long statements) {
+        return new SyntheticTable("MON_CURRENT_SQL", 1).longColumn("SQL_STATEMENTS", statements, 0);
+    }
+
+    /**
+     * SYSIBMADM.MON_BP_UTILIZATION, one row per bufferpool
+     */
+    public static SyntheticTable monBpUtilization(int bufferpools) {
+        return new SyntheticTable("MON_BP_UTILIZATION", bufferpools)
+            .nameColumn("BP_NAME", "BP")
+            .smallintColumn("MEMBER", 0, 0)
+            .longColumn("DATA_PHYSICAL_READS", 120000L, 977L)
+            .decimalColumn("DATA_HIT_RATIO_PERCENT", 97.5, 0.01)
+            .longColumn("INDEX_PHYSICAL_READS", 45000L, 311L)
+            .decimalColumn("INDEX_HIT_RATIO_PERCENT", 99.1, 0.01)
+            .longColumn("XDA_PHYSICAL_READS", 0L, 0)
+            .decimalColumn("XDA_HIT_RATIO_PERCENT", 0.0, 0)
+            .longColumn("COL_PHYSICAL_READS", 0L, 0)
+            .decimalColumn("COL_HIT_RATIO_PERCENT", 0.0, 0)
+            .longColumn("TOTAL_PHYSICAL_READS", 165000L, 1288L)
+            .longColumn("AVG_PHYSICAL_READ_TIME", 3L, 0)
+            .decimalColumn("PREFETCH_RATIO_PERCENT", 62.0, 0.5)
+            .decimalColumn("ASYNC_NOT_READ_PERCENT", 1.2, 0.1)
+            .longColumn("TOTAL_WRITES", 88000L, 505L)
+            .longColumn("AVG_WRITE_TIME", 2L, 0)
+            .decimalColumn("SYNC_WRITES_PERCENT", 11.0, 0.2)
+            .longColumn("AVG_SYNC_READ_TIME", 4L, 0)
+            .longColumn("AVG_ASYNC_READ_TIME", 1L, 0)
+            .longColumn("AVG_SYNC_WRITE_TIME", 3L, 0)
+            .longColumn("AVG_ASYNC_WRITE_TIME", 1L, 0);
+    }
+
+    /**
+     * SYSIBMADM.MON_TBSP_UTILIZATION, one row per tablespace
+     */
+    public static SyntheticTable monTbspUtilization(int tablespaces) {
+        return new SyntheticTable("MON_TBSP_UTILIZATION", tablespaces)
+            .nameColumn("TBSP_NAME", "TBSP")
+            .smallintColumn("MEMBER", 0, 0)
+            .varcharColumn("TBSP_TYPE", "DMS", "SMS")
+            .varcharColumn("TBSP_CONTENT_TYPE", "LARGE", "ANY", "USRTEMP")
+            .longColumn("TBSP_PAGE_SIZE", 8192L, 0)
+            .longColumn("TBSP_EXTENT_SIZE", 32L, 0)
+            .longColumn("TBSP_PREFETCH_SIZE", 64L, 0)
+            .varcharColumn("TBSP_STATE", "NORMAL")
+            .smallintColumn("TBSP_USING_AUTO_STORAGE", 1, 0)
+            .smallintColumn("TBSP_AUTO_RESIZE_ENABLED", 1, 0)
+            .decimalColumn("TBSP_UTILIZATION_PERCENT", 10.0, 0.37)
+            .longColumn("TBSP_TOTAL_SIZE_KB", 1048576L, 4096L)
+            .longColumn("TBSP_USABLE_SIZE_KB", 1044480L, 4096L)
+            .longColumn("TBSP_USED_SIZE_KB", 524288L, 1024L)
+            .longColumn("TBSP_FREE_SIZE_KB", 520192L, 3072L)
+            .longColumn("TBSP_PAGE_TOP", 65536L, 128L)
+            .longColumn("TBSP_MAX_PAGE_TOP", 70000L, 128L)
+            .timestampColumn("TBSP_LAST_RESIZE_TIME", 1700000000000L);
+    }
+
+    /**
+     * The aggregated MON_GET_DATABASE row of the "database" category
+     */
+    public static SyntheticTable monGetDatabase() {
+        return new SyntheticTable("MON_GET_DATABASE", 1)
+            .timestampColumn("DB_CONN_TIME", 1700000000000L)
+            .longColumn("TOTAL_APP_COMMITS", 1200000L, 0)
+            .longColumn("TOTAL_APP_ROLLBACKS", 340L, 0)
+            .longColumn("ACT_COMPLETED_TOTAL", 5400000L, 0)
+            .longColumn("ROWS_READ", 98000000000L, 0)
+            .longColumn("ROWS_RETURNED", 7000000000L, 0)
+            .longColumn("ROWS_MODIFIED", 31000000L, 0)
+            .longColumn("LOCK_WAITS", 1200L, 0)
+            .longColumn("LOCK_TIMEOUTS", 3L, 0)
+            .longColumn("DEADLOCKS", 0L, 0)
+            .longColumn("TOTAL_SORTS", 880000L, 0)
+            .longColumn("TOTAL_CPU_TIME", 7200000000L, 0)
+            .longColumn("NUM_LOCKS_HELD", 412L, 0)
+            .longColumn("APPLS_CUR_CONS", 57L, 0);
+    }
+
+    /**
+     * The MON_GET_BUFFERPOOL rows of the "bufferpool_activity" category, one row per bufferpool
+     */
+    public static SyntheticTable monGetBufferpool(int bufferpools) {
+        return new SyntheticTable("MON_GET_BUFFERPOOL", bufferpools)
+            .nameColumn("BP_NAME", "BP")
+            .timestampColumn("DB_CONN_TIME", 1700000000000L)
+            .longColumn("POOL_DATA_L_READS", 9000000L, 4099L)
+            .longColumn("POOL_DATA_P_READS", 120000L, 977L)
+            .longColumn("POOL_INDEX_L_READS", 7000000L, 2011L)
+            .longColumn("POOL_INDEX_P_READS", 45000L, 311L)
+            .longColumn("POOL_DATA_WRITES", 88000L, 505L)
+            .longColumn("POOL_INDEX_WRITES", 21000L, 101L);
+    }
+
+    /**
+     * The SYSIBMADM.DB2_MEMBER rows a DB2 agent with members set to auto finds the members in, the logical members of one host
+     */
+    public static SyntheticTable db2Member(int members) {
+        return new SyntheticTable("DB2_MEMBER", members)
+            .smallintColumn("ID", 0, 1)
+            .varcharColumn("HOME_HOST", "synthetic");
+    }
+
+    /**
+     * The TOTAL_CPU_TIME of the monitoring connection, read by adaptive sampling
+     */
+    public static SyntheticTable monGetConnectionCost() {
+        return new SyntheticTable("MON_GET_CONNECTION", 1).longColumn("TOTAL_CPU_TIME", 1500L, 0);
+    }
+
+    /**
+     * select STANDBY_ID,HADR_STATE,HADR_CONNECT_STATUS,TIME_SINCE_LAST_RECV,HADR_LOG_GAP from table (mon_get_hadr(NULL))
+     */
+    public static SyntheticTable monGetHadr(int standbys) {
+        return new SyntheticTable("MON_GET_HADR", standbys)
+            .smallintColumn("STANDBY_ID", 1, 1)
+            .varcharColumn("HADR_STATE", "PEER", "REMOTE_CATCHUP")
+            .varcharColumn("HADR_CONNECT_STATUS", "CONNECTED", "CONGESTED")
+            .longColumn("TIME_SINCE_LAST_RECV", 1L, 0)
+            .longColumn("HADR_LOG_GAP", 4096L, 512L);
+    }
+}
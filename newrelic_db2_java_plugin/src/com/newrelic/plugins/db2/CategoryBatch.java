@@ -0,0 +1,200 @@
+package com.newrelic.plugins.db2;
+
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * This class combines the SQL of several row categories into one compound query, so they are collected in a single round trip to DB2. Each category
+ * becomes a derived table, left joined to SYSIBM.SYSDUMMY1 so a category without a row does not hide the others, and the columns of consecutive
+ * categories are separated by a marker column:
+ *
+ * SELECT C0.*, 0 AS NR_BATCH_1, C1.* FROM SYSIBM.SYSDUMMY1 LEFT OUTER JOIN (sql0) AS C0 ON 1 = 1 LEFT OUTER JOIN (sql1) AS C1 ON 1 = 1
+ *
+ * The single row of the result set is split back at the markers, each category reading its own window of columns with its own column plan, into its
+ * own registry, so its metrics keep the names they have when it runs on its own.
+ *
+ * Only a category whose SQL is a plain SELECT can be a derived table, a category starting with a common table expression or holding several
+ * statements runs on its own. A category returning several rows would make the joins a cross product, the compound result set is rejected then,
+ * and the categories whose values differ between its rows are reported by getMultiRowCategories.
+ *
+ * A batch that fails although its categories run on their own, e.g. because the compound query exceeds a limit of the server, is tried again after
+ * 2, then 4 cycles, and retired after RETIRE_AFTER failures in a row. A batch with a multi-row category is retired at once.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CategoryBatch {
+
+    public static final String MARKER_PREFIX = "NR_BATCH_";
+    public static final int RETIRE_AFTER = 3; // Failures in a row
+
+    private static final double SAME_VALUE = 1e-9;
+
+    private final String[] categories;
+    private final String sql;
+    private int[] offsets = null; // JDBC column number before the first column of each category, found at the markers
+    private int[] widths = null;
+    private int columnCount = -1; // Of the result set the offsets were found in
+    private int failures = 0; // In a row
+    private long retryAt = 0L; // Poll cycle the batch is tried again in
+    private boolean retired = false;
+    private final boolean[] multiRow; // Whether each category returned several rows in the last execution
+
+    /**
+     * @param categories String[] names of the categories, in the order of their SQL
+     * @param sqls String[] SQL of each category, each a plain SELECT
+     */
+    public CategoryBatch(String[] categories, String[] sqls) {
+        this.categories = categories;
+        this.multiRow = new boolean[categories.length];
+        StringBuilder select = new StringBuilder("SELECT ");
+        StringBuilder from = new StringBuilder(" FROM SYSIBM.SYSDUMMY1");
+        for (int i = 0; i < sqls.length; i++) {
+            if (i > 0) {
+                select.append(", 0 AS ").append(MARKER_PREFIX).append(i).append(", ");
+            }
+            select.append('C').append(i).append(".*");
+            from.append(" LEFT OUTER JOIN (").append(sqls[i].trim()).append(") AS C").append(i).append(" ON 1 = 1");
+        }
+        this.sql = select.append(from).toString();
+    }
+
+    /**
+     * Check whether the SQL of a category can be part of a batch
+     *
+     * @param sql String
+     * @return boolean true for a single SELECT statement
+     */
+    public static boolean isBatchable(String sql) {
+        String trimmed = sql.trim();
+        return trimmed.regionMatches(true, 0, "SELECT", 0, 6) && trimmed.indexOf(';') < 0;
+    }
+
+    public String getSQL() {
+        return sql;
+    }
+
+    public String[] getCategories() {
+        return categories;
+    }
+
+    /**
+     * @param cycle long current poll cycle
+     * @return boolean whether the categories are collected by the batch in the cycle, false while it backs off and once it is retired
+     */
+    public boolean isDue(long cycle) {
+        return !retired && cycle >= retryAt;
+    }
+
+    public boolean isRetired() {
+        return retired;
+    }
+
+    public void recordSuccess() {
+        failures = 0;
+    }
+
+    /**
+     * Back off after a failure of the compound query, and retire the batch once it failed RETIRE_AFTER times in a row
+     *
+     * @param cycle long current poll cycle
+     */
+    public void recordFailure(long cycle) {
+        failures++;
+        if (failures >= RETIRE_AFTER) {
+            retired = true;
+        } else {
+            retryAt = cycle + (1L << failures);
+        }
+    }
+
+    /**
+     * @return boolean[] whether each category returned several rows in the last execution, in the order of the batch
+     */
+    public boolean[] getMultiRowCategories() {
+        return multiRow;
+    }
+
+    /**
+     * Write the values of each category from the row of the compound result set into the registry of the category. The caller starts the registry
+     * cycles.
+     *
+     * @param rs ResultSet of the compound query
+     * @param registries MetricRegistry[] of the categories, in their order in the batch
+     * @throws SQLException if the result set cannot be split at the markers, or has several rows
+     */
+    void collectResults(ResultSet rs, MetricRegistry[] registries) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        if (md.getColumnCount() != columnCount) {
+            split(md);
+        }
+        boolean row = rs.next();
+        for (int i = 0; i < categories.length; i++) {
+            MetricRegistry registry = registries[i];
+            ColumnPlan plan = registry.getPlan();
+            if (plan == null || plan.getColumnCount() != widths[i]) {
+                plan = ColumnPlan.window(categories[i], md, offsets[i], widths[i], registry.getRestartMarker(), registry.getValueMappings());
+                registry.setPlan(plan);
+            }
+            if (row) {
+                for (int column = 1; column <= widths[i]; column++) {
+                    DB2.collectColumn(rs, offsets[i], plan, column, registry, registry.getRowId(column));
+                }
+                registry.countRow(widths[i]);
+            }
+        }
+        if (row && rs.next()) {
+            retired = true;
+            findMultiRow(rs, registries);
+            throw new SQLException("The batch of categories " + Arrays.toString(categories) + " returned several rows, a batched category must return a"
+                    + " single row");
+        }
+    }
+
+    /**
+     * Find the categories whose values in the second row of the result set differ from those collected from the first. The rows of a cross product
+     * repeat the values of the single-row categories.
+     */
+    private void findMultiRow(ResultSet rs, MetricRegistry[] registries) throws SQLException {
+        for (int i = 0; i < categories.length; i++) {
+            MetricRegistry registry = registries[i];
+            ColumnPlan plan = registry.getPlan();
+            multiRow[i] = false;
+            for (int column = 1; column <= widths[i] && !multiRow[i]; column++) {
+                if (plan.getKind(column) == ColumnPlan.SKIP || plan.getKind(column) == ColumnPlan.MARKER) {
+                    continue;
+                }
+                int id = registry.getRowId(column);
+                double value = DB2.readColumn(rs, offsets[i], plan, column);
+                boolean present = !Double.isNaN(value);
+                multiRow[i] = present != registry.isPresent(id) || present && Math.abs(value - registry.getValue(id)) > SAME_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Find the window of columns of each category at the marker columns
+     */
+    private void split(ResultSetMetaData md) throws SQLException {
+        int[] starts = new int[categories.length];
+        int next = 1;
+        for (int column = 1; column <= md.getColumnCount() && next < categories.length; column++) {
+            if (md.getColumnName(column).equalsIgnoreCase(MARKER_PREFIX + next)) {
+                starts[next++] = column;
+            }
+        }
+        if (next < categories.length) {
+            throw new SQLException("The compound result set misses the marker column " + MARKER_PREFIX + next);
+        }
+        offsets = new int[categories.length];
+        widths = new int[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            offsets[i] = starts[i]; // The marker, or 0 for the first category
+            int end = i + 1 < categories.length ? starts[i + 1] - 1 : md.getColumnCount();
+            widths[i] = end - offsets[i];
+        }
+        columnCount = md.getColumnCount();
+    }
+}
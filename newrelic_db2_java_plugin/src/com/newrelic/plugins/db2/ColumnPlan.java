@@ -0,0 +1,177 @@
+package com.newrelic.plugins.db2;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Map;
+
+/**
+ * This class describes how each column of a category's result set is turned into a metric value. It is built from the ResultSetMetaData once per
+ * category and reused on every poll cycle, so numeric columns are read with getLong/getDouble and only CHAR/VARCHAR state columns take the string
+ * transformation path.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class ColumnPlan {
+
+    public static final int SKIP = 0; // Column does not produce a metric (timestamps, LOBs etc)
+    public static final int LONG = 1;
+    public static final int DOUBLE = 2;
+    public static final int STRING = 3;
+    public static final int MARKER = 4; // Restart marker, e.g. DB_CONN_TIME, read as a long but not reported
+
+    private static final int JCC_DECFLOAT = -360; // com.ibm.db2.jcc.DB2Types.DECFLOAT
+
+    private final int[] kinds; // Indexed by JDBC column number
+    private final String[] columnNames; // Lower case column names
+    private final String[] rowKeys; // category/column, used for row categories and as the meta data key of every category
+    private final String[] keySuffixes; // /column, appended to the entity name for set categories
+    private final ValueMapping[] mappings; // Lookup table of each character column, null for the other columns
+
+    private ColumnPlan(String category, ResultSetMetaData md, int offset, int count, String restartMarker,
+            Map<String, ValueMapping> valueMappings) throws SQLException {
+        kinds = new int[count + 1];
+        columnNames = new String[count + 1];
+        rowKeys = new String[count + 1];
+        keySuffixes = new String[count + 1];
+        mappings = new ValueMapping[count + 1];
+        for (int i = 1; i <= count; i++) {
+            kinds[i] = kindOf(md.getColumnType(offset + i));
+            columnNames[i] = md.getColumnName(offset + i).toLowerCase();
+            if (restartMarker != null && restartMarker.equalsIgnoreCase(columnNames[i])) {
+                kinds[i] = MARKER;
+            }
+            rowKeys[i] = DB2.buildString(category, SEPARATOR, columnNames[i]);
+            keySuffixes[i] = SEPARATOR + columnNames[i];
+            if (kinds[i] == STRING) {
+                ValueMapping mapping = valueMappings == null ? null : valueMappings.get(columnNames[i]);
+                mappings[i] = mapping == null ? ValueMapping.DEFAULT : mapping;
+            }
+        }
+    }
+
+    /**
+     * Build a plan that reads each column according to its SQL type
+     *
+     * @param category String Metric category
+     * @param md ResultSetMetaData of the category SQL
+     * @return ColumnPlan
+     * @throws SQLException
+     */
+    public static ColumnPlan typed(String category, ResultSetMetaData md) throws SQLException {
+        return new ColumnPlan(category, md, 0, md.getColumnCount(), null, null);
+    }
+
+    /**
+     * Build a plan that reads each column according to its SQL type, and reads the given column as the restart marker of the category
+     *
+     * @param category String Metric category
+     * @param md ResultSetMetaData of the category SQL
+     * @param restartMarker String name of a column that changes when the counters of the category start over, may be null
+     * @return ColumnPlan
+     * @throws SQLException
+     */
+    public static ColumnPlan typed(String category, ResultSetMetaData md, String restartMarker) throws SQLException {
+        return new ColumnPlan(category, md, 0, md.getColumnCount(), restartMarker, null);
+    }
+
+    /**
+     * Build a plan that reads each column according to its SQL type, with the restart marker and the value mappings of the category
+     *
+     * @param category String Metric category
+     * @param md ResultSetMetaData of the category SQL
+     * @param restartMarker String name of a column that changes when the counters of the category start over, may be null
+     * @param valueMappings Map of lower case column names to the lookup tables of character columns, may be null
+     * @return ColumnPlan
+     * @throws SQLException
+     */
+    public static ColumnPlan typed(String category, ResultSetMetaData md, String restartMarker, Map<String, ValueMapping> valueMappings)
+            throws SQLException {
+        return new ColumnPlan(category, md, 0, md.getColumnCount(), restartMarker, valueMappings);
+    }
+
+    /**
+     * Build the plan of a category whose columns are a window of a wider result set, e.g. of a CategoryBatch. Columns are numbered from 1 within the
+     * window, JDBC column numbers are offset + column.
+     *
+     * @param category String Metric category
+     * @param md ResultSetMetaData of the wider result set
+     * @param offset int JDBC column number before the first column of the category
+     * @param count int number of columns of the category
+     * @param restartMarker String name of a column that changes when the counters of the category start over, may be null
+     * @param valueMappings Map of lower case column names to the lookup tables of character columns, may be null
+     * @return ColumnPlan
+     * @throws SQLException
+     */
+    public static ColumnPlan window(String category, ResultSetMetaData md, int offset, int count, String restartMarker,
+            Map<String, ValueMapping> valueMappings) throws SQLException {
+        return new ColumnPlan(category, md, offset, count, restartMarker, valueMappings);
+    }
+
+    static int kindOf(int sqlType) {
+        switch (sqlType) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+            return LONG;
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+        case JCC_DECFLOAT:
+            return DOUBLE;
+        case Types.CHAR:
+        case Types.VARCHAR:
+        case Types.LONGVARCHAR:
+        case Types.NCHAR:
+        case Types.NVARCHAR:
+            return STRING;
+        default:
+            return SKIP;
+        }
+    }
+
+    /**
+     * Check that the plan still fits a result set, e.g. after the category SQL was changed on the server side
+     *
+     * @param md ResultSetMetaData
+     * @return boolean
+     * @throws SQLException
+     */
+    public boolean matches(ResultSetMetaData md) throws SQLException {
+        return md.getColumnCount() == getColumnCount();
+    }
+
+    public int getColumnCount() {
+        return kinds.length - 1;
+    }
+
+    public int getKind(int column) {
+        return kinds[column];
+    }
+
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    public String getRowKey(int column) {
+        return rowKeys[column];
+    }
+
+    public String getKeySuffix(int column) {
+        return keySuffixes[column];
+    }
+
+    /**
+     * @param column int JDBC column number
+     * @return ValueMapping of a character column, null for the other columns
+     */
+    public ValueMapping getMapping(int column) {
+        return mappings[column];
+    }
+}
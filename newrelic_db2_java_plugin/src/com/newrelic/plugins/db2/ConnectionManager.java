@@ -0,0 +1,355 @@
+package com.newrelic.plugins.db2;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class manages the life cycle of one DB2 database connection.
+ *
+ * A healthy connection is handed out without a round-trip to the server. Broken connections are detected from the errors the category queries return,
+ * and a connection is only validated (with a time limit) after it has been idle for a while. Reconnects back off exponentially with jitter so an
+ * unreachable database is not hammered every poll cycle. Login, read and query timeouts are passed to the JCC driver so a hung server cannot block the
+ * poll thread indefinitely.
+ *
+ * A manager is used by one thread at a time.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class ConnectionManager {
+
+    private static final Logger logger = Logger.getLogger(ConnectionManager.class);
+
+    public static final int DEFAULT_LOGIN_TIMEOUT = 10; // Seconds
+    public static final int DEFAULT_READ_TIMEOUT = 60; // Seconds
+    public static final int DEFAULT_QUERY_TIMEOUT = 30; // Seconds
+    public static final int DEFAULT_VALIDATION_IDLE_TIME = 300; // Seconds, longer than the poll interval so a polled connection is never pinged
+
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toNanos(15);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toNanos(15);
+    private static final int VALIDATION_TIMEOUT = 5; // Seconds
+
+    // JCC driver properties
+    private static final String JCC_LOGIN_TIMEOUT = "loginTimeout";
+    private static final String JCC_READ_TIMEOUT = "blockingReadConnectionTimeout";
+    private static final String JCC_USER = "user";
+    private static final String JCC_PASSWORD = "password";
+
+    // SQLCODEs returned by JCC and DB2 for lost connections
+    private static final int[] CONNECTION_ERROR_CODES = { -4499, -4498, -30081, -30108, -1224, -1229, -1776 };
+    private static final String CONNECTION_ERROR_SQLSTATE_CLASS = "08";
+
+    private static volatile boolean driverLoaded = false;
+
+    private final String host;
+    private final String database;
+    private final String user;
+    private final String passwd;
+    private final String properties;
+
+    private int loginTimeout = DEFAULT_LOGIN_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private int queryTimeout = DEFAULT_QUERY_TIMEOUT;
+    private int fetchSize = 0;
+    private long validationIdleTime = TimeUnit.SECONDS.toNanos(DEFAULT_VALIDATION_IDLE_TIME);
+
+    private final Random jitter = new Random();
+
+    private Connection conn = null; // Cached Database Connection
+    private boolean broken = false;
+    private boolean connectedBefore = false;
+    private long lastUsed = 0L;
+    private int failures = 0; // Consecutive failed connection attempts
+    private long nextAttempt = 0L;
+    private volatile long reconnects = 0L;
+
+    /**
+     * @param host String Hostname for DB2 Connection
+     * @param database String database name for DB2 connection
+     * @param user String Database username for DB2 Connection
+     * @param passwd String database password for DB2 Connection
+     * @param properties String JCC connection properties, in the form key=value;key=value;
+     */
+    public ConnectionManager(String host, String database, String user, String passwd, String properties) {
+        this.host = host;
+        this.database = database;
+        this.user = user;
+        this.passwd = passwd;
+        this.properties = properties;
+    }
+
+    /**
+     * Set the timeouts passed to the driver. A value of 0 leaves the driver default (no limit) in place.
+     *
+     * @param loginTimeout int Seconds to wait for a new connection
+     * @param readTimeout int Seconds to wait for any single network read
+     * @param queryTimeout int Seconds a category query may run
+     */
+    public void setTimeouts(int loginTimeout, int readTimeout, int queryTimeout) {
+        this.loginTimeout = loginTimeout;
+        this.readTimeout = readTimeout;
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * @param seconds int Idle time after which a connection is validated before it is handed out again
+     */
+    public void setValidationIdleTime(int seconds) {
+        this.validationIdleTime = TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * @param rows int Rows the driver fetches per network round-trip when reading a category result set, 0 leaves it to the driver
+     */
+    public void setFetchSize(int rows) {
+        this.fetchSize = rows;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Return a connection for use. The cached connection is returned as is unless a query reported it broken or it has been idle for too long and fails
+     * validation. Returns null if no connection could be made, or if the manager is still backing off from an earlier failure.
+     *
+     * @return Connection or null
+     */
+    public Connection getConnection() {
+        long now = System.nanoTime();
+        if (conn != null && !broken) {
+            if (now - lastUsed < validationIdleTime || isConnectionValid()) {
+                return conn;
+            }
+        }
+        closeConnection();
+        if (failures > 0 && now - nextAttempt < 0) {
+            logger.debug("Not reconnecting to ", getConnectionInfo(), " for another ", TimeUnit.NANOSECONDS.toSeconds(nextAttempt - now), " seconds");
+            return null;
+        }
+        conn = getNewConnection();
+        if (conn == null) {
+            failures++;
+            nextAttempt = now + backoff(failures);
+        } else {
+            if (connectedBefore) {
+                reconnects++;
+            }
+            connectedBefore = true;
+            failures = 0;
+            broken = false;
+            lastUsed = System.nanoTime();
+        }
+        return conn;
+    }
+
+    /**
+     * Record that the connection just served a query successfully, which is as good as a validation
+     */
+    public void markUsed() {
+        lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Inspect an error returned by a query. If it shows the connection is lost, the connection is dropped and the next call to getConnection reconnects.
+     *
+     * @param e SQLException returned by a query
+     * @return true if the error was a connection failure
+     */
+    public boolean handleError(SQLException e) {
+        if (isConnectionError(e)) {
+            logger.debug("Connection to ", getConnectionInfo(), " lost: ", e.getMessage());
+            broken = true;
+            return true;
+        }
+        markUsed(); // The server did answer
+        return false;
+    }
+
+    /**
+     * Number of times a connection had to be re-established
+     *
+     * @return long
+     */
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * Close the current connection
+     */
+    public void closeConnection() {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                logger.debug(e, "Error closing connection: ");
+            }
+            conn = null;
+        }
+    }
+
+    /**
+     * Check whether the given error means the connection can no longer be used
+     *
+     * @param e SQLException
+     * @return boolean
+     */
+    static boolean isConnectionError(SQLException e) {
+        for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+            String state = cause.getSQLState();
+            if (state != null && state.startsWith(CONNECTION_ERROR_SQLSTATE_CLASS)) {
+                return true;
+            }
+            for (int code : CONNECTION_ERROR_CODES) {
+                if (cause.getErrorCode() == code) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Exponential backoff with equal jitter: half of the delay is fixed, the other half random
+     *
+     * @param attempts int consecutive failed attempts
+     * @return long backoff in nanoseconds
+     */
+    long backoff(int attempts) {
+        long delay = MIN_BACKOFF << Math.min(attempts - 1, 16);
+        if (delay <= 0 || delay > MAX_BACKOFF) {
+            delay = MAX_BACKOFF;
+        }
+        long half = delay / 2;
+        return half + (long) (jitter.nextDouble() * half);
+    }
+
+    /**
+     * Check if the connection is valid, bounded by the validation timeout. Drivers without JDBC 4 support fall back to pinging the server.
+     *
+     * @return the state of the connection
+     */
+    private boolean isConnectionValid() {
+        logger.debug("Validating idle connection to ", getConnectionInfo());
+        try {
+            return conn.isValid(VALIDATION_TIMEOUT);
+        } catch (AbstractMethodError e) {
+            return ping();
+        } catch (SQLException e) {
+            return ping();
+        }
+    }
+
+    private boolean ping() {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.createStatement();
+            stmt.setQueryTimeout(VALIDATION_TIMEOUT);
+            rs = stmt.executeQuery(PING);
+            return true;
+        } catch (SQLException e) {
+            logger.debug("The DB2 connection is not available.");
+            return false;
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (stmt != null) {
+                    stmt.close();
+                }
+            } catch (SQLException e) {
+                logger.debug(e, "Error closing statement/result set: ");
+            }
+        }
+    }
+
+    /**
+     * This method will return a new DB2 database connection
+     *
+     * @return connection new DB2 Connection, or null
+     */
+    private Connection getNewConnection() {
+        Connection newConn = null;
+        String dbURL = DB2.buildString(JDBC_URL, host, SLASH, database);
+        String connectionInfo = getConnectionInfo();
+
+        logger.debug("Getting new DB2 Connection: ", connectionInfo);
+
+        try {
+            if (!driverLoaded) {
+                // load jdbc driver
+                Class.forName("com.ibm.db2.jcc.DB2Driver");
+                driverLoaded = true;
+            }
+            newConn = DriverManager.getConnection(dbURL, getDriverProperties());
+            if (newConn == null) {
+                logger.error("Unable to obtain a new database connection: ", connectionInfo, ", check your DB2 configuration settings.");
+            }
+        } catch (Exception e) {
+            logger.error("Unable to obtain a new database connection: ", connectionInfo, ", check your DB2 configuration settings. ", e.getMessage());
+        }
+        return newConn;
+    }
+
+    /**
+     * Build the properties handed to the JCC driver. Properties from the agent configuration win over the timeout defaults.
+     *
+     * @return Properties
+     */
+    Properties getDriverProperties() {
+        Properties props = new Properties();
+        if (loginTimeout > 0) {
+            props.setProperty(JCC_LOGIN_TIMEOUT, String.valueOf(loginTimeout));
+        }
+        if (readTimeout > 0) {
+            props.setProperty(JCC_READ_TIMEOUT, String.valueOf(readTimeout));
+        }
+        props.putAll(parseProperties(properties));
+        props.setProperty(JCC_USER, user);
+        props.setProperty(JCC_PASSWORD, passwd);
+        return props;
+    }
+
+    /**
+     * Parse JCC properties given in URL form, e.g. "currentSchema=MON;retrieveMessagesFromServerOnGetMessage=true;"
+     *
+     * @param properties String
+     * @return Properties
+     */
+    static Properties parseProperties(String properties) {
+        Properties props = new Properties();
+        if (properties == null) {
+            return props;
+        }
+        for (String property : properties.split(";")) {
+            int idx = property.indexOf(EQUALS);
+            if (idx > 0) {
+                props.setProperty(property.substring(0, idx).trim(), property.substring(idx + 1).trim());
+            } else if (property.trim().length() > 0) {
+                logger.warn("Ignoring malformed connection property '", property, "'");
+            }
+        }
+        return props;
+    }
+
+    private String getConnectionInfo() {
+        return DB2.buildString(JDBC_URL, host, SLASH, database, SPACE, user, PASSWORD_FILTERED);
+    }
+}
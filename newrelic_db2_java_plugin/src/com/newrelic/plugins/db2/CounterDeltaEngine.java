@@ -0,0 +1,139 @@
+package com.newrelic.plugins.db2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class turns cumulative DB2 counters into per-second rates. The previous sample of each series is kept as a primitive long, indexed by the
+ * metric id of the category's MetricRegistry, so counters well past 2^24 (e.g. ROWS_READ) keep full precision.
+ *
+ * A series is re-baselined instead of reporting a negative or inflated rate when its value goes down, and all series are re-baselined when the
+ * category's restart marker (e.g. DB_CONN_TIME) shows the database was reactivated and its MON_GET_* counters started over.
+ *
+ * A category replaced by a reload that kept its SQL takes over the samples of the category it replaces, matched by metric name, so its counters keep
+ * their rates although the ids of its new registry differ.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CounterDeltaEngine {
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private long[] previous = new long[0];
+    private long[] previousTime = new long[0]; // System.nanoTime() of the previous sample
+    private boolean[] seen = new boolean[0];
+    private double[] rates = new double[0]; // Last rate of each series
+    private long[] deltas = new long[0]; // Last increase of each series
+    private long resets = 0L;
+    private Map<String, long[]> carried = null; // Sample and time of each series of a replaced category by metric name, until the series is seen
+
+    /**
+     * Compute the per-second rate of a counter from its previous sample, and keep the current sample for the next cycle
+     *
+     * @param id int metric id
+     * @param value long current counter value
+     * @param time long System.nanoTime() the value was sampled at
+     * @return double rate per second, or NaN for the first sample of a series or after a reset. The last rate is returned again for a sample that
+     *         was already processed, e.g. while the category waits for its next interval.
+     */
+    public double process(int id, long value, long time) {
+        return process(id, null, value, time);
+    }
+
+    /**
+     * Compute the per-second rate of a counter, taking over the previous sample of the series from a replaced category the first time it is seen
+     *
+     * @param id int metric id
+     * @param name String metric name, the series is matched by in the carried over samples, may be null
+     * @param value long current counter value
+     * @param time long System.nanoTime() the value was sampled at
+     * @return double rate per second, as for process(id, value, time)
+     */
+    public double process(int id, String name, long value, long time) {
+        if (id >= seen.length) {
+            grow(id + 1);
+        }
+        if (!seen[id] && carried != null && name != null) {
+            long[] sample = carried.remove(name);
+            if (sample != null) {
+                seen[id] = true;
+                previous[id] = sample[0];
+                previousTime[id] = sample[1];
+            }
+        }
+        if (!seen[id] || value < previous[id]) {
+            if (seen[id]) {
+                resets++; // The counter went down, it was reset on the server
+            }
+            seen[id] = true;
+            previous[id] = value;
+            previousTime[id] = time;
+            rates[id] = Double.NaN;
+            return Double.NaN;
+        }
+        long delta = value - previous[id];
+        long elapsed = time - previousTime[id];
+        if (elapsed <= 0) {
+            return rates[id]; // Same sample seen twice, keep the older baseline
+        }
+        previous[id] = value;
+        previousTime[id] = time;
+        deltas[id] = delta;
+        rates[id] = delta * NANOS_PER_SECOND / elapsed;
+        return rates[id];
+    }
+
+    /**
+     * Return the increase of a counter between the two samples its last rate was computed from
+     *
+     * @param id int metric id
+     * @return long increase, only meaningful when the last call to process returned a rate
+     */
+    public long getDelta(int id) {
+        return id < deltas.length ? deltas[id] : 0L;
+    }
+
+    /**
+     * Forget the previous samples of all series, e.g. after the database was restarted
+     */
+    public void restart() {
+        Arrays.fill(seen, false);
+        carried = null;
+        resets++;
+    }
+
+    /**
+     * Take over the previous samples of the series of a replaced category, e.g. by a reload that changed its attributes but kept its SQL
+     *
+     * @param replaced CounterDeltaEngine of the replaced category
+     * @param registry MetricRegistry of the replaced category, naming its series
+     */
+    public void carryOver(CounterDeltaEngine replaced, MetricRegistry registry) {
+        carried = new HashMap<String, long[]>();
+        for (int id = 0; id < registry.size() && id < replaced.seen.length; id++) {
+            if (replaced.seen[id]) {
+                carried.put(registry.getName(id), new long[] { replaced.previous[id], replaced.previousTime[id] });
+            }
+        }
+    }
+
+    /**
+     * Number of times a series or the whole category was re-baselined
+     *
+     * @return long
+     */
+    public long getResets() {
+        return resets;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, seen.length * 2);
+        previous = Arrays.copyOf(previous, capacity);
+        previousTime = Arrays.copyOf(previousTime, capacity);
+        seen = Arrays.copyOf(seen, capacity);
+        rates = Arrays.copyOf(rates, capacity);
+        deltas = Arrays.copyOf(deltas, capacity);
+    }
+}
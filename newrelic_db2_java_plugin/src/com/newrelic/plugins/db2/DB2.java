@@ -3,12 +3,12 @@ package com.newrelic.plugins.db2;
 import static com.newrelic.plugins.db2.util.Constants.*;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 
@@ -24,230 +24,373 @@ public class DB2 {
 
     private static final Logger logger = Logger.getLogger(DB2.class);
     
-    private Connection conn = null; // Cached Database Connection
-    private boolean connectionInitialized = false;
+    private final ConnectionManager manager; // Life cycle of the cached connection
+    private final StatementCache statements = new StatementCache(); // Prepared statements of the cached connection
 
-    public DB2() {
+    public DB2(ConnectionManager manager) {
+        this.manager = manager;
     }
 
     /**
-     * This method will return a new DB2 database connection
+     * This method will return a DB2 database connection for use, either a new connection or a cached connection. Statements prepared on an earlier
+     * connection are discarded when the manager had to reconnect.
      * 
-     * @param host String Hostname for DB2 Connection
-     * @param database String database name for DB2 connection
-     * @param user String Database username for DB2 Connection
-     * @param passwd String database password for DB2 Connection
-     * @return connection new DB2 Connection
+     * @return A DB2 Database connection for use, or null if none is available
      */
-    private Connection getNewConnection(String host, String database, String user, String passwd, String properties) {
-        Connection newConn = null;
-        //String dbURL = buildString(JDBC_URL, host, SLASH, database, SLASH, properties);
-        String dbURL = buildString(JDBC_URL, host, SLASH, database);
-        String connectionInfo = buildString(dbURL, SPACE, user, PASSWORD_FILTERED);
-
-        logger.debug("Getting new DB2 Connection: ", connectionInfo);
-
-        try {
-            if (!connectionInitialized) {
-                // load jdbc driver
-                Class.forName("com.ibm.db2.jcc.DB2Driver").newInstance();
-                connectionInitialized = true;
-            }
-            newConn = DriverManager.getConnection(dbURL, user, passwd);
-            if (newConn == null) {
-                logger.error("Unable to obtain a new database connection: ", connectionInfo, ", check your DB2 configuration settings.");
-            }
-        } catch (Exception e) {
-            logger.error("Unable to obtain a new database connection: ", connectionInfo, ", check your DB2 configuration settings. ", e.getMessage());
+    public Connection getConnection() {
+        Connection c = manager.getConnection();
+        if (c != statements.getConnection()) {
+            statements.reset(c);
+            statements.setQueryTimeout(manager.getQueryTimeout());
+            statements.setFetchSize(manager.getFetchSize());
         }
-        return newConn;
+        return c;
     }
 
     /**
-     * This method will return a DB2 database connection for use, either a new connection or a cached connection
+     * Return the manager of the cached connection
      * 
-     * @param host String Hostname
-     * @param database String Database name
-     * @param user String Database username
-     * @param passwd String database password
-     * @return A DB2 Database connection for use
+     * @return ConnectionManager
      */
-    public Connection getConnection(String host, String database, String user, String passwd, String properties) {
-        if (conn == null) {
-            conn = getNewConnection(host, database, user, passwd, properties);
-        }
-        // Test Connection, and reconnect if necessary
-        else if (!isConnectionValid()) {
-            closeConnection();
-            conn = getNewConnection(host, database, user, passwd, properties);
-        }
-        return conn;
+    public ConnectionManager getConnectionManager() {
+        return manager;
     }
 
     /**
-     * Check if connection is valid by pinging DB2 server. If connection is null or invalid return false, otherwise true.
+     * Return the statement cache of the cached connection
      * 
-     * @return the state of the connection
+     * @return StatementCache
      */
-    private boolean isConnectionValid() {
-        boolean available = false;
-        if (conn != null) {
-            Statement stmt = null;
-            ResultSet rs = null;
+    public StatementCache getStatementCache() {
+        return statements;
+    }
+
+    /**
+     * Return the DB2 CPU time used so far by the application handle of the cached connection, i.e. the cost of monitoring through this connection.
+     * The value starts over whenever the connection is re-established.
+     * 
+     * @return long CPU microseconds, or -1 if there is no connection or the time could not be read
+     */
+    public long getOwnCpuTime() {
+        if (statements.getConnection() == null) {
+            return -1L;
+        }
+        ResultSet rs = null;
+        try {
+            rs = statements.prepare(OWN_COST_SQL).executeQuery();
+            return rs.next() ? rs.getLong(1) : -1L;
+        } catch (SQLException e) {
+            logger.debug("Unable to read the cost of the monitoring connection ", e.getMessage());
+            if (!manager.handleError(e)) {
+                statements.invalidate(OWN_COST_SQL);
+            }
+        } finally {
             try {
-                logger.debug("Checking connection - pinging DB2 server");
-                stmt = conn.createStatement();
-                rs = stmt.executeQuery(PING);
-                available = true;
-            } catch (SQLException e) {
-                logger.debug("The DB2 connection is not available.");
-                available = false;
-            } finally {
-                try {
-                    if (stmt != null) {
-                        stmt.close();
-                    }
-                    if (rs != null) {
-                        rs.close();
-                    }
-                } catch (SQLException e) {
-                    logger.debug(e, "Error closing statement/result set: ");
+                if (rs != null) {
+                    rs.close();
                 }
-                rs = null;
-                stmt = null;
+            } catch (SQLException e) {
+                ;
             }
         }
-        return available;
+        return -1L;
     }
 
     /**
-     * Close current connection
+     * Return the members of a pureScale or partitioned database, as listed by SYSIBMADM.DB2_MEMBER on the cached connection
+     *
+     * @return Map of member ids to their home host, in member order, or null if there is no connection or the members could not be read
      */
-    private void closeConnection() {
-        if (conn != null) {
+    public Map<String, String> getMembers() {
+        if (getConnection() == null) {
+            return null;
+        }
+        ResultSet rs = null;
+        try {
+            rs = statements.prepare(MEMBERS_SQL).executeQuery();
+            Map<String, String> members = new LinkedHashMap<String, String>();
+            while (rs.next()) {
+                members.put(String.valueOf(rs.getInt(1)), rs.getString(2).trim());
+            }
+            return members;
+        } catch (SQLException e) {
+            logger.error("Unable to list the members of the database ", e.getMessage());
+            if (!manager.handleError(e)) {
+                statements.invalidate(MEMBERS_SQL);
+            }
+        } finally {
             try {
-                conn.close();
-                conn = null;
+                if (rs != null) {
+                    rs.close();
+                }
             } catch (SQLException e) {
-                logger.debug(e, "Error closing connection: ");
+                ;
             }
         }
+        return null;
     }
 
     /**
      * 
-     * This method will execute the given SQL Statement and produce a set of key/value pairs that are used for reporting metrics. This method is optimized for
-     * queries designed to produce New Relic compatible type results
+     * This method will execute the given SQL Statement on the cached connection, reusing the statement prepared for it on an earlier poll cycle, and
+     * write the values into the registry of the category. Call getConnection first to make sure the connection is available.
      * 
-     * @param c Connection
+     * @param category String Metric category the SQL belongs to
      * @param SQL String of SQL Statement to execute
-     * @return Map of key/value pairs
+     * @param type String Result type, row or set
+     * @param registry MetricRegistry of the category
+     * @return true if the SQL ran successfully
      */
-    public static Map<String, Float> runSQL(Connection c, String category, String SQL, String type) {
-        Statement stmt = null;
+    public boolean runSQL(String category, String SQL, String type, MetricRegistry registry) {
         ResultSet rs = null;
-        Map<String, Float> results = new HashMap<String, Float>();
-
         try {
-            logger.debug("Running SQL Statement ", SQL);
-            stmt = c.createStatement();
-            rs = stmt.executeQuery(SQL); // Execute the given SQL statement
-            ResultSetMetaData md = rs.getMetaData(); // Obtain Meta data about the SQL query (column names etc)
-
-            if (ROW.equals(type)) { // If we expect a single row of results
-                if (rs.next()) {
-                    for (int i = 1; i <= md.getColumnCount(); i++) { // use column names as the "key"
-                        String value = transformStringMetric(rs.getString(i));
-                        String columnName = md.getColumnName(i).toLowerCase();
-                        if (validMetricValue(value)) {
-                            String key = buildString(category, SEPARATOR, columnName);
-                            results.put(key, translateStringToNumber(value));
-                        }
-                        
-                    }
-                }
-            } else if (SET.equals(type)) { //currently support bufferpool,tablespace utilization and HADR report
-            	String firstColumnName = md.getColumnName(1);
-            	if(firstColumnName.equalsIgnoreCase(TBSP_COLUMN_NAME) ||
-            	   firstColumnName.equalsIgnoreCase(BP_COLUMN_NAME) ||
-            	   firstColumnName.equalsIgnoreCase(HADR_COLUMN_NAME)){
-            		 while (rs.next()) {
-            			//The format of key for each bufferpool & tablespace is like: bufferpool_MYBP
-            			String newCategory = category + UNDERSCORE + rs.getString(1);
-                     	for (int i = 2; i <= md.getColumnCount(); i++) { // use column names as the "key"
-                     		String value = transformStringMetric(rs.getString(i));
-                            String columnName = md.getColumnName(i).toLowerCase();
-                            if (validMetricValue(value)) {
-                                String key = buildString(newCategory, SEPARATOR, columnName);
-                                results.put(key, translateStringToNumber(value));
-                            }
-                     	}//for                      
-                     } //while
-                 }//if
-            }       
-            return results;
+            logger.debug("Running prepared SQL Statement ", SQL);
+            PreparedStatement stmt = statements.prepare(SQL);
+            rs = stmt.executeQuery(); // Execute the cached statement
+            collectResults(rs, category, type, registry);
+            manager.markUsed();
+            return true;
         } catch (SQLException e) {
             logger.error("An SQL error occured running '", SQL, "' ", e.getMessage());
+            if (!manager.handleError(e)) {
+                statements.invalidate(SQL); // Prepare it again on the next cycle
+                registry.setFailure(e.getSQLState());
+            } else { // All statements are discarded with the connection
+                registry.setFailure(CONNECTION_LOST_SQLSTATE);
+            }
         } finally {
             try {
                 if (rs != null) {
-                    rs.close(); // Release objects
-                }
-                if (stmt != null) {
-                    stmt.close();
+                    rs.close(); // The statement itself stays open for the next cycle
                 }
             } catch (SQLException e) {
                 ;
             }
             rs = null;
-            stmt = null;
         }
-        return results;
+        return false;
     }
+
     /**
-     * This method will convert the provided string into a Number (either int or float)
      * 
-     * @param String value to convert
-     * @return Number A int or float representation of the provided string
+     * This method runs the compound query of a batch of row categories in one round trip, and writes the values of each category into its registry.
+     * Call getConnection first to make sure the connection is available.
+     * 
+     * @param batch CategoryBatch
+     * @param registries MetricRegistry[] of the categories of the batch, in their order in the batch
+     * @return true if the compound query ran successfully
      */
-    public static Float translateStringToNumber(String val) {
+    public boolean runBatch(CategoryBatch batch, MetricRegistry[] registries) {
+        ResultSet rs = null;
         try {
-            if (val.contains(SPACE)) {
-                val = SPACE_PATTERN.matcher(val).replaceAll(EMPTY_STRING); // Strip any spaces
+            logger.debug("Running batch of categories ", Arrays.toString(batch.getCategories()));
+            rs = statements.prepare(batch.getSQL()).executeQuery();
+            batch.collectResults(rs, registries);
+            manager.markUsed();
+            return true;
+        } catch (SQLException e) {
+            logger.error("An SQL error occured running the batch of categories ", Arrays.toString(batch.getCategories()), " ", e.getMessage());
+            if (!manager.handleError(e)) {
+                statements.invalidate(batch.getSQL());
+            }
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+            } catch (SQLException e) {
+                ;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 
+     * This method runs the SQL of a category that other agents of the same database run as well. The execution is shared: if another agent executed
+     * it recently, its values are collected into the registry without running the SQL again. Call getConnection first, in case the SQL has to run.
+     * 
+     * @param category String Metric category the SQL belongs to
+     * @param SQL String of SQL Statement to execute
+     * @param type String Result type, row or set
+     * @param registry MetricRegistry of the category
+     * @param shared ResultCache.Entry of the category
+     * @return true if the SQL ran successfully, or a recent execution was reused
+     */
+    public boolean runSQL(String category, String SQL, String type, MetricRegistry registry, ResultCache.Entry shared) {
+        ResultSnapshot snapshot;
+        synchronized (shared) {
+            snapshot = shared.getFresh(registry);
+            if (snapshot == null) {
+                ResultSet rs = null;
+                try {
+                    logger.debug("Running shared SQL Statement ", SQL);
+                    rs = statements.prepare(SQL).executeQuery();
+                    snapshot = ResultSnapshot.read(rs, category, type, registry.getRestartMarker(), registry.getValueMappings(), shared.getLast());
+                    shared.update(snapshot);
+                    manager.markUsed();
+                } catch (SQLException e) {
+                    logger.error("An SQL error occured running '", SQL, "' ", e.getMessage());
+                    if (!manager.handleError(e)) {
+                        statements.invalidate(SQL);
+                        registry.setFailure(e.getSQLState());
+                    } else {
+                        registry.setFailure(CONNECTION_LOST_SQLSTATE);
+                    }
+                    return false;
+                } finally {
+                    try {
+                        if (rs != null) {
+                            rs.close();
+                        }
+                    } catch (SQLException e) {
+                        ;
+                    }
+                }
+            }
+        }
+        snapshot.collectInto(registry);
+        return true;
+    }
+
+    /**
+     * This method writes the rows of a category result set into the registry of the category, building the column plan from the result set meta data
+     * the first time the category runs. The caller starts the registry cycle.
+     * 
+     * @param rs ResultSet of the category SQL
+     * @param category String Metric category
+     * @param type String Result type, row or set
+     * @param registry MetricRegistry the values are written to
+     * @throws SQLException
+     */
+    public static void collectResults(ResultSet rs, String category, String type, MetricRegistry registry) throws SQLException {
+        ColumnPlan plan = registry.getPlan();
+        if (plan == null || !plan.matches(rs.getMetaData())) {
+            plan = ColumnPlan.typed(category, rs.getMetaData(), registry.getRestartMarker(), registry.getValueMappings());
+            registry.setPlan(plan);
+        }
+
+        int columns = plan.getColumnCount();
+        if (ROW.equals(type)) { // If we expect a single row of results
+            if (rs.next()) {
+                for (int i = 1; i <= columns; i++) { // use column names as the "key"
+                    collectColumn(rs, 0, plan, i, registry, registry.getRowId(i));
+                }
+                registry.countRow(columns);
+            }
+        } else if (SET.equals(type)) { //currently support bufferpool,tablespace utilization and HADR report
+            TopKSelector top = registry.getTopK();
+            if (top != null && isEntityColumn(plan.getColumnName(1))) {
+                top.begin(registry); // Only the top entities are written, the rest are rolled up into _other
+                while (rs.next()) {
+                    top.offer(rs.getString(1), rs);
+                }
+                top.finish();
+            } else if (isEntityColumn(plan.getColumnName(1))) {
+                while (rs.next()) {
+                    //The ids for each bufferpool & tablespace are keyed like: bufferpool_MYBP/column
+                    int[] ids = registry.getEntityIds(rs.getString(1));
+                    for (int i = 2; i <= columns; i++) {
+                        collectColumn(rs, 0, plan, i, registry, ids[i]);
+                    }
+                    registry.countRow(columns);
+                }
             }
-            return Float.parseFloat(val);
-        } catch (Exception e) {
-            logger.error("Unable to parse int/float number from value ", val);
         }
-        return 0.0f;
     }
 
     /**
-     * Perform some preliminary transformation of string values that can be represented in integer values for monitoring
+     * Check whether a set category is keyed by its first column, i.e. it is a bufferpool, tablespace or HADR report
      * 
-     * @param val String value to evaluate
-     * @return String value that best represents and integer
+     * @param firstColumnName String
+     * @return boolean
      */
-    static String transformStringMetric(String val) {
-        if (ON.equalsIgnoreCase(val) || TRUE.equalsIgnoreCase(val)) return ONE; // Convert some TEXT metrics into numerics
-        if (OFF.equalsIgnoreCase(val) || NONE.equalsIgnoreCase(val)) return ZERO;
-        if (YES.equalsIgnoreCase(val)) return ONE; // For slave/slave_*_running
-        if (NO.equalsIgnoreCase(val)) return ZERO; // For slave/slave_*_running
-        if (NULL.equalsIgnoreCase(val)) return NEG_ONE; // For slave/seconds_behind_master
-        
-        //for HADR metrics string transform
-        if (DISCONNECTED.equalsIgnoreCase(val)) return ZERO;
-        if (LOCAL_CATCHUP.equalsIgnoreCase(val)) return ONE;
-        if (REMOTE_CATCHUP_PENDING.equalsIgnoreCase(val)) return THREE;
-        if (REMOTE_CATCHUP.equalsIgnoreCase(val)) return FOUR;
-        if (PEER.equalsIgnoreCase(val)) return FIVE;
-        if (CONNECTED.equalsIgnoreCase(val)) return ONE;
-        if (CONGESTED.equalsIgnoreCase(val)) return TWO;
-        return val;
+    static boolean isEntityColumn(String firstColumnName) {
+        return firstColumnName.equalsIgnoreCase(TBSP_COLUMN_NAME) ||
+            firstColumnName.equalsIgnoreCase(BP_COLUMN_NAME) ||
+            firstColumnName.equalsIgnoreCase(HADR_COLUMN_NAME);
     }
 
     /**
-     * Check if the value is a valid New Relic Metric value
+     * Write one column of the current row into the registry. Integer columns keep their exact long value for the counter delta engine, the restart
+     * marker is only observed and not reported.
+     * 
+     * @param rs ResultSet positioned on a row
+     * @param offset int JDBC column number before the first column of the plan, 0 unless the result set holds several categories
+     * @param plan ColumnPlan
+     * @param column int column number of the plan
+     * @param registry MetricRegistry
+     * @param id int metric id of the column
+     * @throws SQLException
+     */
+    static void collectColumn(ResultSet rs, int offset, ColumnPlan plan, int column, MetricRegistry registry, int id) throws SQLException {
+        switch (plan.getKind(column)) {
+        case ColumnPlan.LONG:
+            long longValue = rs.getLong(offset + column);
+            if (!rs.wasNull()) {
+                registry.setLong(id, longValue);
+            }
+            break;
+        case ColumnPlan.MARKER:
+            Object marker = rs.getObject(offset + column);
+            if (marker instanceof Date) {
+                registry.observeMarker(((Date) marker).getTime());
+            } else if (marker instanceof Number) {
+                registry.observeMarker(((Number) marker).longValue());
+            } else if (marker != null) {
+                registry.observeMarker(marker.toString().hashCode());
+            }
+            break;
+        default:
+            double value = readColumn(rs, offset, plan, column);
+            if (!Double.isNaN(value)) {
+                registry.set(id, value);
+            }
+        }
+    }
+
+    /**
+     * Read one column of the current row as a metric value. Numeric columns are read directly, only character columns are looked up in their value
+     * mapping and parsed.
+     * 
+     * @param rs ResultSet positioned on a row
+     * @param plan ColumnPlan
+     * @param column int JDBC column number
+     * @return double value, or NaN if the column has no valid metric value
+     * @throws SQLException
+     */
+    static double readColumn(ResultSet rs, ColumnPlan plan, int column) throws SQLException {
+        return readColumn(rs, 0, plan, column);
+    }
+
+    /**
+     * Read one column of a category whose columns are a window of the current row
+     * 
+     * @param rs ResultSet positioned on a row
+     * @param offset int JDBC column number before the first column of the plan
+     * @param plan ColumnPlan
+     * @param column int column number of the plan
+     * @return double value, or NaN if the column has no valid metric value
+     * @throws SQLException
+     */
+    static double readColumn(ResultSet rs, int offset, ColumnPlan plan, int column) throws SQLException {
+        switch (plan.getKind(column)) {
+        case ColumnPlan.LONG:
+            long longValue = rs.getLong(offset + column);
+            return rs.wasNull() ? Double.NaN : longValue;
+        case ColumnPlan.DOUBLE:
+            double doubleValue = rs.getDouble(offset + column);
+            return rs.wasNull() ? Double.NaN : doubleValue;
+        case ColumnPlan.STRING:
+            return plan.getMapping(column).map(rs.getString(offset + column));
+        default:
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Check if the value is a valid New Relic Metric value, i.e. an integer or float matching (-)?(\.)?\d+(\.\d+)?. The characters are scanned
+     * instead of matched with a regular expression, so checking the string columns of every row does not allocate.
      * 
      * @param val String to validate
      * @return TRUE if string is a numeric supported by New Relic
@@ -256,13 +399,34 @@ public class DB2 {
         if (val == null || EMPTY_STRING.equals(val)) {
             return false;
         }
-        if (VALID_METRIC_PATTERN.matcher(val).matches()) {
-            return true;
+        int length = val.length();
+        int i = 0;
+        if (val.charAt(i) == '-') {
+            i++;
         }
-        return false;
+        if (i < length && val.charAt(i) == '.') {
+            i++;
+        }
+        int digits = i;
+        while (i < length && Character.isDigit(val.charAt(i))) {
+            i++;
+        }
+        if (i == digits) {
+            return false;
+        }
+        if (i < length && val.charAt(i) == '.') {
+            int fraction = ++i;
+            while (i < length && Character.isDigit(val.charAt(i))) {
+                i++;
+            }
+            if (i == fraction) {
+                return false;
+            }
+        }
+        return i == length;
     }
 
-    static String buildString(String... strings) {
+    public static String buildString(String... strings) {
         StringBuilder builder = new StringBuilder(50);
         for (String string : strings) {
         	if(string == null || EMPTY_STRING.equals(string)){
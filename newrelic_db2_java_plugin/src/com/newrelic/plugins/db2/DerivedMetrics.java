@@ -0,0 +1,155 @@
+package com.newrelic.plugins.db2;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class computes the derived metrics of a category, e.g. the hit ratio of each bufferpool, from the values collected in a cycle. They are
+ * declared in the derived_metrics attribute of a category in 'metric.category.json', as a name and an Expression, or a name and an object with the
+ * expression and its unit:
+ *
+ * "derived_metrics" : { "lock_waits_per_transaction" : "delta(LOCK_WAITS) / (delta(TOTAL_APP_COMMITS) + delta(TOTAL_APP_ROLLBACKS))",
+ *                       "hit_ratio_percent" : { "expression" : "100 * ...", "unit" : "%" } }
+ *
+ * A derived metric is reported with the category: category/name for a row category, and category_ENTITY/name for each entity of a set category. Its
+ * metric ids follow the column ids of the row or entity in the registry.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class DerivedMetrics {
+
+    private static final Logger logger = Logger.getLogger(DerivedMetrics.class);
+
+    private final String category;
+    private final String[] names;
+    private final Expression[] expressions;
+    private final String[] units; // Unit of each derived metric, null for the default unit
+    private ColumnPlan bound = null; // Plan the expressions were last bound to
+
+    /**
+     * @param category String Metric category
+     * @param names String[] names of the derived metrics
+     * @param expressions Expression[] parsed expression of each derived metric
+     * @param units String[] unit of each derived metric, null for the default unit
+     */
+    public DerivedMetrics(String category, String[] names, Expression[] expressions, String[] units) {
+        this.category = category;
+        this.names = names;
+        this.expressions = expressions;
+        this.units = units;
+    }
+
+    /**
+     * Parse the derived_metrics attribute of a category. Metrics whose expression does not parse are logged and skipped.
+     *
+     * @param category String Metric category
+     * @param attribute Object value of the attribute, a JSON object of names to expressions or to objects with an expression and a unit, may be null
+     * @return DerivedMetrics, or null if the category declares none
+     */
+    public static DerivedMetrics compile(String category, Object attribute) {
+        if (!(attribute instanceof Map)) {
+            if (attribute != null) {
+                logger.warn("Ignoring the derived_metrics of category '", category, "', expected an object of names, got: ", attribute);
+            }
+            return null;
+        }
+        List<String> names = new ArrayList<String>();
+        List<Expression> expressions = new ArrayList<Expression>();
+        List<String> units = new ArrayList<String>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) attribute).entrySet()) {
+            Object definition = entry.getValue();
+            Object text = definition instanceof Map ? ((Map<?, ?>) definition).get(EXPRESSION) : definition;
+            try {
+                if (text == null) {
+                    throw new IllegalArgumentException("No expression");
+                }
+                expressions.add(Expression.parse(text.toString()));
+            } catch (IllegalArgumentException e) {
+                logger.error("Ignoring derived metric '", entry.getKey(), "' of category '", category, "'. ", e.getMessage());
+                continue;
+            }
+            names.add(String.valueOf(entry.getKey()));
+            Object unit = definition instanceof Map ? ((Map<?, ?>) definition).get(UNIT) : null;
+            units.add(unit == null ? null : unit.toString());
+        }
+        if (names.isEmpty()) {
+            return null;
+        }
+        return new DerivedMetrics(category, names.toArray(new String[names.size()]), expressions.toArray(new Expression[expressions.size()]),
+                units.toArray(new String[units.size()]));
+    }
+
+    /**
+     * Copy the derived metrics for another registry, sharing their parsed expressions, names and units. Each registry evaluates a copy of its own, as
+     * the expressions bind to the column plan of the registry and keep the counter samples of its rows or entities.
+     *
+     * @return DerivedMetrics
+     */
+    public DerivedMetrics copy() {
+        Expression[] copies = new Expression[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            copies[i] = expressions[i].copy();
+        }
+        return new DerivedMetrics(category, names, copies, units);
+    }
+
+    /**
+     * @return String[] names of the derived metrics
+     */
+    public String[] getNames() {
+        return names;
+    }
+
+    /**
+     * @return String[] unit of each derived metric, null for the default unit
+     */
+    public String[] getUnits() {
+        return units;
+    }
+
+    /**
+     * Evaluate the derived metrics of each row or entity of the category, once its values were collected in the current cycle
+     *
+     * @param registry MetricRegistry of the category
+     * @param set boolean whether the category is a set category
+     */
+    public void evaluate(MetricRegistry registry, boolean set) {
+        ColumnPlan plan = registry.getPlan();
+        if (plan == null) {
+            return;
+        }
+        if (plan != bound) {
+            List<String> unknown = new ArrayList<String>();
+            for (Expression expression : expressions) {
+                expression.bind(plan, unknown);
+            }
+            if (!unknown.isEmpty()) {
+                logger.warn("Derived metrics of category '", category, "' use columns its result set does not have: ", unknown);
+            }
+            bound = plan;
+        }
+        int first = plan.getColumnCount() + 1; // Index of the first derived metric id
+        if (set) {
+            for (int[] ids : registry.getEntityIdArrays()) {
+                evaluate(registry, ids, first);
+            }
+        } else {
+            evaluate(registry, registry.getRowIds(), first);
+        }
+    }
+
+    private void evaluate(MetricRegistry registry, int[] ids, int first) {
+        for (int i = 0; i < expressions.length; i++) {
+            double value = expressions[i].evaluate(registry, ids);
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                registry.set(ids[first + i], value);
+            }
+        }
+    }
+}
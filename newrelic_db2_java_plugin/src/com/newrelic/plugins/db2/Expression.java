@@ -0,0 +1,333 @@
+package com.newrelic.plugins.db2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is a derived metric expression, parsed once into a tree of nodes. Identifiers name columns of the category result set; they are bound to
+ * JDBC column numbers when the column plan of the category is known, and evaluated against the metric ids of a row or entity, so a cycle evaluates
+ * the tree without looking up names or boxing values.
+ *
+ * Grammar: numbers, column names, + - * /, parentheses, and the functions
+ * - delta(COLUMN) increase of a counter column since its previous sample
+ * - rate(COLUMN) per-second rate of a counter column
+ * - min(a, b) and max(a, b)
+ *
+ * An expression evaluates to NaN, and is not reported, when a column it uses has no value in the cycle, on the first sample of a counter, or when it
+ * divides by zero.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public abstract class Expression {
+
+    /**
+     * Evaluate the expression for one row or entity
+     *
+     * @param registry MetricRegistry of the category, in the cycle the values were collected in
+     * @param ids int[] metric ids of the row or entity, indexed by JDBC column number
+     * @return double value, or NaN
+     */
+    abstract double evaluate(MetricRegistry registry, int[] ids);
+
+    /**
+     * Resolve the column names of the expression against a column plan
+     *
+     * @param plan ColumnPlan
+     * @param unknown List the names of columns that are not in the plan are added to
+     */
+    abstract void bind(ColumnPlan plan, List<String> unknown);
+
+    /**
+     * Copy the parsed tree for another registry. The copy is not bound to a column plan and has no counter samples, so it can be evaluated alongside
+     * the original.
+     *
+     * @return Expression
+     */
+    abstract Expression copy();
+
+    /**
+     * Parse an expression
+     *
+     * @param text String e.g. delta(LOCK_WAITS) / (delta(TOTAL_APP_COMMITS) + delta(TOTAL_APP_ROLLBACKS))
+     * @return Expression
+     * @throws IllegalArgumentException if the text is not a valid expression
+     */
+    public static Expression parse(String text) {
+        Parser parser = new Parser(text);
+        Expression expression = parser.sum();
+        parser.skipSpaces();
+        if (parser.pos < text.length()) {
+            throw parser.error("Unexpected '" + text.charAt(parser.pos) + "'");
+        }
+        return expression;
+    }
+
+    /**
+     * Recursive descent parser of the grammar
+     */
+    private static class Parser {
+
+        private final String text;
+        private int pos = 0;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Expression sum() {
+            Expression left = product();
+            while (true) {
+                char c = peek();
+                if (c == '+' || c == '-') {
+                    pos++;
+                    left = new Binary(c, left, product());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        Expression product() {
+            Expression left = unary();
+            while (true) {
+                char c = peek();
+                if (c == '*' || c == '/') {
+                    pos++;
+                    left = new Binary(c, left, unary());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        Expression unary() {
+            if (peek() == '-') {
+                pos++;
+                return new Binary('-', new Constant(0.0), unary());
+            }
+            return primary();
+        }
+
+        Expression primary() {
+            char c = peek();
+            if (c == '(') {
+                pos++;
+                Expression inner = sum();
+                expect(')');
+                return inner;
+            }
+            if (Character.isDigit(c) || c == '.') {
+                int start = pos;
+                while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                    pos++;
+                }
+                try {
+                    return new Constant(Double.parseDouble(text.substring(start, pos)));
+                } catch (NumberFormatException e) {
+                    throw error("Invalid number '" + text.substring(start, pos) + "'");
+                }
+            }
+            if (Character.isLetter(c) || c == '_') {
+                int start = pos;
+                while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                    pos++;
+                }
+                String name = text.substring(start, pos);
+                if (peek() != '(') {
+                    return new Column(name);
+                }
+                pos++;
+                List<Expression> arguments = new ArrayList<Expression>();
+                if (peek() != ')') {
+                    arguments.add(sum());
+                    while (peek() == ',') {
+                        pos++;
+                        arguments.add(sum());
+                    }
+                }
+                expect(')');
+                return function(name.toLowerCase(), arguments, start);
+            }
+            throw error(c == 0 ? "Unexpected end of expression" : "Unexpected '" + c + "'");
+        }
+
+        private Expression function(String name, List<Expression> arguments, int start) {
+            if ("delta".equals(name) || "rate".equals(name)) {
+                if (arguments.size() != 1 || !(arguments.get(0) instanceof Column)) {
+                    pos = start;
+                    throw error(name + "() takes one column");
+                }
+                return new Counter((Column) arguments.get(0), "rate".equals(name));
+            }
+            if ("min".equals(name) || "max".equals(name)) {
+                if (arguments.size() != 2) {
+                    pos = start;
+                    throw error(name + "() takes two arguments");
+                }
+                return new Binary("min".equals(name) ? 'm' : 'M', arguments.get(0), arguments.get(1));
+            }
+            pos = start;
+            throw error("Unknown function " + name + "()");
+        }
+
+        char peek() {
+            skipSpaces();
+            return pos < text.length() ? text.charAt(pos) : 0;
+        }
+
+        void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        void expect(char c) {
+            if (peek() != c) {
+                throw error("Expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos + " of '" + text + "'");
+        }
+    }
+
+    private static class Constant extends Expression {
+
+        private final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double evaluate(MetricRegistry registry, int[] ids) {
+            return value;
+        }
+
+        @Override
+        void bind(ColumnPlan plan, List<String> unknown) {
+        }
+
+        @Override
+        Expression copy() {
+            return this; // Holds no state
+        }
+    }
+
+    private static class Column extends Expression {
+
+        private final String name; // Lower case
+        private int column = -1; // JDBC column number, -1 if the result set has no such column
+
+        Column(String name) {
+            this.name = name.toLowerCase();
+        }
+
+        @Override
+        double evaluate(MetricRegistry registry, int[] ids) {
+            int id = id(ids);
+            return registry.isPresent(id) ? registry.getValue(id) : Double.NaN;
+        }
+
+        int id(int[] ids) {
+            return column < 0 ? -1 : ids[column];
+        }
+
+        @Override
+        void bind(ColumnPlan plan, List<String> unknown) {
+            column = -1;
+            for (int i = 1; i <= plan.getColumnCount(); i++) {
+                if (name.equals(plan.getColumnName(i))) {
+                    column = i;
+                }
+            }
+            if (column < 0) {
+                unknown.add(name);
+            }
+        }
+
+        @Override
+        Column copy() {
+            return new Column(name);
+        }
+    }
+
+    private static class Counter extends Expression {
+
+        private final Column column;
+        private final boolean perSecond;
+        private final CounterDeltaEngine samples = new CounterDeltaEngine(); // Previous sample of the column of each row or entity
+
+        Counter(Column column, boolean perSecond) {
+            this.column = column;
+            this.perSecond = perSecond;
+        }
+
+        @Override
+        double evaluate(MetricRegistry registry, int[] ids) {
+            int id = column.id(ids);
+            if (!registry.isPresent(id)) {
+                return Double.NaN;
+            }
+            double rate = samples.process(id, registry.getLong(id), registry.getSampleTime());
+            return perSecond || Double.isNaN(rate) ? rate : samples.getDelta(id);
+        }
+
+        @Override
+        void bind(ColumnPlan plan, List<String> unknown) {
+            column.bind(plan, unknown);
+        }
+
+        @Override
+        Expression copy() {
+            return new Counter(column.copy(), perSecond);
+        }
+    }
+
+    private static class Binary extends Expression {
+
+        private final char operator;
+        private final Expression left;
+        private final Expression right;
+
+        Binary(char operator, Expression left, Expression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double evaluate(MetricRegistry registry, int[] ids) {
+            double a = left.evaluate(registry, ids);
+            double b = right.evaluate(registry, ids);
+            switch (operator) {
+            case '+':
+                return a + b;
+            case '-':
+                return a - b;
+            case '*':
+                return a * b;
+            case '/':
+                return b == 0.0 ? Double.NaN : a / b;
+            case 'm':
+                return Math.min(a, b);
+            default:
+                return Math.max(a, b);
+            }
+        }
+
+        @Override
+        void bind(ColumnPlan plan, List<String> unknown) {
+            left.bind(plan, unknown);
+            right.bind(plan, unknown);
+        }
+
+        @Override
+        Expression copy() {
+            return new Binary(operator, left.copy(), right.copy());
+        }
+    }
+}
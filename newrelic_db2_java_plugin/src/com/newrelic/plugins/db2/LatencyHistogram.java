@@ -0,0 +1,162 @@
+package com.newrelic.plugins.db2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records query latencies into fixed buckets, 100 microseconds to 100 seconds in a 1-2-5 series, so recording never allocates. It keeps
+ * the counts since the agent started, and the counts since the last mark, which give the percentiles of a single poll cycle.
+ *
+ * Latencies may be recorded from any thread. mark and the interval getters are used by the thread that reports the histogram.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class LatencyHistogram {
+
+    private static final long[] BOUNDS = { // Upper bound of each bucket in microseconds, the last bucket has no bound
+        100L, 200L, 500L,
+        1000L, 2000L, 5000L,
+        10000L, 20000L, 50000L,
+        100000L, 200000L, 500000L,
+        1000000L, 2000000L, 5000000L,
+        10000000L, 20000000L, 50000000L,
+        100000000L };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong intervalMaxNanos = new AtomicLong();
+
+    private final long[] marked = new long[BOUNDS.length + 1]; // Bucket counts at the last mark
+    private long markedCount = 0L;
+    private long markedTotalNanos = 0L;
+
+    /**
+     * @param nanos long latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0L, nanos / 1000L);
+        int bucket = 0;
+        while (bucket < BOUNDS.length && micros > BOUNDS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        raise(maxNanos, nanos);
+        raise(intervalMaxNanos, nanos);
+    }
+
+    private static void raise(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return int number of buckets, including the unbounded last one
+     */
+    public int getBucketCount() {
+        return BOUNDS.length + 1;
+    }
+
+    /**
+     * @param bucket int
+     * @return long number of latencies recorded in the bucket since the agent started
+     */
+    public long getBucket(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * @param bucket int
+     * @return long upper bound of the bucket in microseconds, Long.MAX_VALUE for the last bucket
+     */
+    public static long getUpperBound(int bucket) {
+        return bucket < BOUNDS.length ? BOUNDS[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Estimate a percentile over all recorded latencies, as the upper bound of the bucket it falls in
+     *
+     * @param percentile double e.g. 99.0
+     * @return double milliseconds, NaN if nothing was recorded
+     */
+    public double getPercentile(double percentile) {
+        return percentile(percentile, false, getCount(), getMaxNanos());
+    }
+
+    /**
+     * Start a new interval
+     */
+    public void mark() {
+        for (int i = 0; i < marked.length; i++) {
+            marked[i] = counts.get(i);
+        }
+        markedCount = count.get();
+        markedTotalNanos = totalNanos.get();
+        intervalMaxNanos.set(0L);
+    }
+
+    /**
+     * @return long number of latencies recorded since the last mark
+     */
+    public long getIntervalCount() {
+        return count.get() - markedCount;
+    }
+
+    /**
+     * @return double average latency since the last mark in milliseconds, NaN if nothing was recorded
+     */
+    public double getIntervalAverage() {
+        long n = getIntervalCount();
+        return n == 0 ? Double.NaN : (totalNanos.get() - markedTotalNanos) / 1000000.0 / n;
+    }
+
+    /**
+     * @return double longest latency since the last mark in milliseconds
+     */
+    public double getIntervalMax() {
+        return intervalMaxNanos.get() / 1000000.0;
+    }
+
+    /**
+     * Estimate a percentile of the latencies recorded since the last mark
+     *
+     * @param percentile double e.g. 95.0
+     * @return double milliseconds, NaN if nothing was recorded
+     */
+    public double getIntervalPercentile(double percentile) {
+        return percentile(percentile, true, getIntervalCount(), intervalMaxNanos.get());
+    }
+
+    private double percentile(double percentile, boolean sinceMark, long n, long max) {
+        if (n <= 0) {
+            return Double.NaN;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * n);
+        long seen = 0L;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += counts.get(i) - (sinceMark ? marked[i] : 0L);
+            if (seen >= rank) {
+                return Math.min(BOUNDS[i] / 1000.0, max / 1000000.0); // Never above the longest latency seen
+            }
+        }
+        return max / 1000000.0;
+    }
+}
@@ -0,0 +1,128 @@
+package com.newrelic.plugins.db2;
+
+import java.util.Arrays;
+
+/**
+ * This class rolls the values each member of a pureScale or partitioned database collected for a category up into the registry of the category, which
+ * reports the whole database under the usual metric names next to the member/<id>/ metrics of each member. As for the _other entity of a top K,
+ * integer columns, counters included, are summed over the members and the other columns averaged. The derived metrics of the category are then
+ * evaluated on the rolled up values.
+ *
+ * A restart of any member starts the counters of the rollup over, their sum drops with the counters of that member. So does a change of the members
+ * rolled up, e.g. when a member fails to collect the category in a cycle and is back in the next: a sum over another set of members is not comparable
+ * with the previous one, its rate is skipped for the cycle instead of reported as a spike or a drop.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class MemberRollup {
+
+    private final MetricRegistry cluster;
+    private final boolean set;
+
+    private double[] sums = new double[0]; // Indexed by metric id of the cluster registry
+    private long[] longs = new long[0];
+    private int[] counts = new int[0];
+    private boolean[] integral = new boolean[0];
+    private int[] touched = new int[0]; // Ids written in the current cycle
+    private int touchedCount = 0;
+    private boolean[] lastRolled = null; // Whether each member was rolled up in the last cycle, null before the first
+
+    /**
+     * @param cluster MetricRegistry of the category, the rollup is written into
+     * @param set boolean whether the category is a set category
+     */
+    public MemberRollup(MetricRegistry cluster, boolean set) {
+        this.cluster = cluster;
+        this.set = set;
+    }
+
+    /**
+     * Write the rollup of the members that collected the category in the current cycle. The caller starts the cycle of the cluster registry.
+     *
+     * @param members MetricRegistry[] registry of each member, null for a member that did not collect the category
+     * @return int members rolled up
+     */
+    public int rollup(MetricRegistry[] members) {
+        int rolled = 0;
+        touchedCount = 0;
+        boolean[] current = new boolean[members.length];
+        for (int m = 0; m < members.length; m++) {
+            MetricRegistry member = members[m];
+            ColumnPlan plan = member == null ? null : member.getPlan();
+            if (plan == null) {
+                continue;
+            }
+            current[m] = true;
+            ColumnPlan own = cluster.getPlan();
+            if (own == null || own.getColumnCount() != plan.getColumnCount()) {
+                cluster.setPlan(plan); // The members run the same SQL, any of their plans reads the same columns
+                own = plan;
+            }
+            if (member.isRestarted()) {
+                cluster.restart();
+            }
+            cluster.addRead(member.getRowsRead(), member.getCellsRead());
+            if (set) {
+                for (String entity : member.getEntities()) {
+                    add(member, member.getEntityIds(entity), cluster.getEntityIds(entity), own, 2);
+                }
+            } else {
+                add(member, member.getRowIds(), cluster.getRowIds(), own, 1);
+            }
+            rolled++;
+        }
+        if (rolled > 0) {
+            if (lastRolled != null && !Arrays.equals(lastRolled, current)) {
+                cluster.restart();
+            }
+            lastRolled = current;
+        }
+        for (int i = 0; i < touchedCount; i++) {
+            int id = touched[i];
+            if (integral[id]) {
+                cluster.setLong(id, longs[id]);
+            } else {
+                cluster.set(id, sums[id] / counts[id]);
+            }
+            counts[id] = 0;
+        }
+        DerivedMetrics derived = cluster.getDerivedMetrics();
+        if (rolled > 0 && derived != null) {
+            derived.evaluate(cluster, set);
+        }
+        return rolled;
+    }
+
+    /**
+     * Add the values of the columns of one row or entity of a member
+     */
+    private void add(MetricRegistry member, int[] from, int[] to, ColumnPlan plan, int first) {
+        for (int column = first; column <= plan.getColumnCount(); column++) {
+            int kind = plan.getKind(column);
+            if (kind == ColumnPlan.SKIP || kind == ColumnPlan.MARKER || !member.isPresent(from[column])) {
+                continue;
+            }
+            int id = to[column];
+            if (id >= counts.length) {
+                grow(Math.max(cluster.size(), id + 1));
+            }
+            if (counts[id]++ == 0) {
+                touched[touchedCount++] = id;
+                sums[id] = 0.0;
+                longs[id] = 0L;
+                integral[id] = kind == ColumnPlan.LONG;
+            }
+            sums[id] += member.getValue(from[column]);
+            longs[id] += member.getLong(from[column]);
+        }
+    }
+
+    private void grow(int capacity) {
+        sums = Arrays.copyOf(sums, capacity);
+        longs = Arrays.copyOf(longs, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        integral = Arrays.copyOf(integral, capacity);
+        touched = Arrays.copyOf(touched, capacity);
+    }
+}
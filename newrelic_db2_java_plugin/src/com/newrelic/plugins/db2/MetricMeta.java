@@ -2,8 +2,6 @@ package com.newrelic.plugins.db2;
 
 import static com.newrelic.plugins.db2.util.Constants.*;
 
-import com.newrelic.metrics.publish.processors.EpochCounter;
-
 /**
  * This class holds additional meta data about a given metric.
  * 
@@ -11,6 +9,8 @@ import com.newrelic.metrics.publish.processors.EpochCounter;
  * 
  * - Counter (Yes/No). The default is Yes - Unit Name
  * 
+ * Counters are turned into rates by the CounterDeltaEngine of their category.
+ * 
  * @author yylbj@cn.ibm.com
  * 
  */
@@ -20,20 +20,16 @@ public class MetricMeta {
     public final static String DEFAULT_COUNTER_UNIT = DEFAULT_UNIT + "/Second";
 
     private final String unit;
-    private EpochCounter counter = null;
+    private final boolean counter;
 
     public MetricMeta(boolean isCounter, String unit) {
         this.unit = unit;
-        if (isCounter) {
-            this.counter = new EpochCounter();
-        }
+        this.counter = isCounter;
     }
 
     public MetricMeta(boolean isCounter) {
         this.unit = isCounter ? DEFAULT_COUNTER_UNIT : DEFAULT_UNIT;
-        if (isCounter) {
-            this.counter = new EpochCounter();
-        }
+        this.counter = isCounter;
     }
 
     public static MetricMeta defaultMetricMeta() {
@@ -41,17 +37,13 @@ public class MetricMeta {
     }
 
     public boolean isCounter() {
-        return (this.counter == null ? false : true);
+        return this.counter;
     }
 
     public String getUnit() {
         return this.unit;
     }
 
-    public EpochCounter getCounter() {
-        return this.counter;
-    }
-
     @Override
     public String toString() {
         return new StringBuilder()
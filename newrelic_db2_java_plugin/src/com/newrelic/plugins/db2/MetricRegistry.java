@@ -0,0 +1,478 @@
+package com.newrelic.plugins.db2;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class holds the metric values of one category. Every metric name gets a stable int id the first time it is seen, values are kept in primitive
+ * arrays indexed by id and the MetricMeta of a metric is resolved once per id. Once all series of a category have been seen, a poll cycle only
+ * writes into the arrays.
+ *
+ * Integer columns are also kept as longs, so cumulative counters keep full precision until the CounterDeltaEngine turns them into rates.
+ *
+ * A registry is written by one thread at a time. Values written by a collector thread are visible to the thread that waited for it to finish.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class MetricRegistry {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private final String category;
+    private Map<String, MetricMeta> metricsMeta; // Lower case metric name to meta data, shared with the other registries of the category plan
+    private String member = null; // Member of a pureScale or partitioned database the values are collected from, null for the whole database
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private ColumnPlan plan = null; // How the category result set is read
+    private int[] rowIds = new int[0]; // Column ids of a row category, indexed by JDBC column number, followed by the derived metric ids
+    private final Map<String, int[]> entities = new HashMap<String, int[]>(); // Column and derived metric ids of each entity of a set category
+    private DerivedMetrics derived = null; // Metrics computed from the columns of each row or entity, null if none
+
+    private String[] names = new String[INITIAL_CAPACITY];
+    private MetricMeta[] metas = new MetricMeta[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+    private long[] longs = new long[INITIAL_CAPACITY]; // Exact value of integer columns
+    private int[] stamps = new int[INITIAL_CAPACITY]; // Cycle a value was last written in
+    private int size = 0;
+    private int cycle = 1;
+    private long sampleTime = System.nanoTime(); // When the current cycle started
+    private int rowsRead = 0; // Rows and cells read from the result set in the current cycle
+    private int cellsRead = 0;
+    private String failure = null; // SQLSTATE the query failed with in the current cycle, null if it did not fail
+    private ResultSnapshot snapshot = null; // Shared execution last collected into the registry
+
+    private TopKSelector topK = null; // Limits the entities of a set category, null reports all of them
+    private String restartMarker = null; // Column whose value changes when the counters of the category start over
+    private Map<String, ValueMapping> valueMappings = null; // Lookup tables of the character columns of the category
+    private long marker = 0L;
+    private boolean markerSeen = false;
+    private boolean restarted = false; // Whether the restart marker changed in the current cycle
+
+    /**
+     * @param category String Metric category
+     * @param metricsMeta Map of lower case metric names to meta data, may be empty
+     */
+    public MetricRegistry(String category, Map<String, MetricMeta> metricsMeta) {
+        this.category = category;
+        this.metricsMeta = metricsMeta;
+    }
+
+    public MetricRegistry(String category) {
+        this(category, new HashMap<String, MetricMeta>());
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Look up the meta data of the metrics registered from now on in another map, e.g. that of reloaded categories. Registered metrics keep the meta
+     * data they have.
+     *
+     * @param metricsMeta Map of lower case metric names to meta data
+     */
+    public void setMetricsMeta(Map<String, MetricMeta> metricsMeta) {
+        this.metricsMeta = metricsMeta;
+    }
+
+    /**
+     * Collect the values of one member of a pureScale or partitioned database. Metrics registered afterwards are named member/<id>/ followed by
+     * their usual name, and keep the meta data and the id they have without it.
+     *
+     * @param member String member id, e.g. 0
+     */
+    public void setMember(String member) {
+        this.member = member;
+    }
+
+    /**
+     * @return String member the values are collected from, null for the whole database
+     */
+    public String getMember() {
+        return member;
+    }
+
+    /**
+     * Return the id of a metric, registering it the first time the name is seen
+     *
+     * @param name String full metric name, e.g. bufferpool_IBMDEFAULTBP/data_hit_ratio_percent
+     * @return int id
+     */
+    public int getId(String name) {
+        return getId(name, null);
+    }
+
+    /**
+     * Return the id of a metric, registering it the first time the name is seen. Metrics of set categories have no meta data of their own, they use
+     * the meta data of their column.
+     *
+     * @param name String full metric name, e.g. bufferpool_IBMDEFAULTBP/pool_data_l_reads
+     * @param metaKey String key the meta data is looked up by if there is none for the name, e.g. bufferpool/pool_data_l_reads, may be null
+     * @return int id
+     */
+    public int getId(String name, String metaKey) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (size == names.length) {
+            grow();
+        }
+        MetricMeta meta = metricsMeta.get(name.toLowerCase());
+        if (meta == null && metaKey != null) {
+            meta = metricsMeta.get(metaKey.toLowerCase());
+        }
+        names[size] = member == null ? name : DB2.buildString(MEMBER_PREFIX, member, SEPARATOR, name);
+        metas[size] = meta;
+        stamps[size] = 0;
+        ids.put(name, size);
+        return size++;
+    }
+
+    /**
+     * Return the id of a registered metric
+     *
+     * @param name String full metric name
+     * @return int id, or -1 if the metric has never been seen
+     */
+    public int findId(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Return the column plan the category result set was last read with
+     *
+     * @return ColumnPlan, or null before the category first ran
+     */
+    public ColumnPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Set the column plan of the category, resolving the ids of its columns
+     *
+     * @param plan ColumnPlan
+     */
+    public void setPlan(ColumnPlan plan) {
+        this.plan = plan;
+        this.rowIds = new int[plan.getColumnCount() + 1 + derivedCount()];
+        for (int i = 1; i <= plan.getColumnCount(); i++) {
+            rowIds[i] = getId(plan.getRowKey(i));
+        }
+        for (int i = 0; i < derivedCount(); i++) {
+            rowIds[plan.getColumnCount() + 1 + i] = getId(DB2.buildString(category, SEPARATOR, derived.getNames()[i]));
+        }
+        entities.clear(); // Columns may have moved
+    }
+
+    /**
+     * Return the metric id of a column of a row category
+     *
+     * @param column int JDBC column number
+     * @return int id
+     */
+    public int getRowId(int column) {
+        return rowIds[column];
+    }
+
+    /**
+     * Return the metric ids of the value columns of one entity of a set category, e.g. tablespace_USERSPACE1
+     *
+     * @param entity String value of the first column
+     * @return int[] indexed by JDBC column number
+     */
+    public int[] getEntityIds(String entity) {
+        int[] columnIds = entities.get(entity);
+        if (columnIds == null) {
+            String prefix = DB2.buildString(category, UNDERSCORE, entity);
+            columnIds = new int[plan.getColumnCount() + 1 + derivedCount()];
+            for (int i = 2; i <= plan.getColumnCount(); i++) {
+                columnIds[i] = getId(prefix.concat(plan.getKeySuffix(i)), plan.getRowKey(i));
+            }
+            for (int i = 0; i < derivedCount(); i++) {
+                String name = derived.getNames()[i];
+                columnIds[plan.getColumnCount() + 1 + i] = getId(DB2.buildString(prefix, SEPARATOR, name), DB2.buildString(category, SEPARATOR, name));
+            }
+            entities.put(entity, columnIds);
+        }
+        return columnIds;
+    }
+
+    /**
+     * @return int[] metric ids of a row category, indexed by JDBC column number, followed by the ids of the derived metrics
+     */
+    int[] getRowIds() {
+        return rowIds;
+    }
+
+    /**
+     * @return Set of the entities of a set category seen since the column plan was set
+     */
+    Set<String> getEntities() {
+        return entities.keySet();
+    }
+
+    /**
+     * @return Collection of the metric ids of every entity of a set category seen since the column plan was set
+     */
+    Collection<int[]> getEntityIdArrays() {
+        return entities.values();
+    }
+
+    /**
+     * Compute derived metrics from the columns of each row or entity. Set before the category first runs, the ids of the derived metrics are
+     * allocated with those of the columns.
+     *
+     * @param derived DerivedMetrics, may be null
+     */
+    public void setDerivedMetrics(DerivedMetrics derived) {
+        this.derived = derived;
+    }
+
+    /**
+     * @return DerivedMetrics of the category, null if none
+     */
+    public DerivedMetrics getDerivedMetrics() {
+        return derived;
+    }
+
+    private int derivedCount() {
+        return derived == null ? 0 : derived.getNames().length;
+    }
+
+    /**
+     * Name the column the category's restart marker is read from, e.g. DB_CONN_TIME
+     *
+     * @param column String column name, may be null
+     */
+    public void setRestartMarker(String column) {
+        this.restartMarker = column;
+    }
+
+    public String getRestartMarker() {
+        return restartMarker;
+    }
+
+    /**
+     * Set the lookup tables the character columns of the category are mapped with, e.g. HADR_STATE. They apply to the column plan built the next
+     * time the category runs.
+     *
+     * @param valueMappings Map of lower case column names to mappings, may be null
+     */
+    public void setValueMappings(Map<String, ValueMapping> valueMappings) {
+        this.valueMappings = valueMappings;
+    }
+
+    public Map<String, ValueMapping> getValueMappings() {
+        return valueMappings;
+    }
+
+    /**
+     * Report only the K entities of a set category ranking highest by a column, rolling the others up into _other
+     *
+     * @param limit int K, 0 reports all entities
+     * @param rankColumn String column the entities are ranked by, e.g. TBSP_UTILIZATION_PERCENT, may be null to keep the first K rows
+     */
+    public void setTopK(int limit, String rankColumn) {
+        this.topK = limit > 0 ? new TopKSelector(limit, rankColumn) : null;
+    }
+
+    /**
+     * @return TopKSelector of the category, null if all entities are reported
+     */
+    public TopKSelector getTopK() {
+        return topK;
+    }
+
+    /**
+     * Start a new poll cycle. Values written in earlier cycles are no longer present.
+     */
+    public void beginCycle() {
+        cycle++;
+        sampleTime = System.nanoTime();
+        restarted = false;
+        rowsRead = 0;
+        cellsRead = 0;
+        failure = null;
+    }
+
+    /**
+     * Record the error the query of the category failed with in the current cycle
+     *
+     * @param sqlState String SQLSTATE of the error, CONNECTION_LOST_SQLSTATE if the connection was lost, or null if the driver gave none
+     */
+    public void setFailure(String sqlState) {
+        this.failure = sqlState == null ? EMPTY_STRING : sqlState;
+    }
+
+    /**
+     * @return String SQLSTATE the query failed with in the current cycle, empty if it has none, null if the query did not fail
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * Count a row read from the category result set
+     *
+     * @param cells int columns read from the row
+     */
+    public void countRow(int cells) {
+        rowsRead++;
+        cellsRead += cells;
+    }
+
+    /**
+     * Count the rows and cells other registries read in the current cycle, e.g. the members rolled up into this one
+     *
+     * @param rows int
+     * @param cells int
+     */
+    void addRead(int rows, int cells) {
+        rowsRead += rows;
+        cellsRead += cells;
+    }
+
+    public int getRowsRead() {
+        return rowsRead;
+    }
+
+    public int getCellsRead() {
+        return cellsRead;
+    }
+
+    /**
+     * Take the sample time of values that were read before the cycle started, e.g. from an execution shared with another agent
+     *
+     * @param sampleTime long System.nanoTime() the values were read at
+     */
+    void setSampleTime(long sampleTime) {
+        this.sampleTime = sampleTime;
+    }
+
+    void setSnapshot(ResultSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    ResultSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return long System.nanoTime() at the start of the current cycle, the time the counters of the cycle were sampled at, unless taken from a
+     *         shared execution by setSampleTime
+     */
+    public long getSampleTime() {
+        return sampleTime;
+    }
+
+    public void set(int id, double value) {
+        values[id] = value;
+        longs[id] = (long) value;
+        stamps[id] = cycle;
+    }
+
+    /**
+     * Write the value of an integer column, keeping the exact long for counters
+     *
+     * @param id int
+     * @param value long
+     */
+    public void setLong(int id, long value) {
+        values[id] = value;
+        longs[id] = value;
+        stamps[id] = cycle;
+    }
+
+    public long getLong(int id) {
+        return longs[id];
+    }
+
+    /**
+     * Record the value of the restart marker read in the current cycle. A value different from the previous one means the database was restarted or
+     * reactivated since, and all counters of the category started over.
+     *
+     * @param value long e.g. DB_CONN_TIME in milliseconds
+     */
+    public void observeMarker(long value) {
+        if (markerSeen && value != marker) {
+            restarted = true;
+        }
+        marker = value;
+        markerSeen = true;
+    }
+
+    /**
+     * Check whether the restart marker changed in the current cycle
+     *
+     * @return boolean
+     */
+    public boolean isRestarted() {
+        return restarted;
+    }
+
+    /**
+     * Start the counters of the category over in the current cycle, e.g. when one of the members rolled up into it was restarted
+     */
+    public void restart() {
+        restarted = true;
+    }
+
+    /**
+     * Acknowledge a restart once the counters of the category were re-baselined, the current cycle may be reported again until the category next runs
+     */
+    public void clearRestarted() {
+        restarted = false;
+    }
+
+    /**
+     * Check whether a metric was written in the current cycle
+     *
+     * @param id int
+     * @return boolean
+     */
+    public boolean isPresent(int id) {
+        return id >= 0 && id < size && stamps[id] == cycle;
+    }
+
+    public double getValue(int id) {
+        return values[id];
+    }
+
+    public String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * @param id int
+     * @return MetricMeta of the metric, or null if none is defined
+     */
+    public MetricMeta getMeta(int id) {
+        return metas[id];
+    }
+
+    /**
+     * Number of registered metrics, ids run from 0 to size - 1
+     *
+     * @return int
+     */
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        metas = Arrays.copyOf(metas, capacity);
+        values = Arrays.copyOf(values, capacity);
+        longs = Arrays.copyOf(longs, capacity);
+        stamps = Arrays.copyOf(stamps, capacity);
+    }
+}
@@ -0,0 +1,129 @@
+package com.newrelic.plugins.db2;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class shares the executions of category SQL between the agents that monitor the same database. An execution is reused by every agent that runs
+ * the same category within the time to live, which is a little shorter than the poll interval, so the agents of one poll cycle share one execution
+ * and the next cycle executes the SQL again. An agent never collects the same execution twice, it executes the SQL again if it runs the category
+ * before the time to live has passed.
+ *
+ * Only categories subscribed to by more than one agent go through the cache, a category of a single agent is read straight into its registry.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class ResultCache {
+
+    private final long ttl; // Nanoseconds
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param ttl int seconds an execution is reused for
+     */
+    public ResultCache(int ttl) {
+        this.ttl = TimeUnit.SECONDS.toNanos(ttl);
+    }
+
+    /**
+     * Subscribe an agent to the executions of a category
+     *
+     * @param category String Metric category
+     * @param SQL String of SQL Statement of the category
+     * @return Entry the agent runs the category through
+     */
+    public synchronized Entry subscribe(String category, String SQL) {
+        String key = DB2.buildString(category, "|", SQL);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+        entry.subscribers++;
+        return entry;
+    }
+
+    /**
+     * Unsubscribe an agent, forgetting the category once no agent runs it anymore
+     *
+     * @param entry Entry returned by subscribe
+     */
+    public synchronized void unsubscribe(Entry entry) {
+        if (--entry.subscribers <= 0) {
+            entries.remove(entry.key);
+        }
+    }
+
+    /**
+     * @return long executions reused by another agent
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return long executions of shared categories
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The last execution of one category. Agents lock the entry while they run the SQL, so the agents asking for it at the same time wait for a
+     * single execution.
+     */
+    public class Entry {
+
+        private final String key;
+        private volatile int subscribers = 0;
+        private ResultSnapshot snapshot = null;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return boolean whether more than one agent runs the category
+         */
+        public boolean isShared() {
+            return subscribers > 1;
+        }
+
+        /**
+         * Return the last execution if it is recent enough to be reused and the registry did not collect it yet, counting a hit. Call with the entry
+         * locked.
+         *
+         * @param registry MetricRegistry the execution is collected into
+         * @return ResultSnapshot or null
+         */
+        ResultSnapshot getFresh(MetricRegistry registry) {
+            if (snapshot != null && snapshot != registry.getSnapshot() && System.nanoTime() - snapshot.getSampleTime() < ttl) {
+                hits.incrementAndGet();
+                return snapshot;
+            }
+            return null;
+        }
+
+        /**
+         * @return ResultSnapshot of the last execution, fresh or not, null if there was none
+         */
+        ResultSnapshot getLast() {
+            return snapshot;
+        }
+
+        /**
+         * Keep a new execution. Call with the entry locked.
+         *
+         * @param snapshot ResultSnapshot
+         */
+        void update(ResultSnapshot snapshot) {
+            misses.incrementAndGet();
+            this.snapshot = snapshot;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.newrelic.plugins.db2;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds the values of one execution of a category SQL, read the way DB2.collectResults reads them, so several agents can collect the same
+ * execution into their own registries. A snapshot is never changed once it has been read.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class ResultSnapshot {
+
+    private final ColumnPlan plan;
+    private final long sampleTime; // When the SQL was executed
+    private final String[] entities; // First column of each row of a set category, null for a row category
+    private final double[] values; // Cell values, row by row, indexed by row * (columns + 1) + JDBC column number
+    private final long[] longs; // Exact value of integer and marker cells
+    private final boolean[] present; // Whether a cell has a valid value
+    private final int rows;
+
+    private ResultSnapshot(ColumnPlan plan, long sampleTime, String[] entities, double[] values, long[] longs, boolean[] present, int rows) {
+        this.plan = plan;
+        this.sampleTime = sampleTime;
+        this.entities = entities;
+        this.values = values;
+        this.longs = longs;
+        this.present = present;
+        this.rows = rows;
+    }
+
+    /**
+     * Read the rows of a category result set
+     *
+     * @param rs ResultSet of the category SQL
+     * @param category String Metric category
+     * @param type String Result type, row or set
+     * @param restartMarker String column the restart marker of the category is read from, may be null
+     * @param valueMappings Map of lower case column names to the lookup tables of character columns, may be null
+     * @param previous ResultSnapshot of the last execution, its column plan is reused if the columns did not change, may be null
+     * @return ResultSnapshot
+     * @throws SQLException
+     */
+    public static ResultSnapshot read(ResultSet rs, String category, String type, String restartMarker, Map<String, ValueMapping> valueMappings,
+            ResultSnapshot previous) throws SQLException {
+        long sampleTime = System.nanoTime();
+        ColumnPlan plan = previous == null ? null : previous.plan;
+        if (plan == null || !plan.matches(rs.getMetaData())) {
+            plan = ColumnPlan.typed(category, rs.getMetaData(), restartMarker, valueMappings);
+        }
+
+        int width = plan.getColumnCount() + 1;
+        int capacity = previous == null ? 1 : Math.max(1, previous.rows);
+        double[] values = new double[capacity * width];
+        long[] longs = new long[capacity * width];
+        boolean[] present = new boolean[capacity * width];
+        List<String> entities = null;
+        int rows = 0;
+
+        int first = 1;
+        if (SET.equals(type)) {
+            if (!DB2.isEntityColumn(plan.getColumnName(1))) {
+                return new ResultSnapshot(plan, sampleTime, new String[0], values, longs, present, 0);
+            }
+            entities = new ArrayList<String>(capacity);
+            first = 2;
+        }
+        while (rs.next()) {
+            if ((rows + 1) * width > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+                longs = Arrays.copyOf(longs, longs.length * 2);
+                present = Arrays.copyOf(present, present.length * 2);
+            }
+            if (entities != null) {
+                entities.add(rs.getString(1));
+            }
+            int base = rows * width;
+            for (int i = first; i <= plan.getColumnCount(); i++) {
+                readCell(rs, plan, i, base + i, values, longs, present);
+            }
+            rows++;
+            if (entities == null) {
+                break; // A row category reads a single row
+            }
+        }
+        return new ResultSnapshot(plan, sampleTime, entities == null ? null : entities.toArray(new String[rows]), values, longs, present, rows);
+    }
+
+    static void readCell(ResultSet rs, ColumnPlan plan, int column, int cell, double[] values, long[] longs, boolean[] present)
+            throws SQLException {
+        switch (plan.getKind(column)) {
+        case ColumnPlan.LONG:
+            long longValue = rs.getLong(column);
+            present[cell] = !rs.wasNull();
+            longs[cell] = longValue;
+            values[cell] = longValue;
+            break;
+        case ColumnPlan.MARKER:
+            Object marker = rs.getObject(column);
+            present[cell] = marker != null;
+            if (marker instanceof Date) {
+                longs[cell] = ((Date) marker).getTime();
+            } else if (marker instanceof Number) {
+                longs[cell] = ((Number) marker).longValue();
+            } else if (marker != null) {
+                longs[cell] = marker.toString().hashCode();
+            }
+            break;
+        default:
+            double value = DB2.readColumn(rs, plan, column);
+            present[cell] = !Double.isNaN(value);
+            values[cell] = value;
+        }
+    }
+
+    /**
+     * Write the values into the registry of a category, as if the registry had read the result set itself. The registry takes the sample time of the
+     * execution, so counter rates are computed over the time between executions. The caller starts the registry cycle.
+     *
+     * @param registry MetricRegistry
+     */
+    public void collectInto(MetricRegistry registry) {
+        if (registry.getPlan() != plan) {
+            registry.setPlan(plan);
+        }
+        registry.setSampleTime(sampleTime);
+        registry.setSnapshot(this);
+        int columns = plan.getColumnCount();
+        int width = columns + 1;
+        TopKSelector top = entities == null ? null : registry.getTopK();
+        if (top != null) {
+            top.begin(registry);
+            for (int row = 0; row < rows; row++) {
+                top.offer(entities[row], values, longs, present, row * width);
+            }
+            top.finish();
+            return;
+        }
+        for (int row = 0; row < rows; row++) {
+            int base = row * width;
+            if (entities == null) {
+                for (int i = 1; i <= columns; i++) {
+                    collectCell(registry, i, base + i, registry.getRowId(i));
+                }
+            } else {
+                int[] ids = registry.getEntityIds(entities[row]);
+                for (int i = 2; i <= columns; i++) {
+                    collectCell(registry, i, base + i, ids[i]);
+                }
+            }
+            registry.countRow(columns);
+        }
+    }
+
+    private void collectCell(MetricRegistry registry, int column, int cell, int id) {
+        if (!present[cell]) {
+            return;
+        }
+        switch (plan.getKind(column)) {
+        case ColumnPlan.LONG:
+            registry.setLong(id, longs[cell]);
+            break;
+        case ColumnPlan.MARKER:
+            registry.observeMarker(longs[cell]);
+            break;
+        default:
+            registry.set(id, values[cell]);
+        }
+    }
+
+    public long getSampleTime() {
+        return sampleTime;
+    }
+
+    /**
+     * @return int rows read from the result set
+     */
+    public int getRows() {
+        return rows;
+    }
+}
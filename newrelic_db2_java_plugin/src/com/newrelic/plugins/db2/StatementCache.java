@@ -0,0 +1,123 @@
+package com.newrelic.plugins.db2;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class keeps the prepared statements of one DB2 connection, so the SQL of each metric category is sent to and compiled by the DB2 server only once
+ * per connection instead of once per poll cycle.
+ *
+ * A cache is used by one thread at a time. The hit and miss counters survive a reconnect and may be read from any thread.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class StatementCache {
+
+    private static final Logger logger = Logger.getLogger(StatementCache.class);
+
+    private Connection conn = null;
+    private int queryTimeout = 0; // Seconds, 0 means no limit
+    private int fetchSize = 0; // Rows fetched from the server per network round-trip, 0 leaves it to the driver
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Return the prepared statement for the given SQL, preparing it on the current connection the first time it is asked for
+     *
+     * @param SQL String of SQL Statement
+     * @return PreparedStatement ready to be executed
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String SQL) throws SQLException {
+        PreparedStatement stmt = statements.get(SQL);
+        if (stmt != null) {
+            hits.incrementAndGet();
+            return stmt;
+        }
+        if (conn == null) {
+            throw new SQLException("No connection bound to the statement cache");
+        }
+        misses.incrementAndGet();
+        logger.debug("Preparing SQL Statement ", SQL);
+        stmt = conn.prepareStatement(SQL);
+        if (queryTimeout > 0) {
+            stmt.setQueryTimeout(queryTimeout);
+        }
+        if (fetchSize > 0) {
+            stmt.setFetchSize(fetchSize);
+        }
+        statements.put(SQL, stmt);
+        return stmt;
+    }
+
+    /**
+     * Close and forget the statement for the given SQL, e.g. after it failed, so the next cycle prepares it again
+     *
+     * @param SQL String of SQL Statement
+     */
+    public void invalidate(String SQL) {
+        close(statements.remove(SQL));
+    }
+
+    /**
+     * Close all cached statements and bind the cache to a (new) connection
+     *
+     * @param c Connection the statements are prepared on from now on, may be null
+     */
+    public void reset(Connection c) {
+        for (PreparedStatement stmt : statements.values()) {
+            close(stmt);
+        }
+        statements.clear();
+        conn = c;
+    }
+
+    /**
+     * @param seconds int Time limit set on statements prepared from now on, 0 means no limit
+     */
+    public void setQueryTimeout(int seconds) {
+        this.queryTimeout = seconds;
+    }
+
+    /**
+     * @param rows int Fetch size set on statements prepared from now on, 0 leaves it to the driver
+     */
+    public void setFetchSize(int rows) {
+        this.fetchSize = rows;
+    }
+
+    public Connection getConnection() {
+        return conn;
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static void close(PreparedStatement stmt) {
+        if (stmt != null) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                logger.debug(e, "Error closing statement: ");
+            }
+        }
+    }
+}
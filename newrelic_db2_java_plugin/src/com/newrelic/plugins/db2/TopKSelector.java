@@ -0,0 +1,258 @@
+package com.newrelic.plugins.db2;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * This class limits the cardinality of a set category. Only the K entities ranking highest by one column (e.g. TBSP_UTILIZATION_PERCENT) are written
+ * into the registry of the category, the remaining rows are rolled up into one entity named _other: integer columns are summed, the other columns
+ * averaged, and _other/entities counts the rows rolled up.
+ *
+ * The rows are offered one at a time while the result set is read. The selection is a min-heap of K row slots, so memory stays fixed however many
+ * entities the category returns: a row that ranks higher than the lowest kept row takes its slot, and the evicted row is folded into _other.
+ *
+ * The membership of _other changes as entities move in and out of the top K, so the rates of its counters are only indicative.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class TopKSelector {
+
+    public static final String ENTITIES = "entities"; // Rows rolled up into _other
+
+    private final int limit;
+    private final String rankColumn; // Lower case, null ranks the rows in the order they are read
+
+    private ColumnPlan plan = null;
+    private MetricRegistry registry = null;
+    private int rankIndex = 0; // JDBC column number of the rank column, 0 if the result set has none
+    private int width = 0;
+    private int otherEntitiesId = -1;
+
+    private double[] values = new double[0]; // limit + 1 row slots, indexed by slot * width + JDBC column number
+    private long[] longs = new long[0];
+    private boolean[] present = new boolean[0];
+    private final String[] entities;
+    private final double[] ranks;
+    private final int[] heap; // Slots of the kept rows, lowest rank first
+    private int heapSize = 0;
+    private int scratch = 0; // Slot the next row is read into
+    private int offered = 0;
+
+    private double[] otherValues = new double[0]; // Sum of each column of the rows rolled up
+    private long[] otherLongs = new long[0];
+    private int[] otherCounts = new int[0];
+    private int otherRows = 0;
+
+    /**
+     * @param limit int number of entities reported individually
+     * @param rankColumn String column the entities are ranked by, highest first, may be null
+     */
+    public TopKSelector(int limit, String rankColumn) {
+        this.limit = limit;
+        this.rankColumn = rankColumn == null ? null : rankColumn.toLowerCase();
+        this.entities = new String[limit + 1];
+        this.ranks = new double[limit + 1];
+        this.heap = new int[limit];
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public String getRankColumn() {
+        return rankColumn;
+    }
+
+    /**
+     * Start selecting the rows of one execution. The registry must hold the column plan the rows are read with, its cycle has been started.
+     *
+     * @param registry MetricRegistry of the category
+     */
+    public void begin(MetricRegistry registry) {
+        this.registry = registry;
+        if (registry.getPlan() != plan) {
+            plan = registry.getPlan();
+            width = plan.getColumnCount() + 1;
+            rankIndex = 0;
+            for (int i = 2; rankColumn != null && i <= plan.getColumnCount(); i++) {
+                if (rankColumn.equals(plan.getColumnName(i))) {
+                    rankIndex = i;
+                }
+            }
+            values = new double[(limit + 1) * width];
+            longs = new long[(limit + 1) * width];
+            present = new boolean[(limit + 1) * width];
+            otherValues = new double[width];
+            otherLongs = new long[width];
+            otherCounts = new int[width];
+            otherEntitiesId = registry.getId(DB2.buildString(registry.getCategory(), UNDERSCORE, OTHER_ENTITY, SEPARATOR, ENTITIES));
+        }
+        heapSize = 0;
+        scratch = 0;
+        offered = 0;
+        otherRows = 0;
+        Arrays.fill(otherValues, 0.0);
+        Arrays.fill(otherLongs, 0L);
+        Arrays.fill(otherCounts, 0);
+    }
+
+    /**
+     * Offer the current row of a set category result set
+     *
+     * @param entity String value of the first column
+     * @param rs ResultSet positioned on the row
+     * @throws SQLException
+     */
+    public void offer(String entity, ResultSet rs) throws SQLException {
+        int base = scratch * width;
+        for (int i = 2; i < width; i++) {
+            ResultSnapshot.readCell(rs, plan, i, base + i, values, longs, present);
+        }
+        select(entity);
+    }
+
+    /**
+     * Offer one row of a shared execution
+     *
+     * @param entity String value of the first column
+     * @param rowValues double[] cell values of the execution
+     * @param rowLongs long[] exact cell values of the execution
+     * @param rowPresent boolean[] whether each cell has a value
+     * @param rowBase int index of the row's column 0 in the arrays
+     */
+    public void offer(String entity, double[] rowValues, long[] rowLongs, boolean[] rowPresent, int rowBase) {
+        int base = scratch * width;
+        System.arraycopy(rowValues, rowBase, values, base, width);
+        System.arraycopy(rowLongs, rowBase, longs, base, width);
+        System.arraycopy(rowPresent, rowBase, present, base, width);
+        select(entity);
+    }
+
+    /**
+     * Keep the row in the scratch slot if it ranks among the top K so far, and fold the row it displaces, or the row itself, into _other
+     */
+    private void select(String entity) {
+        int base = scratch * width;
+        for (int i = 2; i < width; i++) {
+            if (plan.getKind(i) == ColumnPlan.MARKER && present[base + i]) {
+                registry.observeMarker(longs[base + i]); // Every row is observed, kept or not
+            }
+        }
+        registry.countRow(width - 1);
+
+        double rank;
+        if (rankIndex == 0) {
+            rank = -offered; // Keep the first rows
+        } else {
+            rank = present[base + rankIndex] ? values[base + rankIndex] : Double.NEGATIVE_INFINITY;
+        }
+        offered++;
+
+        if (heapSize < limit) {
+            entities[scratch] = entity;
+            ranks[scratch] = rank;
+            heap[heapSize] = scratch;
+            siftUp(heapSize++);
+            scratch = heapSize; // Slots are taken in order until the heap is full, then slot limit is the spare one
+        } else if (rank > ranks[heap[0]]) {
+            int evicted = heap[0];
+            fold(evicted);
+            entities[evicted] = null;
+            entities[scratch] = entity;
+            ranks[scratch] = rank;
+            heap[0] = scratch;
+            siftDown(0);
+            scratch = evicted;
+        } else {
+            fold(scratch);
+        }
+    }
+
+    private void fold(int slot) {
+        int base = slot * width;
+        for (int i = 2; i < width; i++) {
+            if (!present[base + i]) {
+                continue;
+            }
+            otherValues[i] += values[base + i];
+            otherLongs[i] += longs[base + i];
+            otherCounts[i]++;
+        }
+        otherRows++;
+    }
+
+    /**
+     * Write the kept rows, and the _other rollup if any row was rolled up, into the registry
+     */
+    public void finish() {
+        for (int h = 0; h < heapSize; h++) {
+            int slot = heap[h];
+            int base = slot * width;
+            int[] ids = registry.getEntityIds(entities[slot]);
+            for (int i = 2; i < width; i++) {
+                write(plan.getKind(i), ids[i], present[base + i], values[base + i], longs[base + i]);
+            }
+        }
+        if (otherRows > 0) {
+            int[] ids = registry.getEntityIds(OTHER_ENTITY);
+            for (int i = 2; i < width; i++) {
+                int kind = plan.getKind(i);
+                double average = otherCounts[i] == 0 ? 0.0 : otherValues[i] / otherCounts[i];
+                write(kind, ids[i], otherCounts[i] > 0, kind == ColumnPlan.LONG ? otherValues[i] : average, otherLongs[i]);
+            }
+            registry.set(otherEntitiesId, otherRows);
+        }
+        registry = null;
+    }
+
+    private void write(int kind, int id, boolean hasValue, double value, long longValue) {
+        if (!hasValue) {
+            return;
+        }
+        switch (kind) {
+        case ColumnPlan.LONG:
+            registry.setLong(id, longValue);
+            break;
+        case ColumnPlan.MARKER:
+            break; // Observed as the rows were offered
+        default:
+            registry.set(id, value);
+        }
+    }
+
+    private void siftUp(int index) {
+        int slot = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (ranks[heap[parent]] <= ranks[slot]) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = slot;
+    }
+
+    private void siftDown(int index) {
+        int slot = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && ranks[heap[child + 1]] < ranks[heap[child]]) {
+                child++;
+            }
+            if (ranks[slot] <= ranks[heap[child]]) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = slot;
+    }
+}
@@ -0,0 +1,152 @@
+package com.newrelic.plugins.db2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class turns the values of a character column into metric values through a lookup table, e.g. the HADR_STATE of a standby into a number that
+ * can be charted. Values that are not in the table are parsed as numbers.
+ *
+ * The tables are declared per column in the value_mappings attribute of a category in 'metric.category.json' and compiled once with the category
+ * plan, shared by the agents:
+ *
+ * "value_mappings" : { "HADR_STATE" : { "PEER" : 5, "DISCONNECTED" : 0 } }
+ *
+ * Character columns without a table of their own use DEFAULT, which maps ON/OFF, YES/NO, TRUE/NONE and NULL, and the HADR states and connect
+ * statuses the plugin always mapped, so an unchanged configuration reports them as before. A declared table extends DEFAULT. Numeric columns are
+ * read as numbers and never looked up.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class ValueMapping {
+
+    private static final Logger logger = Logger.getLogger(ValueMapping.class);
+
+    public static final ValueMapping DEFAULT = new ValueMapping();
+
+    static {
+        DEFAULT.put("ON", 1.0);
+        DEFAULT.put("TRUE", 1.0);
+        DEFAULT.put("YES", 1.0);
+        DEFAULT.put("OFF", 0.0);
+        DEFAULT.put("NONE", 0.0);
+        DEFAULT.put("NO", 0.0);
+        DEFAULT.put("NULL", -1.0);
+        DEFAULT.put("DISCONNECTED", 0.0); // HADR_STATE and HADR_CONNECT_STATUS
+        DEFAULT.put("LOCAL_CATCHUP", 1.0);
+        DEFAULT.put("REMOTE_CATCHUP_PENDING", 3.0);
+        DEFAULT.put("REMOTE_CATCHUP", 4.0);
+        DEFAULT.put("PEER", 5.0);
+        DEFAULT.put("CONNECTED", 1.0);
+        DEFAULT.put("CONGESTED", 2.0);
+    }
+
+    private final Map<String, Double> table = new HashMap<String, Double>(); // Upper case value to metric value
+
+    private ValueMapping() {
+    }
+
+    private void put(String value, double metric) {
+        table.put(value.toUpperCase(), metric);
+    }
+
+    /**
+     * Return the metric value of a column value
+     *
+     * @param value String column value, may be null
+     * @return double mapped or parsed value, NaN if the value is neither in the table nor a number
+     */
+    public double map(String value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        Double mapped = table.get(value);
+        if (mapped != null) {
+            return mapped;
+        }
+        if (DB2.validMetricValue(value)) {
+            return parseNumber(value);
+        }
+        if (hasLowerCase(value)) { // DB2 returns states in upper case, only other values are converted
+            mapped = table.get(value.toUpperCase());
+            if (mapped != null) {
+                return mapped;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Parse a valid metric value, an integer through long so it keeps its precision up to 2^53, anything else as a double
+     *
+     * @param value String valid metric value
+     * @return double
+     */
+    private static double parseNumber(String value) {
+        if (value.indexOf('.') < 0) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                // More digits than a long holds, parsed as a double
+            }
+        }
+        return Double.parseDouble(value);
+    }
+
+    private static boolean hasLowerCase(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.isLowerCase(value.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return int number of values in the table
+     */
+    public int size() {
+        return table.size();
+    }
+
+    /**
+     * Compile the value_mappings attribute of a category. Entries whose metric value is not a number are skipped.
+     *
+     * @param category String Metric category
+     * @param attribute Object value of the attribute, a JSON object of column names to JSON objects of column values to numbers, may be null
+     * @return Map of lower case column names to mappings, empty if the category declares none
+     */
+    public static Map<String, ValueMapping> compile(String category, Object attribute) {
+        Map<String, ValueMapping> mappings = new HashMap<String, ValueMapping>();
+        if (attribute == null) {
+            return mappings;
+        }
+        if (!(attribute instanceof Map)) {
+            logger.warn("Ignoring the value_mappings of category '", category, "', expected an object of columns, got: ", attribute);
+            return mappings;
+        }
+        for (Map.Entry<?, ?> column : ((Map<?, ?>) attribute).entrySet()) {
+            if (!(column.getValue() instanceof Map)) {
+                logger.warn("Ignoring the value mapping of column '", column.getKey(), "' of category '", category, "', expected an object of values");
+                continue;
+            }
+            ValueMapping mapping = new ValueMapping();
+            mapping.table.putAll(DEFAULT.table);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) column.getValue()).entrySet()) {
+                Object metric = entry.getValue();
+                try {
+                    double value = metric instanceof Number ? ((Number) metric).doubleValue() : Double.parseDouble(String.valueOf(metric).trim());
+                    mapping.put(String.valueOf(entry.getKey()), value);
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring the mapping of '", entry.getKey(), "' in column '", column.getKey(), "' of category '", category,
+                            "', not a number: ", metric);
+                }
+            }
+            mappings.put(String.valueOf(column.getKey()).toLowerCase(), mapping);
+        }
+        return mappings;
+    }
+}
@@ -0,0 +1,290 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.newrelic.plugins.db2.CounterDeltaEngine;
+import com.newrelic.plugins.db2.DB2;
+import com.newrelic.plugins.db2.DerivedMetrics;
+import com.newrelic.plugins.db2.LatencyHistogram;
+import com.newrelic.plugins.db2.MemberRollup;
+import com.newrelic.plugins.db2.MetricMeta;
+import com.newrelic.plugins.db2.MetricRegistry;
+import com.newrelic.plugins.db2.ResultCache;
+
+/**
+ * This class holds an enabled category of an agent: the registry its values are collected into, the previous samples of its counters, the ids of its
+ * collector metrics and, if it runs on each member of the database, the registries of the members. A category whose attributes did not change keeps
+ * all of it across a reload of 'metric.category.json'.
+ *
+ * The fields are written by the thread that collects the category, and read by the poll thread once the collection returned.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+class ActiveCategory {
+
+    // Per category collector metrics, plugin/collector/<category>/<stat>
+    static final String[] STAT_NAMES = { "latency/average", "latency/p95", "latency/p99", "latency/max", "rows", "cells", "errors" };
+    static final String[] STAT_UNITS = { MILLISECONDS_UNIT, MILLISECONDS_UNIT, MILLISECONDS_UNIT, MILLISECONDS_UNIT, ROWS_UNIT, CELLS_UNIT,
+            ERRORS_UNIT };
+
+    final String name;
+    final String sql;
+    final String type;
+    final int interval; // In poll cycles
+    final boolean optional; // May be dropped by the adaptive sampler
+    final MetricRegistry registry;
+    final CategoryPlan.Category definition; // From 'metric.category.json', the registries of the members are created from
+    ResultCache.Entry shared; // Executions shared with the other agents of the database, null if not shared
+    final CounterDeltaEngine counters = new CounterDeltaEngine(); // Previous samples of the counters of the category
+    volatile long latency = 0L; // Nanoseconds the query of the category took the last time it ran
+    long reportedErrors = 0L; // Errors of the category up to the last cycle it was reported in
+    boolean collected = false; // Whether the category completed the last time it ran, its values are reported until it runs again
+    CollectionTask.CategoryTask task = null; // Collection of the category in parallel mode, null before the first
+
+    // Ids of the collector metrics of the category
+    int skippedId;
+    int intervalId;
+    int degradedId;
+    int breakerId;
+    int[] statIds; // Of the STAT_NAMES metrics
+
+    // Set if the category runs on each member, its registry then holds the rollup of the members
+    String memberSql = null;
+    MetricRegistry[] memberRegistries = null;
+    CounterDeltaEngine[] memberCounters = null;
+    boolean[] memberCollected = null; // Whether each member completed the category the last time it ran
+    long[] memberLatency = null;
+    MemberRollup rollup = null;
+
+    /**
+     * @param definition CategoryPlan.Category compiled from 'metric.category.json'
+     * @param metricsMeta Map of lower case metric names to meta data, that of the category plan
+     */
+    ActiveCategory(CategoryPlan.Category definition, Map<String, MetricMeta> metricsMeta) {
+        this.name = definition.getName();
+        this.sql = definition.getSQL();
+        this.type = definition.getResult();
+        this.interval = definition.getInterval();
+        this.optional = definition.isOptional();
+        this.registry = createRegistry(definition, null, metricsMeta);
+        this.definition = definition;
+    }
+
+    /**
+     * Create the registry of a category, or of a category on one member
+     *
+     * @param definition CategoryPlan.Category compiled from 'metric.category.json'
+     * @param member String member id, null for the registry of the category
+     * @param metricsMeta Map of lower case metric names to meta data
+     * @return MetricRegistry
+     */
+    private static MetricRegistry createRegistry(CategoryPlan.Category definition, String member, Map<String, MetricMeta> metricsMeta) {
+        MetricRegistry registry = new MetricRegistry(definition.getName(), metricsMeta);
+        registry.setMember(member);
+        registry.setRestartMarker(definition.getRestartMarker());
+        if (!definition.getValueMappings().isEmpty()) {
+            registry.setValueMappings(definition.getValueMappings()); // Shared by the registries of the category
+        }
+        registry.setDerivedMetrics(definition.newDerivedMetrics()); // Keeps the samples of its registry
+        if (definition.getTopK() > 0) {
+            registry.setTopK(definition.getTopK(), definition.getTopBy());
+        }
+        return registry;
+    }
+
+    boolean isMemberScoped() {
+        return rollup != null;
+    }
+
+    /**
+     * Take over the counter samples of the category a reload replaced, and of its members, the SQL of both being the same
+     *
+     * @param replaced ActiveCategory
+     */
+    void carryOver(ActiveCategory replaced) {
+        counters.carryOver(replaced.counters, replaced.registry);
+        if (replaced.memberCounters != null) {
+            memberCounters = new CounterDeltaEngine[replaced.memberCounters.length];
+            for (int m = 0; m < memberCounters.length; m++) {
+                memberCounters[m] = new CounterDeltaEngine();
+                memberCounters[m].carryOver(replaced.memberCounters[m], replaced.memberRegistries[m]);
+            }
+        }
+    }
+
+    /**
+     * Resolve the ids of the collector metrics of the category
+     *
+     * @param collectorMetrics MetricRegistry of the collector metrics of the agent
+     */
+    void resolveCollectorIds(MetricRegistry collectorMetrics) {
+        skippedId = collectorMetrics.getId(DB2.buildString(COLLECTOR_CATEGORY, name, SEPARATOR, SKIPPED));
+        intervalId = collectorMetrics.getId(DB2.buildString(COLLECTOR_CATEGORY, name, SEPARATOR, INTERVAL));
+        degradedId = collectorMetrics.getId(DB2.buildString(COLLECTOR_CATEGORY, name, SEPARATOR, DEGRADED));
+        breakerId = collectorMetrics.getId(DB2.buildString(COLLECTOR_CATEGORY, name, SEPARATOR, BREAKER));
+        statIds = new int[STAT_NAMES.length];
+        for (int j = 0; j < STAT_NAMES.length; j++) {
+            statIds[j] = collectorMetrics.getId(DB2.buildString(COLLECTOR_CATEGORY, name, SEPARATOR, STAT_NAMES[j]));
+        }
+    }
+
+    /**
+     * Run the category on each member of the database, if its SQL or member_scope says so, creating the registries of the members. A category that
+     * runs on each member already, e.g. kept from before a reload, is left as it is.
+     *
+     * @param members MemberSet of the database, with at least two members
+     * @param metricsMeta Map of lower case metric names to meta data
+     * @return boolean whether the category runs on each member from now on
+     */
+    boolean runOnMembers(MemberSet members, Map<String, MetricMeta> metricsMeta) {
+        if (isMemberScoped() || !MemberSet.isMemberScoped(sql, definition.getMemberScope())) {
+            return false; // Kept with its member registries from before a reload, or run once for the database
+        }
+        memberSql = MemberSet.toMemberSQL(sql);
+        CounterDeltaEngine[] carried = memberCounters; // Taken over from the category a reload replaced, null if none
+        memberRegistries = new MetricRegistry[members.size()];
+        memberCounters = new CounterDeltaEngine[members.size()];
+        memberCollected = new boolean[members.size()];
+        memberLatency = new long[members.size()];
+        for (int m = 0; m < members.size(); m++) {
+            memberRegistries[m] = createRegistry(definition, members.getId(m), metricsMeta);
+            memberCounters[m] = carried != null && m < carried.length ? carried[m] : new CounterDeltaEngine();
+        }
+        rollup = new MemberRollup(registry, SET.equals(type));
+        return true;
+    }
+
+    /**
+     * Look up the meta data of the metrics registered from now on in the map of reloaded categories
+     *
+     * @param metricsMeta Map of lower case metric names to meta data
+     */
+    void setMetricsMeta(Map<String, MetricMeta> metricsMeta) {
+        registry.setMetricsMeta(metricsMeta);
+        for (int m = 0; memberRegistries != null && m < memberRegistries.length; m++) {
+            memberRegistries[m].setMetricsMeta(metricsMeta);
+        }
+    }
+
+    /**
+     * Run the SQL of the category, through the result cache if other agents of the database run it as well, and compute its derived metrics
+     *
+     * @param db2 DB2 connection
+     * @return true if the SQL ran successfully
+     */
+    boolean run(DB2 db2) {
+        boolean success;
+        if (shared != null && shared.isShared()) {
+            success = db2.runSQL(name, sql, type, registry, shared);
+        } else {
+            success = db2.runSQL(name, sql, type, registry);
+        }
+        DerivedMetrics derived = registry.getDerivedMetrics();
+        if (success && derived != null) {
+            derived.evaluate(registry, SET.equals(type));
+        }
+        return success;
+    }
+
+    /**
+     * Run the SQL of the category on one member, into the registry of the member, and compute its derived metrics
+     *
+     * @param db2 DB2 connection of the member
+     * @param member int index of the member
+     * @return true if the SQL ran successfully
+     */
+    boolean runOnMember(DB2 db2, int member) {
+        MetricRegistry memberRegistry = memberRegistries[member];
+        memberRegistry.beginCycle();
+        boolean success = db2.runSQL(name, memberSql, type, memberRegistry);
+        DerivedMetrics derived = memberRegistry.getDerivedMetrics();
+        if (success && derived != null) {
+            derived.evaluate(memberRegistry, SET.equals(type));
+        }
+        return success;
+    }
+
+    /**
+     * Roll the members that completed the category in this cycle up into the registry of the category. The members ran at the same time, so the
+     * category took as long as its slowest member, or the timeout if a member did not return.
+     *
+     * @param index int index of the category
+     * @param success boolean[][] categories each member completed, null for a member that did not return
+     * @param timeout long nanoseconds a member that did not return was waited for
+     * @return boolean whether each member completed the category
+     */
+    boolean rollUp(int index, boolean[][] success, long timeout) {
+        MetricRegistry[] rolled = new MetricRegistry[memberRegistries.length];
+        boolean complete = true;
+        latency = 0L;
+        for (int m = 0; m < memberRegistries.length; m++) {
+            memberCollected[m] = success[m] != null && success[m][index];
+            complete &= memberCollected[m];
+            rolled[m] = memberCollected[m] ? memberRegistries[m] : null;
+            latency = Math.max(latency, success[m] != null ? memberLatency[m] : timeout);
+        }
+        registry.beginCycle();
+        collected = rollup.rollup(rolled) > 0;
+        return complete;
+    }
+
+    /**
+     * Stop reporting the last values of the category, and of its members, e.g. once the adaptive sampler dropped it
+     */
+    void drop() {
+        collected = false;
+        if (isMemberScoped()) {
+            Arrays.fill(memberCollected, false);
+        }
+    }
+
+    /**
+     * Start the counters of the category, and of its members, over, e.g. once their last samples may be long gone
+     */
+    void restartCounters() {
+        counters.restart();
+        for (int m = 0; memberCounters != null && m < memberCounters.length; m++) {
+            memberCounters[m].restart();
+        }
+    }
+
+    /**
+     * Report the latency, rows, cells and errors of the category in this cycle with the collector metrics
+     *
+     * @param collectorMetrics MetricRegistry of the collector metrics of the agent
+     * @param stats CollectorStats of the agent
+     * @param index int index of the category
+     */
+    void reportStats(MetricRegistry collectorMetrics, CollectorStats stats, int index) {
+        LatencyHistogram histogram = stats.getLatency(index);
+        if (histogram.getIntervalCount() > 0) {
+            collectorMetrics.set(statIds[0], histogram.getIntervalAverage());
+            collectorMetrics.set(statIds[1], histogram.getIntervalPercentile(95.0));
+            collectorMetrics.set(statIds[2], histogram.getIntervalPercentile(99.0));
+            collectorMetrics.set(statIds[3], histogram.getIntervalMax());
+        }
+        if (collected) { // Rows and cells are only known for a category that completed
+            collectorMetrics.set(statIds[4], registry.getRowsRead());
+            collectorMetrics.set(statIds[5], registry.getCellsRead());
+        }
+        collectorMetrics.set(statIds[6], stats.getErrors(index) - reportedErrors);
+        reportedErrors = stats.getErrors(index);
+        histogram.mark();
+    }
+
+    /**
+     * @return String SQLSTATE the category failed with in this cycle, on the agent's connection or on the first member it failed on, empty if it
+     *         failed without one, e.g. by timing out
+     */
+    String getFailure() {
+        String sqlState = registry.getFailure();
+        for (int m = 0; sqlState == null && isMemberScoped() && m < memberRegistries.length; m++) {
+            sqlState = memberRegistries[m].getFailure();
+        }
+        return sqlState == null ? EMPTY_STRING : sqlState;
+    }
+}
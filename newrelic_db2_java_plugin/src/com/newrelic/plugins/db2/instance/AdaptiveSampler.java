@@ -0,0 +1,148 @@
+package com.newrelic.plugins.db2.instance;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class lowers the monitoring load an agent puts on DB2 while the server is under pressure, and restores it once the pressure is gone.
+ *
+ * Pressure is measured in two ways: the time each category query takes, and the DB2 CPU time the agent's own connections use per poll cycle, as
+ * reported by MON_GET_CONNECTION for their application handles. A category whose query is slower than the latency threshold has its interval doubled,
+ * up to the maximum backoff. While the agent's cost is over the cost threshold, the slowest category that ran is backed off as well and optional
+ * categories are dropped. A category is stepped back towards its configured interval after a few runs well below the thresholds.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class AdaptiveSampler {
+
+    private static final Logger logger = Logger.getLogger(AdaptiveSampler.class);
+
+    public static final int NORMAL = 0; // Degraded state of a category, runs at its configured interval
+    public static final int BACKED_OFF = 1; // Runs at a multiple of its configured interval
+    public static final int DROPPED = 2; // Optional category that does not run at all
+
+    private static final int RESTORE_RUNS = 3; // Calm runs (or cycles, for dropped categories) before a step back is taken
+
+    private final String[] names;
+    private final int[] baseIntervals; // Configured intervals in poll cycles
+    private final boolean[] optional;
+    private final long latencyThreshold; // Nanoseconds
+    private final double costThreshold; // DB2 CPU milliseconds per poll cycle
+    private final int maxBackoff;
+
+    private final int[] backoff; // Multiplier of the configured interval of each category
+    private final int[] calmRuns;
+    private final long[] latency; // Nanoseconds the last run of each category took
+    private final boolean[] ran; // Whether each category ran in the current cycle
+    private double cost = Double.NaN; // DB2 CPU milliseconds of the current cycle, NaN if unknown
+    private boolean dropping = false;
+    private int calmCycles = 0;
+
+    /**
+     * @param names String[] names of the categories, for logging
+     * @param baseIntervals int[] configured interval of each category in poll cycles
+     * @param optional boolean[] whether each category may be dropped under pressure
+     * @param options DB2AgentOptions with the thresholds
+     */
+    public AdaptiveSampler(String[] names, int[] baseIntervals, boolean[] optional, DB2AgentOptions options) {
+        this.names = names;
+        this.baseIntervals = baseIntervals;
+        this.optional = optional;
+        this.latencyThreshold = options.getAdaptiveLatencyThreshold() * 1000000L;
+        this.costThreshold = options.getAdaptiveCostThreshold();
+        this.maxBackoff = options.getAdaptiveMaxBackoff();
+        this.backoff = new int[names.length];
+        this.calmRuns = new int[names.length];
+        this.latency = new long[names.length];
+        this.ran = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            backoff[i] = 1;
+        }
+    }
+
+    /**
+     * Record how long the query of a category took in this cycle
+     *
+     * @param category int index of the category
+     * @param nanos long
+     */
+    public void recordLatency(int category, long nanos) {
+        latency[category] = nanos;
+        ran[category] = true;
+    }
+
+    /**
+     * Record the DB2 CPU time the agent's connections used in this cycle
+     *
+     * @param millis double, NaN if it could not be measured
+     */
+    public void recordCost(double millis) {
+        cost = millis;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    /**
+     * Adjust the intervals of the categories from the measurements of this cycle, and apply them to the scheduler
+     *
+     * @param scheduler CategoryScheduler
+     */
+    public void adjust(CategoryScheduler scheduler) {
+        boolean costExceeded = !Double.isNaN(cost) && cost > costThreshold;
+        boolean costCalm = Double.isNaN(cost) || cost < costThreshold / 2;
+
+        int slowest = -1;
+        for (int i = 0; i < names.length; i++) {
+            if (ran[i] && (slowest < 0 || latency[i] > latency[slowest])) {
+                slowest = i;
+            }
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            if (!ran[i]) {
+                continue;
+            }
+            if (latency[i] > latencyThreshold || (costExceeded && i == slowest)) {
+                calmRuns[i] = 0;
+                if (backoff[i] < maxBackoff) {
+                    backoff[i] = Math.min(maxBackoff, backoff[i] * 2);
+                    logger.info("Category '", names[i], "' took ", latency[i] / 1000000L, " ms, cost ", cost, " ms. Backing off to every ",
+                            baseIntervals[i] * backoff[i], " cycles");
+                }
+            } else if (backoff[i] > 1 && costCalm && latency[i] < latencyThreshold / 2 && ++calmRuns[i] >= RESTORE_RUNS) {
+                calmRuns[i] = 0;
+                backoff[i] = backoff[i] / 2;
+                logger.info("Category '", names[i], "' restored to every ", baseIntervals[i] * backoff[i], " cycles");
+            }
+            scheduler.setInterval(i, baseIntervals[i] * backoff[i]);
+            ran[i] = false;
+        }
+
+        if (costExceeded) {
+            calmCycles = 0;
+            if (!dropping) {
+                logger.info("Agent cost of ", cost, " ms per cycle is over the threshold of ", costThreshold, " ms, dropping optional categories");
+            }
+            dropping = true;
+        } else if (dropping && costCalm && ++calmCycles >= RESTORE_RUNS) {
+            logger.info("Agent cost is back to normal, restoring optional categories");
+            dropping = false;
+        }
+        for (int i = 0; i < names.length; i++) {
+            scheduler.setSuspended(i, dropping && optional[i]);
+        }
+    }
+
+    /**
+     * @param category int index of the category
+     * @return int NORMAL, BACKED_OFF or DROPPED
+     */
+    public int getState(int category) {
+        if (dropping && optional[category]) {
+            return DROPPED;
+        }
+        return backoff[category] > 1 ? BACKED_OFF : NORMAL;
+    }
+}
@@ -0,0 +1,198 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.newrelic.metrics.publish.util.Logger;
+import com.newrelic.plugins.db2.CategoryBatch;
+import com.newrelic.plugins.db2.DB2;
+import com.newrelic.plugins.db2.DerivedMetrics;
+import com.newrelic.plugins.db2.MetricRegistry;
+
+/**
+ * This class collects the batchable row categories of an agent that are due in a cycle with one compound query, if there are at least two. If the
+ * batch fails, its categories run on their own in that cycle, and those that fail on their own as well are left out of later batches. A batch whose
+ * categories all succeed on their own backs off and is eventually retired, and a category returning several rows is never batched again.
+ *
+ * The batcher belongs to the categories it was created for, and is replaced along with them when they are reloaded. It is only used in serial mode,
+ * by the thread that gathers the metrics of the agent.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+class CategoryBatcher {
+
+    private static final Logger logger = Logger.getLogger(CategoryBatcher.class);
+
+    private final ActiveCategory[] active;
+    private final String agentInfo;
+    private final boolean[] batchable; // Whether each category may be collected in a batch, cleared for a category failing on its own
+    private final Map<BitSet, Batch> batches = new HashMap<BitSet, Batch>(); // Batch of each combination of due categories
+    private final BitSet batched = new BitSet(); // Categories collected by the batch of the current cycle
+    private final BitSet retried = new BitSet(); // Categories of a failed batch, run on their own in the current cycle
+    private Batch failedBatch = null; // Batch that failed in the current cycle
+    private boolean retriesSucceeded = true; // Whether the categories of the failed batch succeeded on their own
+    private long batchLatency = -1L; // Nanoseconds the batch of the current cycle took, -1 if there was none
+
+    private final MetricRegistry collectorMetrics;
+    private final int batchLatencyId;
+    private final int batchCategoriesId;
+
+    /**
+     * @param active ActiveCategory[] categories of the agent
+     * @param options DB2AgentOptions of the agent
+     * @param collectorMetrics MetricRegistry of the collector metrics of the agent
+     * @param agentInfo String name and version of the agent, for logging
+     */
+    CategoryBatcher(ActiveCategory[] active, DB2AgentOptions options, MetricRegistry collectorMetrics, String agentInfo) {
+        this.active = active;
+        this.agentInfo = agentInfo;
+        this.batchable = new boolean[active.length];
+        for (int i = 0; i < active.length; i++) {
+            batchable[i] = options.isBatchCategories() && ROW.equals(active[i].type) && CategoryBatch.isBatchable(active[i].sql);
+        }
+        this.collectorMetrics = collectorMetrics;
+        this.batchLatencyId = collectorMetrics.getId(BATCH_LATENCY);
+        this.batchCategoriesId = collectorMetrics.getId(BATCH_CATEGORIES);
+    }
+
+    /**
+     * Collect the batchable categories that are due in this cycle with their compound query, if there are at least two
+     *
+     * @param db2 DB2 connection borrowed for the cycle
+     * @param scheduler CategoryScheduler of the agent
+     * @param stats CollectorStats of the agent
+     */
+    void collect(DB2 db2, CategoryScheduler scheduler, CollectorStats stats) {
+        batched.clear();
+        retried.clear();
+        failedBatch = null;
+        retriesSucceeded = true;
+        batchLatency = -1L;
+        for (int i = 0; i < active.length; i++) {
+            if (batchable[i] && scheduler.isDue(i) && (active[i].shared == null || !active[i].shared.isShared())) {
+                batched.set(i); // Categories shared with other agents go through the result cache instead
+            }
+        }
+        if (batched.cardinality() < 2) {
+            batched.clear();
+            return;
+        }
+        Batch batch = batches.get(batched);
+        if (batch == null) {
+            batch = new Batch((BitSet) batched.clone());
+            batches.put(batch.members, batch);
+            logger.debug("Batching categories ", Arrays.toString(batch.query.getCategories()), ". ", agentInfo);
+        }
+        if (!batch.query.isDue(scheduler.getCycle())) {
+            batched.clear(); // Backing off, or retired
+            return;
+        }
+        for (MetricRegistry registry : batch.registries) {
+            registry.beginCycle();
+        }
+        long start = System.nanoTime();
+        boolean success = db2.runBatch(batch.query, batch.registries);
+        batchLatency = System.nanoTime() - start;
+        if (!success) {
+            retried.or(batched);
+            failedBatch = batch;
+            boolean[] multiRow = batch.query.getMultiRowCategories();
+            for (int i = batched.nextSetBit(0), j = 0; i >= 0; i = batched.nextSetBit(i + 1), j++) {
+                if (multiRow[j]) {
+                    batchable[i] = false;
+                    logger.warn("Category '", active[i].name, "' returned several rows, it is no longer batched. ", agentInfo);
+                }
+            }
+            batched.clear();
+            return;
+        }
+        batch.query.recordSuccess();
+        for (int i = batched.nextSetBit(0); i >= 0; i = batched.nextSetBit(i + 1)) {
+            ActiveCategory category = active[i];
+            DerivedMetrics derived = category.registry.getDerivedMetrics();
+            if (derived != null) {
+                derived.evaluate(category.registry, false);
+            }
+            category.latency = batchLatency; // Each category of the batch took the whole round trip
+            stats.recordRun(i, batchLatency, true, category.registry.getRowsRead(), category.registry.getCellsRead());
+            category.collected = true;
+        }
+    }
+
+    /**
+     * @param category int index of the category
+     * @return boolean whether the batch of this cycle collected the category
+     */
+    boolean isBatched(int category) {
+        return batched.get(category);
+    }
+
+    /**
+     * Record the outcome of a category that ran on its own in this cycle. A category of a failed batch that fails on its own as well is no longer
+     * batched.
+     *
+     * @param category int index of the category
+     * @param success boolean whether its SQL ran successfully
+     */
+    void recordAlone(int category, boolean success) {
+        if (!success && retried.get(category)) {
+            batchable[category] = false; // It failed the batch it was in
+            retriesSucceeded = false;
+            logger.info("Category '", active[category].name, "' failed on its own as well, it is no longer batched. ", agentInfo);
+        }
+    }
+
+    /**
+     * End the cycle once the categories ran. A failed batch whose categories all succeeded on their own backs off, only the combination fails.
+     *
+     * @param cycle long poll cycle of the scheduler
+     */
+    void endCycle(long cycle) {
+        if (failedBatch != null && retriesSucceeded) {
+            failedBatch.query.recordFailure(cycle);
+            if (failedBatch.query.isRetired()) {
+                logger.info("The batch of categories ", Arrays.toString(failedBatch.query.getCategories()), " keeps failing, they run on their own. ",
+                        agentInfo);
+            }
+        }
+    }
+
+    /**
+     * Report the latency of the batch of this cycle, and the categories it collected, with the collector metrics
+     */
+    void reportMetrics() {
+        if (batchLatency >= 0) {
+            collectorMetrics.set(batchLatencyId, batchLatency / 1000000.0);
+            collectorMetrics.set(batchCategoriesId, batched.cardinality());
+        }
+    }
+
+    /**
+     * The compound query of a combination of categories, with their registries
+     */
+    private class Batch {
+
+        private final BitSet members;
+        private final CategoryBatch query;
+        private final MetricRegistry[] registries;
+
+        Batch(BitSet members) {
+            this.members = members;
+            String[] names = new String[members.cardinality()];
+            String[] sqls = new String[names.length];
+            this.registries = new MetricRegistry[names.length];
+            int j = 0;
+            for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1), j++) {
+                names[j] = active[i].name;
+                sqls[j] = active[i].sql;
+                registries[j] = active[i].registry;
+            }
+            this.query = new CategoryBatch(names, sqls);
+        }
+    }
+}
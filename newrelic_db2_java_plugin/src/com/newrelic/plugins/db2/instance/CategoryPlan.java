@@ -0,0 +1,271 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.newrelic.metrics.publish.configuration.ConfigurationException;
+import com.newrelic.metrics.publish.util.Logger;
+import com.newrelic.plugins.db2.DB2;
+import com.newrelic.plugins.db2.DerivedMetrics;
+import com.newrelic.plugins.db2.MetricMeta;
+import com.newrelic.plugins.db2.ValueMapping;
+
+/**
+ * This class holds the categories of 'metric.category.json' the agents run, as read at startup or after the file changed, compiled once: the SQL,
+ * interval, value mappings and derived metrics of each category, and the meta data of every metric the agents report. A plan is never changed once
+ * created, so all agents of the plugin share it, and a reloaded file is swapped in as a new plan between two poll cycles. An agent only keeps the
+ * state of its own collection, its registries and counters.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CategoryPlan {
+
+    private static final Logger logger = Logger.getLogger(CategoryPlan.class);
+
+    private static final String[] STRING_ATTRIBUTES = { SQL, RESULT, "value_metrics", "counter_metrics", RESTART_MARKER, TOP_BY, MEMBER_SCOPE };
+
+    private final Map<String, Object> categories; // Lower case category name to its attributes
+    private final Map<String, Category> definitions; // Lower case category name to the compiled category
+    private final Map<String, MetricMeta> metricMeta; // Lower case metric name to its meta data
+
+    private CategoryPlan(Map<String, Object> categories) {
+        Map<String, Object> copies = new HashMap<String, Object>();
+        Map<String, Category> definitions = new HashMap<String, Category>();
+        Map<String, MetricMeta> metas = new HashMap<String, MetricMeta>();
+        for (Map.Entry<String, Object> entry : categories.entrySet()) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> attributes = Collections.unmodifiableMap(new HashMap<String, Object>((Map<String, Object>) entry.getValue()));
+            copies.put(entry.getKey(), attributes);
+            definitions.put(entry.getKey(), new Category(entry.getKey(), attributes));
+            addMetricMeta(metas, entry.getKey(), (String) attributes.get("value_metrics"), false);
+            addMetricMeta(metas, entry.getKey(), (String) attributes.get("counter_metrics"), true);
+        }
+        DB2Agent.createMetaData(metas, copies.keySet());
+        for (Category category : definitions.values()) {
+            DerivedMetrics derived = category.derived;
+            for (int i = 0; derived != null && i < derived.getNames().length; i++) {
+                String unit = derived.getUnits()[i];
+                metas.put(DB2.buildString(category.name, SEPARATOR, derived.getNames()[i]).toLowerCase(), unit == null ? new MetricMeta(false)
+                        : new MetricMeta(false, unit));
+            }
+        }
+        this.categories = Collections.unmodifiableMap(copies);
+        this.definitions = Collections.unmodifiableMap(definitions);
+        this.metricMeta = Collections.unmodifiableMap(metas);
+    }
+
+    /**
+     * Create the plan of categories read from 'metric.category.json', checking each of them first
+     *
+     * @param categories Map of lower case category names to their attributes
+     * @return CategoryPlan
+     * @throws ConfigurationException if a category lacks its SQL, has an unknown result type or an attribute of the wrong type
+     */
+    public static CategoryPlan compile(Map<String, Object> categories) throws ConfigurationException {
+        for (Map.Entry<String, Object> entry : categories.entrySet()) {
+            String category = entry.getKey();
+            if (!(entry.getValue() instanceof Map)) {
+                throw new ConfigurationException("Category '" + category + "' of 'metric.category.json' is not an object");
+            }
+            Map<?, ?> attributes = (Map<?, ?>) entry.getValue();
+            for (String attribute : STRING_ATTRIBUTES) {
+                Object value = attributes.get(attribute);
+                if (value != null && !(value instanceof String)) {
+                    throw new ConfigurationException("The '" + attribute + "' attribute of category '" + category + "' must be a string");
+                }
+            }
+            String sql = (String) attributes.get(SQL);
+            if (sql == null || EMPTY_STRING.equals(sql.trim())) {
+                throw new ConfigurationException("Category '" + category + "' of 'metric.category.json' has no SQL");
+            }
+            Object result = attributes.get(RESULT);
+            if (!ROW.equals(result) && !SET.equals(result) && !SPECIAL.equals(result)) {
+                throw new ConfigurationException("Category '" + category + "' has an unknown result '" + result + "', expected row, set or special");
+            }
+        }
+        return new CategoryPlan(categories);
+    }
+
+    /**
+     * Create the plan of categories given by the caller as they are, e.g. by a benchmark
+     *
+     * @param categories Map of lower case category names to their attributes
+     * @return CategoryPlan
+     */
+    public static CategoryPlan of(Map<String, Object> categories) {
+        return new CategoryPlan(categories);
+    }
+
+    /**
+     * @return Map of lower case category names to their attributes, neither of which can be changed
+     */
+    public Map<String, Object> getCategories() {
+        return categories;
+    }
+
+    /**
+     * @return Map of lower case category names to the compiled categories
+     */
+    public Map<String, Category> getDefinitions() {
+        return definitions;
+    }
+
+    /**
+     * @return Map of lower case metric names to the meta data of the metrics of the categories, their derived metrics, and the New Relic and
+     *         collector metrics
+     */
+    public Map<String, MetricMeta> getMetricMeta() {
+        return metricMeta;
+    }
+
+    /**
+     * Plans are equal if their categories have the same attributes, everything else is compiled from them
+     */
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof CategoryPlan && categories.equals(((CategoryPlan) obj).categories);
+    }
+
+    @Override
+    public int hashCode() {
+        return categories.hashCode();
+    }
+
+    private static void addMetricMeta(Map<String, MetricMeta> metas, String category, String metrics, boolean counter) {
+        if (metrics == null) {
+            return;
+        }
+        for (String metric : metrics.toLowerCase().replaceAll(SPACE, EMPTY_STRING).split(COMMA)) {
+            metas.put((category + SEPARATOR + metric).toLowerCase(), new MetricMeta(counter));
+        }
+    }
+
+    /**
+     * Parse the top_k attribute of a category
+     *
+     * @param category String Metric category
+     * @param value Object attribute value, may be null
+     * @return int number of entities reported individually, 0 for all of them
+     */
+    private static int parseTopK(String category, Object value) {
+        if (value == null || EMPTY_STRING.equals(value.toString().trim())) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.toString().trim()));
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring invalid top_k '", value, "' of category '", category, "', all entities are reported");
+            return 0;
+        }
+    }
+
+    /**
+     * One category of the plan, compiled from its attributes
+     */
+    public static class Category {
+
+        private final String name;
+        private final Map<String, Object> attributes;
+        private final String sql;
+        private final String result;
+        private final int interval; // In poll cycles
+        private final boolean optional; // May be dropped by the adaptive sampler
+        private final String restartMarker;
+        private final Map<String, ValueMapping> valueMappings; // Empty if the category declares none
+        private final DerivedMetrics derived; // Copied for each registry, null if the category declares none
+        private final int topK; // Entities of a set category reported individually, 0 for all of them
+        private final String topBy;
+        private final String memberScope;
+
+        Category(String name, Map<String, Object> attributes) {
+            this.name = name;
+            this.attributes = attributes;
+            this.sql = (String) attributes.get(SQL);
+            this.result = (String) attributes.get(RESULT);
+            this.interval = CategoryScheduler.parseInterval(name, attributes.get(INTERVAL), POLL_INTERVAL);
+            this.optional = Boolean.parseBoolean(String.valueOf(attributes.get(OPTIONAL)));
+            this.restartMarker = (String) attributes.get(RESTART_MARKER);
+            this.valueMappings = Collections.unmodifiableMap(ValueMapping.compile(name, attributes.get(VALUE_MAPPINGS)));
+            if (!valueMappings.isEmpty()) {
+                logger.debug("Category '", name, "' maps the values of columns ", valueMappings.keySet());
+            }
+            this.derived = DerivedMetrics.compile(name, attributes.get(DERIVED_METRICS));
+            this.topK = SET.equals(result) ? parseTopK(name, attributes.get(TOP_K)) : 0;
+            this.topBy = (String) attributes.get(TOP_BY);
+            if (topK > 0) {
+                logger.debug("Category '", name, "' reports its top ", topK, " entities by ", topBy);
+            }
+            this.memberScope = (String) attributes.get(MEMBER_SCOPE);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Map of the attributes of the category in 'metric.category.json', which cannot be changed
+         */
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        public String getSQL() {
+            return sql;
+        }
+
+        /**
+         * @return String row, set or special
+         */
+        public String getResult() {
+            return result;
+        }
+
+        /**
+         * @return int interval of the category in poll cycles
+         */
+        public int getInterval() {
+            return interval;
+        }
+
+        public boolean isOptional() {
+            return optional;
+        }
+
+        public String getRestartMarker() {
+            return restartMarker;
+        }
+
+        /**
+         * @return Map of lower case column names to their value mappings, shared by the registries of the category
+         */
+        public Map<String, ValueMapping> getValueMappings() {
+            return valueMappings;
+        }
+
+        /**
+         * @return DerivedMetrics of the category for a new registry, null if the category declares none
+         */
+        public DerivedMetrics newDerivedMetrics() {
+            return derived == null ? null : derived.copy();
+        }
+
+        public int getTopK() {
+            return topK;
+        }
+
+        public String getTopBy() {
+            return topBy;
+        }
+
+        /**
+         * @return String member_scope attribute, member or cluster, null if it is not set
+         */
+        public String getMemberScope() {
+            return memberScope;
+        }
+    }
+}
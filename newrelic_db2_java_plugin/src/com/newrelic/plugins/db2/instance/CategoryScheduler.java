@@ -0,0 +1,195 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class decides which categories of an agent are due in a poll cycle. Each category runs every n-th cycle, as set by the 'interval' attribute
+ * in 'metric.category.json', e.g. 1 (every cycle, the default), 5 (every 5th cycle), "15m" or "900s".
+ *
+ * The cycle a category first runs in is derived from a hash of the agent and category names, so the slow categories of different agents monitored by
+ * the same plugin, and of different categories of one agent, are spread over the cycles of their interval instead of all firing together.
+ *
+ * The interval of a category may be changed, or the category suspended, while the agent runs, e.g. by the AdaptiveSampler. A new interval counts from
+ * the last run of the category. A category may also be held for a number of cycles, e.g. by the CircuitBreaker, it then runs in its first due cycle
+ * after them.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CategoryScheduler {
+
+    private static final Logger logger = Logger.getLogger(CategoryScheduler.class);
+
+    private final int[] intervals; // In poll cycles
+    private final long[] lastRun; // Cycle each category last ran in
+    private final boolean[] suspended;
+    private final long[] heldUntil; // Last cycle each category is held in
+    private final boolean[] due; // Whether each category runs in the current cycle
+    private long cycle = -1L;
+
+    /**
+     * @param agentName String name of the agent, used to spread categories across agents
+     * @param categories String[] names of the categories
+     * @param intervals int[] interval of each category in poll cycles
+     */
+    public CategoryScheduler(String agentName, String[] categories, int[] intervals) {
+        this.intervals = new int[categories.length];
+        this.lastRun = new long[categories.length];
+        this.suspended = new boolean[categories.length];
+        this.heldUntil = new long[categories.length];
+        this.due = new boolean[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            this.intervals[i] = Math.max(1, intervals[i]);
+            // First run in the cycle given by the spread, as if the category had last run a whole interval before
+            this.lastRun[i] = spread(agentName + SEPARATOR + categories[i], this.intervals[i]) - this.intervals[i];
+            this.heldUntil[i] = -1L;
+        }
+    }
+
+    /**
+     * Carry the schedule over from the scheduler of the categories before they were reloaded. A category that was kept runs in the cycle it would have
+     * run in, a new category first runs in the cycle given by its spread, counting from the next cycle.
+     *
+     * @param previous CategoryScheduler of the categories before the reload
+     * @param from int[] index of each category in the previous scheduler, -1 for a new category
+     */
+    public void resume(CategoryScheduler previous, int[] from) {
+        cycle = previous.cycle;
+        for (int i = 0; i < intervals.length; i++) {
+            if (from[i] >= 0) {
+                lastRun[i] = previous.lastRun[from[i]];
+                heldUntil[i] = previous.heldUntil[from[i]];
+            } else {
+                lastRun[i] += cycle + 1;
+            }
+        }
+    }
+
+    /**
+     * Advance to the next poll cycle and decide which categories run in it
+     */
+    public void nextCycle() {
+        cycle++;
+        for (int i = 0; i < intervals.length; i++) {
+            due[i] = !suspended[i] && cycle > heldUntil[i] && cycle - lastRun[i] >= intervals[i];
+            if (due[i]) {
+                lastRun[i] = cycle;
+            }
+        }
+    }
+
+    /**
+     * Check whether a category runs in the current cycle
+     *
+     * @param category int index of the category
+     * @return boolean
+     */
+    public boolean isDue(int category) {
+        return due[category];
+    }
+
+    /**
+     * @param category int index of the category
+     * @return int interval of the category in poll cycles
+     */
+    public int getInterval(int category) {
+        return intervals[category];
+    }
+
+    /**
+     * @param category int index of the category
+     * @param interval int new interval of the category in poll cycles
+     */
+    public void setInterval(int category, int interval) {
+        intervals[category] = Math.max(1, interval);
+    }
+
+    /**
+     * Stop running a category until it is resumed, its values are no longer reported meanwhile
+     *
+     * @param category int index of the category
+     * @param suspended boolean
+     */
+    public void setSuspended(int category, boolean suspended) {
+        this.suspended[category] = suspended;
+    }
+
+    public boolean isSuspended(int category) {
+        return suspended[category];
+    }
+
+    /**
+     * Skip a category in the next cycles, whether it is due in them or not
+     *
+     * @param category int index of the category
+     * @param cycles int number of cycles, 0 releases a held category
+     */
+    public void hold(int category, int cycles) {
+        heldUntil[category] = cycle + cycles;
+    }
+
+    public boolean isHeld(int category) {
+        return heldUntil[category] > cycle;
+    }
+
+    public long getCycle() {
+        return cycle;
+    }
+
+    /**
+     * Spread the hash of a name evenly over the cycles of an interval
+     */
+    static int spread(String name, int interval) {
+        int h = name.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b; // Mix the bits, String.hashCode of similar names differs only in the low bits
+        h ^= (h >>> 13);
+        return (h & Integer.MAX_VALUE) % interval;
+    }
+
+    /**
+     * Convert the 'interval' attribute of a category into poll cycles. A plain number is a number of cycles, a number followed by s, m or h is a
+     * duration that is rounded up to whole cycles.
+     *
+     * @param category String name of the category, for logging
+     * @param value Object attribute value, a JSON number or string, may be null
+     * @param pollInterval int seconds between poll cycles
+     * @return int interval in poll cycles, 1 if the attribute is missing or invalid
+     */
+    public static int parseInterval(String category, Object value, int pollInterval) {
+        if (value == null || EMPTY_STRING.equals(value)) {
+            return 1;
+        }
+        if (value instanceof Number) {
+            return Math.max(1, ((Number) value).intValue());
+        }
+        String interval = value.toString().trim().toLowerCase();
+        int seconds = 0;
+        try {
+            char unit = interval.charAt(interval.length() - 1);
+            if (Character.isDigit(unit)) {
+                return Math.max(1, Integer.parseInt(interval));
+            }
+            int amount = Integer.parseInt(interval.substring(0, interval.length() - 1).trim());
+            switch (unit) {
+            case 's':
+                seconds = amount;
+                break;
+            case 'm':
+                seconds = amount * 60;
+                break;
+            case 'h':
+                seconds = amount * 3600;
+                break;
+            default:
+                throw new NumberFormatException(interval);
+            }
+        } catch (NumberFormatException e) {
+            logger.error("Invalid interval '", value, "' of category '", category, "', it runs every cycle");
+            return 1;
+        }
+        return Math.max(1, (seconds + pollInterval - 1) / pollInterval);
+    }
+}
@@ -0,0 +1,96 @@
+package com.newrelic.plugins.db2.instance;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class watches 'metric.category.json' for changes and tells the factory to reload it. The directory of the file is watched, so a file that is
+ * replaced, e.g. renamed over by an editor, is seen as well as one written in place. Changes are reported once the file has been quiet for the debounce
+ * time, so a file written in several steps is read once it is complete.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CategoryWatcher implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(CategoryWatcher.class);
+
+    private static final long DEBOUNCE = 1000L; // Milliseconds without a change before the file is read
+
+    private final WatchService watcher;
+    private final Path file; // Name of the file within the watched directory
+    private final Runnable onChange;
+
+    private CategoryWatcher(WatchService watcher, Path file, Runnable onChange) {
+        this.watcher = watcher;
+        this.file = file;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Start watching a file on a daemon thread
+     *
+     * @param file File to watch
+     * @param onChange Runnable run on the watcher thread once the file changed
+     * @return CategoryWatcher, or null if the directory of the file cannot be watched
+     */
+    static CategoryWatcher start(File file, Runnable onChange) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        try {
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            CategoryWatcher categoryWatcher = new CategoryWatcher(watcher, file.toPath().getFileName(), onChange);
+            Thread thread = new Thread(categoryWatcher, "DB2 category watcher");
+            thread.setDaemon(true);
+            thread.start();
+            logger.info("Watching ", file, " for changes to the metric categories");
+            return categoryWatcher;
+        } catch (IOException e) {
+            logger.error("Unable to watch ", file, ", changes to the metric categories apply after a restart. ", e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (!isChanged(watcher.take())) {
+                    continue;
+                }
+                WatchKey key;
+                while ((key = watcher.poll(DEBOUNCE, TimeUnit.MILLISECONDS)) != null) {
+                    isChanged(key); // Still being written
+                }
+                try {
+                    onChange.run();
+                } catch (RuntimeException e) {
+                    logger.error(e, "Reloading the metric categories failed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check whether the events of a key concern the watched file, and reset the key for the next events
+     */
+    private boolean isChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || file.equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+}
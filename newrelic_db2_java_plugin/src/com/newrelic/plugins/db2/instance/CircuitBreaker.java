@@ -0,0 +1,144 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class stops an agent from running a category whose query fails every cycle, e.g. MON_GET_HADR on a database without HADR, or a view the
+ * monitoring user may not read. Each category of the agent has a breaker of its own, which opens after the configured number of consecutive failures.
+ * An open category is held by the scheduler, and tried again after a backoff that doubles with every failed try, up to the maximum backoff. The first
+ * successful run closes the breaker again.
+ *
+ * Failures are told apart by the class of their SQLSTATE:
+ * - a lost connection (class 08) is left to the reconnect backoff of the connection and does not count
+ * - an error that does not go away by itself, an authorization (28, 42501) or undefined object (42) error, or an unsupported feature (0A), opens the
+ *   breaker right away, with a backoff of a quarter of the maximum
+ * - any other error, e.g. a timeout, deadlock or lack of resources (40, 57), counts as transient and opens it after the consecutive failures, with a
+ *   backoff of one cycle
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    public static final int CLOSED = 0; // State of a category, runs as scheduled
+    public static final int OPEN = 1; // Held after transient failures
+    public static final int OPEN_PERMANENT = 2; // Held after an error that does not go away by itself
+
+    private static final String[] PERMANENT_CLASSES = { "28", "42", "0A" };
+
+    private final String[] names;
+    private final int threshold; // Consecutive transient failures that open a breaker
+    private final int maxBackoff; // In poll cycles
+
+    private final int[] failures; // Consecutive failures of each category
+    private final int[] state;
+    private final int[] backoff; // Cycles the category was last held for, 0 while closed
+
+    /**
+     * @param names String[] names of the categories, for logging
+     * @param options DB2AgentOptions with the failures and maximum backoff
+     */
+    public CircuitBreaker(String[] names, DB2AgentOptions options) {
+        this.names = names;
+        this.threshold = options.getBreakerFailures();
+        this.maxBackoff = options.getBreakerMaxBackoff();
+        this.failures = new int[names.length];
+        this.state = new int[names.length];
+        this.backoff = new int[names.length];
+    }
+
+    /**
+     * Carry the breakers over from before the categories were reloaded, those of a category that was kept stay as they were
+     *
+     * @param names String[] names of the categories
+     * @param options DB2AgentOptions with the failures and maximum backoff
+     * @param previous CircuitBreaker of the categories before the reload
+     * @param from int[] index of each category in the previous breaker, -1 for a new category
+     */
+    CircuitBreaker(String[] names, DB2AgentOptions options, CircuitBreaker previous, int[] from) {
+        this(names, options);
+        for (int i = 0; i < names.length; i++) {
+            if (from[i] >= 0) {
+                failures[i] = previous.failures[from[i]];
+                state[i] = previous.state[from[i]];
+                backoff[i] = previous.backoff[from[i]];
+            }
+        }
+    }
+
+    /**
+     * Record the outcome of a category that ran in this cycle, and hold it in the scheduler if its breaker opens
+     *
+     * @param category int index of the category
+     * @param sqlState String SQLSTATE the query failed with, empty if it has none, null if the query succeeded
+     * @param scheduler CategoryScheduler
+     */
+    public void record(int category, String sqlState, CategoryScheduler scheduler) {
+        if (sqlState == null) {
+            if (state[category] != CLOSED) {
+                logger.info("Category '", names[category], "' ran again, it is no longer skipped");
+            }
+            failures[category] = 0;
+            state[category] = CLOSED;
+            backoff[category] = 0;
+            return;
+        }
+        if (sqlState.startsWith(CONNECTION_LOST_SQLSTATE.substring(0, 2))) {
+            return; // The connection backs off reconnecting
+        }
+        failures[category]++;
+        boolean permanent = isPermanent(sqlState);
+        if (state[category] != CLOSED) { // A try of an open breaker failed
+            backoff[category] = Math.min(maxBackoff, backoff[category] * 2);
+            state[category] = permanent ? OPEN_PERMANENT : OPEN;
+        } else if (permanent) {
+            backoff[category] = Math.max(1, maxBackoff / 4);
+            state[category] = OPEN_PERMANENT;
+            logger.warn("Category '", names[category], "' cannot run (SQLSTATE ", sqlState, "), it is skipped for ", backoff[category], " cycles");
+        } else if (failures[category] >= threshold) {
+            backoff[category] = 1;
+            state[category] = OPEN;
+            logger.warn("Category '", names[category], "' failed ", failures[category], " times in a row (SQLSTATE ", sqlState, "), it is skipped for ",
+                    backoff[category], " cycles");
+        } else {
+            return;
+        }
+        logger.debug("Category '", names[category], "' failed ", failures[category], " times in a row, trying again in ", backoff[category], " cycles");
+        scheduler.hold(category, backoff[category]);
+    }
+
+    /**
+     * @param category int index of the category
+     * @return int CLOSED, OPEN or OPEN_PERMANENT
+     */
+    public int getState(int category) {
+        return state[category];
+    }
+
+    /**
+     * @param category int index of the category
+     * @return int consecutive failures of the category
+     */
+    public int getFailures(int category) {
+        return failures[category];
+    }
+
+    /**
+     * Check whether an error does not go away by itself, so retrying it every cycle is useless
+     *
+     * @param sqlState String SQLSTATE of the error
+     * @return boolean
+     */
+    static boolean isPermanent(String sqlState) {
+        for (String prefix : PERMANENT_CLASSES) {
+            if (sqlState.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
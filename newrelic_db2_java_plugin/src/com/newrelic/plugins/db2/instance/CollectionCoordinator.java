@@ -0,0 +1,173 @@
+package com.newrelic.plugins.db2.instance;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class gathers the metrics of the concurrent agents of the process at the same time, so a poll cycle takes as long as its slowest database
+ * instead of the sum of all of them, and an unreachable database only delays its own agent.
+ *
+ * The SDK Runner calls the agents' pollCycle one after another. The first concurrent agent polled in a cycle starts the collection of every
+ * concurrent agent on the coordinator's threads; each pollCycle then waits for its own collection, at most until the agent's cycle deadline, and
+ * reports it. A collection that misses the deadline keeps running, and its agent is not collected again until it completed. Its values are then
+ * dropped instead of reported, they were sampled in an earlier cycle, and the agent is collected again from the next cycle on.
+ *
+ * Collections run on a virtual thread each where the JVM supports them (Java 21), otherwise on a fixed number of daemon threads. JCC blocks in
+ * synchronized driver code, which pins a virtual thread to its carrier, so a process with many hanging databases may be better off with a fixed
+ * number of threads.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CollectionCoordinator {
+
+    private static final Logger logger = Logger.getLogger(CollectionCoordinator.class);
+
+    public static final int DEFAULT_THREADS = 32; // Without virtual threads
+
+    private final ExecutorService executor;
+    private final Map<DB2Agent, Member> members = new LinkedHashMap<DB2Agent, Member>();
+
+    /**
+     * @param threads int number of threads, 0 for a virtual thread per collection where available
+     */
+    public CollectionCoordinator(int threads) {
+        this.executor = newExecutor(threads);
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        if (threads <= 0) {
+            try {
+                Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                logger.info("Gathering the metrics of concurrent agents on virtual threads");
+                return (ExecutorService) virtual.invoke(null);
+            } catch (Exception e) {
+                logger.debug("Virtual threads are not available, using ", DEFAULT_THREADS, " collector threads");
+            }
+            threads = DEFAULT_THREADS;
+        } else {
+            logger.info("Gathering the metrics of concurrent agents on ", threads, " collector threads");
+        }
+        return Executors.newFixedThreadPool(threads, new DB2Agent.CollectorThreadFactory("coordinator"));
+    }
+
+    /**
+     * Run the poll cycles of an agent in concurrent mode
+     *
+     * @param agent DB2Agent
+     */
+    public synchronized void register(DB2Agent agent) {
+        members.put(agent, new Member(agent));
+        agent.setCoordinator(this);
+    }
+
+    /**
+     * Stop running the poll cycles of an agent, once it is shut down. A collection still running completes on its own.
+     *
+     * @param agent DB2Agent
+     */
+    public synchronized void unregister(DB2Agent agent) {
+        members.remove(agent);
+    }
+
+    /**
+     * Wait for the collection of the agent's current cycle, starting the collections of the cycle if the agent is the first one polled in it. The
+     * wait holds no lock, the collections of the other agents keep being started and reported meanwhile.
+     *
+     * @param agent DB2Agent
+     * @return boolean true if the agent gathered metrics to report
+     */
+    boolean awaitCollection(DB2Agent agent) {
+        Member member;
+        Future<Boolean> pending;
+        long remaining;
+        synchronized (this) {
+            member = members.get(agent);
+            if (member.late) {
+                if (member.pending.isDone()) {
+                    logger.info("Agent '", agent.getName(), "' gathered its metrics after the cycle deadline, they are dropped and gathered again");
+                    member.late = false;
+                    member.pending = null; // Started again by the next cycle
+                }
+                return false;
+            }
+            if (member.pending == null) {
+                startCycle();
+            }
+            pending = member.pending;
+            remaining = member.started + TimeUnit.SECONDS.toNanos(agent.getOptions().getCycleDeadline()) - System.nanoTime();
+        }
+
+        try {
+            Boolean gathered = pending.get(Math.max(0L, remaining), TimeUnit.NANOSECONDS);
+            reported(member);
+            return Boolean.TRUE.equals(gathered);
+        } catch (TimeoutException e) {
+            logger.warn("Agent '", agent.getName(), "' did not gather its metrics within ", agent.getOptions().getCycleDeadline(),
+                    " seconds, they are dropped once it completes");
+            synchronized (this) {
+                member.late = true;
+            }
+        } catch (ExecutionException e) {
+            logger.error("Agent '", agent.getName(), "' failed to gather its metrics. ", e.getCause());
+            reported(member);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private synchronized void reported(Member member) {
+        member.pending = null;
+    }
+
+    /**
+     * Start the collection of every agent whose last collection was reported
+     */
+    private void startCycle() {
+        long now = System.nanoTime();
+        int started = 0;
+        for (Member member : members.values()) {
+            if (member.pending == null) {
+                start(member, now);
+                started++;
+            }
+        }
+        logger.debug("Started the collection of ", started, " of ", members.size(), " concurrent agents");
+    }
+
+    private void start(Member member, long now) {
+        member.started = now;
+        member.pending = executor.submit(member);
+    }
+
+    /**
+     * The collection of one agent
+     */
+    private static class Member implements Callable<Boolean> {
+
+        private final DB2Agent agent;
+        private Future<Boolean> pending = null; // Collection not reported yet
+        private long started = 0L;
+        private boolean late = false; // Whether the pending collection missed its cycle deadline
+
+        Member(DB2Agent agent) {
+            this.agent = agent;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            return agent.collect();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.newrelic.plugins.db2.instance;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.newrelic.plugins.db2.DB2;
+
+/**
+ * This class is a collection submitted to an executor, that tells whether it still runs. A task that misses its deadline is not cancelled: a
+ * cancelled Future is done at once although its thread still runs the statement, so the next cycle would start a second collection into the same
+ * registries. The task is only finished once it returned, and one that starts after its deadline returns at once.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+abstract class CollectionTask<T> implements Callable<T> {
+
+    protected final long deadline;
+    private volatile boolean finished = false;
+    private Future<T> future;
+
+    CollectionTask(long deadline) {
+        this.deadline = deadline;
+    }
+
+    void submit(ExecutorService executor) {
+        future = executor.submit(this);
+    }
+
+    /**
+     * @return boolean whether the task was submitted and has not returned yet
+     */
+    boolean isRunning() {
+        return !finished;
+    }
+
+    /**
+     * @return T result of the task, waited for until the deadline
+     */
+    T get() throws InterruptedException, ExecutionException, TimeoutException {
+        return future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public final T call() throws Exception {
+        try {
+            if (System.nanoTime() - deadline > 0L) {
+                throw new TimeoutException("Started after the deadline of its poll cycle");
+            }
+            return collect();
+        } finally {
+            finished = true;
+        }
+    }
+
+    abstract T collect() throws Exception;
+
+    /**
+     * Runs the SQL of one category on a connection borrowed from the agent's pool
+     */
+    static class CategoryTask extends CollectionTask<Boolean> {
+
+        private final SharedTarget target;
+        private final ActiveCategory category;
+
+        CategoryTask(SharedTarget target, ActiveCategory category, long deadline) {
+            super(deadline);
+            this.target = target;
+            this.category = category;
+        }
+
+        @Override
+        Boolean collect() throws Exception {
+            DB2 db2 = target.borrow(deadline - System.nanoTime());
+            if (db2 == null) {
+                throw new TimeoutException("No connection available for category " + category.name);
+            }
+            try {
+                category.registry.beginCycle();
+                if (db2.getConnection() == null) {
+                    return Boolean.FALSE; // Unable to continue without a valid database connection
+                }
+                long start = System.nanoTime();
+                try {
+                    return category.run(db2);
+                } finally {
+                    category.latency = System.nanoTime() - start;
+                }
+            } finally {
+                target.giveBack(db2);
+            }
+        }
+    }
+
+    /**
+     * Runs the due categories of one member on a connection of the member, or those that run once for the database on a connection of the agent
+     */
+    static class MemberTask extends CollectionTask<boolean[]> {
+
+        private final SharedTarget target; // Of the member, or of the agent
+        private final String host;
+        private final int member; // -1 for the categories run once for the database
+        private final ActiveCategory[] active;
+        private final CategoryScheduler scheduler;
+
+        MemberTask(SharedTarget target, String host, int member, ActiveCategory[] active, CategoryScheduler scheduler, long deadline) {
+            super(deadline);
+            this.target = target;
+            this.host = host;
+            this.member = member;
+            this.active = active;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        boolean[] collect() throws Exception {
+            DB2 db2 = target.borrow(deadline - System.nanoTime());
+            if (db2 == null) {
+                throw new TimeoutException("No connection available for member " + host);
+            }
+            try {
+                boolean[] success = new boolean[active.length];
+                if (db2.getConnection() == null) {
+                    return success; // Unable to continue without a valid database connection
+                }
+                for (int i = 0; i < active.length; i++) {
+                    ActiveCategory category = active[i];
+                    if (!scheduler.isDue(i) || category.isMemberScoped() != (member >= 0)) {
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    if (member < 0) {
+                        category.registry.beginCycle();
+                        success[i] = category.run(db2);
+                        category.latency = System.nanoTime() - start;
+                    } else {
+                        success[i] = category.runOnMember(db2, member);
+                        category.memberLatency[member] = System.nanoTime() - start;
+                    }
+                }
+                return success;
+            } finally {
+                target.giveBack(db2);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.newrelic.plugins.db2.instance;
+
+import com.newrelic.plugins.db2.LatencyHistogram;
+
+/**
+ * This class holds the measurements an agent takes of its own collection: the query latency, rows, cells and SQL errors of each category, the
+ * reconnects of its connections and how long its poll cycles take. The totals count from the start of the agent; the agent publishes them per cycle
+ * under 'plugin/collector/'.
+ *
+ * Everything but the latency histograms is written by the thread that runs the agent's poll cycles.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CollectorStats {
+
+    private final String[] categories;
+    private final LatencyHistogram[] latency;
+    private final long[] rows;
+    private final long[] cells;
+    private final long[] errors;
+
+    private long cycles = 0L;
+    private long reconnects = 0L;
+    private long lastGatherNanos = 0L;
+    private long lastReportNanos = 0L;
+    private long lastCycleNanos = 0L;
+    private long totalCycleNanos = 0L;
+
+    public CollectorStats(String[] categories) {
+        this.categories = categories;
+        this.latency = new LatencyHistogram[categories.length];
+        this.rows = new long[categories.length];
+        this.cells = new long[categories.length];
+        this.errors = new long[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Carry the measurements over from before the categories were reloaded, those of a category that was kept continue where they were
+     *
+     * @param categories String[] names of the categories
+     * @param previous CollectorStats of the categories before the reload
+     * @param from int[] index of each category in the previous stats, -1 for a new category
+     */
+    CollectorStats(String[] categories, CollectorStats previous, int[] from) {
+        this(categories);
+        for (int i = 0; i < categories.length; i++) {
+            if (from[i] >= 0) {
+                latency[i] = previous.latency[from[i]];
+                rows[i] = previous.rows[from[i]];
+                cells[i] = previous.cells[from[i]];
+                errors[i] = previous.errors[from[i]];
+            }
+        }
+        this.cycles = previous.cycles;
+        this.reconnects = previous.reconnects;
+        this.lastGatherNanos = previous.lastGatherNanos;
+        this.lastReportNanos = previous.lastReportNanos;
+        this.lastCycleNanos = previous.lastCycleNanos;
+        this.totalCycleNanos = previous.totalCycleNanos;
+    }
+
+    /**
+     * Record one run of a category
+     *
+     * @param category int index of the category
+     * @param nanos long time the query took
+     * @param success boolean whether the query ran without an SQL error
+     * @param rowsRead int rows read from the result set
+     * @param cellsRead int columns read from those rows
+     */
+    void recordRun(int category, long nanos, boolean success, int rowsRead, int cellsRead) {
+        latency[category].record(nanos);
+        rows[category] += rowsRead;
+        cells[category] += cellsRead;
+        if (!success) {
+            errors[category]++;
+        }
+    }
+
+    /**
+     * Record a category that did not complete, or failed before running its query
+     *
+     * @param category int index of the category
+     * @param nanos long time waited for it, 0 if it failed right away
+     */
+    void recordFailure(int category, long nanos) {
+        if (nanos > 0) {
+            latency[category].record(nanos);
+        }
+        errors[category]++;
+    }
+
+    void recordGather(long nanos) {
+        lastGatherNanos = nanos;
+    }
+
+    void recordCycle(long reportNanos, long cycleNanos) {
+        cycles++;
+        lastReportNanos = reportNanos;
+        lastCycleNanos = cycleNanos;
+        totalCycleNanos += cycleNanos;
+    }
+
+    /**
+     * Record the reconnects of the connections since the last cycle, counted while this agent is the reporter of its target
+     *
+     * @param reconnects long
+     */
+    void addReconnects(long reconnects) {
+        this.reconnects += reconnects;
+    }
+
+    public String[] getCategories() {
+        return categories.clone();
+    }
+
+    /**
+     * @param category String name of the category
+     * @return int index of the category, -1 if the agent does not collect it
+     */
+    public int indexOf(String category) {
+        for (int i = 0; i < categories.length; i++) {
+            if (categories[i].equalsIgnoreCase(category)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public LatencyHistogram getLatency(int category) {
+        return latency[category];
+    }
+
+    public long getRows(int category) {
+        return rows[category];
+    }
+
+    public long getCells(int category) {
+        return cells[category];
+    }
+
+    public long getErrors(int category) {
+        return errors[category];
+    }
+
+    /**
+     * @return long completed poll cycles
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * @return long times the agent's connections were re-established after being lost
+     */
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * @return long nanoseconds the categories of the last cycle took to gather
+     */
+    public long getLastGatherNanos() {
+        return lastGatherNanos;
+    }
+
+    /**
+     * @return long nanoseconds reporting the metrics of the last completed cycle took
+     */
+    public long getLastReportNanos() {
+        return lastReportNanos;
+    }
+
+    /**
+     * @return long nanoseconds the last completed cycle took, gathering and reporting
+     */
+    public long getLastCycleNanos() {
+        return lastCycleNanos;
+    }
+
+    public long getTotalCycleNanos() {
+        return totalCycleNanos;
+    }
+}
@@ -2,18 +2,31 @@ package com.newrelic.plugins.db2.instance;
 
 import static com.newrelic.plugins.db2.util.Constants.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.newrelic.metrics.publish.Agent;
 import com.newrelic.metrics.publish.util.Logger;
+import com.newrelic.plugins.db2.CounterDeltaEngine;
 import com.newrelic.plugins.db2.MetricMeta;
+import com.newrelic.plugins.db2.MetricRegistry;
 import com.newrelic.plugins.db2.DB2;
+import com.newrelic.plugins.db2.ResultCache;
 
 /**
  * This class creates a specific DB2 agent that is used to obtain a DB2 database connection, 
@@ -42,12 +55,39 @@ public class DB2Agent extends Agent {
     private String agentInfo;
 
     private final Set<String> metrics;
-    // Definition of DB2 meta data (counter, unit, type etc)
-    private final Map<String, MetricMeta> metricsMeta = new HashMap<String, MetricMeta>();
+    // Definition of DB2 meta data (counter, unit, type etc), that of the category plan
+    private Map<String, MetricMeta> metricsMeta;
     // Definition of categories of metrics
-    private Map<String, Object> metricCategories = new HashMap<String, Object>();
+    private CategoryPlan plan;
+    private final AtomicReference<CategoryPlan> pendingPlan = new AtomicReference<CategoryPlan>(); // Reloaded categories, swapped in between cycles
 
-    private final DB2 m; // Per agent DB2 Object
+    private final DB2AgentOptions options;
+    private final SharedTarget target; // DB2 Objects of this agent, shared with the agents of the same database
+    private final ExecutorService executor; // Runs the categories of a poll cycle in parallel mode
+    private volatile CollectionCoordinator coordinator = null; // Gathers the metrics of each cycle in concurrent mode
+    private volatile ShardRing shard = null; // Decides whether this process polls the agent, null if it polls all agents
+    private boolean owned = false; // Whether this process polled the agent in its last cycle, when sharded
+
+    // Indexed by category, replaced as a whole when the categories are reloaded
+    private ActiveCategory[] active = null; // Enabled categories, with the registries their values are collected into
+    private CategoryScheduler scheduler; // Decides which categories run in a cycle
+    private AdaptiveSampler sampler; // Backs off categories while DB2 is under pressure, null unless adaptive
+    private CircuitBreaker breaker; // Skips categories that keep failing, null if breaker_failures is 0
+    private CategoryBatcher batcher; // Collects the due row categories with one compound query, in serial mode
+    private CollectorStats stats = null; // Measurements of the agent's own collection
+    private final CounterDeltaEngine ownCost = new CounterDeltaEngine(); // DB2 CPU time of each pooled connection
+    private long cycleStart = 0L;
+
+    private final MetricRegistry collectorMetrics; // Metrics about the collection itself
+    private final int[] targetIds; // Of the counters of the target, by the delta indexes of SharedTarget
+    private final int ownCpuTimeId;
+    private final int cycleGatherTimeId;
+    private final int cycleReportTimeId;
+    private final int cycleDurationId;
+
+    private DeliveryTracker delivery = null; // Spools the poll cycles that could not be published, null unless spooling
+    private final MetricSink[] sinks; // Destinations of the metrics of each poll cycle
+    private MemberSet members = null; // Members of a pureScale or partitioned database, null until found, empty if the database has a single one
 
     private boolean firstReport = true;
 
@@ -61,8 +101,11 @@ public class DB2Agent extends Agent {
      * @param String DB2 user
      * @param String DB2 user password
      * @param String CSVm List of metrics to be monitored
+     * @param CategoryPlan Categories of 'metric.category.json'
+     * @param DB2AgentOptions Optional tuning settings
      */
-    public DB2Agent(String name, String host, String database, String user, String passwd, String properties, Set<String> metrics, Map<String, Object> metricCategories) {
+    public DB2Agent(String name, String host, String database, String user, String passwd, String properties, Set<String> metrics, CategoryPlan plan,
+            DB2AgentOptions options) {
         super(GUID, version);
 
         this.name = name; // Set local attributes for new class object
@@ -73,15 +116,42 @@ public class DB2Agent extends Agent {
         this.properties = properties;
 
         this.metrics = metrics;
-        this.metricCategories = metricCategories;
+        this.plan = plan;
 
-        this.m = new DB2();
+        this.options = options;
+        this.target = SharedTarget.acquire(host, database, user, passwd, properties, options);
+        if (options.isParallel()) {
+            this.executor = Executors.newFixedThreadPool(options.getParallelism(), new CollectorThreadFactory(name));
+        } else {
+            this.executor = null;
+        }
 
-        createMetaData(); // Define incremental counters that are value/sec etc
+        this.metricsMeta = plan.getMetricMeta(); // Define incremental counters that are value/sec etc
+
+        this.collectorMetrics = new MetricRegistry(COLLECTOR_CATEGORY, metricsMeta);
+        this.targetIds = new int[SharedTarget.DELTA_METRICS.length];
+        for (int j = 0; j < targetIds.length; j++) {
+            targetIds[j] = collectorMetrics.getId(SharedTarget.DELTA_METRICS[j]);
+        }
+        this.ownCpuTimeId = collectorMetrics.getId(OWN_CPU_TIME);
+        installCategories(createActiveCategories(null));
+        this.cycleGatherTimeId = collectorMetrics.getId(CYCLE_GATHER_TIME);
+        this.cycleReportTimeId = collectorMetrics.getId(CYCLE_REPORT_TIME);
+        this.cycleDurationId = collectorMetrics.getId(CYCLE_DURATION);
+        this.sinks = createSinks();
 
         logger.debug("DB2 Agent initialized: ", formatAgentParams(name, host, database, user, properties, metrics));
     }
 
+    public DB2Agent(String name, String host, String database, String user, String passwd, String properties, Set<String> metrics, Map<String, Object> metricCategories,
+            DB2AgentOptions options) {
+        this(name, host, database, user, passwd, properties, metrics, CategoryPlan.of(metricCategories), options);
+    }
+
+    public DB2Agent(String name, String host, String database, String user, String passwd, String properties, Set<String> metrics, Map<String, Object> metricCategories) {
+        this(name, host, database, user, passwd, properties, metrics, metricCategories, DB2AgentOptions.defaultOptions());
+    }
+
     /**
      * Format Agent parameters for logging
      * 
@@ -100,104 +170,689 @@ public class DB2Agent extends Agent {
         builder.append("user: ").append(user).append(" | ");
         builder.append("properties: ").append(properties).append(" | ");
         builder.append("metrics: ").append(metrics).append(" | ");
+        builder.append("options: ").append(options).append(" | ");
         return builder.toString();
     }
 
     /**
-     * This method is run for every poll cycle of the Agent. Get a DB2 Database connection and gather metrics.
+     * This method is run for every poll cycle of the Agent. Get a DB2 Database connection and gather metrics, or in concurrent mode wait for the
+     * metrics gathered on a coordinator thread, then report them.
      */
     @Override
     public void pollCycle() {
-        Connection c = m.getConnection(host, database, user, passwd, properties); // Get a database connection (which should be cached)
-        if (c == null) {
-            return; // Unable to continue without a valid database connection
+        if (delivery != null) {
+            delivery.startCycle();
+        }
+        boolean gathered = coordinator != null ? coordinator.awaitCollection(this) : collect(); // Within the cycle deadline in concurrent mode
+        if (!gathered) {
+            for (MetricSink sink : sinks) {
+                sink.withdraw(); // Not owned, no connection, or late
+            }
+            return;
         }
 
-        logger.debug("Gathering DB2 metrics. ", getAgentInfo());
-
-        Map<String, Float> results = gatherMetrics(c); // Gather defined metrics
-        reportMetrics(results); // Report Metrics to New Relic
+        long reportStart = System.nanoTime();
+        if (delivery != null) {
+            delivery.reportMetrics(); // The state of the spool, with the collector metrics
+        }
+        reportMetrics(); // Report Metrics to New Relic
         firstReport = false;
+        if (delivery != null) {
+            delivery.endCycle();
+        }
+        long end = System.nanoTime();
+        stats.recordCycle(end - reportStart, end - cycleStart);
+    }
+
+    /**
+     * Stop this agent for good, e.g. when the plugin exits. It is no longer collected, its Prometheus samples are withdrawn, and it gives up its
+     * targets and those of its members, whose connections are closed once no other agent uses them.
+     */
+    public void shutdown() {
+        if (coordinator != null) {
+            coordinator.unregister(this);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (members != null) {
+            members.shutdown(this);
+        }
+        for (MetricSink sink : sinks) {
+            sink.withdraw();
+        }
+        target.release(this);
+        logger.debug("DB2 Agent shut down. ", getAgentInfo());
+    }
+
+    /**
+     * Open the spool of this agent, once the Runner set up its context
+     */
+    @Override
+    public void prepareToRun() {
+        super.prepareToRun();
+        if (options.getSpoolSize() <= 0) {
+            return;
+        }
+        DeliveryTracker tracker = DeliveryTracker.create(this);
+        if (tracker == null) {
+            return;
+        }
+        File file = new File(options.getSpoolDirectory(), "db2-" + name.replaceAll("[^A-Za-z0-9_.-]", "_") + ".spool");
+        try {
+            tracker.setSpool(new MetricSpool(file, options.getSpoolSize() * 1024L * 1024L, TimeUnit.MINUTES.toMillis(options.getSpoolMaxAge())),
+                    options.getSpoolReplayBatches());
+            tracker.setCollectorMetrics(collectorMetrics);
+            for (MetricSink sink : sinks) {
+                if (sink instanceof NewRelicSink) {
+                    ((NewRelicSink) sink).setDelivery(tracker);
+                }
+            }
+            delivery = tracker;
+            logger.info("Spooling the metrics of poll cycles that could not be published to ", file, ". ", getAgentInfo());
+        } catch (IOException e) {
+            logger.error("Unable to open spool file ", file, ", metrics are not spooled. ", getAgentInfo(), " ", e.getMessage());
+        }
+    }
+
+    /**
+     * This method gathers the metrics of one poll cycle, on the poll thread or on a coordinator thread
+     * 
+     * @return false if no connection was available and nothing was gathered
+     */
+    boolean collect() {
+        applyPlan();
+        if (!isOwned()) {
+            return false; // Polled by another process
+        }
+        cycleStart = System.nanoTime();
+        scheduler.nextCycle();
+        if (options.isPerMember() && members == null) {
+            findMembers();
+        }
+        if (members != null && members.size() > 0) {
+            logger.debug("Gathering DB2 metrics of ", members.size(), " members. ", getAgentInfo());
+
+            gatherMetricsPerMember(); // Each member on a connection of its own
+            return true;
+        }
+        if (options.isParallel()) {
+            logger.debug("Gathering DB2 metrics in parallel. ", getAgentInfo());
+
+            gatherMetricsInParallel(); // Each category gets its own pooled connection
+            return true;
+        }
+
+        DB2 db2 = borrowConnection(); // Wait for another agent of the database using it, if any
+        if (db2 == null) {
+            return false;
+        }
+        try {
+            Connection c = db2.getConnection(); // Get a database connection (which should be cached)
+            if (c == null) {
+                return false; // Unable to continue without a valid database connection
+            }
+
+            logger.debug("Gathering DB2 metrics. ", getAgentInfo());
+
+            gatherMetrics(db2); // Gather defined metrics
+        } finally {
+            target.giveBack(db2);
+        }
+        gatherCollectorMetrics();
+        return true;
+    }
+
+    /**
+     * Run the categories of a reloaded 'metric.category.json' from the next poll cycle on. The plan is swapped in by the thread that gathers the
+     * metrics, before it starts the next cycle.
+     * 
+     * @param next CategoryPlan of the reloaded file
+     */
+    public void reload(CategoryPlan next) {
+        pendingPlan.set(next);
+    }
+
+    /**
+     * This method swaps in the categories of a reloaded 'metric.category.json', once no category of an earlier cycle is still running. A category
+     * whose attributes did not change keeps its registry, counters and schedule, so its counters keep their rates across the reload. A changed
+     * category starts over as a new one, taking over the previous samples of its counters if its SQL did not change, and a removed category is no
+     * longer run or reported.
+     */
+    private void applyPlan() {
+        CategoryPlan next = pendingPlan.get();
+        if (next == null || !isIdle()) {
+            return; // Tried again in the next cycle
+        }
+        pendingPlan.compareAndSet(next, null);
+        plan = next;
+        metricsMeta = plan.getMetricMeta();
+        ActiveCategory[] previous = active;
+        installCategories(createActiveCategories(previous));
+        if (members != null && members.size() > 0) {
+            createMemberRegistries();
+        }
+        collectorMetrics.setMetricsMeta(metricsMeta);
+        for (ActiveCategory category : active) { // The kept categories no longer hold on to the previous plan
+            category.setMetricsMeta(metricsMeta);
+        }
+
+        Map<String, ActiveCategory> before = new HashMap<String, ActiveCategory>();
+        for (ActiveCategory category : previous) {
+            before.put(category.name, category);
+        }
+        int kept = 0;
+        int changed = 0;
+        for (ActiveCategory category : active) {
+            ActiveCategory old = before.remove(category.name);
+            if (old == category) {
+                kept++;
+            } else if (old != null) {
+                changed++;
+            }
+        }
+        logger.info("Reloaded the metric categories: ", kept, " kept, ", changed, " changed, ", active.length - kept - changed, " added, ",
+                before.size(), " removed. ", getAgentInfo());
+    }
+
+    /**
+     * @return boolean whether no category of an earlier cycle is still running
+     */
+    private boolean isIdle() {
+        for (ActiveCategory category : active) {
+            if (category.task != null && category.task.isRunning()) {
+                return false;
+            }
+        }
+        return members == null || members.isIdle();
+    }
+
+    /**
+     * Find the members of the database, as listed in the members attribute or in SYSIBMADM.DB2_MEMBER, and create the registries of the categories
+     * that run on each of them. If the members could not be read, the database is collected through the agent's host and they are looked for again
+     * in the next cycle.
+     */
+    private void findMembers() {
+        if (AUTO_MEMBERS.equalsIgnoreCase(options.getMembers())) {
+            DB2 db2 = borrowConnection();
+            if (db2 == null) {
+                return;
+            }
+            try {
+                members = MemberSet.discover(db2, host, database, user, passwd, properties, options);
+            } finally {
+                target.giveBack(db2);
+            }
+            if (members == null) {
+                return;
+            }
+        } else {
+            members = MemberSet.listed(options.getMembers(), database, user, passwd, properties, options);
+        }
+        if (members.size() == 0) {
+            logger.info("Database ", database, " has a single member, it is collected through ", host, ". ", getAgentInfo());
+            return;
+        }
+        members.log(getAgentInfo());
+        createMemberRegistries();
+        members.start(name, collectorMetrics);
+    }
+
+    /**
+     * Run this agent's poll cycles in concurrent mode. The coordinator gathers the metrics of each cycle on its own threads, pollCycle reports them.
+     * 
+     * @param coordinator CollectionCoordinator
+     */
+    void setCoordinator(CollectionCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Share this agent with the other plugin processes of the ring, only the process the ring assigns it to polls it
+     * 
+     * @param shard ShardRing, null to poll the agent in this process
+     */
+    void setShard(ShardRing shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * This method checks whether this process polls the agent in this cycle. An agent taken over from another process starts its counters over, as
+     * their last samples in this process may be long gone, and an agent given up closes its connections unless other agents of this process use
+     * them.
+     * 
+     * @return boolean
+     */
+    private boolean isOwned() {
+        if (shard == null) {
+            return true;
+        }
+        boolean owns = shard.owns(name);
+        if (owns && !owned) {
+            logger.info("Shard '", shard.getId(), "' polls the agent. ", getAgentInfo());
+            for (ActiveCategory category : active) {
+                category.restartCounters();
+                category.collected = false;
+            }
+            ownCost.restart();
+        } else if (!owns && owned) {
+            logger.info("Shard '", shard.getId(), "' no longer polls the agent, another process does. ", getAgentInfo());
+            target.releaseReporter(this);
+            closeConnections();
+        }
+        owned = owns;
+        return owns;
+    }
+
+    /**
+     * This method closes the connections of the agent, and of its members, once it is no longer polled by this process and no other agent shares
+     * them
+     */
+    private void closeConnections() {
+        if (!isIdle()) {
+            return; // A category of an earlier cycle still runs on them
+        }
+        List<SharedTarget> targets = new ArrayList<SharedTarget>();
+        targets.add(target);
+        for (int m = 0; members != null && m < members.size(); m++) {
+            targets.add(members.getTarget(m));
+        }
+        for (SharedTarget own : targets) {
+            if (own.getAgents() > 1) {
+                continue;
+            }
+            for (DB2 db2 : own.getConnections()) {
+                db2.getConnectionManager().closeConnection();
+            }
+        }
+    }
+
+    DB2AgentOptions getOptions() {
+        return options;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Borrow the connection the categories of a poll cycle run on
+     * 
+     * @return DB2, or null if the agents sharing it held it for longer than the category timeout
+     */
+    private DB2 borrowConnection() {
+        try {
+            DB2 db2 = target.borrow(TimeUnit.SECONDS.toNanos(options.getCategoryTimeout()));
+            if (db2 == null) {
+                logger.warn("No connection to ", database, " became available within ", options.getCategoryTimeout(), " seconds. ", getAgentInfo());
+            }
+            return db2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * This method runs the varies categories of DB2 statements that are due in this cycle on the given connection and gathers the metrics that
+     * can be reported into the registries of the categories. The batchable row categories are collected by the batcher with one compound query,
+     * the categories of a batch that failed run on their own.
+     *
+     * @param db2 DB2 connection borrowed for the cycle
+     */
+    private void gatherMetrics(DB2 db2) {
+        batcher.collect(db2, scheduler, stats);
+        for (int i = 0; i < active.length; i++) {
+            if (!scheduler.isDue(i) || batcher.isBatched(i)) {
+                continue; // The values of its last run are reported again, or it was collected by the batch
+            }
+            ActiveCategory category = active[i];
+            category.registry.beginCycle();
+            long start = System.nanoTime();
+            boolean success = category.run(db2);
+            category.latency = System.nanoTime() - start;
+            stats.recordRun(i, category.latency, success, category.registry.getRowsRead(), category.registry.getCellsRead());
+            category.collected = true;
+            batcher.recordAlone(i, success);
+        }
+        batcher.endCycle(scheduler.getCycle());
+        collectorMetrics.beginCycle();
+    }
+
+    /**
+     * This method runs the categories that are due in this cycle at the same time, each on a connection taken from the agent's pool. A category that
+     * does not complete within the category timeout is reported as skipped for this cycle and does not hold up the remaining categories
+     */
+    private void gatherMetricsInParallel() {
+        collectorMetrics.beginCycle();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.getCategoryTimeout());
+        for (int i = 0; i < active.length; i++) {
+            if (!scheduler.isDue(i)) {
+                continue;
+            }
+            ActiveCategory category = active[i];
+            category.collected = false;
+            if (category.task != null && category.task.isRunning()) {
+                continue; // Still running from an earlier cycle, it owns the registry of the category
+            }
+            category.task = new CollectionTask.CategoryTask(target, category, deadline);
+            category.task.submit(executor);
+        }
+
+        for (int i = 0; i < active.length; i++) {
+            if (!scheduler.isDue(i)) {
+                continue;
+            }
+            ActiveCategory category = active[i];
+            try {
+                Boolean success = category.task.get();
+                MetricRegistry registry = category.registry;
+                stats.recordRun(i, category.latency, Boolean.TRUE.equals(success), registry.getRowsRead(), registry.getCellsRead());
+                category.collected = true;
+            } catch (TimeoutException e) {
+                category.latency = TimeUnit.SECONDS.toNanos(options.getCategoryTimeout());
+                stats.recordFailure(i, category.latency);
+                logger.warn("Category '", category.name, "' did not complete within ", options.getCategoryTimeout(), " seconds and was skipped. ",
+                        getAgentInfo());
+                collectorMetrics.set(category.skippedId, 1.0);
+            } catch (ExecutionException e) {
+                logger.error("Category '", category.name, "' failed. ", getAgentInfo(), " ", e.getCause());
+                stats.recordFailure(i, 0L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        gatherCollectorMetrics();
+    }
+
+    /**
+     * This method collects each member of the database at the same time, on a connection of the member, running the due categories that run on each
+     * member, while the categories that run once for the database run on the agent's connection. The values of the members are then rolled up into
+     * the registries of their categories. A member that does not complete within the category timeout is reported as failed, and collected again
+     * once its running categories returned.
+     */
+    private void gatherMetricsPerMember() {
+        collectorMetrics.beginCycle();
+        long timeout = TimeUnit.SECONDS.toNanos(options.getCategoryTimeout());
+        boolean[][] success = members.collect(target, host, active, scheduler, System.nanoTime() + timeout, getAgentInfo());
+        if (success == null) {
+            return; // Interrupted
+        }
+
+        for (int i = 0; i < active.length; i++) {
+            if (!scheduler.isDue(i)) {
+                continue;
+            }
+            ActiveCategory category = active[i];
+            if (category.isMemberScoped()) {
+                boolean complete = category.rollUp(i, success, timeout);
+                stats.recordRun(i, category.latency, complete, category.registry.getRowsRead(), category.registry.getCellsRead());
+                continue;
+            }
+            boolean[] done = success[members.size()];
+            category.collected = done != null;
+            if (done == null) {
+                category.latency = timeout;
+                stats.recordFailure(i, category.latency);
+            } else {
+                stats.recordRun(i, category.latency, done[i], category.registry.getRowsRead(), category.registry.getCellsRead());
+            }
+        }
+        gatherCollectorMetrics();
+    }
+
+    /**
+     * This method gathers the metrics about the collection of this cycle, once the categories ran and their connections were given back
+     */
+    private void gatherCollectorMetrics() {
+        targetMetrics();
+        adaptiveSampling();
+        circuitBreaking();
+        collectorStatsMetrics();
     }
 
     /**
-     * This method runs the varies categories of DB2 statements and gathers the metrics that can be reported
+     * This method records whether each category that ran in this cycle failed, so a category that keeps failing is skipped for a while, and reports
+     * the state of its circuit breaker. It runs before the errors of the cycle are reported, which tell the categories that failed.
+     */
+    private void circuitBreaking() {
+        if (breaker == null) {
+            return;
+        }
+        for (int i = 0; i < active.length; i++) {
+            if (scheduler.isDue(i)) {
+                String sqlState = null;
+                if (stats.getErrors(i) > active[i].reportedErrors) {
+                    sqlState = active[i].getFailure();
+                }
+                breaker.record(i, sqlState, scheduler);
+            }
+            collectorMetrics.set(active[i].breakerId, breaker.getState(i));
+        }
+    }
+
+    /**
+     * This method reports the latency, rows, cells and errors of the categories that ran in this cycle, how long gathering this cycle took, and how
+     * long the last cycle took to report and complete
+     */
+    private void collectorStatsMetrics() {
+        for (int i = 0; i < active.length; i++) {
+            if (scheduler.isDue(i)) { // Ran in this cycle
+                active[i].reportStats(collectorMetrics, stats, i);
+            }
+        }
+        batcher.reportMetrics();
+
+        stats.recordGather(System.nanoTime() - cycleStart);
+        collectorMetrics.set(cycleGatherTimeId, stats.getLastGatherNanos() / 1000000.0);
+        if (stats.getCycles() > 0) {
+            collectorMetrics.set(cycleReportTimeId, stats.getLastReportNanos() / 1000000.0);
+            collectorMetrics.set(cycleDurationId, stats.getLastCycleNanos() / 1000000.0);
+        }
+    }
+
+    /**
+     * Return the measurements this agent took of its own collection, e.g. for tests
      * 
-     * @param Connection c DB2 Database Connection
-     * @param String List of metrics to be obtained for this agent
-     * @return Map of metrics and values
+     * @return CollectorStats
      */
-    private Map<String, Float> gatherMetrics(Connection c) {
-        Map<String, Float> results = new HashMap<String, Float>(); // Create an empty set of results
-        Map<String, Object> categories = getMetricCategories(); // Get current Metric Categories
+    public CollectorStats getCollectorStats() {
+        return stats;
+    }
 
-        Iterator<String> iter = categories.keySet().iterator();
-        while (iter.hasNext()) {
-            String category = iter.next();
-            @SuppressWarnings("unchecked")
-            Map<String, String> attributes = (Map<String, String>) categories.get(category);
-            if (isReportingForCategory(category)) {
-                results.putAll(DB2.runSQL(c, category, attributes.get(SQL), attributes.get(RESULT)));
+    /**
+     * This method reports, in this cycle, how often the category SQL was served from the prepared statement caches of the agent's connections compared
+     * to how often it had to be prepared (and compiled by DB2), how often an execution was reused from the result cache shared with the other agents
+     * of the database, and how often the connections reconnected. The connections and caches may be shared with other agents, only the reporter of
+     * the target reports them.
+     */
+    private void targetMetrics() {
+        if (!target.claimReporter(this)) {
+            return;
+        }
+        long[] deltas = target.takeCounterDeltas();
+        boolean sharedResults = target.getResults() != null && target.getAgents() > 1;
+        for (int j = 0; j < deltas.length; j++) {
+            if (sharedResults || (j != SharedTarget.RESULT_CACHE_HITS_DELTA && j != SharedTarget.RESULT_CACHE_MISSES_DELTA)) {
+                collectorMetrics.set(targetIds[j], deltas[j]);
             }
         }
-        results.putAll(newRelicMetrics(results));
-        return results;
+        stats.addReconnects(deltas[SharedTarget.RECONNECTS_DELTA]);
     }
 
     /**
-     * This method creates a number of custom New Relic Metrics, that are derived from raw DB2 status metrics
+     * This method feeds the query latencies of the categories that ran in this cycle, and the DB2 CPU time the agent's connections used, to the adaptive
+     * sampler, and reports the resulting interval and degraded state of each category
+     */
+    private void adaptiveSampling() {
+        if (sampler == null) {
+            return;
+        }
+        for (int i = 0; i < active.length; i++) {
+            if (scheduler.isDue(i)) {
+                sampler.recordLatency(i, active[i].latency);
+            }
+        }
+        sampler.recordCost(ownCpuTime());
+        sampler.adjust(scheduler);
+
+        for (int i = 0; i < active.length; i++) {
+            collectorMetrics.set(active[i].intervalId, scheduler.getInterval(i) * POLL_INTERVAL);
+            collectorMetrics.set(active[i].degradedId, sampler.getState(i));
+            if (scheduler.isSuspended(i)) {
+                active[i].drop(); // Its last values are no longer reported
+            }
+        }
+        if (!Double.isNaN(sampler.getCost())) {
+            collectorMetrics.set(ownCpuTimeId, sampler.getCost());
+        }
+    }
+
+    /**
+     * This method reads the DB2 CPU time used by the agent's pooled connections since the last cycle. Connections still held by a category that timed
+     * out are left alone and not counted.
      * 
-     * @param Map existing Gathered DB2 metrics
-     * @param metrics String of the Metric Categories to capture
-     * @return Map Additional derived metrics
+     * @return double CPU milliseconds per poll cycle, or NaN if it could not be measured
+     */
+    private double ownCpuTime() {
+        long now = System.nanoTime();
+        double total = Double.NaN;
+        DB2[] connections = target.getConnections();
+        for (int i = 0; i < connections.length; i++) {
+            DB2 db2 = connections[i];
+            if (!target.borrow(db2)) {
+                continue; // Still in use
+            }
+            try {
+                long cpu = db2.getOwnCpuTime();
+                double rate = cpu < 0 ? Double.NaN : ownCost.process(i, cpu, now); // Microseconds per second, NaN after a reconnect
+                if (!Double.isNaN(rate)) {
+                    total = (Double.isNaN(total) ? 0.0 : total) + rate * POLL_INTERVAL / 1000.0;
+                }
+            } finally {
+                target.giveBack(db2);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Names the collector threads after the agent and keeps them from holding up JVM shutdown
      */
-    protected Map<String, Float> newRelicMetrics(Map<String, Float> existing) {
-        Map<String, Float> derived = new HashMap<String, Float>();
+    static class CollectorThreadFactory implements ThreadFactory {
 
-        if (!isReportingForCategory(OVERVIEW_CATEGORY)) {
-            return derived; // "overview" category is a pre-requisite for newrelic metrics
+        private final String agentName;
+        private final AtomicInteger count = new AtomicInteger();
+
+        CollectorThreadFactory(String agentName) {
+            this.agentName = agentName;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DB2 collector " + agentName + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
         }
+    }
 
-        logger.debug("End of newRelicMetrics, at this time, nothing is added to newRelicMetrics");
+    /**
+     * This method creates the sinks the metrics of this agent are reported to: New Relic, and the Prometheus endpoint of its port if it has one
+     * 
+     * @return MetricSink[]
+     */
+    private MetricSink[] createSinks() {
+        List<MetricSink> sinks = new ArrayList<MetricSink>();
+        if (options.isReportToNewRelic()) {
+            sinks.add(new NewRelicSink(this));
+        }
+        if (options.getPrometheusPort() > 0) {
+            PrometheusExporter exporter = PrometheusExporter.acquire(options.getPrometheusBind(), options.getPrometheusPort());
+            if (exporter != null) {
+                sinks.add(new PrometheusSink(name, exporter));
+            }
+        }
+        if (sinks.isEmpty()) {
+            logger.warn("Metrics are neither reported to New Relic nor exposed to Prometheus. ", getAgentInfo());
+        }
+        return sinks.toArray(new MetricSink[sinks.size()]);
+    }
 
-        return derived;
+    /**
+     * This method does the reporting of metrics to each sink, walking the registries of the categories collected in this cycle once
+     */
+    public void reportMetrics() {
+        for (MetricSink sink : sinks) {
+            sink.beginCycle();
+        }
+        int count = 0;
+        for (int i = 0; i < active.length; i++) {
+            if (active[i].collected) {
+                count += reportMetrics(active[i].registry, active[i].counters);
+            }
+            for (int m = 0; active[i].isMemberScoped() && m < members.size(); m++) {
+                if (active[i].memberCollected[m]) {
+                    count += reportMetrics(active[i].memberRegistries[m], active[i].memberCounters[m]);
+                }
+            }
+        }
+        count += reportMetrics(collectorMetrics, null);
+        for (MetricSink sink : sinks) {
+            sink.endCycle();
+        }
+        logger.debug("Reported ", count, " metrics. ", getAgentInfo());
     }
 
     /**
-     * This method does the reporting of metrics to New Relic
+     * Report the metrics of one registry that were written in the current cycle to each sink. Counters are handed over with their per-second rate,
+     * NaN on their first sample, and their raw value.
      * 
-     * @param Map results
+     * @param registry MetricRegistry
+     * @param counters CounterDeltaEngine holding the previous samples of the counters of the registry, null if it has no counters
+     * @return int number of metrics taken by at least one sink
      */
-    public void reportMetrics(Map<String, Float> results) {
+    private int reportMetrics(MetricRegistry registry, CounterDeltaEngine counters) {
+        if (counters != null && registry.isRestarted()) {
+            logger.info("Restart of database ", database, " detected by '", registry.getCategory(), "', counters start over. ", getAgentInfo());
+            counters.restart();
+            registry.clearRestarted();
+        }
         int count = 0;
-        logger.debug("Collected ", results.size(), " DB2 metrics. ", getAgentInfo());
-        logger.debug(results);
-
-        Iterator<String> iter = results.keySet().iterator();
-        while (iter.hasNext()) { // Iterate over current metrics
-            String key = iter.next();
-            Float val = results.get(key);
-            MetricMeta md = getMetricMeta(key);
+        for (int id = 0; id < registry.size(); id++) { // Iterate over current metrics
+            if (!registry.isPresent(id)) {
+                continue;
+            }
+            String key = registry.getName(id);
+            float val = (float) registry.getValue(id);
+            MetricMeta md = registry.getMeta(id); // Resolved once, when the metric was first seen
             if (md != null) { // Metric Meta data exists (from metric.category.json)
-                logger.debug(METRIC_LOG_PREFIX, key, SPACE, md, EQUALS, val);
-                count++;
+                if (firstReport) {
+                    logger.debug(METRIC_LOG_PREFIX, key, SPACE, md, EQUALS, val);
+                }
 
-                if (md.isCounter()) { // Metric is a counter
-                    reportMetric(key, md.getUnit(), md.getCounter().process(val));
+                if (md.isCounter() && counters != null) { // Metric is a counter
+                    double rate = counters.process(id, key, registry.getLong(id), registry.getSampleTime()); // NaN on the first sample or a reset
+                    count += report(registry, id, md.getUnit(), true, rate);
                 } else { // Metric is a fixed Number
-                    reportMetric(key, md.getUnit(), val);
+                    count += report(registry, id, md.getUnit(), false, val);
                 }
             } else { // md != null
-            	/*
-                if (firstReport) { // Provide some feedback of available metrics for future reporting
-                    logger.debug("Not reporting identified metric ", key);
+                if (firstReport) {
+                    logger.debug("Meta for metrics ", key, " doesn't exist, using default unit Operations, the value is:", val);
                 }
-                */
-            	logger.debug("Meta for metrics ", key, " doesn't exist, using default unit Operations, the value is:", val);
-            	 reportMetric(key, DEFAULT_UNIT, val);
+                count += report(registry, id, DEFAULT_UNIT, false, val);
             }
         }
-        logger.debug("Reported to New Relic ", count, " metrics. ", getAgentInfo());
+        return count;
+    }
+
+    private int report(MetricRegistry registry, int id, String unit, boolean counter, double value) {
+        boolean taken = false;
+        for (MetricSink sink : sinks) {
+            taken |= sink.report(registry, id, unit, counter, value);
+        }
+        return taken ? 1 : 0;
     }
 
     /**
@@ -218,108 +873,210 @@ public class DB2Agent extends Agent {
     }
 
     /**
-     * This method creates the metric meta data that is derived from the provided configuration and New Relic specific metrics.
+     * This method creates a registry for each category this agent reports on. A category whose attributes are the same as before the categories were
+     * reloaded is kept as it was.
+     * 
+     * @param previous ActiveCategory[] categories before the reload, null when the agent starts
+     * @return ActiveCategory[]
      */
-    private void createMetaData() {
-
-        Map<String, Object> categories = getMetricCategories(); // Get current Metric Categories
-        Iterator<String> iter = categories.keySet().iterator();
-        while (iter.hasNext()) {
-            String category = iter.next();
-            @SuppressWarnings("unchecked")
-            Map<String, String> attributes = (Map<String, String>) categories.get(category);
-            String valueMetrics = attributes.get("value_metrics");
-            if (valueMetrics != null) {
-                Set<String> metrics = new HashSet<String>(Arrays.asList(valueMetrics.toLowerCase().replaceAll(SPACE, EMPTY_STRING).split(COMMA)));
-                for (String s : metrics) {
-                    addMetricMeta(category + SEPARATOR + s, new MetricMeta(false));
+    private ActiveCategory[] createActiveCategories(ActiveCategory[] previous) {
+        Map<String, ActiveCategory> kept = new HashMap<String, ActiveCategory>();
+        if (previous != null) {
+            for (ActiveCategory category : previous) {
+                kept.put(category.name, category);
+            }
+        }
+        List<ActiveCategory> categories = new ArrayList<ActiveCategory>();
+        List<ActiveCategory> added = new ArrayList<ActiveCategory>();
+        for (CategoryPlan.Category definition : plan.getDefinitions().values()) {
+            if (isReportingForCategory(definition.getName())) {
+                ActiveCategory current = kept.get(definition.getName());
+                if (current != null && current.definition.getAttributes().equals(definition.getAttributes())) {
+                    kept.remove(definition.getName());
+                } else {
+                    ActiveCategory replaced = current;
+                    current = new ActiveCategory(definition, metricsMeta);
+                    if (replaced != null && replaced.sql.equals(current.sql)) {
+                        current.carryOver(replaced);
+                    }
+                    added.add(current);
                 }
-
+                categories.add(current);
             }
-            String counterMetrics = attributes.get("counter_metrics");
-            if (counterMetrics != null) {
-                Set<String> metrics = new HashSet<String>(Arrays.asList(counterMetrics.toLowerCase().replaceAll(SPACE, EMPTY_STRING).split(COMMA)));
-                for (String s : metrics) {
-                    addMetricMeta(category + SEPARATOR + s, new MetricMeta(true));
+        }
+        ResultCache results = target.getResults();
+        if (results != null) {
+            for (ActiveCategory category : added) {
+                category.shared = results.subscribe(category.name, category.sql);
+            }
+            for (ActiveCategory category : kept.values()) { // Removed or changed
+                if (category.shared != null) {
+                    results.unsubscribe(category.shared);
                 }
             }
         }
-
-        //Define overview metrics meta data
-        addMetricMeta("overview/TOTAL_APP_COMMITS", new MetricMeta(false, STATEMENTS_UNIT));
-        addMetricMeta("overview/TOTAL_APP_ROLLBACKS", new MetricMeta(false, STATEMENTS_UNIT));
-        addMetricMeta("overview/ACT_COMPLETED_TOTAL", new MetricMeta(false, ACTIVITIES_UNIT));
-        addMetricMeta("overview/APP_RQSTS_COMPLETED_TOTAL", new MetricMeta(false, REQUESTS_UNIT));
-        addMetricMeta("overview/AVG_RQST_CPU_TIME", new MetricMeta(false, TIME_UNIT));
-        addMetricMeta("overview/ROUTINE_TIME_RQST_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/RQST_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/ACT_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/IO_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/LOCK_WAIT_TIME_ PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/AGENT_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/NETWORK_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/SECTION_PROC_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/SECTION_SORT_PROC_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/COMPILE_PROC_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/TRANSACT_END_PROC_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/UTILS_PROC_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-        addMetricMeta("overview/AVG_LOCK_WAITS_PER_ACT", new MetricMeta(false, TIMES_UNIT));
-        addMetricMeta("overview/AVG_LOCK_TIMEOUTS_PER_ACT", new MetricMeta(false, TIMES_UNIT));
-        addMetricMeta("overview/AVG_DEADLOCKS_PER_ACT", new MetricMeta(false, DEFAULT_UNIT));
-        addMetricMeta("overview/AVG_LOCK_ESCALS_PER_ACT", new MetricMeta(false, TIMES_UNIT));
-        addMetricMeta("overview/ROWS_READ_PER_ROWS_RETURNED", new MetricMeta(false, DEFAULT_UNIT));
-        addMetricMeta("overview/TOTAL_BP_HIT_RATIO_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
-       
-        //Define connection overview metrics meta data
-        addMetricMeta("connection_overview/connections", new MetricMeta(false, DEFAULT_UNIT));
-        
-        //Define current SQL overview metrics meta data
-        addMetricMeta("sql_overview/SQL_statements", new MetricMeta(false, DEFAULT_UNIT));
-        
+        return categories.toArray(new ActiveCategory[categories.size()]);
     }
 
     /**
-     * Add the given metric meta information to the Map of all metric meta information for this agent
+     * This method makes the given categories the ones the agent runs, with their schedule, collector metrics and measurements. The categories kept
+     * from before a reload carry their state over.
      * 
-     * @param String key
-     * @param Metric mm
+     * @param categories ActiveCategory[]
      */
-    private void addMetricMeta(String key, MetricMeta mm) {
-        metricsMeta.put(key.toLowerCase(), mm);
+    private void installCategories(ActiveCategory[] categories) {
+        ActiveCategory[] previous = active;
+        int[] from = new int[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            from[i] = previous == null ? -1 : Arrays.asList(previous).indexOf(categories[i]);
+        }
+        CategoryScheduler previousScheduler = scheduler;
+        CollectorStats previousStats = stats;
+
+        this.active = categories;
+        this.scheduler = createScheduler();
+        this.sampler = options.isAdaptive() ? createSampler() : null;
+        CircuitBreaker previousBreaker = breaker;
+        if (previousScheduler != null) {
+            scheduler.resume(previousScheduler, from);
+        }
+        String[] names = new String[active.length];
+        for (int i = 0; i < active.length; i++) {
+            names[i] = active[i].name;
+            active[i].resolveCollectorIds(collectorMetrics);
+        }
+        this.stats = previousStats == null ? new CollectorStats(names) : new CollectorStats(names, previousStats, from);
+        if (options.getBreakerFailures() == 0) {
+            this.breaker = null;
+        } else {
+            this.breaker = previousBreaker == null ? new CircuitBreaker(names, options) : new CircuitBreaker(names, options, previousBreaker, from);
+        }
+        this.batcher = new CategoryBatcher(active, options, collectorMetrics, getAgentInfo()); // Batches hold the registries of the categories
     }
 
     /**
-     * Get meta of a give metrics
+     * This method creates the registries of the categories that run on each member, once the members are known or the categories were reloaded
+     */
+    private void createMemberRegistries() {
+        for (ActiveCategory category : active) {
+            if (category.runOnMembers(members, metricsMeta)) {
+                logger.debug("Category '", category.name, "' runs on each member as: ", category.memberSql, ". ", getAgentInfo());
+            }
+        }
+    }
+
+    /**
+     * This method creates the scheduler that spreads the categories of this agent over the cycles of their intervals
      * 
-     * A default metric is a integer value
+     * @return CategoryScheduler
+     */
+    private CategoryScheduler createScheduler() {
+        String[] names = new String[active.length];
+        int[] intervals = new int[active.length];
+        for (int i = 0; i < active.length; i++) {
+            names[i] = active[i].name;
+            intervals[i] = active[i].interval;
+            if (intervals[i] > 1) {
+                logger.debug("Category '", names[i], "' runs every ", intervals[i], " cycles. ", getAgentInfo());
+            }
+        }
+        return new CategoryScheduler(name, names, intervals);
+    }
+
+    /**
+     * This method creates the adaptive sampler that backs off the categories of this agent while DB2 is under pressure
      * 
-     * @param String Metric to look up
-     * @return MetridMeta Structure of information about the metric
+     * @return AdaptiveSampler
      */
-    private MetricMeta getMetricMeta(String key) {
-        return metricsMeta.get(key.toLowerCase()); // Look for existing meta data on metric
+    private AdaptiveSampler createSampler() {
+        String[] names = new String[active.length];
+        int[] intervals = new int[active.length];
+        boolean[] optional = new boolean[active.length];
+        for (int i = 0; i < active.length; i++) {
+            names[i] = active[i].name;
+            intervals[i] = active[i].interval;
+            optional[i] = active[i].optional;
+        }
+        return new AdaptiveSampler(names, intervals, optional, options);
     }
 
     /**
-     * Private utility function to validate that all required data is present for constructing atomic metrics
+     * This method creates the metric meta data of the New Relic specific and collector metrics, once for the category plan all agents share.
      * 
-     * @param category - a display name for which metric category will not be included if a given key is not present
-     * @param map - the map of available data points
-     * @param keys - keys that are expected to be present for this operation
-     * @return true if all expected keys are present, otherwise false
-     */
-    private boolean areRequiredMetricsPresent(String category, Map<String, Float> map, String... keys) {
-        for (String key : keys) {
-            if (!map.containsKey(key)) {
-                if (firstReport) { // Only report missing category data on the first run so as not to clutter the log
-                    logger.debug("Not reporting on '", category, "' due to missing data field '", key, "'");
-                }
+     * @param metricsMeta Map of lower case metric names to meta data, holding those of the categories
+     * @param categories Set of the lower case names of the categories
+     */
+    static void createMetaData(Map<String, MetricMeta> metricsMeta, Set<String> categories) {
 
-                return false;
+        //Define overview metrics meta data
+        addMetricMeta(metricsMeta, "overview/TOTAL_APP_COMMITS", new MetricMeta(false, STATEMENTS_UNIT));
+        addMetricMeta(metricsMeta, "overview/TOTAL_APP_ROLLBACKS", new MetricMeta(false, STATEMENTS_UNIT));
+        addMetricMeta(metricsMeta, "overview/ACT_COMPLETED_TOTAL", new MetricMeta(false, ACTIVITIES_UNIT));
+        addMetricMeta(metricsMeta, "overview/APP_RQSTS_COMPLETED_TOTAL", new MetricMeta(false, REQUESTS_UNIT));
+        addMetricMeta(metricsMeta, "overview/AVG_RQST_CPU_TIME", new MetricMeta(false, TIME_UNIT));
+        addMetricMeta(metricsMeta, "overview/ROUTINE_TIME_RQST_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/RQST_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/ACT_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/IO_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/LOCK_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/AGENT_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/NETWORK_WAIT_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/SECTION_PROC_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/SECTION_SORT_PROC_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/COMPILE_PROC_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/TRANSACT_END_PROC_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/UTILS_PROC_TIME_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+        addMetricMeta(metricsMeta, "overview/AVG_LOCK_WAITS_PER_ACT", new MetricMeta(false, TIMES_UNIT));
+        addMetricMeta(metricsMeta, "overview/AVG_LOCK_TIMEOUTS_PER_ACT", new MetricMeta(false, TIMES_UNIT));
+        addMetricMeta(metricsMeta, "overview/AVG_DEADLOCKS_PER_ACT", new MetricMeta(false, DEFAULT_UNIT));
+        addMetricMeta(metricsMeta, "overview/AVG_LOCK_ESCALS_PER_ACT", new MetricMeta(false, TIMES_UNIT));
+        addMetricMeta(metricsMeta, "overview/ROWS_READ_PER_ROWS_RETURNED", new MetricMeta(false, DEFAULT_UNIT));
+        addMetricMeta(metricsMeta, "overview/TOTAL_BP_HIT_RATIO_PERCENT", new MetricMeta(false, PERCENTAGE_UNIT));
+       
+        //Define connection overview metrics meta data
+        addMetricMeta(metricsMeta, "connection_overview/connections", new MetricMeta(false, DEFAULT_UNIT));
+        
+        //Define current SQL overview metrics meta data
+        addMetricMeta(metricsMeta, "sql_overview/SQL_statements", new MetricMeta(false, DEFAULT_UNIT));
+
+        //Define statement cache metrics meta data
+        addMetricMeta(metricsMeta, STATEMENT_CACHE_HITS, new MetricMeta(false, STATEMENTS_UNIT));
+        addMetricMeta(metricsMeta, STATEMENT_CACHE_MISSES, new MetricMeta(false, STATEMENTS_UNIT));
+        addMetricMeta(metricsMeta, RESULT_CACHE_HITS, new MetricMeta(false, STATEMENTS_UNIT));
+        addMetricMeta(metricsMeta, RESULT_CACHE_MISSES, new MetricMeta(false, STATEMENTS_UNIT));
+
+        //Define adaptive sampling and collector metrics meta data
+        addMetricMeta(metricsMeta, OWN_CPU_TIME, new MetricMeta(false, MILLISECONDS_UNIT));
+        addMetricMeta(metricsMeta, CYCLE_GATHER_TIME, new MetricMeta(false, MILLISECONDS_UNIT));
+        addMetricMeta(metricsMeta, CYCLE_REPORT_TIME, new MetricMeta(false, MILLISECONDS_UNIT));
+        addMetricMeta(metricsMeta, CYCLE_DURATION, new MetricMeta(false, MILLISECONDS_UNIT));
+        addMetricMeta(metricsMeta, RECONNECTS, new MetricMeta(false, RECONNECTS_UNIT));
+        addMetricMeta(metricsMeta, SPOOL_CYCLES, new MetricMeta(false, CYCLES_UNIT));
+        addMetricMeta(metricsMeta, SPOOL_REPLAYED, new MetricMeta(false, CYCLES_UNIT));
+        addMetricMeta(metricsMeta, SPOOL_DROPPED, new MetricMeta(false, CYCLES_UNIT));
+        addMetricMeta(metricsMeta, BATCH_LATENCY, new MetricMeta(false, MILLISECONDS_UNIT));
+        addMetricMeta(metricsMeta, BATCH_CATEGORIES, new MetricMeta(false, CATEGORIES_UNIT));
+        addMetricMeta(metricsMeta, MEMBERS_COLLECTED, new MetricMeta(false, MEMBERS_UNIT));
+        addMetricMeta(metricsMeta, MEMBERS_FAILED, new MetricMeta(false, MEMBERS_UNIT));
+        for (String category : categories) {
+            addMetricMeta(metricsMeta, DB2.buildString(COLLECTOR_CATEGORY, category, SEPARATOR, INTERVAL), new MetricMeta(false, SECONDS_UNIT));
+            for (int j = 0; j < ActiveCategory.STAT_NAMES.length; j++) {
+                addMetricMeta(metricsMeta, DB2.buildString(COLLECTOR_CATEGORY, category, SEPARATOR, ActiveCategory.STAT_NAMES[j]),
+                        new MetricMeta(false, ActiveCategory.STAT_UNITS[j]));
             }
         }
+        
+    }
 
-        return true;
+    /**
+     * Add the given metric meta information to the Map of all metric meta information of the category plan
+     * 
+     * @param Map metricsMeta
+     * @param String key
+     * @param Metric mm
+     */
+    private static void addMetricMeta(Map<String, MetricMeta> metricsMeta, String key, MetricMeta mm) {
+        metricsMeta.put(key.toLowerCase(), mm);
     }
 
     /**
@@ -338,6 +1095,6 @@ public class DB2Agent extends Agent {
      * @return Map
      */
     public Map<String, Object> getMetricCategories() {
-        return metricCategories;
+        return plan.getCategories();
     }
 }
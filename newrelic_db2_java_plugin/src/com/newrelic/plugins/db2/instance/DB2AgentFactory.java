@@ -3,9 +3,12 @@ package com.newrelic.plugins.db2.instance;
 import static com.newrelic.plugins.db2.util.Constants.COMMA;
 import static com.newrelic.plugins.db2.util.Constants.EMPTY_STRING;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -14,6 +17,7 @@ import org.json.simple.JSONObject;
 
 import com.newrelic.metrics.publish.Agent;
 import com.newrelic.metrics.publish.AgentFactory;
+import com.newrelic.metrics.publish.configuration.Config;
 import com.newrelic.metrics.publish.configuration.ConfigurationException;
 import com.newrelic.metrics.publish.util.Logger;
 
@@ -28,6 +32,13 @@ public class DB2AgentFactory extends AgentFactory {
 
     private static final String CATEGORY_CONFIG_FILE = "metric.category.json";
     private static final Logger logger = Logger.getLogger(DB2Agent.class);
+
+    private CollectionCoordinator coordinator = null; // Gathers the metrics of the concurrent agents, created for the first one
+    private CategoryPlan plan = null; // Categories last read from 'metric.category.json', shared by the agents
+    private final List<DB2Agent> reloading = new ArrayList<DB2Agent>(); // Agents running the categories of a reloaded file
+    private CategoryWatcher watcher = null; // Watches 'metric.category.json', started for the first agent that reloads it
+    private ShardRing shard = null; // Agents this process polls when it shares them with other processes, joined for the first sharded agent
+    private boolean sharding = false;
     
     /**
      * Configure an agent based on an entry in the properties file. There may be
@@ -66,8 +77,96 @@ public class DB2AgentFactory extends AgentFactory {
             metrics = DB2Agent.AGENT_DEFAULT_METRICS;
         }
 
-        return new DB2Agent(name, host,database, user, passwd, conn_properties,
-                processMetricCategories(metrics), readCategoryConfiguration());
+        DB2AgentOptions options = processAgentOptions(properties);
+        DB2Agent agent = new DB2Agent(name, host,database, user, passwd, conn_properties,
+                processMetricCategories(metrics), getCategoryPlan(), options);
+        if (options.isConcurrent()) {
+            if (coordinator == null) {
+                coordinator = new CollectionCoordinator(options.getCollectorThreads());
+            }
+            coordinator.register(agent);
+        }
+        if (options.isReloadCategories()) {
+            watchCategories(agent);
+        }
+        if (options.isSharded()) {
+            if (!sharding) {
+                shard = ShardRing.start(new File(options.getShardDirectory()), options.getShardStaleAfter());
+                sharding = true;
+            }
+            agent.setShard(shard);
+        }
+        return agent;
+    }
+
+    /**
+     * Return the categories of 'metric.category.json', read and compiled for the first agent and shared by all of them
+     * 
+     * @return CategoryPlan
+     * @throws ConfigurationException
+     */
+    synchronized CategoryPlan getCategoryPlan() throws ConfigurationException {
+        if (plan == null) {
+            plan = CategoryPlan.compile(readCategoryConfiguration());
+        }
+        return plan;
+    }
+
+    /**
+     * Reload the categories of an agent whenever 'metric.category.json' changes
+     * 
+     * @param agent DB2Agent
+     */
+    private synchronized void watchCategories(DB2Agent agent) {
+        reloading.add(agent);
+        if (watcher == null) {
+            watcher = CategoryWatcher.start(new File(Config.getConfigDirectory(), CATEGORY_CONFIG_FILE), new Runnable() {
+                @Override
+                public void run() {
+                    reloadCategories();
+                }
+            });
+        }
+    }
+
+    /**
+     * Read 'metric.category.json' again and hand its categories to the agents that reload them, which swap them in before their next poll cycle.
+     * A file that cannot be read or holds an invalid category is ignored, the agents keep running the categories they have.
+     */
+    void reloadCategories() {
+        CategoryPlan next;
+        try {
+            next = CategoryPlan.compile(readCategoryConfiguration());
+        } catch (ConfigurationException e) {
+            logger.error("Ignoring the changed '", CATEGORY_CONFIG_FILE, "', the agents keep their categories. ", e.getMessage());
+            return;
+        }
+        List<DB2Agent> agents;
+        synchronized (this) {
+            if (next.equals(plan)) {
+                logger.debug("'", CATEGORY_CONFIG_FILE, "' changed without changing the categories");
+                return;
+            }
+            plan = next;
+            agents = new ArrayList<DB2Agent>(reloading);
+        }
+        logger.info("'", CATEGORY_CONFIG_FILE, "' changed, reloading the categories of ", agents.size(), " agents");
+        for (DB2Agent agent : agents) {
+            agent.reload(next);
+        }
+    }
+
+    /**
+     * Read the optional tuning settings of an agent. Missing settings fall back to their defaults
+     * 
+     * @param properties Agent entry from 'plugin.json'
+     * @return DB2AgentOptions
+     * @throws ConfigurationException
+     */
+    DB2AgentOptions processAgentOptions(Map<String, Object> properties) throws ConfigurationException {
+        DB2AgentOptions options = new DB2AgentOptions(properties);
+        logger.debug("Agent options are:", options);
+        return options;
     }
 
     /**
@@ -79,16 +178,22 @@ public class DB2AgentFactory extends AgentFactory {
      */
     public Map<String, Object> readCategoryConfiguration() throws ConfigurationException {
         Map<String, Object> metricCategories = new HashMap<String, Object>();
+        JSONArray json;
         try {
-            JSONArray json = readJSONFile(CATEGORY_CONFIG_FILE);
-            for (int i = 0; i < json.size(); i++) {
-                JSONObject obj = (JSONObject) json.get(i);
-                String category = (String) obj.get("category");
-                metricCategories.put(category.toLowerCase(), obj);
-            }
+            json = readJSONFile(CATEGORY_CONFIG_FILE);
         } catch (ConfigurationException e) {
             throw new ConfigurationException("'metric_categories' could not be found in the 'plugin.json' configuration file");
         }
+        for (int i = 0; i < json.size(); i++) {
+            Object obj = json.get(i);
+            Object category = obj instanceof JSONObject ? ((JSONObject) obj).get("category") : null;
+            if (!(category instanceof String) || EMPTY_STRING.equals(((String) category).trim())) {
+                throw new ConfigurationException("Entry " + (i + 1) + " of '" + CATEGORY_CONFIG_FILE + "' has no category name");
+            }
+            if (metricCategories.put(((String) category).toLowerCase(), obj) != null) {
+                throw new ConfigurationException("Category '" + category + "' is defined more than once in '" + CATEGORY_CONFIG_FILE + "'");
+            }
+        }
         return metricCategories;
     }
 
@@ -0,0 +1,491 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.EMPTY_STRING;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.newrelic.metrics.publish.configuration.ConfigurationException;
+import com.newrelic.plugins.db2.ConnectionManager;
+
+/**
+ * This class holds the optional tuning settings of a DB2 agent, as read from the agent entry in 'plugin.json'
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class DB2AgentOptions {
+
+    public static final int DEFAULT_PARALLELISM = 1; // Run categories one after another on a single connection
+    public static final int DEFAULT_CATEGORY_TIMEOUT = 30; // Seconds
+    public static final int DEFAULT_ADAPTIVE_LATENCY_THRESHOLD = 5000; // Milliseconds
+    public static final int DEFAULT_ADAPTIVE_COST_THRESHOLD = 2000; // DB2 CPU milliseconds per poll cycle
+    public static final int DEFAULT_ADAPTIVE_MAX_BACKOFF = 8;
+    public static final int DEFAULT_RESULT_CACHE_TTL = 0; // Seconds, every agent executes the category SQL itself
+    public static final int DEFAULT_CYCLE_DEADLINE = 50; // Seconds, shorter than the poll interval
+    public static final int DEFAULT_SPOOL_MAX_AGE = 1440; // Minutes
+    public static final int DEFAULT_SPOOL_REPLAY_BATCHES = 5; // Per poll cycle
+    public static final int DEFAULT_BREAKER_FAILURES = 0; // Consecutive failures of a category, 0 runs failing categories every cycle
+    public static final int DEFAULT_BREAKER_MAX_BACKOFF = 60; // Poll cycles
+    public static final int DEFAULT_SHARD_STALE_AFTER = 180; // Seconds, three poll cycles
+    public static final String DEFAULT_PROMETHEUS_BIND = "127.0.0.1"; // Loopback only, the metrics are served without authentication
+
+    private final int parallelism;
+    private final int categoryTimeout;
+    private final int loginTimeout;
+    private final int readTimeout;
+    private final int queryTimeout;
+    private final int validationIdleTime;
+    private final boolean adaptive;
+    private final int adaptiveLatencyThreshold;
+    private final int adaptiveCostThreshold;
+    private final int adaptiveMaxBackoff;
+    private final boolean shareConnections;
+    private final int resultCacheTtl;
+    private final boolean concurrent;
+    private final int cycleDeadline;
+    private final int collectorThreads;
+    private final int fetchSize;
+    private final int spoolSize;
+    private final String spoolDirectory;
+    private final int spoolMaxAge;
+    private final int spoolReplayBatches;
+    private final boolean reportToNewRelic;
+    private final int prometheusPort;
+    private final String prometheusBind;
+    private final boolean batchCategories;
+    private final String members;
+    private final boolean reloadCategories;
+    private final int breakerFailures;
+    private final int breakerMaxBackoff;
+    private final String shardDirectory;
+    private final int shardStaleAfter;
+
+    /**
+     * Read the options from an agent entry. Missing settings fall back to their defaults
+     *
+     * @param properties Agent entry from 'plugin.json'
+     * @throws ConfigurationException
+     */
+    public DB2AgentOptions(Map<String, Object> properties) throws ConfigurationException {
+        this.parallelism = Math.max(1, getIntProperty(properties, "parallelism", DEFAULT_PARALLELISM));
+        this.categoryTimeout = positive(getIntProperty(properties, "category_timeout", DEFAULT_CATEGORY_TIMEOUT), DEFAULT_CATEGORY_TIMEOUT);
+        this.loginTimeout = Math.max(0, getIntProperty(properties, "login_timeout", ConnectionManager.DEFAULT_LOGIN_TIMEOUT));
+        this.readTimeout = Math.max(0, getIntProperty(properties, "read_timeout", ConnectionManager.DEFAULT_READ_TIMEOUT));
+        this.queryTimeout = Math.max(0, getIntProperty(properties, "query_timeout", ConnectionManager.DEFAULT_QUERY_TIMEOUT));
+        this.validationIdleTime = positive(getIntProperty(properties, "validation_idle_time", ConnectionManager.DEFAULT_VALIDATION_IDLE_TIME),
+                ConnectionManager.DEFAULT_VALIDATION_IDLE_TIME);
+        this.adaptive = getBooleanProperty(properties, "adaptive", false);
+        this.adaptiveLatencyThreshold = positive(getIntProperty(properties, "adaptive_latency_threshold", DEFAULT_ADAPTIVE_LATENCY_THRESHOLD),
+                DEFAULT_ADAPTIVE_LATENCY_THRESHOLD);
+        this.adaptiveCostThreshold = positive(getIntProperty(properties, "adaptive_cost_threshold", DEFAULT_ADAPTIVE_COST_THRESHOLD),
+                DEFAULT_ADAPTIVE_COST_THRESHOLD);
+        this.adaptiveMaxBackoff = positive(getIntProperty(properties, "adaptive_max_backoff", DEFAULT_ADAPTIVE_MAX_BACKOFF), DEFAULT_ADAPTIVE_MAX_BACKOFF);
+        this.shareConnections = getBooleanProperty(properties, "share_connections", false);
+        this.resultCacheTtl = Math.max(0, getIntProperty(properties, "result_cache_ttl", DEFAULT_RESULT_CACHE_TTL));
+        this.concurrent = getBooleanProperty(properties, "concurrent", false);
+        this.cycleDeadline = positive(getIntProperty(properties, "cycle_deadline", DEFAULT_CYCLE_DEADLINE), DEFAULT_CYCLE_DEADLINE);
+        this.collectorThreads = Math.max(0, getIntProperty(properties, "collector_threads", 0));
+        this.fetchSize = Math.max(0, getIntProperty(properties, "fetch_size", 0));
+        this.spoolSize = Math.max(0, getIntProperty(properties, "spool_size_mb", 0));
+        if (spoolSize > MetricSpool.MAX_SIZE_MB) {
+            throw new ConfigurationException("The 'spool_size_mb' attribute must be at most " + MetricSpool.MAX_SIZE_MB
+                    + ", the spool file is mapped into memory as a whole. Have you configured the 'config/plugin.json' file?");
+        }
+        this.spoolDirectory = getStringProperty(properties, "spool_dir", System.getProperty("java.io.tmpdir"));
+        this.spoolMaxAge = positive(getIntProperty(properties, "spool_max_age", DEFAULT_SPOOL_MAX_AGE), DEFAULT_SPOOL_MAX_AGE);
+        this.spoolReplayBatches = positive(getIntProperty(properties, "spool_replay_batches", DEFAULT_SPOOL_REPLAY_BATCHES),
+                DEFAULT_SPOOL_REPLAY_BATCHES);
+        this.reportToNewRelic = getBooleanProperty(properties, "report_to_newrelic", true);
+        this.prometheusPort = Math.max(0, getIntProperty(properties, "prometheus_port", 0));
+        this.prometheusBind = getStringProperty(properties, "prometheus_bind", DEFAULT_PROMETHEUS_BIND);
+        this.batchCategories = getBooleanProperty(properties, "batch_categories", false);
+        this.members = getStringProperty(properties, "members", EMPTY_STRING);
+        this.reloadCategories = getBooleanProperty(properties, "reload_categories", false);
+        this.breakerFailures = Math.max(0, getIntProperty(properties, "breaker_failures", DEFAULT_BREAKER_FAILURES));
+        this.breakerMaxBackoff = positive(getIntProperty(properties, "breaker_max_backoff", DEFAULT_BREAKER_MAX_BACKOFF), DEFAULT_BREAKER_MAX_BACKOFF);
+        this.shardDirectory = getStringProperty(properties, "shard_dir", EMPTY_STRING);
+        this.shardStaleAfter = positive(getIntProperty(properties, "shard_stale_after", DEFAULT_SHARD_STALE_AFTER), DEFAULT_SHARD_STALE_AFTER);
+    }
+
+    public static DB2AgentOptions defaultOptions() {
+        try {
+            return new DB2AgentOptions(new HashMap<String, Object>());
+        } catch (ConfigurationException e) {
+            throw new IllegalStateException(e); // Defaults are always valid
+        }
+    }
+
+    /**
+     * Number of connections (and collector threads) used to run the metric categories of one poll cycle
+     *
+     * @return int
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Maximum time in seconds a category may take in parallel mode before it is skipped for the cycle
+     *
+     * @return int
+     */
+    public int getCategoryTimeout() {
+        return categoryTimeout;
+    }
+
+    public boolean isParallel() {
+        return parallelism > 1;
+    }
+
+    /**
+     * Seconds the driver waits for a new connection, 0 for no limit
+     *
+     * @return int
+     */
+    public int getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    /**
+     * Seconds the driver waits for a single network read, 0 for no limit
+     *
+     * @return int
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Seconds a category query may run, 0 for no limit
+     *
+     * @return int
+     */
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * Seconds a connection may be idle before it is validated again
+     *
+     * @return int
+     */
+    public int getValidationIdleTime() {
+        return validationIdleTime;
+    }
+
+    /**
+     * Whether categories are backed off or dropped while DB2 is under pressure
+     *
+     * @return boolean
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Milliseconds a category query may take before the category is backed off
+     *
+     * @return int
+     */
+    public int getAdaptiveLatencyThreshold() {
+        return adaptiveLatencyThreshold;
+    }
+
+    /**
+     * DB2 CPU milliseconds the agent's connections may use per poll cycle before categories are backed off and optional ones dropped
+     *
+     * @return int
+     */
+    public int getAdaptiveCostThreshold() {
+        return adaptiveCostThreshold;
+    }
+
+    /**
+     * Largest multiple of its configured interval a category is backed off to
+     *
+     * @return int
+     */
+    public int getAdaptiveMaxBackoff() {
+        return adaptiveMaxBackoff;
+    }
+
+    /**
+     * Whether the agent shares its connections, and the executions of its categories, with the other agents of the same host, database and user
+     *
+     * @return boolean
+     */
+    public boolean isShareConnections() {
+        return shareConnections;
+    }
+
+    /**
+     * Seconds an execution of a category SQL is reused by the other agents of the same database, 0 to execute it for every agent
+     *
+     * @return int
+     */
+    public int getResultCacheTtl() {
+        return resultCacheTtl;
+    }
+
+    /**
+     * Whether the agent gathers its metrics on a thread of the process-wide collection coordinator, at the same time as the other concurrent agents
+     *
+     * @return boolean
+     */
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Seconds a concurrent agent's poll cycle may take before it is reported without metrics. Its metrics are reported once it completes.
+     *
+     * @return int
+     */
+    public int getCycleDeadline() {
+        return cycleDeadline;
+    }
+
+    /**
+     * Threads of the collection coordinator, 0 for a virtual thread per agent where the JVM supports them. Taken from the first concurrent agent.
+     *
+     * @return int
+     */
+    public int getCollectorThreads() {
+        return collectorThreads;
+    }
+
+    /**
+     * Rows the driver fetches per network round-trip while a category result set is read, 0 for the driver default
+     *
+     * @return int
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Megabytes of the file the metrics of poll cycles that could not be published are spooled to, 0 disables the spool, at most
+     * MetricSpool.MAX_SIZE_MB
+     *
+     * @return int
+     */
+    public int getSpoolSize() {
+        return spoolSize;
+    }
+
+    /**
+     * Directory of the spool files, one per agent
+     *
+     * @return String
+     */
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * Minutes a spooled poll cycle is kept before it is dropped without being replayed
+     *
+     * @return int
+     */
+    public int getSpoolMaxAge() {
+        return spoolMaxAge;
+    }
+
+    /**
+     * Spooled poll cycles replayed per poll cycle once publishing works again
+     *
+     * @return int
+     */
+    public int getSpoolReplayBatches() {
+        return spoolReplayBatches;
+    }
+
+    /**
+     * Whether the metrics are reported to New Relic, they may only be exposed to Prometheus
+     *
+     * @return boolean
+     */
+    public boolean isReportToNewRelic() {
+        return reportToNewRelic;
+    }
+
+    /**
+     * Port the metrics are served on to Prometheus at /metrics, shared by the agents with the same port. 0 disables it
+     *
+     * @return int
+     */
+    public int getPrometheusPort() {
+        return prometheusPort;
+    }
+
+    /**
+     * Address the Prometheus port is bound to, the loopback address unless configured otherwise, e.g. 0.0.0.0 to serve all interfaces. The address
+     * of the first agent using a port applies to the port.
+     *
+     * @return String
+     */
+    public String getPrometheusBind() {
+        return prometheusBind;
+    }
+
+    /**
+     * Whether the row categories due in a poll cycle are collected with one compound query. Does not apply in parallel mode, where each category
+     * runs on its own connection
+     *
+     * @return boolean
+     */
+    public boolean isBatchCategories() {
+        return batchCategories;
+    }
+
+    /**
+     * Members of a pureScale or partitioned database collected separately and at the same time, each on connections of its own: comma separated
+     * host:port entries, or auto to find them in SYSIBMADM.DB2_MEMBER. Empty collects the database through the agent's host only
+     *
+     * @return String
+     */
+    public String getMembers() {
+        return members;
+    }
+
+    public boolean isPerMember() {
+        return !EMPTY_STRING.equals(members);
+    }
+
+    /**
+     * Whether the agent picks up changes to 'metric.category.json' while it runs, between two poll cycles
+     *
+     * @return boolean
+     */
+    public boolean isReloadCategories() {
+        return reloadCategories;
+    }
+
+    /**
+     * Consecutive failures after which a category is skipped for a while, 0 to run failing categories every cycle
+     *
+     * @return int
+     */
+    public int getBreakerFailures() {
+        return breakerFailures;
+    }
+
+    /**
+     * Most poll cycles a failing category is skipped for before it is tried again
+     *
+     * @return int
+     */
+    public int getBreakerMaxBackoff() {
+        return breakerMaxBackoff;
+    }
+
+    /**
+     * Directory the plugin processes sharing the agents of 'plugin.json' write their heartbeats to, empty if this process polls all agents
+     *
+     * @return String
+     */
+    public String getShardDirectory() {
+        return shardDirectory;
+    }
+
+    public boolean isSharded() {
+        return !EMPTY_STRING.equals(shardDirectory);
+    }
+
+    /**
+     * Seconds after which a process whose heartbeat did not change is dropped, and its agents are polled by the other processes
+     *
+     * @return int
+     */
+    public int getShardStaleAfter() {
+        return shardStaleAfter;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+            .append("parallelism: ").append(parallelism)
+            .append(", category_timeout: ").append(categoryTimeout)
+            .append(", login_timeout: ").append(loginTimeout)
+            .append(", read_timeout: ").append(readTimeout)
+            .append(", query_timeout: ").append(queryTimeout)
+            .append(", validation_idle_time: ").append(validationIdleTime)
+            .append(", adaptive: ").append(adaptive)
+            .append(", adaptive_latency_threshold: ").append(adaptiveLatencyThreshold)
+            .append(", adaptive_cost_threshold: ").append(adaptiveCostThreshold)
+            .append(", adaptive_max_backoff: ").append(adaptiveMaxBackoff)
+            .append(", share_connections: ").append(shareConnections)
+            .append(", result_cache_ttl: ").append(resultCacheTtl)
+            .append(", concurrent: ").append(concurrent)
+            .append(", cycle_deadline: ").append(cycleDeadline)
+            .append(", collector_threads: ").append(collectorThreads)
+            .append(", fetch_size: ").append(fetchSize)
+            .append(", spool_size_mb: ").append(spoolSize)
+            .append(", spool_dir: ").append(spoolDirectory)
+            .append(", spool_max_age: ").append(spoolMaxAge)
+            .append(", spool_replay_batches: ").append(spoolReplayBatches)
+            .append(", report_to_newrelic: ").append(reportToNewRelic)
+            .append(", prometheus_port: ").append(prometheusPort)
+            .append(", prometheus_bind: ").append(prometheusBind)
+            .append(", batch_categories: ").append(batchCategories)
+            .append(", members: ").append(members)
+            .append(", reload_categories: ").append(reloadCategories)
+            .append(", breaker_failures: ").append(breakerFailures)
+            .append(", breaker_max_backoff: ").append(breakerMaxBackoff)
+            .append(", shard_dir: ").append(shardDirectory)
+            .append(", shard_stale_after: ").append(shardStaleAfter)
+            .toString();
+    }
+
+    private static int positive(int value, int defaultValue) {
+        return value < 1 ? defaultValue : value;
+    }
+
+    /**
+     * Boolean attributes may be given either as JSON booleans or as strings
+     */
+    static boolean getBooleanProperty(Map<String, Object> properties, String key, boolean defaultValue) throws ConfigurationException {
+        Object value = properties.get(key);
+        if (value == null || EMPTY_STRING.equals(value)) {
+            return defaultValue;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        String s = value.toString().trim();
+        if ("true".equalsIgnoreCase(s) || "false".equalsIgnoreCase(s)) {
+            return Boolean.parseBoolean(s);
+        }
+        throw new ConfigurationException("The '" + key + "' attribute must be true or false. Have you configured the 'config/plugin.json' file?");
+    }
+
+    /**
+     * String attributes, blank values fall back to the default
+     */
+    static String getStringProperty(Map<String, Object> properties, String key, String defaultValue) {
+        Object value = properties.get(key);
+        if (value == null || EMPTY_STRING.equals(value.toString().trim())) {
+            return defaultValue;
+        }
+        return value.toString().trim();
+    }
+
+    /**
+     * Numeric attributes may be given either as JSON numbers or as strings
+     */
+    static int getIntProperty(Map<String, Object> properties, String key, int defaultValue) throws ConfigurationException {
+        Object value = properties.get(key);
+        if (value == null || EMPTY_STRING.equals(value)) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException("The '" + key + "' attribute must be a number. Have you configured the 'config/plugin.json' file?");
+        }
+    }
+}
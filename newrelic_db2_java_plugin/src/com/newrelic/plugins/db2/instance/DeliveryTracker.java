@@ -0,0 +1,374 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import com.newrelic.metrics.publish.Agent;
+import com.newrelic.metrics.publish.binding.Context;
+import com.newrelic.metrics.publish.binding.Request;
+import com.newrelic.metrics.publish.util.Logger;
+import com.newrelic.plugins.db2.MetricRegistry;
+
+/**
+ * This class tells an agent whether the requests its metrics were reported into got delivered to New Relic, spools the poll cycles the SDK gives up
+ * on, and publishes them again once New Relic accepts requests.
+ *
+ * The SDK does not expose the outcome of a delivery, so the request of the agent's collector and its delivered flag are read by reflection. If the
+ * SDK does not have them, create returns null and the agent runs without a spool; if reading them fails later on, the tracker stops spooling. Either
+ * is logged once for all agents.
+ *
+ * Only counters are spooled. Their rates still add up to the right totals when they are published later, while a gauge published in another minute
+ * than it was sampled in would only be misleading.
+ *
+ * Spooled poll cycles are published on a replay thread shared by the agents, so the blocking POSTs never hold up a poll cycle. The Plugin API takes
+ * no timestamp: a replayed poll cycle is attributed to the minute it is published in, not to the minute it was collected in, and only fills in the
+ * totals and averages of the metrics over a longer time window.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class DeliveryTracker {
+
+    private static final Logger logger = Logger.getLogger(DeliveryTracker.class);
+
+    private static final int CONNECTION_TIMEOUT = 20000; // Milliseconds, as the SDK
+    private static final int DURATION = 60; // Seconds of metrics each spooled poll cycle covers
+    private static final String OK_STATUS = "ok";
+
+    private static final AtomicBoolean warned = new AtomicBoolean(); // Whether the SDK failed to tell a delivery before
+    private static final ExecutorService replayer = Executors.newSingleThreadExecutor(new DB2Agent.CollectorThreadFactory("spool replay"));
+
+    private final Agent agent;
+    private final Object collector;
+    private final Field requestField;
+    private final Method isDelivered;
+    private final Context context;
+
+    private MetricSpool spool = null; // Metrics of the poll cycles that could not be published, null until the spool is opened
+    private int replayBatches = 0; // Spooled poll cycles replayed after each delivery
+    private MetricSpool.Batch batch = null; // Metrics reported in the current poll cycle
+    private MetricSpool.Batch lastBatch = null; // Metrics reported in the previous poll cycle
+    private Request lastRequest = null; // Request they were reported into
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private final AtomicInteger replayed = new AtomicInteger();
+    private long reportedDropped = 0L;
+    private boolean disabled = false; // Set once the SDK failed to tell whether a request was delivered
+
+    private MetricRegistry collectorMetrics = null; // The state of the spool is reported with, null until set
+    private int spoolCyclesId;
+    private int spoolReplayedId;
+    private int spoolDroppedId;
+
+    private DeliveryTracker(Agent agent, Object collector, Field requestField, Method isDelivered, Context context) {
+        this.agent = agent;
+        this.collector = collector;
+        this.requestField = requestField;
+        this.isDelivered = isDelivered;
+        this.context = context;
+    }
+
+    /**
+     * Create the tracker of an agent, once the Runner set up its context
+     *
+     * @param agent Agent
+     * @return DeliveryTracker, or null if the SDK does not allow to track deliveries
+     */
+    public static DeliveryTracker create(Agent agent) {
+        try {
+            Method getCollector = Agent.class.getDeclaredMethod("getCollector");
+            getCollector.setAccessible(true);
+            Object collector = getCollector.invoke(agent);
+            Field requestField = collector.getClass().getDeclaredField("request");
+            requestField.setAccessible(true);
+            Method isDelivered = Request.class.getDeclaredMethod("isDelivered");
+            isDelivered.setAccessible(true);
+            Context context = (Context) collector.getClass().getMethod("getContext").invoke(collector);
+            if (context == null) {
+                logger.warn("Agent ", agent.getComponentHumanLabel(), " has no context yet, metrics are not spooled");
+                return null;
+            }
+            return new DeliveryTracker(agent, collector, requestField, isDelivered, context);
+        } catch (Exception e) {
+            warnUnsupported(e);
+            return null;
+        }
+    }
+
+    private static void warnUnsupported(Exception e) {
+        if (warned.compareAndSet(false, true)) {
+            logger.warn("Unable to track the delivery of metrics with this version of the SDK, metrics are not spooled. ", e);
+        } else {
+            logger.debug("Unable to track the delivery of metrics, metrics are not spooled. ", e.getMessage());
+        }
+    }
+
+    /**
+     * Stop spooling, the SDK could not tell whether a request was delivered. The spooled poll cycles are kept for a later run.
+     *
+     * @param e Exception the SDK failed with
+     */
+    void disable(Exception e) {
+        disabled = true;
+        lastRequest = null;
+        lastBatch = null;
+        batch = null;
+        warnUnsupported(e);
+    }
+
+    /**
+     * Spool the poll cycles of the agent that the SDK gives up on
+     *
+     * @param spool MetricSpool
+     * @param replayBatches int spooled poll cycles replayed after each delivery
+     */
+    public void setSpool(MetricSpool spool, int replayBatches) {
+        this.spool = spool;
+        this.replayBatches = replayBatches;
+    }
+
+    public MetricSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Report the state of the spool with the collector metrics of the agent
+     *
+     * @param collectorMetrics MetricRegistry of the collector metrics of the agent
+     */
+    void setCollectorMetrics(MetricRegistry collectorMetrics) {
+        this.collectorMetrics = collectorMetrics;
+        this.spoolCyclesId = collectorMetrics.getId(SPOOL_CYCLES);
+        this.spoolReplayedId = collectorMetrics.getId(SPOOL_REPLAYED);
+        this.spoolDroppedId = collectorMetrics.getId(SPOOL_DROPPED);
+    }
+
+    /**
+     * Write the spooled poll cycles, and those replayed and dropped since the last call, to the collector metrics
+     */
+    void reportMetrics() {
+        if (collectorMetrics == null) {
+            return;
+        }
+        collectorMetrics.set(spoolCyclesId, spool.getRecords());
+        collectorMetrics.set(spoolReplayedId, takeReplayed());
+        collectorMetrics.set(spoolDroppedId, takeDropped());
+    }
+
+    /**
+     * Start a poll cycle, checking whether the metrics of the previous one were published. The SDK keeps the metrics of undelivered poll cycles and
+     * sends them with the next request, for up to 20 minutes. Until then they are spooled and marked, once delivered they are discarded again, and
+     * once the SDK starts a new request they become spooled poll cycles of their own. These are replayed a few at a time after a delivery.
+     */
+    public void startCycle() {
+        if (disabled) {
+            return;
+        }
+        Request current = getRequest();
+        boolean delivered = lastRequest != null && isDelivered(lastRequest);
+        if (disabled) {
+            return; // Failed to read the request or its delivered flag
+        }
+        if (lastRequest != null) {
+            if (delivered) {
+                spool.rewind(); // The SDK delivered them with the previous cycle
+                startReplay();
+            } else {
+                if (!spool.isMarked()) {
+                    spool.mark();
+                }
+                if (lastBatch != null) { // Nothing was reported if the cycle gathered nothing
+                    spool.append(lastBatch);
+                }
+                if (current != lastRequest) {
+                    spool.commit(); // The SDK dropped them
+                    logger.warn("Metrics could not be published for 20 minutes, ", spool.getRecords(), " poll cycles are spooled to ", spool.getFile(),
+                            ". Agent: ", agent.getComponentHumanLabel());
+                }
+            }
+        }
+        lastRequest = current;
+        lastBatch = null;
+        batch = new MetricSpool.Batch(System.currentTimeMillis());
+    }
+
+    /**
+     * Keep a counter reported in the current poll cycle, in case it cannot be published
+     */
+    public void record(String metricName, String units, float value) {
+        if (batch != null) {
+            batch.add(metricName, units, value);
+        }
+    }
+
+    /**
+     * End a poll cycle whose metrics were reported
+     */
+    public void endCycle() {
+        lastBatch = batch;
+    }
+
+    /**
+     * @return int spooled poll cycles replayed since the last call
+     */
+    public int takeReplayed() {
+        return replayed.getAndSet(0);
+    }
+
+    /**
+     * @return long spooled poll cycles dropped since the last call, because the spool was full or they expired
+     */
+    public long takeDropped() {
+        long dropped = spool.getDropped();
+        long delta = dropped - reportedDropped;
+        reportedDropped = dropped;
+        return delta;
+    }
+
+    /**
+     * Replay spooled poll cycles on the replay thread, unless a replay of this agent is still running
+     */
+    private void startReplay() {
+        if (replaying.compareAndSet(false, true)) {
+            replayer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        replay();
+                    } finally {
+                        replaying.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Publish the oldest spooled poll cycles, up to replayBatches, stopping at the first that is not accepted
+     */
+    void replay() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < replayBatches; i++) {
+            MetricSpool.Batch spooled = spool.peek(now);
+            if (spooled == null || !publish(spooled)) {
+                return;
+            }
+            spool.remove(spooled);
+            replayed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Request the agent reports its metrics into in the current poll cycle, null if it has none
+     */
+    public Request getRequest() {
+        try {
+            return (Request) requestField.get(collector);
+        } catch (IllegalAccessException e) {
+            disable(e);
+            return null;
+        }
+    }
+
+    /**
+     * @param request Request
+     * @return boolean whether the request was delivered to New Relic
+     */
+    public boolean isDelivered(Request request) {
+        try {
+            return Boolean.TRUE.equals(isDelivered.invoke(request));
+        } catch (Exception e) {
+            disable(e);
+            return false;
+        }
+    }
+
+    /**
+     * Publish the metrics of a spooled poll cycle. The Plugin API takes no timestamp, they are attributed to the time they are published, as a poll
+     * cycle of DURATION seconds.
+     *
+     * @param batch MetricSpool.Batch
+     * @return boolean true if New Relic accepted them
+     */
+    @SuppressWarnings("unchecked")
+    public boolean publish(MetricSpool.Batch batch) {
+        JSONObject metrics = new JSONObject();
+        for (int i = 0; i < batch.size(); i++) {
+            metrics.put(new StringBuilder("Component/").append(batch.getName(i)).append('[').append(batch.getUnit(i)).append(']').toString(),
+                    batch.getValue(i));
+        }
+        JSONObject component = new JSONObject();
+        component.put("name", agent.getComponentHumanLabel());
+        component.put("guid", agent.getGUID());
+        component.put("duration", DURATION);
+        component.put("metrics", metrics);
+        JSONArray components = new JSONArray();
+        components.add(component);
+        Map<String, Object> agentData = new HashMap<String, Object>();
+        agentData.put("host", context.agentData.host);
+        agentData.put("pid", context.agentData.pid);
+        agentData.put("version", context.agentData.version);
+        JSONObject body = new JSONObject();
+        body.put("agent", agentData);
+        body.put("components", components);
+
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(context.getServiceURI()).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("X-License-Key", context.licenseKey);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Accept", "application/json");
+            connection.setConnectTimeout(CONNECTION_TIMEOUT);
+            connection.setReadTimeout(CONNECTION_TIMEOUT);
+            connection.setDoOutput(true);
+            Writer out = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
+            try {
+                body.writeJSONString(out);
+            } finally {
+                out.close();
+            }
+            int code = connection.getResponseCode();
+            InputStream stream = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            Object response = null;
+            if (stream != null) {
+                Reader in = new InputStreamReader(stream, "UTF-8");
+                try {
+                    response = JSONValue.parse(in);
+                } finally {
+                    in.close();
+                }
+            }
+            if (code == HttpURLConnection.HTTP_OK && response instanceof Map && OK_STATUS.equals(((Map<?, ?>) response).get("status"))) {
+                return true;
+            }
+            logger.debug("Spooled poll cycle not accepted by New Relic, response ", code, ": ", response);
+            return false;
+        } catch (Exception e) {
+            logger.debug("Unable to publish a spooled poll cycle. ", e.getMessage());
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import com.newrelic.metrics.publish.util.Logger;
+import com.newrelic.plugins.db2.DB2;
+import com.newrelic.plugins.db2.MetricRegistry;
+
+/**
+ * This class holds the members of a DB2 pureScale or partitioned (DPF) database an agent collects from at the same time, each through connections of
+ * its own. The members are either listed in the members attribute of the agent as host:port entries, numbered in the order they are listed, or found in
+ * SYSIBMADM.DB2_MEMBER with members set to auto. Discovered members on different hosts are reached at their home host, on the port of the agent,
+ * and the logical members of a single host through the JCC connectNode property.
+ *
+ * A category runs on each member if its SQL reads the MON_GET table functions for all members (-2), which then read the current member (-1) instead.
+ * Any other category, e.g. one on a SYSIBMADM view that already covers all members, runs once for the database. The member_scope attribute of a
+ * category, member or cluster, overrides this.
+ *
+ * Once started, the members of each poll cycle are collected at the same time on threads of the agent, along with the categories that run once for
+ * the database. A member that does not complete within the category timeout is reported as failed, and collected again once its running categories
+ * returned.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class MemberSet {
+
+    private static final Logger logger = Logger.getLogger(MemberSet.class);
+
+    private static final Pattern ALL_MEMBERS = Pattern.compile("(?i)(mon_get_\\w+\\s*\\([^()]*?)-2(\\s*\\))");
+    private static final String CONNECT_NODE = "connectNode=";
+
+    private final String[] ids;
+    private final String[] hosts;
+    private final SharedTarget[] targets;
+    private final int categoryTimeout; // Seconds
+
+    private ExecutorService executor = null; // Collects the members of a poll cycle at the same time, null until started
+    private CollectionTask.MemberTask[] tasks = new CollectionTask.MemberTask[0]; // Of each member, followed by the categories run once for the database
+    private MetricRegistry collectorMetrics = null;
+    private int membersCollectedId;
+    private int membersFailedId;
+
+    private MemberSet(String[] ids, String[] hosts, String[] properties, String database, String user, String passwd, DB2AgentOptions options) {
+        this.ids = ids;
+        this.hosts = hosts;
+        this.categoryTimeout = options.getCategoryTimeout();
+        this.targets = new SharedTarget[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            targets[i] = SharedTarget.acquire(hosts[i], database, user, passwd, properties[i], options);
+        }
+    }
+
+    /**
+     * Create the members listed in the members attribute of an agent
+     *
+     * @param members String comma separated host:port of each member
+     * @param database String database name
+     * @param user String DB2 user
+     * @param passwd String DB2 user password
+     * @param properties String JCC connection properties of the agent
+     * @param options DB2AgentOptions of the agent
+     * @return MemberSet
+     */
+    static MemberSet listed(String members, String database, String user, String passwd, String properties, DB2AgentOptions options) {
+        List<String> hosts = new ArrayList<String>();
+        for (String member : members.split(COMMA)) {
+            if (!EMPTY_STRING.equals(member.trim())) {
+                hosts.add(member.trim());
+            }
+        }
+        String[] ids = new String[hosts.size()];
+        String[] memberProperties = new String[hosts.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = String.valueOf(i);
+            memberProperties[i] = properties;
+        }
+        return new MemberSet(ids, hosts.toArray(new String[ids.length]), memberProperties, database, user, passwd, options);
+    }
+
+    /**
+     * Find the members of the database the agent is connected to
+     *
+     * @param db2 DB2 connection of the agent
+     * @param host String DB2 Instance host:port of the agent
+     * @param database String database name
+     * @param user String DB2 user
+     * @param passwd String DB2 user password
+     * @param properties String JCC connection properties of the agent
+     * @param options DB2AgentOptions of the agent
+     * @return MemberSet, empty if the database has a single member, or null if the members could not be read
+     */
+    static MemberSet discover(DB2 db2, String host, String database, String user, String passwd, String properties, DB2AgentOptions options) {
+        Map<String, String> members = db2.getMembers();
+        if (members == null) {
+            return null;
+        }
+        String[] ids = members.keySet().toArray(new String[members.size()]);
+        if (ids.length < 2) {
+            ids = new String[0];
+        }
+        Set<String> homes = new HashSet<String>(members.values());
+        int colon = host.lastIndexOf(':');
+        String[] hosts = new String[ids.length];
+        String[] memberProperties = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (homes.size() > 1) { // pureScale, or partitions spread over several hosts
+                hosts[i] = colon < 0 ? members.get(ids[i]) : members.get(ids[i]) + host.substring(colon);
+                memberProperties[i] = properties;
+            } else { // Logical partitions of one host
+                hosts[i] = host;
+                memberProperties[i] = DB2.buildString(properties == null ? EMPTY_STRING : properties, CONNECT_NODE, ids[i], ";");
+            }
+        }
+        return new MemberSet(ids, hosts, memberProperties, database, user, passwd, options);
+    }
+
+    /**
+     * Decide whether a category runs on each member
+     *
+     * @param sql String SQL of the category
+     * @param scope String member_scope attribute of the category, member or cluster, may be null
+     * @return boolean
+     */
+    static boolean isMemberScoped(String sql, String scope) {
+        if (scope != null && !EMPTY_STRING.equals(scope.trim())) {
+            return MEMBER.equalsIgnoreCase(scope.trim());
+        }
+        return ALL_MEMBERS.matcher(sql).find();
+    }
+
+    /**
+     * Turn the SQL of a category into the SQL a member runs, reading the MON_GET table functions for the current member only
+     *
+     * @param sql String SQL of the category
+     * @return String
+     */
+    static String toMemberSQL(String sql) {
+        return ALL_MEMBERS.matcher(sql).replaceAll("$1-1$2");
+    }
+
+    /**
+     * @return int number of members, 0 if the database has a single one
+     */
+    int size() {
+        return ids.length;
+    }
+
+    String getId(int member) {
+        return ids[member];
+    }
+
+    String getHost(int member) {
+        return hosts[member];
+    }
+
+    SharedTarget getTarget(int member) {
+        return targets[member];
+    }
+
+    /**
+     * Start collecting the members, on threads named after the agent
+     *
+     * @param agentName String name of the agent
+     * @param collectorMetrics MetricRegistry of the collector metrics of the agent
+     */
+    void start(String agentName, MetricRegistry collectorMetrics) {
+        this.executor = Executors.newFixedThreadPool(ids.length + 1, new DB2Agent.CollectorThreadFactory(agentName));
+        this.tasks = new CollectionTask.MemberTask[ids.length + 1];
+        this.collectorMetrics = collectorMetrics;
+        this.membersCollectedId = collectorMetrics.getId(MEMBERS_COLLECTED);
+        this.membersFailedId = collectorMetrics.getId(MEMBERS_FAILED);
+    }
+
+    /**
+     * Stop collecting the members and give up their targets, once the agent is shut down
+     *
+     * @param agent Object agent the members belong to
+     */
+    void shutdown(Object agent) {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (SharedTarget target : targets) {
+            target.release(agent);
+        }
+    }
+
+    /**
+     * Collect each member at the same time, running the due categories that run on each member on a connection of the member, and those that run
+     * once for the database on a connection of the agent. A member still running from an earlier cycle is not collected again.
+     *
+     * @param target SharedTarget of the agent
+     * @param host String DB2 Instance host:port of the agent
+     * @param active ActiveCategory[] categories of the agent
+     * @param scheduler CategoryScheduler telling the categories due in this cycle
+     * @param deadline long System.nanoTime() the members are waited for until
+     * @param agentInfo String name and version of the agent, for logging
+     * @return boolean[][] categories each member completed, followed by those run once for the database, null for a member that did not complete,
+     *         or null if the thread was interrupted
+     */
+    boolean[][] collect(SharedTarget target, String host, ActiveCategory[] active, CategoryScheduler scheduler, long deadline, String agentInfo) {
+        for (int m = 0; m < tasks.length; m++) {
+            if (tasks[m] != null && tasks[m].isRunning()) {
+                continue; // Still running from an earlier cycle, it owns the registries of the member
+            }
+            if (m < ids.length) {
+                tasks[m] = new CollectionTask.MemberTask(targets[m], hosts[m], m, active, scheduler, deadline);
+            } else {
+                tasks[m] = new CollectionTask.MemberTask(target, host, -1, active, scheduler, deadline);
+            }
+            tasks[m].submit(executor);
+        }
+
+        boolean[][] success = new boolean[tasks.length][];
+        int failed = 0;
+        for (int m = 0; m < tasks.length; m++) {
+            String what = m < ids.length ? DB2.buildString("Member ", ids[m]) : "The categories of the whole database";
+            try {
+                success[m] = tasks[m].get();
+            } catch (TimeoutException e) {
+                logger.warn(what, " did not complete within ", categoryTimeout, " seconds and was skipped. ", agentInfo);
+            } catch (ExecutionException e) {
+                logger.error(what, " failed. ", agentInfo, " ", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (success[m] == null && m < ids.length) {
+                failed++;
+            }
+        }
+        collectorMetrics.set(membersCollectedId, ids.length - failed);
+        collectorMetrics.set(membersFailedId, failed);
+        return success;
+    }
+
+    /**
+     * @return boolean whether no member of an earlier cycle is still being collected
+     */
+    boolean isIdle() {
+        for (CollectionTask<?> task : tasks) {
+            if (task != null && task.isRunning()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Log where each member is collected from
+     *
+     * @param agentInfo String name and version of the agent
+     */
+    void log(String agentInfo) {
+        for (int i = 0; i < ids.length; i++) {
+            logger.info("Collecting member ", ids[i], " at ", hosts[i], ". ", agentInfo);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.newrelic.plugins.db2.instance;
+
+import com.newrelic.plugins.db2.MetricRegistry;
+
+/**
+ * A destination of the metrics an agent collects. The agent walks the registries of a poll cycle once and hands every metric to each of its sinks, so
+ * New Relic and a Prometheus endpoint are fed from the same collection, without querying DB2 twice.
+ *
+ * A sink is called on the agent's poll thread, one cycle at a time.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public interface MetricSink {
+
+    /**
+     * Start the metrics of a poll cycle
+     */
+    void beginCycle();
+
+    /**
+     * Take one metric of the poll cycle
+     *
+     * @param registry MetricRegistry the metric was collected into
+     * @param id int metric id in the registry
+     * @param unit String unit of the metric
+     * @param counter boolean whether the metric is a cumulative counter, its raw value is registry.getLong(id)
+     * @param value double value of the metric, for a counter its per-second rate, NaN on its first sample or after a reset
+     * @return boolean whether the sink took the metric
+     */
+    boolean report(MetricRegistry registry, int id, String unit, boolean counter, double value);
+
+    /**
+     * Complete the metrics of a poll cycle
+     */
+    void endCycle();
+
+    /**
+     * Take back the metrics of the previous poll cycles, the agent gathered nothing in this one
+     */
+    void withdraw();
+}
@@ -0,0 +1,385 @@
+package com.newrelic.plugins.db2.instance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class keeps the metrics of poll cycles that could not be published in a memory-mapped ring file, so they survive an outage of the New
+ * Relic endpoint longer than the SDK holds them, and a restart of the plugin.
+ *
+ * The file has a fixed size: a header holding the offsets of the oldest and the next record, then the ring of records, each a length, a timestamp
+ * and the encoded metrics of one poll cycle. Offsets only grow, a record's position in the ring is its offset modulo the ring size, so a record may
+ * wrap around the end of the file. When the ring is full the oldest records are dropped, and records older than the maximum age are dropped
+ * before they are replayed.
+ *
+ * Records appended since the mark are still held by the SDK, which aggregates the metrics of undelivered poll cycles into its next request. They
+ * are discarded by rewind once the SDK delivers them, and become replayable by commit once the SDK gives up on them. Records found in the file at
+ * startup are replayable.
+ *
+ * The poll thread appends, marks and rewinds while the replay thread of the DeliveryTracker peeks and removes, so the methods are synchronized. A
+ * record is removed by the batch peeked from it, and only if it is still the oldest, as it may have been dropped while it was being published.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class MetricSpool {
+
+    private static final Logger logger = Logger.getLogger(MetricSpool.class);
+
+    private static final int MAGIC = 0x44423253; // DB2S
+    private static final int VERSION = 1;
+    private static final int HEADER = 32; // Magic, version, head, tail, reserved
+    private static final int RECORD_HEADER = 12; // Payload length, timestamp
+
+    public static final int MAX_SIZE_MB = (Integer.MAX_VALUE - HEADER) / (1024 * 1024); // A mapped buffer holds at most Integer.MAX_VALUE bytes
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final long capacity; // Bytes of the ring
+    private final long maxAge; // Milliseconds
+
+    private long head; // Offset of the oldest record
+    private long tail; // Offset the next record is written at
+    private long mark = -1L; // Offset of the first record still held by the SDK, -1 if none
+    private int records = 0;
+    private long dropped = 0L; // Records dropped because the ring was full or they expired
+    private final byte[] scratch = new byte[RECORD_HEADER];
+
+    /**
+     * Open the spool file, creating it if it does not exist or does not have the given size
+     *
+     * @param file File
+     * @param size long bytes of the file
+     * @param maxAge long milliseconds a record is kept
+     * @throws IOException if the file cannot be mapped, or the size is not between one record and MAX_SIZE_MB
+     */
+    public MetricSpool(File file, long size, long maxAge) throws IOException {
+        if (size <= HEADER + RECORD_HEADER || size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid spool size " + size + ", it must be larger than " + (HEADER + RECORD_HEADER) + " and at most "
+                    + Integer.MAX_VALUE + " bytes");
+        }
+        this.file = file;
+        this.maxAge = maxAge;
+        this.capacity = size - HEADER;
+        boolean existing = file.length() == size;
+        this.raf = new RandomAccessFile(file, "rw");
+        raf.setLength(size);
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        if (existing && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+            head = buffer.getLong(8);
+            tail = buffer.getLong(16);
+            if (head < 0 || tail < head || tail - head > capacity || !count()) {
+                logger.warn("Spool file ", file, " is corrupt, its records are dropped");
+                head = 0L;
+                tail = 0L;
+                records = 0;
+            }
+        } else {
+            head = 0L;
+            tail = 0L;
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        writeOffsets();
+        if (records > 0) {
+            logger.info("Spool file ", file, " holds ", records, " poll cycles that were not published");
+        }
+    }
+
+    /**
+     * Count the records between head and tail, checking their lengths
+     */
+    private boolean count() {
+        records = 0;
+        for (long offset = head; offset < tail; records++) {
+            int length = readInt(offset);
+            if (length < 0 || offset + RECORD_HEADER + length > tail) {
+                return false;
+            }
+            offset += RECORD_HEADER + length;
+        }
+        return true;
+    }
+
+    /**
+     * Append the metrics of one poll cycle, dropping the oldest records if the ring is full
+     *
+     * @param batch Batch
+     * @return boolean false if the batch is larger than the ring
+     */
+    public synchronized boolean append(Batch batch) {
+        byte[] payload = batch.encode();
+        long needed = RECORD_HEADER + payload.length;
+        if (needed > capacity) {
+            logger.warn("A poll cycle of ", batch.size(), " metrics does not fit into spool file ", file, ", it is dropped");
+            return false;
+        }
+        while (tail - head + needed > capacity) {
+            dropOldest();
+        }
+        writeInt(tail, payload.length);
+        writeLong(tail + 4, batch.timestamp);
+        write(tail + RECORD_HEADER, payload, payload.length);
+        tail += needed;
+        records++;
+        writeOffsets();
+        return true;
+    }
+
+    /**
+     * Return the oldest replayable record, dropping the records that expired
+     *
+     * @param now long System.currentTimeMillis()
+     * @return Batch, or null if there is none
+     */
+    public synchronized Batch peek(long now) {
+        long end = mark < 0 ? tail : mark;
+        while (head < end) {
+            int length = readInt(head);
+            long timestamp = readLong(head + 4);
+            if (now - timestamp <= maxAge) {
+                byte[] payload = new byte[length];
+                read(head + RECORD_HEADER, payload, length);
+                try {
+                    Batch batch = Batch.decode(timestamp, payload);
+                    batch.offset = head;
+                    return batch;
+                } catch (IOException e) {
+                    logger.warn("Dropping an unreadable record of spool file ", file, ". ", e.getMessage());
+                }
+            }
+            dropOldest();
+        }
+        return null;
+    }
+
+    /**
+     * Remove the record a batch was peeked from once it was replayed, unless it was dropped meanwhile
+     *
+     * @param batch Batch returned by peek
+     */
+    public synchronized void remove(Batch batch) {
+        if (batch.offset == head && head < (mark < 0 ? tail : mark)) {
+            head += RECORD_HEADER + readInt(head);
+            records--;
+            writeOffsets();
+        }
+    }
+
+    private void dropOldest() {
+        head += RECORD_HEADER + readInt(head);
+        records--;
+        dropped++;
+        if (mark >= 0 && mark < head) {
+            mark = head;
+        }
+        writeOffsets();
+    }
+
+    /**
+     * Mark the end of the spool, the records appended from now on are held by the SDK until rewind or commit
+     */
+    public synchronized void mark() {
+        mark = tail;
+    }
+
+    public synchronized boolean isMarked() {
+        return mark >= 0;
+    }
+
+    /**
+     * Discard the records appended since the mark, the SDK delivered them
+     *
+     * @return int records discarded
+     */
+    public synchronized int rewind() {
+        if (mark < 0) {
+            return 0;
+        }
+        int before = records;
+        tail = mark;
+        mark = -1L;
+        count();
+        writeOffsets();
+        return before - records;
+    }
+
+    /**
+     * Make the records appended since the mark replayable, the SDK dropped them
+     */
+    public synchronized void commit() {
+        mark = -1L;
+    }
+
+    /**
+     * @return int records in the spool, replayable or not
+     */
+    public synchronized int getRecords() {
+        return records;
+    }
+
+    /**
+     * @return long records dropped because the spool was full or they expired
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void close() {
+        try {
+            buffer.force();
+            raf.close();
+        } catch (IOException e) {
+            logger.debug("Unable to close spool file ", file, ". ", e.getMessage());
+        }
+    }
+
+    private void writeOffsets() {
+        buffer.putLong(8, head);
+        buffer.putLong(16, tail);
+    }
+
+    private int position(long offset) {
+        return (int) (HEADER + offset % capacity);
+    }
+
+    private void write(long offset, byte[] bytes, int length) {
+        int start = position(offset);
+        int first = (int) Math.min(length, HEADER + capacity - start); // Up to the end of the file, the rest wraps around
+        for (int i = 0; i < first; i++) {
+            buffer.put(start + i, bytes[i]);
+        }
+        for (int i = first; i < length; i++) {
+            buffer.put(HEADER + i - first, bytes[i]);
+        }
+    }
+
+    private void read(long offset, byte[] bytes, int length) {
+        int start = position(offset);
+        int first = (int) Math.min(length, HEADER + capacity - start);
+        for (int i = 0; i < first; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        for (int i = first; i < length; i++) {
+            bytes[i] = buffer.get(HEADER + i - first);
+        }
+    }
+
+    private void writeInt(long offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            scratch[i] = (byte) (value >>> (24 - 8 * i));
+        }
+        write(offset, scratch, 4);
+    }
+
+    private void writeLong(long offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            scratch[i] = (byte) (value >>> (56 - 8 * i));
+        }
+        write(offset, scratch, 8);
+    }
+
+    private int readInt(long offset) {
+        read(offset, scratch, 4);
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (scratch[i] & 0xff);
+        }
+        return value;
+    }
+
+    private long readLong(long offset) {
+        read(offset, scratch, 8);
+        long value = 0L;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (scratch[i] & 0xffL);
+        }
+        return value;
+    }
+
+    /**
+     * The metrics an agent reported in one poll cycle
+     */
+    public static class Batch {
+
+        private final long timestamp; // System.currentTimeMillis() of the poll cycle
+        private final List<String> names = new ArrayList<String>();
+        private final List<String> units = new ArrayList<String>();
+        private final List<Float> values = new ArrayList<Float>();
+        private long offset = -1L; // Of the record the batch was peeked from
+
+        public Batch(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        public void add(String name, String unit, float value) {
+            names.add(name);
+            units.add(unit);
+            values.add(value);
+        }
+
+        public int size() {
+            return names.size();
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getName(int i) {
+            return names.get(i);
+        }
+
+        public String getUnit(int i) {
+            return units.get(i);
+        }
+
+        public float getValue(int i) {
+            return values.get(i);
+        }
+
+        byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * names.size() + 4);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    out.writeUTF(names.get(i));
+                    out.writeUTF(units.get(i));
+                    out.writeFloat(values.get(i));
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // Not thrown by a byte array
+            }
+            return bytes.toByteArray();
+        }
+
+        static Batch decode(long timestamp, byte[] payload) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            Batch batch = new Batch(timestamp);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                batch.add(in.readUTF(), in.readUTF(), in.readFloat());
+            }
+            return batch;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.newrelic.plugins.db2.instance;
+
+import com.newrelic.metrics.publish.Agent;
+import com.newrelic.plugins.db2.MetricRegistry;
+
+/**
+ * This sink reports the metrics of an agent to New Relic through the SDK, into the request of the agent's poll cycle. Counters are reported as
+ * per-second rates, starting from their second sample. With a spool, the counters are also kept for the DeliveryTracker of the agent.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class NewRelicSink implements MetricSink {
+
+    private final Agent agent;
+    private DeliveryTracker delivery = null; // Keeps the counters of the poll cycle for the spool, null unless spooling
+
+    public NewRelicSink(Agent agent) {
+        this.agent = agent;
+    }
+
+    /**
+     * @param delivery DeliveryTracker the counters of each poll cycle are kept by, in case they cannot be published
+     */
+    void setDelivery(DeliveryTracker delivery) {
+        this.delivery = delivery;
+    }
+
+    @Override
+    public void beginCycle() {
+    }
+
+    @Override
+    public boolean report(MetricRegistry registry, int id, String unit, boolean counter, double value) {
+        if (Double.isNaN(value)) {
+            return false; // First sample, or the counter was reset
+        }
+        agent.reportMetric(registry.getName(id), unit, (float) value);
+        if (counter && delivery != null) {
+            delivery.record(registry.getName(id), unit, (float) value);
+        }
+        return true;
+    }
+
+    @Override
+    public void endCycle() {
+    }
+
+    @Override
+    public void withdraw() {
+        // New Relic keeps no state between poll cycles, a cycle without metrics leaves a gap
+    }
+}
@@ -0,0 +1,247 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.POLL_INTERVAL;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.newrelic.metrics.publish.util.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the metrics of the agents with the same prometheus_port at /metrics, in the Prometheus text exposition format. The port is bound
+ * to the prometheus_bind address of the first agent using it, the loopback address by default.
+ *
+ * Each agent publishes the samples of its last poll cycle, grouped by metric family. Shortly after, the samples of all agents are merged into one
+ * payload, each family once, which replaces the previous payload. A scrape writes the current payload as it is: it never queries DB2 nor renders
+ * anything, and always sees complete poll cycles.
+ *
+ * An agent that gathers nothing in a cycle withdraws its samples. The samples of an agent that stopped polling altogether expire after two poll
+ * intervals, so a scrape never gets values that are no longer collected.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class PrometheusExporter {
+
+    private static final Logger logger = Logger.getLogger(PrometheusExporter.class);
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final long RENDER_DELAY = 1000L; // Milliseconds, the poll cycles of agents published meanwhile are rendered together
+    private static final long MAX_AGE = TimeUnit.SECONDS.toNanos(2 * POLL_INTERVAL); // Of the samples of an agent
+
+    private static final Map<Integer, PrometheusExporter> exporters = new HashMap<Integer, PrometheusExporter>();
+
+    private final int port;
+    private final HttpServer server;
+    private final ScheduledExecutorService renderer;
+    private final Map<String, Samples> agents = new ConcurrentHashMap<String, Samples>(); // Last poll cycle of each agent
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private volatile byte[] payload = new byte[0];
+    private final AtomicLong scrapes = new AtomicLong();
+
+    private PrometheusExporter(String bind, int port) throws IOException {
+        this.port = port;
+        InetSocketAddress address = new InetSocketAddress(bind, port);
+        if (address.isUnresolved()) {
+            throw new IOException("Unknown address " + bind);
+        }
+        this.server = HttpServer.create(address, 0);
+        this.renderer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("DB2 Prometheus renderer " + port));
+        server.createContext("/metrics", new MetricsHandler());
+        server.setExecutor(Executors.newSingleThreadExecutor(new DaemonThreadFactory("DB2 Prometheus exporter " + port)));
+        server.start();
+        renderer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire(System.nanoTime());
+            }
+        }, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Return the exporter of a port, starting it the first time an agent uses the port
+     *
+     * @param bind String address the port is bound to, when the exporter is started
+     * @param port int
+     * @return PrometheusExporter, or null if the port could not be bound
+     */
+    static synchronized PrometheusExporter acquire(String bind, int port) {
+        PrometheusExporter exporter = exporters.get(port);
+        if (exporter == null) {
+            try {
+                exporter = new PrometheusExporter(bind, port);
+                exporters.put(port, exporter);
+                logger.info("Serving Prometheus metrics at http://", bind, ":", port, "/metrics");
+            } catch (IOException e) {
+                logger.error("Unable to serve Prometheus metrics on ", bind, ":", port, ". ", e.getMessage());
+                return null;
+            }
+        }
+        return exporter;
+    }
+
+    /**
+     * Replace the samples of an agent and render the payload shortly after
+     *
+     * @param agent String agent name
+     * @param samples Samples of the agent's last poll cycle
+     */
+    void publish(String agent, Samples samples) {
+        samples.published = System.nanoTime();
+        agents.put(agent, samples);
+        scheduleRender();
+    }
+
+    /**
+     * Remove the samples of an agent, e.g. when it gathered nothing in its last poll cycle, and render the payload shortly after
+     *
+     * @param agent String agent name
+     */
+    void unpublish(String agent) {
+        if (agents.remove(agent) != null) {
+            scheduleRender();
+        }
+    }
+
+    private void scheduleRender() {
+        if (pending.compareAndSet(false, true)) {
+            renderer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pending.set(false);
+                    render();
+                }
+            }, RENDER_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Remove the samples published more than two poll intervals before, and render the payload without them
+     *
+     * @param now long System.nanoTime()
+     */
+    void expire(long now) {
+        boolean expired = false;
+        for (Map.Entry<String, Samples> agent : agents.entrySet()) {
+            if (now - agent.getValue().published > MAX_AGE && agents.remove(agent.getKey(), agent.getValue())) {
+                logger.debug("Agent '", agent.getKey(), "' published no Prometheus samples since ", POLL_INTERVAL * 2, " seconds, they expired");
+                expired = true;
+            }
+        }
+        if (expired) {
+            render();
+        }
+    }
+
+    /**
+     * Merge the samples of all agents into a new payload, one group of lines per metric family
+     */
+    void render() {
+        Map<String, List<String>> families = new TreeMap<String, List<String>>();
+        Map<String, String> types = new HashMap<String, String>();
+        for (Samples samples : agents.values()) {
+            for (int i = 0; i < samples.families.length; i++) {
+                List<String> chunks = families.get(samples.families[i]);
+                if (chunks == null) {
+                    chunks = new ArrayList<String>();
+                    families.put(samples.families[i], chunks);
+                    types.put(samples.families[i], samples.types[i]);
+                }
+                chunks.add(samples.chunks[i]);
+            }
+        }
+        StringBuilder text = new StringBuilder(Math.max(1024, payload.length + 1024));
+        for (Map.Entry<String, List<String>> family : families.entrySet()) {
+            text.append("# TYPE ").append(family.getKey()).append(' ').append(types.get(family.getKey())).append('\n');
+            for (String chunk : family.getValue()) {
+                text.append(chunk);
+            }
+        }
+        try {
+            payload = text.toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+    }
+
+    /**
+     * @return byte[] the payload a scrape gets
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getScrapes() {
+        return scrapes.get();
+    }
+
+    /**
+     * The samples of one agent's poll cycle, grouped by metric family
+     */
+    static class Samples {
+
+        private final String[] families;
+        private final String[] types; // gauge or counter
+        private final String[] chunks; // Sample lines of each family
+        private long published = 0L; // System.nanoTime() when published
+
+        Samples(String[] families, String[] types, String[] chunks) {
+            this.families = families;
+            this.types = types;
+            this.chunks = chunks;
+        }
+    }
+
+    private class MetricsHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body = payload; // Read once, the same payload is sent even if a new one is rendered meanwhile
+            scrapes.incrementAndGet();
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length > 0 ? body.length : -1L); // 0 would send a chunked response, -1 an empty one
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
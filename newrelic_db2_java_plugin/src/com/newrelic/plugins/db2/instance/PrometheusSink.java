@@ -0,0 +1,174 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.newrelic.plugins.db2.DB2;
+import com.newrelic.plugins.db2.MetricRegistry;
+
+/**
+ * This sink exposes the metrics of an agent to Prometheus through the PrometheusExporter of its port. A metric becomes a sample of the family
+ * db2_<category>_<column>, labelled with the agent, and with the entity for the metrics of a set category:
+ *
+ * db2_tablespace_tbsp_used_pages{agent="SAMPLE",entity="USERSPACE1"} 1024.0
+ *
+ * The metrics collected from one member of a pureScale or partitioned database are labelled with the member as well, next to the rollup of the
+ * members without it.
+ *
+ * Counters are exposed with their raw value, as a counter family ending in _total, so Prometheus computes the rates. The family and the label part
+ * of each metric are built once per metric id, a poll cycle only appends the values.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class PrometheusSink implements MetricSink {
+
+    private static final String PREFIX = "db2_";
+    private static final String GAUGE = "gauge";
+    private static final String COUNTER = "counter";
+
+    private final String agent;
+    private final String agentLabel; // agent="name", escaped
+    private final PrometheusExporter exporter;
+    private final Map<MetricRegistry, Series> series = new IdentityHashMap<MetricRegistry, Series>();
+    private final Map<String, StringBuilder> families = new TreeMap<String, StringBuilder>(); // Sample lines of each family, reused every cycle
+    private final Map<String, String> types = new TreeMap<String, String>();
+
+    /**
+     * @param agent String agent name
+     * @param exporter PrometheusExporter the agent's samples are published to
+     */
+    public PrometheusSink(String agent, PrometheusExporter exporter) {
+        this.agent = agent;
+        this.agentLabel = "agent=\"" + escape(agent) + "\"";
+        this.exporter = exporter;
+    }
+
+    @Override
+    public void beginCycle() {
+        for (StringBuilder lines : families.values()) {
+            lines.setLength(0);
+        }
+    }
+
+    @Override
+    public boolean report(MetricRegistry registry, int id, String unit, boolean counter, double value) {
+        Series metrics = series.get(registry);
+        if (metrics == null) {
+            metrics = new Series();
+            series.put(registry, metrics);
+        }
+        if (!counter && (Double.isNaN(value) || Double.isInfinite(value))) {
+            return false;
+        }
+        String line = metrics.line(registry, id, counter);
+        StringBuilder lines = families.get(metrics.families[id]);
+        if (lines == null) {
+            lines = new StringBuilder();
+            families.put(metrics.families[id], lines);
+            types.put(metrics.families[id], counter ? COUNTER : GAUGE);
+        }
+        lines.append(line);
+        if (counter) {
+            lines.append(registry.getLong(id)); // Exact, a double loses the low digits of large counters
+        } else {
+            lines.append((float) value);
+        }
+        lines.append('\n');
+        return true;
+    }
+
+    @Override
+    public void endCycle() {
+        List<String> names = new ArrayList<String>(families.size());
+        List<String> chunks = new ArrayList<String>(families.size());
+        List<String> kinds = new ArrayList<String>(families.size());
+        for (Map.Entry<String, StringBuilder> family : families.entrySet()) {
+            if (family.getValue().length() > 0) {
+                names.add(family.getKey());
+                chunks.add(family.getValue().toString());
+                kinds.add(types.get(family.getKey()));
+            }
+        }
+        exporter.publish(agent, new PrometheusExporter.Samples(names.toArray(new String[names.size()]), kinds.toArray(new String[kinds.size()]),
+                chunks.toArray(new String[chunks.size()])));
+    }
+
+    @Override
+    public void withdraw() {
+        exporter.unpublish(agent); // Rather than serving the values of the last cycle that gathered metrics
+    }
+
+    /**
+     * The family and the sample line up to the value of each metric of a registry, by metric id
+     */
+    private class Series {
+
+        private String[] families = new String[0];
+        private String[] lines = new String[0];
+
+        String line(MetricRegistry registry, int id, boolean counter) {
+            if (id >= lines.length) {
+                int capacity = Math.max(registry.size(), id + 1);
+                families = Arrays.copyOf(families, capacity);
+                lines = Arrays.copyOf(lines, capacity);
+            }
+            if (lines[id] == null) {
+                String category = registry.getCategory();
+                String name = registry.getName(id);
+                StringBuilder labels = new StringBuilder("{").append(agentLabel);
+                String member = registry.getMember();
+                if (member != null) { // member/<id>/<name>
+                    name = name.substring(MEMBER_PREFIX.length() + member.length() + SEPARATOR.length());
+                    labels.append(",member=\"").append(escape(member)).append('"');
+                }
+                String family;
+                int slash = name.lastIndexOf(SEPARATOR);
+                if (name.startsWith(category + UNDERSCORE) && slash > category.length()) { // Entity of a set category, category_ENTITY/column
+                    family = sanitize(DB2.buildString(category, UNDERSCORE, name.substring(slash + 1)));
+                    labels.append(",entity=\"").append(escape(name.substring(category.length() + 1, slash))).append('"');
+                } else {
+                    family = sanitize(name);
+                }
+                if (counter) {
+                    family = family.concat("_total");
+                }
+                families[id] = family;
+                lines[id] = new StringBuilder(family).append(labels).append("} ").toString();
+            }
+            return lines[id];
+        }
+    }
+
+    /**
+     * Turn a metric name into a Prometheus metric name, db2_ followed by lower case letters, digits and underscores
+     */
+    static String sanitize(String name) {
+        StringBuilder result = new StringBuilder(PREFIX.length() + name.length()).append(PREFIX);
+        for (int i = 0; i < name.length(); i++) {
+            char c = Character.toLowerCase(name.charAt(i));
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_';
+            if (!valid && result.charAt(result.length() - 1) == '_') {
+                continue; // No runs of underscores
+            }
+            result.append(valid ? c : '_');
+        }
+        while (result.charAt(result.length() - 1) == '_') {
+            result.setLength(result.length() - 1);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Escape a label value of the text exposition format
+     */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,333 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.EMPTY_STRING;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * This class shares the agents of 'plugin.json' between plugin processes, on one box or on boxes sharing a volume. Every process reads the same
+ * agent list and polls the agents that consistent hashing on their names assigns to it. The live processes are the shards of a ring, each of them
+ * writes a heartbeat file to the shard directory, and a shard whose file stopped changing for the stale time is dropped from the ring, so its agents
+ * move to the other shards. A shard that exits removes its file, and its agents move at once.
+ *
+ * Each process has its own view of the ring, so views differ for a while after a shard joined or left. The ring keeps an agent from being polled
+ * twice while they do:
+ * - a shard is not told about the files of the others, it only sees them change. Staleness is measured by the clock of the observer, so the clocks of
+ *   boxes sharing the volume do not need to agree
+ * - a view is valid for one and a half beat intervals. A shard whose view is older, e.g. because its heartbeat thread stalled or its JVM paused,
+ *   polls no agent until it looked again
+ * - a shard that joins, or rejoins after it could not write its heartbeat for the stale time, polls no agent until it has beaten three times, two
+ *   intervals after its first beat. By then every other shard has either seen its file and given up its agents, or holds a view from before it
+ *   joined that has expired
+ * An agent may therefore go unpolled for a cycle or, when a shard dies, up to the stale time, but is never polled by two live processes.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class ShardRing implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(ShardRing.class);
+
+    private static final String SUFFIX = ".shard";
+    private static final int POINTS = 128; // Points of each shard on the ring, more spread the agents more evenly
+    private static final int BEATS_TO_JOIN = 3; // Heartbeats written before a joining shard polls, the first one included
+    private static final int STALE_TIMES_TO_DELETE = 10; // A heartbeat file left by a shard that died is deleted after this many stale times
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final String id;
+    private final File heartbeat;
+    private final long staleAfter; // Nanoseconds
+    private final long interval; // Milliseconds between two heartbeats
+    private final long viewValidity; // Nanoseconds a view is used for, less than the BEATS_TO_JOIN - 1 intervals a joining shard waits
+
+    private final Map<String, Observed> observed = new HashMap<String, Observed>(); // Other shards by id, only used by the heartbeat thread
+    private long sequence = 0L;
+    private long lastBeat = 0L; // System.nanoTime() of the last heartbeat written, 0 before the first
+    private long joining = 0L; // Heartbeats written since the shard (re)joined
+    private volatile View view = new View(new String[0], 0L, false);
+
+    ShardRing(File directory, String id, int staleAfter) {
+        this.directory = directory;
+        this.id = id;
+        this.heartbeat = new File(directory, id + SUFFIX);
+        this.staleAfter = TimeUnit.SECONDS.toNanos(staleAfter);
+        this.interval = Math.max(1000L, TimeUnit.SECONDS.toMillis(staleAfter) / 3);
+        this.viewValidity = TimeUnit.MILLISECONDS.toNanos(interval) * 3 / 2;
+    }
+
+    /**
+     * Join the ring of the processes sharing a directory, and keep beating on a daemon thread
+     *
+     * @param directory File shard directory shared by the processes
+     * @param staleAfter int seconds after which a shard whose heartbeat did not change is dropped
+     * @return ShardRing, or null if the directory cannot be used, the process then polls all agents
+     */
+    static ShardRing start(File directory, int staleAfter) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.error("Unable to create the shard directory ", directory, ", this process polls all agents");
+            return null;
+        }
+        final ShardRing ring = new ShardRing(directory, shardId(), staleAfter);
+        ring.beat();
+        Thread thread = new Thread(ring, "DB2 shard heartbeat");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ring.leave();
+            }
+        }, "DB2 shard leave"));
+        logger.info("Sharing the agents with the processes of ", directory, " as shard '", ring.id, "', beating every ", ring.interval, " ms");
+        return ring;
+    }
+
+    /**
+     * Check whether this process polls an agent in the current cycle
+     *
+     * @param agent String agent name
+     * @return boolean
+     */
+    public boolean owns(String agent) {
+        return owns(agent, System.nanoTime());
+    }
+
+    /**
+     * @param agent String agent name
+     * @param now long System.nanoTime()
+     * @return boolean
+     */
+    boolean owns(String agent, long now) {
+        View current = view;
+        if (!current.joined || now - current.created > viewValidity) {
+            return false; // Still joining, or the view may be outdated
+        }
+        return id.equals(current.owner(hash(agent)));
+    }
+
+    /**
+     * @return String id of this shard
+     */
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(interval);
+                try {
+                    beat();
+                } catch (RuntimeException e) {
+                    logger.error(e, "The shard heartbeat failed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the heartbeat of this shard, look at those of the others and compute the ring of the live shards
+     */
+    void beat() {
+        beat(System.nanoTime());
+    }
+
+    /**
+     * @param now long System.nanoTime()
+     */
+    void beat(long now) {
+        boolean written = write();
+        if (!written || (lastBeat != 0L && now - lastBeat > staleAfter)) {
+            joining = 0L; // The other shards may have dropped this one, it joins again
+        }
+        if (written) {
+            lastBeat = now;
+            joining++;
+        }
+
+        TreeSet<String> live = new TreeSet<String>();
+        if (written) {
+            live.add(id);
+        }
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            if (!name.endsWith(SUFFIX) || files[i].equals(heartbeat)) {
+                continue;
+            }
+            String shard = name.substring(0, name.length() - SUFFIX.length());
+            String content = read(files[i]);
+            Observed seen = observed.get(shard);
+            if (seen == null) {
+                seen = new Observed(content, now); // Live until it is seen not to change
+                observed.put(shard, seen);
+            } else if (content != null && !content.equals(seen.content)) {
+                seen.content = content;
+                seen.changed = now;
+            }
+            seen.present = true;
+            if (now - seen.changed <= staleAfter) {
+                live.add(shard);
+            } else if (now - seen.changed > STALE_TIMES_TO_DELETE * staleAfter && files[i].delete()) {
+                logger.info("Deleted the heartbeat of shard '", shard, "', which died");
+            }
+        }
+        for (Iterator<Observed> i = observed.values().iterator(); i.hasNext();) {
+            Observed seen = i.next();
+            if (!seen.present) {
+                i.remove(); // Left the ring
+            }
+            seen.present = false;
+        }
+
+        View previous = view;
+        View next = new View(live.toArray(new String[live.size()]), now, written && joining >= BEATS_TO_JOIN);
+        if (!Arrays.equals(previous.shards, next.shards) || previous.joined != next.joined) {
+            logger.info("Shards of the ring: ", live, next.joined ? EMPTY_STRING : ", this shard is joining and polls no agent yet");
+        }
+        view = next;
+    }
+
+    /**
+     * Remove the heartbeat of this shard, so the others take over its agents at once
+     */
+    void leave() {
+        view = new View(new String[0], System.nanoTime(), false);
+        if (heartbeat.delete()) {
+            logger.info("Shard '", id, "' left the ring");
+        }
+    }
+
+    /**
+     * Replace the heartbeat file with the next sequence number, renaming a complete file over it so readers never see half of it
+     *
+     * @return boolean whether the heartbeat was written
+     */
+    private boolean write() {
+        File temporary = new File(directory, id + SUFFIX + ".tmp");
+        try {
+            Files.write(temporary.toPath(), (id + "\n" + (++sequence) + "\n").getBytes(UTF8));
+            try {
+                Files.move(temporary.toPath(), heartbeat.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), heartbeat.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to write the heartbeat ", heartbeat, ", this shard polls no agent until it can. ", e.getMessage());
+            return false;
+        }
+    }
+
+    private static String read(File file) {
+        try {
+            return new String(Files.readAllBytes(file.toPath()), UTF8);
+        } catch (IOException e) {
+            return null; // Being replaced, or removed
+        }
+    }
+
+    /**
+     * @return String id of this process, unique among the processes sharing the directory, e.g. 4242@dbmon01
+     */
+    private static String shardId() {
+        return ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9_.@-]", "_");
+    }
+
+    /**
+     * Position of an agent, or a point of a shard, on the ring
+     */
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(UTF8));
+            long hash = 0L;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has MD5
+        }
+    }
+
+    /**
+     * A shard seen in the directory
+     */
+    private static class Observed {
+
+        private String content; // Last heartbeat read, changes with every beat of a live shard
+        private long changed; // System.nanoTime() the content was last seen to change
+        private boolean present = true;
+
+        Observed(String content, long changed) {
+            this.content = content;
+            this.changed = changed;
+        }
+    }
+
+    /**
+     * The ring of the live shards as this shard saw it, never changed once created
+     */
+    static class View {
+
+        private final String[] shards; // Sorted ids
+        private final long[] points; // Sorted positions of the points of the shards
+        private final String[] owners; // Shard of each point
+        private final long created;
+        private final boolean joined;
+
+        View(String[] shards, long created, boolean joined) {
+            this.shards = shards;
+            this.created = created;
+            this.joined = joined;
+            TreeMap<Long, String> ring = new TreeMap<Long, String>();
+            for (String shard : shards) {
+                for (int i = 0; i < POINTS; i++) {
+                    ring.put(hash(shard + "#" + i), shard);
+                }
+            }
+            this.points = new long[ring.size()];
+            this.owners = new String[ring.size()];
+            int i = 0;
+            for (Map.Entry<Long, String> point : ring.entrySet()) {
+                points[i] = point.getKey();
+                owners[i++] = point.getValue();
+            }
+        }
+
+        /**
+         * @return String shard of the first point at or after the position, wrapping around, null if the ring is empty
+         */
+        String owner(long position) {
+            if (points.length == 0) {
+                return null;
+            }
+            int i = Arrays.binarySearch(points, position);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[i == points.length ? 0 : i];
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.newrelic.metrics.publish.util.Logger;
+import com.newrelic.plugins.db2.ConnectionManager;
+import com.newrelic.plugins.db2.DB2;
+import com.newrelic.plugins.db2.ResultCache;
+
+/**
+ * This class holds the connections, and the result cache, of one monitored target: a DB2 database reached through the same host, user and connection
+ * properties. Agents that monitor the same target, e.g. to split its categories between New Relic components, share its connections instead of
+ * opening their own, and share the executions of the categories they have in common.
+ *
+ * The target keeps as many connections as the largest parallelism of its agents. An agent borrows a connection for the categories of a poll cycle,
+ * or one per category in parallel mode, and gives it back. An agent whose password or connection settings (timeouts, fetch size, result cache) differ
+ * from those of the target gets a target of its own instead. Once the last agent released the target its connections are closed.
+ *
+ * The counters of the target, the hits and misses of its statement and result caches and the reconnects of its connections, are reported by a single
+ * agent, the reporter, as deltas since they were last reported, so they are not counted once per agent sharing the target.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class SharedTarget {
+
+    private static final Logger logger = Logger.getLogger(SharedTarget.class);
+
+    private static final Map<String, SharedTarget> targets = new HashMap<String, SharedTarget>();
+
+    private final String key;
+    private final String host;
+    private final String database;
+    private final String user;
+    private final String passwd;
+    private final String properties;
+    private final DB2AgentOptions options;
+
+    private volatile DB2[] connections = new DB2[0]; // Only ever grows, so indexes stay valid
+    private final BlockingQueue<DB2> idle = new LinkedBlockingQueue<DB2>();
+    private final ResultCache results; // null if executions are not shared
+    private volatile int agents = 0; // Changed while holding the class lock
+
+    // Indexes of the counters of the target in the array of their deltas
+    static final int STATEMENT_CACHE_HITS_DELTA = 0;
+    static final int STATEMENT_CACHE_MISSES_DELTA = 1;
+    static final int RESULT_CACHE_HITS_DELTA = 2;
+    static final int RESULT_CACHE_MISSES_DELTA = 3;
+    static final int RECONNECTS_DELTA = 4;
+    // Collector metric each counter is reported as, by the same indexes
+    static final String[] DELTA_METRICS = { STATEMENT_CACHE_HITS, STATEMENT_CACHE_MISSES, RESULT_CACHE_HITS, RESULT_CACHE_MISSES, RECONNECTS };
+
+    private Object reporter = null; // Agent reporting the counters of the target, null until one claims it
+    private final long[] reported = new long[RECONNECTS_DELTA + 1]; // Counters as last reported
+
+    private SharedTarget(String key, String host, String database, String user, String passwd, String properties, DB2AgentOptions options) {
+        this.key = key;
+        this.host = host;
+        this.database = database;
+        this.user = user;
+        this.passwd = passwd;
+        this.properties = properties;
+        this.options = options;
+        this.results = options.getResultCacheTtl() > 0 ? new ResultCache(options.getResultCacheTtl()) : null;
+    }
+
+    /**
+     * Return the target of an agent, with at least as many connections as the agent's parallelism. An agent that does not share connections gets a
+     * target of its own.
+     *
+     * @param host String DB2 Instance host:port
+     * @param database String database name
+     * @param user String DB2 user
+     * @param passwd String DB2 user password
+     * @param properties String JCC connection properties
+     * @param options DB2AgentOptions of the agent
+     * @return SharedTarget
+     */
+    static synchronized SharedTarget acquire(String host, String database, String user, String passwd, String properties,
+            DB2AgentOptions options) {
+        String key = DB2.buildString(host.toLowerCase(), "/", database.toLowerCase(), " ", user.toLowerCase(), " ", properties);
+        SharedTarget target = options.isShareConnections() ? targets.get(key) : null;
+        if (target != null && !target.isSharableWith(passwd, options)) {
+            logger.warn("Not sharing the connections to ", host, "/", database, " with ", target.agents,
+                    " other agents, they use another password or other connection settings");
+            target = new SharedTarget(key, host, database, user, passwd, properties, options); // Not shared with later agents either
+        } else if (target == null) {
+            target = new SharedTarget(key, host, database, user, passwd, properties, options);
+            if (options.isShareConnections()) {
+                targets.put(key, target);
+            }
+        } else {
+            logger.debug("Sharing the connections to ", host, "/", database, " with ", target.agents, " other agents");
+        }
+        target.agents++;
+        target.ensureConnections(options.getParallelism());
+        return target;
+    }
+
+    /**
+     * Give up an agent's use of the target, e.g. when the agent is shut down. The last agent closes the connections, and agents created later no
+     * longer share the target.
+     *
+     * @param agent Object agent that acquired the target
+     */
+    void release(Object agent) {
+        releaseReporter(agent);
+        synchronized (SharedTarget.class) {
+            if (--agents > 0) {
+                return;
+            }
+            if (targets.get(key) == this) {
+                targets.remove(key);
+            }
+        }
+        for (DB2 db2 : connections) {
+            db2.getConnectionManager().closeConnection();
+        }
+    }
+
+    private boolean isSharableWith(String passwd, DB2AgentOptions other) {
+        return (this.passwd == null ? passwd == null : this.passwd.equals(passwd)) && options.getLoginTimeout() == other.getLoginTimeout() && options.getReadTimeout() == other.getReadTimeout()
+                && options.getQueryTimeout() == other.getQueryTimeout() && options.getValidationIdleTime() == other.getValidationIdleTime()
+                && options.getFetchSize() == other.getFetchSize() && options.getResultCacheTtl() == other.getResultCacheTtl();
+    }
+
+    private void ensureConnections(int count) {
+        if (count <= connections.length) {
+            return;
+        }
+        int existing = connections.length;
+        DB2[] grown = Arrays.copyOf(connections, count);
+        for (int i = existing; i < count; i++) {
+            ConnectionManager manager = new ConnectionManager(host, database, user, passwd, properties);
+            manager.setTimeouts(options.getLoginTimeout(), options.getReadTimeout(), options.getQueryTimeout());
+            manager.setValidationIdleTime(options.getValidationIdleTime());
+            manager.setFetchSize(options.getFetchSize());
+            grown[i] = new DB2(manager);
+        }
+        connections = grown;
+        for (int i = existing; i < count; i++) {
+            idle.add(grown[i]);
+        }
+    }
+
+    /**
+     * Borrow an idle connection, waiting for one if all are in use
+     *
+     * @param timeout long nanoseconds to wait at most
+     * @return DB2, or null if none became idle in time
+     * @throws InterruptedException
+     */
+    DB2 borrow(long timeout) throws InterruptedException {
+        return idle.poll(Math.max(0L, timeout), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Borrow a given connection, if it is idle
+     *
+     * @param db2 DB2 one of the connections of the target
+     * @return boolean whether it was idle
+     */
+    boolean borrow(DB2 db2) {
+        return idle.remove(db2);
+    }
+
+    /**
+     * Give a borrowed connection back
+     *
+     * @param db2 DB2
+     */
+    void giveBack(DB2 db2) {
+        idle.add(db2);
+    }
+
+    /**
+     * @return DB2[] all connections of the target, idle or not
+     */
+    DB2[] getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return ResultCache shared by the agents of the target, null if executions are not shared
+     */
+    ResultCache getResults() {
+        return results;
+    }
+
+    /**
+     * Claim the reporting of the counters of the target. The first agent to claim it keeps it until it releases it.
+     *
+     * @param agent Object agent polled in the current cycle
+     * @return boolean whether the agent reports the counters of the target
+     */
+    synchronized boolean claimReporter(Object agent) {
+        if (reporter == null) {
+            reporter = agent;
+        }
+        return reporter == agent;
+    }
+
+    /**
+     * Release the reporting of the counters of the target, e.g. when the agent is no longer polled by this process, the next agent to claim it takes
+     * over from the counters as last reported
+     *
+     * @param agent Object
+     */
+    synchronized void releaseReporter(Object agent) {
+        if (reporter == agent) {
+            reporter = null;
+        }
+    }
+
+    /**
+     * Take the changes of the counters of the target since they were last taken. Only the reporter takes them.
+     *
+     * @return long[] delta of each counter, by the *_DELTA indexes
+     */
+    synchronized long[] takeCounterDeltas() {
+        long[] current = new long[reported.length];
+        for (DB2 db2 : connections) {
+            current[STATEMENT_CACHE_HITS_DELTA] += db2.getStatementCache().getHits();
+            current[STATEMENT_CACHE_MISSES_DELTA] += db2.getStatementCache().getMisses();
+            current[RECONNECTS_DELTA] += db2.getConnectionManager().getReconnects();
+        }
+        if (results != null) {
+            current[RESULT_CACHE_HITS_DELTA] = results.getHits();
+            current[RESULT_CACHE_MISSES_DELTA] = results.getMisses();
+        }
+        long[] deltas = new long[reported.length];
+        for (int i = 0; i < reported.length; i++) {
+            deltas[i] = current[i] - reported[i];
+            reported[i] = current[i];
+        }
+        return deltas;
+    }
+
+    /**
+     * @return int agents using the target
+     */
+    public int getAgents() {
+        return agents;
+    }
+
+    /**
+     * @return String host, database, user and connection properties identifying the target
+     */
+    public String getKey() {
+        return key;
+    }
+}
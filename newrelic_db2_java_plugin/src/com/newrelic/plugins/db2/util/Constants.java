@@ -16,12 +16,29 @@ public class Constants {
     public static final String NEW_LINE = "\n"; 
     public static final String SQL = "SQL";
     public static final String RESULT = "result";
+    public static final String RESTART_MARKER = "restart_marker";
+    public static final String INTERVAL = "interval";
+    public static final int POLL_INTERVAL = 60; // Seconds between poll cycles, fixed by the metrics_publish SDK
+    public static final String OPTIONAL = "optional";
+    public static final String VALUE_MAPPINGS = "value_mappings"; // Lookup tables of character columns, see ValueMapping
+    public static final String DERIVED_METRICS = "derived_metrics"; // Metrics computed from the columns of a category, see DerivedMetrics
+    public static final String EXPRESSION = "expression";
+    public static final String UNIT = "unit";
+    public static final String TOP_K = "top_k"; // Entities of a set category reported individually, the rest are rolled up
+    public static final String TOP_BY = "top_by"; // Column the entities are ranked by
+    public static final String OTHER_ENTITY = "_other";
+    public static final String MEMBER_SCOPE = "member_scope"; // Whether a category runs on each member or once for the database, see MemberSet
+    public static final String MEMBER = "member";
+    public static final String CLUSTER = "cluster";
+    public static final String MEMBER_PREFIX = "member/"; // Metrics collected from one member, member/<id>/<category>/<column>
+    public static final String AUTO_MEMBERS = "auto";
+    public static final String MEMBERS_SQL = "select ID, HOME_HOST from SYSIBMADM.DB2_MEMBER order by ID";
+    public static final String OWN_COST_SQL = "select TOTAL_CPU_TIME from table (mon_get_connection(mon_get_application_handle(), -1))";
     public static final String COUNTER = "[counter]";
     public static final String METRIC_LOG_PREFIX = "Metric ";
 
     public static final String SEPARATOR = "/";
     public static final String PING = "SELECT 1 from sysibm.sysdummy1";
-    public static final Pattern VALID_METRIC_PATTERN = Pattern.compile("(-)?(\\.)?\\d+(\\.\\d+)?");  // Only integers and floats are valid metric values
     public static final Pattern SPACE_PATTERN = Pattern.compile(" ");
 
     public static final String JDBC_URL = "jdbc:db2://";
@@ -31,33 +48,29 @@ public class Constants {
     public static final String SET = "set";
     public static final String SPECIAL = "special";
 
-    public static final String ON = "ON";
-    public static final String OFF = "OFF";
-    public static final String TRUE = "TRUE";
-    public static final String NONE = "NONE";
-    public static final String YES = "YES";
-    public static final String NO = "NO";
-    public static final String NULL = "NULL";
-    //For HADR state & connect_status metrics transform
-    public static final String DISCONNECTED= "DISCONNECTED";
-    public static final String LOCAL_CATCHUP= "LOCAL_CATCHUP";
-    public static final String REMOTE_CATCHUP_PENDING= "REMOTE_CATCHUP_PENDING";
-    public static final String REMOTE_CATCHUP= "REMOTE_CATCHUP";
-    public static final String PEER= "PEER";
-    public static final String DISCONNECTED_PEER= "DISCONNECTED_PEER";
-    public static final String CONNECTED= "CONNECTED";
-    public static final String CONGESTED= "CONGESTED";
-   
-    public static final String ONE = "1";
-    public static final String NEG_ONE = "-1";
-    public static final String ZERO = "0";
-    public static final String TWO = "2";
-    public static final String THREE = "3";
-    public static final String FOUR = "4";
-    public static final String FIVE = "5";
-    
     public static final String CONNECTION_CATEGORY = "connection";
     public static final String OVERVIEW_CATEGORY = "overview";
+    public static final String COLLECTOR_CATEGORY = "plugin/collector/"; // Metrics about the plugin's own collection
+    public static final String SKIPPED = "skipped";
+    public static final String STATEMENT_CACHE_HITS = COLLECTOR_CATEGORY + "statement_cache/hits";
+    public static final String STATEMENT_CACHE_MISSES = COLLECTOR_CATEGORY + "statement_cache/misses";
+    public static final String RESULT_CACHE_HITS = COLLECTOR_CATEGORY + "result_cache/hits";
+    public static final String RESULT_CACHE_MISSES = COLLECTOR_CATEGORY + "result_cache/misses";
+    public static final String DEGRADED = "degraded";
+    public static final String BREAKER = "breaker"; // State of the circuit breaker of a category, see CircuitBreaker
+    public static final String CONNECTION_LOST_SQLSTATE = "08000"; // Recorded for a query that failed because the connection was lost
+    public static final String OWN_CPU_TIME = COLLECTOR_CATEGORY + "cost/cpu_time";
+    public static final String CYCLE_GATHER_TIME = COLLECTOR_CATEGORY + "cycle/gather_time";
+    public static final String CYCLE_REPORT_TIME = COLLECTOR_CATEGORY + "cycle/report_time";
+    public static final String CYCLE_DURATION = COLLECTOR_CATEGORY + "cycle/duration";
+    public static final String RECONNECTS = COLLECTOR_CATEGORY + "reconnects";
+    public static final String SPOOL_CYCLES = COLLECTOR_CATEGORY + "spool/cycles";
+    public static final String SPOOL_REPLAYED = COLLECTOR_CATEGORY + "spool/replayed";
+    public static final String SPOOL_DROPPED = COLLECTOR_CATEGORY + "spool/dropped";
+    public static final String BATCH_LATENCY = COLLECTOR_CATEGORY + "batch/latency";
+    public static final String BATCH_CATEGORIES = COLLECTOR_CATEGORY + "batch/categories";
+    public static final String MEMBERS_COLLECTED = COLLECTOR_CATEGORY + "members/collected";
+    public static final String MEMBERS_FAILED = COLLECTOR_CATEGORY + "members/failed";
    
     public static final String DEFAULT_UNIT = "";
     public static final String STATEMENTS_UNIT = "Statements";
@@ -66,6 +79,15 @@ public class Constants {
     public static final String TIME_UNIT = "Microseconds";
     public static final String PERCENTAGE_UNIT = "%";
     public static final String TIMES_UNIT = "Times";
+    public static final String SECONDS_UNIT = "Seconds";
+    public static final String MILLISECONDS_UNIT = "Milliseconds";
+    public static final String ROWS_UNIT = "Rows";
+    public static final String CELLS_UNIT = "Cells";
+    public static final String ERRORS_UNIT = "Errors";
+    public static final String RECONNECTS_UNIT = "Reconnects";
+    public static final String CYCLES_UNIT = "Cycles";
+    public static final String CATEGORIES_UNIT = "Categories";
+    public static final String MEMBERS_UNIT = "Members";
     
     public static final String TBSP_COLUMN_NAME = "TBSP_NAME";
     public static final String BP_COLUMN_NAME = "BP_NAME";
@@ -0,0 +1,126 @@
+package com.newrelic.plugins.db2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.junit.Test;
+
+/**
+ * Tests the compound query of a CategoryBatch, splitting its result set back into the registries of the categories, the rejection of multi-row
+ * results, and the back off of a failing batch
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CategoryBatchTest {
+
+    private static final String[] COLUMNS = { "LOCK_WAITS", "DEADLOCKS", "NR_BATCH_1", "POOL_READS", "NR_BATCH_2", "HADR_STATE" };
+    private static final int[] TYPES = { Types.BIGINT, Types.BIGINT, Types.INTEGER, Types.BIGINT, Types.INTEGER, Types.VARCHAR };
+
+    private static CategoryBatch batch() {
+        return new CategoryBatch(new String[] { "locks", "bufferpool", "hadr" }, new String[] { "select LOCK_WAITS, DEADLOCKS from T1",
+                " select POOL_READS from T2 ", "SELECT HADR_STATE from T3" });
+    }
+
+    private static MetricRegistry[] registries() {
+        return new MetricRegistry[] { new MetricRegistry("locks"), new MetricRegistry("bufferpool"), new MetricRegistry("hadr") };
+    }
+
+    private static void beginCycle(MetricRegistry[] registries) {
+        for (MetricRegistry registry : registries) {
+            registry.beginCycle();
+        }
+    }
+
+    @Test
+    public void joinsTheCategoriesWithMarkers() {
+        assertEquals("SELECT C0.*, 0 AS NR_BATCH_1, C1.*, 0 AS NR_BATCH_2, C2.* FROM SYSIBM.SYSDUMMY1"
+                + " LEFT OUTER JOIN (select LOCK_WAITS, DEADLOCKS from T1) AS C0 ON 1 = 1"
+                + " LEFT OUTER JOIN (select POOL_READS from T2) AS C1 ON 1 = 1"
+                + " LEFT OUTER JOIN (SELECT HADR_STATE from T3) AS C2 ON 1 = 1", batch().getSQL());
+    }
+
+    @Test
+    public void batchesPlainSelectsOnly() {
+        assertTrue(CategoryBatch.isBatchable("  select * from SYSIBMADM.MON_DB_SUMMARY"));
+        assertFalse(CategoryBatch.isBatchable("WITH T AS (select 1 from SYSIBM.SYSDUMMY1) select * from T"));
+        assertFalse(CategoryBatch.isBatchable("select 1 from SYSIBM.SYSDUMMY1; select 2 from SYSIBM.SYSDUMMY1"));
+        assertFalse(CategoryBatch.isBatchable("call MONREPORT.DBSUMMARY()"));
+    }
+
+    @Test
+    public void splitsTheRowAtTheMarkers() throws Exception {
+        CategoryBatch batch = batch();
+        MetricRegistry[] registries = registries();
+        beginCycle(registries);
+        batch.collectResults(StubResultSet.of(COLUMNS, TYPES, new Object[][] { { 3L, 1L, 0, 250L, 0, "YES" } }), registries);
+
+        assertEquals(2, registries[0].getPlan().getColumnCount());
+        assertEquals(3L, registries[0].getLong(registries[0].findId("locks/lock_waits")));
+        assertEquals(1L, registries[0].getLong(registries[0].findId("locks/deadlocks")));
+        assertEquals(1, registries[1].getPlan().getColumnCount());
+        assertEquals(250L, registries[1].getLong(registries[1].findId("bufferpool/pool_reads")));
+        assertEquals(1.0, registries[2].getValue(registries[2].findId("hadr/hadr_state")), 0.0);
+        assertEquals(-1, registries[1].findId("bufferpool/nr_batch_2")); // Markers are not metrics
+        assertEquals(1, registries[2].getRowsRead());
+    }
+
+    @Test
+    public void categoryWithoutRowLeavesItsMetricsAbsent() throws Exception {
+        CategoryBatch batch = batch();
+        MetricRegistry[] registries = registries();
+        beginCycle(registries);
+        batch.collectResults(StubResultSet.of(COLUMNS, TYPES, new Object[][] { { 3L, 1L, 0, null, 0, "YES" } }), registries);
+        assertFalse(registries[1].isPresent(registries[1].findId("bufferpool/pool_reads")));
+        assertTrue(registries[0].isPresent(registries[0].findId("locks/lock_waits")));
+    }
+
+    @Test(expected = SQLException.class)
+    public void missingMarkerIsAnError() throws Exception {
+        batch().collectResults(StubResultSet.of(new String[] { "LOCK_WAITS", "NR_BATCH_1", "POOL_READS" },
+                new int[] { Types.BIGINT, Types.INTEGER, Types.BIGINT }, new Object[][] { { 1L, 0, 2L } }), registries());
+    }
+
+    @Test
+    public void rejectsAMultiRowCategory() throws Exception {
+        CategoryBatch batch = batch();
+        MetricRegistry[] registries = registries();
+        beginCycle(registries);
+        ResultSet rs = StubResultSet.of(COLUMNS, TYPES, new Object[][] { { 3L, 1L, 0, 250L, 0, "YES" }, { 3L, 1L, 0, 900L, 0, "YES" } });
+        try {
+            batch.collectResults(rs, registries);
+            fail("A cross product was collected");
+        } catch (SQLException e) {
+            // Expected
+        }
+        assertArrayEquals(new boolean[] { false, true, false }, batch.getMultiRowCategories());
+        assertTrue(batch.isRetired());
+        assertFalse(batch.isDue(100L));
+    }
+
+    @Test
+    public void backsOffThenRetires() {
+        CategoryBatch batch = batch();
+        assertTrue(batch.isDue(0L));
+        batch.recordFailure(10L);
+        assertFalse(batch.isDue(11L));
+        assertTrue(batch.isDue(12L));
+        batch.recordFailure(12L);
+        assertFalse(batch.isDue(15L));
+        assertTrue(batch.isDue(16L));
+        batch.recordSuccess(); // Failures must be in a row
+        batch.recordFailure(16L);
+        batch.recordFailure(18L);
+        assertFalse(batch.isRetired());
+        batch.recordFailure(22L);
+        assertTrue(batch.isRetired());
+        assertFalse(batch.isDue(1000L));
+    }
+}
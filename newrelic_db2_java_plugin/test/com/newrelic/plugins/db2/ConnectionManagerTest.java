@@ -0,0 +1,203 @@
+package com.newrelic.plugins.db2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests how ConnectionManager recognizes lost connections, backs off from failed connection attempts and builds the driver properties. The
+ * connections come from a stub driver for the databases UP and DOWN on closed ports of the loopback interface, so the JCC driver fails fast on them.
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class ConnectionManagerTest {
+
+    private static final String HOST = "127.0.0.1:1";
+
+    private static final AtomicInteger attempts = new AtomicInteger(); // Connections the stub driver was asked for
+    private static volatile boolean valid = true; // What the stub connections answer to isValid
+
+    @BeforeClass
+    public static void registerDriver() throws SQLException {
+        DriverManager.registerDriver(new StubDriver());
+    }
+
+    private static ConnectionManager manager(String database) {
+        return new ConnectionManager(HOST, database, "db2inst1", "secret", "");
+    }
+
+    @Test
+    public void recognizesConnectionErrors() {
+        assertTrue(ConnectionManager.isConnectionError(new SQLException("Communication link failure", "08001", -30081)));
+        assertTrue(ConnectionManager.isConnectionError(new SQLException("Connection reset", null, -4499)));
+        assertFalse(ConnectionManager.isConnectionError(new SQLException("Undefined name", "42704", -204)));
+        assertFalse(ConnectionManager.isConnectionError(new SQLException("Timeout", "57014", -952)));
+
+        SQLException chained = new SQLException("Statement failed", "58004", -901);
+        chained.setNextException(new SQLException("Connection closed", "08003", -4470));
+        assertTrue(ConnectionManager.isConnectionError(chained)); // The cause decides
+    }
+
+    @Test
+    public void backoffDoublesWithJitterUpToTheMaximum() {
+        ConnectionManager manager = manager("DOWN");
+        long min = TimeUnit.SECONDS.toNanos(15);
+        long max = TimeUnit.MINUTES.toNanos(15);
+        for (int attempt = 1; attempt <= 7; attempt++) {
+            long delay = Math.min(min << (attempt - 1), max);
+            for (int i = 0; i < 100; i++) {
+                long backoff = manager.backoff(attempt);
+                assertTrue(backoff >= delay / 2 && backoff <= delay); // Half fixed, half random
+            }
+        }
+        assertTrue(manager.backoff(1000) <= max); // Does not overflow
+        assertTrue(manager.backoff(1000) >= max / 2);
+    }
+
+    @Test
+    public void doesNotReconnectWhileBackingOff() {
+        ConnectionManager manager = manager("DOWN");
+        int before = attempts.get();
+        assertNull(manager.getConnection());
+        assertEquals(before + 1, attempts.get());
+        assertNull(manager.getConnection()); // Within the backoff, not tried
+        assertEquals(before + 1, attempts.get());
+    }
+
+    @Test
+    public void reconnectsAfterALostConnection() {
+        ConnectionManager manager = manager("UP");
+        Connection first = manager.getConnection();
+        assertNotNull(first);
+        assertSame(first, manager.getConnection()); // Handed out again without a round-trip
+
+        assertFalse(manager.handleError(new SQLException("Undefined name", "42704", -204)));
+        assertSame(first, manager.getConnection());
+
+        assertTrue(manager.handleError(new SQLException("Communication link failure", "08001", -30081)));
+        Connection second = manager.getConnection();
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertEquals(1L, manager.getReconnects());
+    }
+
+    @Test
+    public void validatesIdleConnections() {
+        ConnectionManager manager = manager("UP");
+        manager.setValidationIdleTime(0);
+        Connection first = manager.getConnection();
+        try {
+            valid = true;
+            assertSame(first, manager.getConnection());
+            valid = false;
+            assertNotSame(first, manager.getConnection());
+        } finally {
+            valid = true;
+        }
+    }
+
+    @Test
+    public void parsesConnectionProperties() {
+        Properties props = ConnectionManager.parseProperties(" currentSchema = MON ;sslConnection=true;;malformed;url=a=b;");
+        assertEquals(3, props.size());
+        assertEquals("MON", props.getProperty("currentSchema"));
+        assertEquals("true", props.getProperty("sslConnection"));
+        assertEquals("a=b", props.getProperty("url"));
+        assertTrue(ConnectionManager.parseProperties(null).isEmpty());
+    }
+
+    @Test
+    public void configuredPropertiesWinOverTheTimeoutDefaults() {
+        ConnectionManager manager = new ConnectionManager(HOST, "UP", "db2inst1", "secret", "loginTimeout=3;user=other;");
+        manager.setTimeouts(10, 0, 30);
+        Properties props = manager.getDriverProperties();
+        assertEquals("3", props.getProperty("loginTimeout"));
+        assertNull(props.getProperty("blockingReadConnectionTimeout")); // 0 leaves the driver default
+        assertEquals("db2inst1", props.getProperty("user")); // The credentials of the agent always win
+        assertEquals("secret", props.getProperty("password"));
+    }
+
+    /**
+     * A driver for the databases UP, whose connections are stubs, and DOWN, which refuses every connection
+     */
+    private static class StubDriver implements Driver {
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            attempts.incrementAndGet();
+            if (url.endsWith("/DOWN")) {
+                throw new SQLException("Connection refused", "08001", -4499);
+            }
+            return (Connection) Proxy.newProxyInstance(ConnectionManagerTest.class.getClassLoader(), new Class<?>[] { Connection.class },
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if ("isValid".equals(method.getName())) {
+                                return valid;
+                            }
+                            if ("equals".equals(method.getName())) {
+                                return proxy == args[0];
+                            }
+                            if ("hashCode".equals(method.getName())) {
+                                return System.identityHashCode(proxy);
+                            }
+                            return null; // close
+                        }
+                    });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:db2://" + HOST + "/");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() {
+            return Logger.getLogger(StubDriver.class.getName());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.newrelic.plugins.db2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the rates CounterDeltaEngine computes from cumulative counters, how it re-baselines a counter that went down or a restarted category, and
+ * how a category replaced by a reload takes over the samples of the one it replaces
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CounterDeltaEngineTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void firstSampleHasNoRate() {
+        CounterDeltaEngine engine = new CounterDeltaEngine();
+        assertTrue(Double.isNaN(engine.process(0, 100L, 0L)));
+        assertEquals(10.0, engine.process(0, 700L, 60 * SECOND), 1e-9);
+        assertEquals(600L, engine.getDelta(0));
+    }
+
+    @Test
+    public void keepsFullPrecisionPast2To53() {
+        CounterDeltaEngine engine = new CounterDeltaEngine();
+        long base = (1L << 62) + 1L; // A float or double would lose the increments
+        engine.process(3, base, 0L);
+        assertEquals(1.0, engine.process(3, base + 1L, SECOND), 0.0);
+        assertEquals(1L, engine.getDelta(3));
+        assertEquals(2.0, engine.process(3, base + 3L, 2 * SECOND), 0.0);
+    }
+
+    @Test
+    public void counterGoingDownIsRebaselined() {
+        CounterDeltaEngine engine = new CounterDeltaEngine();
+        engine.process(0, Long.MAX_VALUE - 10L, 0L);
+        assertTrue(Double.isNaN(engine.process(0, 5L, SECOND))); // Wrapped around, or reset on the server
+        assertEquals(1L, engine.getResets());
+        assertEquals(10.0, engine.process(0, 15L, 2 * SECOND), 1e-9);
+    }
+
+    @Test
+    public void restartRebaselinesAllSeries() {
+        CounterDeltaEngine engine = new CounterDeltaEngine();
+        engine.process(0, 10L, 0L);
+        engine.process(1, 20L, 0L);
+        engine.restart();
+        assertTrue(Double.isNaN(engine.process(0, 1000L, SECOND)));
+        assertTrue(Double.isNaN(engine.process(1, 2000L, SECOND)));
+        assertEquals(1L, engine.getResets());
+        assertEquals(1.0, engine.process(0, 1001L, 2 * SECOND), 1e-9);
+    }
+
+    @Test
+    public void sameSampleTwiceKeepsTheLastRate() {
+        CounterDeltaEngine engine = new CounterDeltaEngine();
+        engine.process(0, 0L, 0L);
+        assertEquals(5.0, engine.process(0, 300L, 60 * SECOND), 1e-9);
+        assertEquals(5.0, engine.process(0, 300L, 60 * SECOND), 1e-9); // Category not due, its last sample is reported again
+        assertEquals(1.0, engine.process(0, 360L, 120 * SECOND), 1e-9); // The baseline was kept
+    }
+
+    @Test
+    public void growsForLargeIds() {
+        CounterDeltaEngine engine = new CounterDeltaEngine();
+        engine.process(1000, 1L, 0L);
+        assertEquals(1.0, engine.process(1000, 2L, SECOND), 1e-9);
+        assertEquals(0L, engine.getDelta(5000));
+    }
+
+    @Test
+    public void replacedCategoryCarriesItsSamplesOverByName() {
+        MetricRegistry before = new MetricRegistry("locks");
+        int waits = before.getId("locks/lock_waits");
+        int deadlocks = before.getId("locks/deadlocks");
+        CounterDeltaEngine replaced = new CounterDeltaEngine();
+        replaced.process(waits, 100L, 0L);
+        replaced.process(deadlocks, 5L, 0L);
+
+        CounterDeltaEngine engine = new CounterDeltaEngine(); // The new registry registers the series in another order
+        engine.carryOver(replaced, before);
+        assertEquals(12.0, engine.process(0, "locks/deadlocks", 125L, 10 * SECOND), 1e-9);
+        assertEquals(1.0, engine.process(1, "locks/lock_waits", 110L, 10 * SECOND), 1e-9);
+        assertTrue(Double.isNaN(engine.process(2, "locks/timeouts", 7L, 10 * SECOND))); // Not collected before
+    }
+
+    @Test
+    public void restartDropsTheCarriedSamples() {
+        MetricRegistry before = new MetricRegistry("locks");
+        CounterDeltaEngine replaced = new CounterDeltaEngine();
+        replaced.process(before.getId("locks/lock_waits"), 100L, 0L);
+        CounterDeltaEngine engine = new CounterDeltaEngine();
+        engine.carryOver(replaced, before);
+        engine.restart();
+        assertTrue(Double.isNaN(engine.process(0, "locks/lock_waits", 110L, 10 * SECOND)));
+    }
+}
@@ -0,0 +1,158 @@
+package com.newrelic.plugins.db2;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONValue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests parsing Expression text, and evaluating it against the values of a registry, directly and as DerivedMetrics
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class ExpressionTest {
+
+    private static final long SECOND = 1000000000L;
+    private static final String[] COLUMNS = { "LOCK_WAITS", "TOTAL_APP_COMMITS", "TOTAL_APP_ROLLBACKS", "HIT_RATIO" };
+    private static final int[] TYPES = { Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.DOUBLE };
+
+    private MetricRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new MetricRegistry("overview");
+        registry.setPlan(ColumnPlan.typed("overview", StubResultSet.metaData(COLUMNS, TYPES)));
+    }
+
+    /**
+     * Start a cycle sampled at the given second with the given values of the columns, null for no value
+     */
+    private void cycle(long second, Object... values) {
+        registry.beginCycle();
+        registry.setSampleTime(second * SECOND);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] instanceof Long) {
+                registry.setLong(registry.getRowId(i + 1), (Long) values[i]);
+            } else if (values[i] != null) {
+                registry.set(registry.getRowId(i + 1), ((Number) values[i]).doubleValue());
+            }
+        }
+    }
+
+    private Expression bound(String text) {
+        Expression expression = Expression.parse(text);
+        List<String> unknown = new ArrayList<String>();
+        expression.bind(registry.getPlan(), unknown);
+        assertTrue(unknown.toString(), unknown.isEmpty());
+        return expression;
+    }
+
+    private double evaluate(Expression expression) {
+        return expression.evaluate(registry, registry.getRowIds());
+    }
+
+    @Test
+    public void honoursPrecedence() {
+        cycle(0);
+        assertEquals(7.0, evaluate(bound("1 + 2 * 3")), 0.0);
+        assertEquals(9.0, evaluate(bound("(1 + 2) * 3")), 0.0);
+        assertEquals(1.0, evaluate(bound("8 / 4 / 2")), 0.0); // Left associative
+        assertEquals(-1.0, evaluate(bound("2 - 3")), 0.0);
+        assertEquals(-6.0, evaluate(bound("-2 * 3")), 0.0);
+        assertEquals(5.0, evaluate(bound("--5")), 0.0);
+        assertEquals(2.0, evaluate(bound("min(2, max(1, 3))")), 0.0);
+        assertEquals(0.5, evaluate(bound(" .5 ")), 0.0);
+    }
+
+    @Test
+    public void readsColumnsCaseInsensitively() {
+        cycle(0, 4L, 6L, 2L, 0.75);
+        assertEquals(0.5, evaluate(bound("lock_waits / (Total_App_Commits + TOTAL_APP_ROLLBACKS)")), 0.0);
+        assertEquals(75.0, evaluate(bound("100 * HIT_RATIO")), 0.0);
+    }
+
+    @Test
+    public void missingValuesAndDivisionByZeroAreNaN() {
+        cycle(0, 4L, 0L, null, null);
+        assertTrue(Double.isNaN(evaluate(bound("LOCK_WAITS / TOTAL_APP_COMMITS"))));
+        assertTrue(Double.isNaN(evaluate(bound("LOCK_WAITS + TOTAL_APP_ROLLBACKS"))));
+        assertTrue(Double.isNaN(evaluate(bound("min(HIT_RATIO, 1)"))));
+    }
+
+    @Test
+    public void unknownColumnsAreReported() {
+        Expression expression = Expression.parse("LOCK_WAITS + DEADLOCKS");
+        List<String> unknown = new ArrayList<String>();
+        expression.bind(registry.getPlan(), unknown);
+        assertEquals(1, unknown.size());
+        assertEquals("deadlocks", unknown.get(0));
+        cycle(0, 1L);
+        assertTrue(Double.isNaN(evaluate(expression)));
+    }
+
+    @Test
+    public void deltaAndRateOfCounters() {
+        Expression delta = bound("delta(LOCK_WAITS) / (delta(TOTAL_APP_COMMITS) + delta(TOTAL_APP_ROLLBACKS))");
+        Expression rate = bound("rate(TOTAL_APP_COMMITS)");
+        cycle(0, 10L, 100L, 0L);
+        assertTrue(Double.isNaN(evaluate(delta))); // First sample
+        assertTrue(Double.isNaN(evaluate(rate)));
+        cycle(60, 40L, 700L, 0L);
+        assertEquals(0.05, evaluate(delta), 1e-12);
+        assertEquals(10.0, evaluate(rate), 1e-12);
+        cycle(120, 40L, 700L, 0L);
+        assertTrue(Double.isNaN(evaluate(delta))); // No transactions, 0 / 0
+    }
+
+    @Test
+    public void copiesKeepTheirOwnSamples() {
+        Expression original = bound("delta(LOCK_WAITS)");
+        Expression copy = original.copy();
+        List<String> unknown = new ArrayList<String>();
+        copy.bind(registry.getPlan(), unknown);
+        cycle(0, 10L);
+        evaluate(original);
+        cycle(60, 15L);
+        assertEquals(5.0, evaluate(original), 0.0);
+        assertTrue(Double.isNaN(evaluate(copy))); // First sample of the copy
+    }
+
+    @Test
+    public void rejectsInvalidText() {
+        String[] invalid = { "", "1 +", "(1 + 2", "1 2", "delta(1)", "rate(A, B)", "min(1)", "avg(A)", "A $ B", "1..2" };
+        for (String text : invalid) {
+            try {
+                Expression.parse(text);
+                fail("Parsed '" + text + "'");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("position"));
+            }
+        }
+    }
+
+    @Test
+    public void derivedMetricsAreWrittenAfterTheColumns() throws Exception {
+        DerivedMetrics derived = DerivedMetrics.compile("overview", JSONValue.parse(
+                "{ \"waits_per_commit\" : \"LOCK_WAITS / TOTAL_APP_COMMITS\", \"hit\" : { \"expression\" : \"100 * HIT_RATIO\", \"unit\" : \"%\" },"
+                        + " \"broken\" : \"1 +\" }"));
+        assertEquals(2, derived.getNames().length);
+        MetricRegistry overview = new MetricRegistry("overview");
+        overview.setDerivedMetrics(derived);
+        overview.beginCycle();
+        DB2.collectResults(StubResultSet.of(COLUMNS, TYPES, new Object[][] { { 5L, 10L, 0L, 0.9 } }), "overview", ROW, overview);
+        derived.evaluate(overview, false);
+        assertEquals(0.5, overview.getValue(overview.findId("overview/waits_per_commit")), 1e-12);
+        assertEquals(90.0, overview.getValue(overview.findId("overview/hit")), 1e-9);
+        assertFalse(overview.findId("overview/broken") >= 0);
+    }
+}
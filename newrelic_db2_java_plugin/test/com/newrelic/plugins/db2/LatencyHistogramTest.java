@@ -0,0 +1,100 @@
+package com.newrelic.plugins.db2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Tests the buckets, percentiles and intervals of LatencyHistogram
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class LatencyHistogramTest {
+
+    private static final long MS = 1000000L; // Nanoseconds
+
+    @Test
+    public void bucketsByUpperBound() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100000L); // 100 us, on the bound of the first bucket
+        histogram.record(100001000L); // 100.001 ms
+        histogram.record(500 * 1000 * MS); // 500 s, over the last bound
+        histogram.record(-5L);
+        assertEquals(2L, histogram.getBucket(0)); // A negative latency counts as 0
+        assertEquals(1L, histogram.getBucket(10)); // Up to 200 ms
+        assertEquals(1L, histogram.getBucket(histogram.getBucketCount() - 1));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.getUpperBound(histogram.getBucketCount() - 1));
+        assertEquals(4L, histogram.getCount());
+    }
+
+    @Test
+    public void percentilesAreBucketBoundsCappedByTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertTrue(Double.isNaN(histogram.getPercentile(50.0)));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(3 * MS);
+        }
+        histogram.record(30 * MS);
+        assertEquals(5.0, histogram.getPercentile(50.0), 0.0);
+        assertEquals(5.0, histogram.getPercentile(99.0), 0.0);
+        assertEquals(30.0, histogram.getPercentile(100.0), 0.0); // 50 ms bucket, capped at the longest latency
+        assertEquals(30.0, histogram.getMaxNanos() / (double) MS, 0.0);
+    }
+
+    @Test
+    public void intervalsStartAtTheMark() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(40 * MS);
+        histogram.record(60 * MS);
+        assertEquals(50.0, histogram.getIntervalAverage(), 0.0);
+        assertEquals(60.0, histogram.getIntervalMax(), 0.0);
+
+        histogram.mark();
+        assertEquals(0L, histogram.getIntervalCount());
+        assertTrue(Double.isNaN(histogram.getIntervalAverage()));
+        assertTrue(Double.isNaN(histogram.getIntervalPercentile(95.0)));
+        assertEquals(0.0, histogram.getIntervalMax(), 0.0);
+
+        histogram.record(2 * MS);
+        assertEquals(1L, histogram.getIntervalCount());
+        assertEquals(2.0, histogram.getIntervalAverage(), 0.0);
+        assertEquals(2.0, histogram.getIntervalPercentile(95.0), 0.0);
+        assertEquals(3L, histogram.getCount()); // The totals count on
+        assertEquals(60.0, histogram.getPercentile(100.0), 0.0); // Over all three, the longest since the start
+    }
+
+    @Test
+    public void recordsFromManyThreads() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long nanos = (t + 1) * MS;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(nanos);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000L, histogram.getCount());
+        assertEquals(100000L * MS, histogram.getTotalNanos());
+        assertEquals(4 * MS, histogram.getMaxNanos());
+    }
+}
@@ -0,0 +1,85 @@
+package com.newrelic.plugins.db2;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.ResultSet;
+import java.sql.Types;
+
+import org.junit.Test;
+
+/**
+ * Tests the rollup of the members of a row category into the registry of the category, and the restart of its counters when the members rolled up
+ * change
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class MemberRollupTest {
+
+    private static final String[] COLUMNS = { "LOCK_WAITS", "HIT_RATIO" };
+    private static final int[] TYPES = { Types.BIGINT, Types.DOUBLE };
+
+    private final MetricRegistry cluster = new MetricRegistry("locks");
+    private final MetricRegistry[] members = { new MetricRegistry("locks"), new MetricRegistry("locks"), new MetricRegistry("locks") };
+    private final MemberRollup rollup = new MemberRollup(cluster, false);
+
+    /**
+     * Collect a cycle of each member, null for a member that failed, and roll the members up
+     *
+     * @return int members rolled up
+     */
+    private int cycle(Object[]... rows) throws Exception {
+        MetricRegistry[] rolled = new MetricRegistry[members.length];
+        for (int m = 0; m < members.length; m++) {
+            members[m].beginCycle();
+            if (rows[m] != null) {
+                ResultSet rs = StubResultSet.of(COLUMNS, TYPES, new Object[][] { rows[m] });
+                if (members[m].getPlan() == null) {
+                    members[m].setPlan(ColumnPlan.typed("locks", rs.getMetaData()));
+                }
+                DB2.collectResults(rs, "locks", ROW, members[m]);
+                rolled[m] = members[m];
+            }
+        }
+        cluster.beginCycle();
+        return rollup.rollup(rolled);
+    }
+
+    @Test
+    public void sumsIntegersAndAveragesTheRest() throws Exception {
+        assertEquals(3, cycle(new Object[] { 10L, 0.5 }, new Object[] { 20L, 0.7 }, new Object[] { 30L, 0.9 }));
+        assertEquals(60L, cluster.getLong(cluster.findId("locks/lock_waits")));
+        assertEquals(0.7, cluster.getValue(cluster.findId("locks/hit_ratio")), 1e-9);
+        assertFalse(cluster.isRestarted());
+    }
+
+    @Test
+    public void sameMembersKeepTheCounters() throws Exception {
+        cycle(new Object[] { 10L, 0.5 }, new Object[] { 20L, 0.7 }, null);
+        cycle(new Object[] { 11L, 0.5 }, new Object[] { 22L, 0.7 }, null);
+        assertEquals(33L, cluster.getLong(cluster.findId("locks/lock_waits")));
+        assertFalse(cluster.isRestarted());
+    }
+
+    @Test
+    public void failedMemberRestartsTheCounters() throws Exception {
+        cycle(new Object[] { 10L, 0.5 }, new Object[] { 20L, 0.7 }, new Object[] { 30L, 0.9 });
+        assertEquals(2, cycle(new Object[] { 11L, 0.5 }, null, new Object[] { 31L, 0.9 }));
+        assertTrue(cluster.isRestarted()); // The sum dropped by the counter of the missing member
+        cycle(new Object[] { 12L, 0.5 }, null, new Object[] { 32L, 0.9 });
+        assertFalse(cluster.isRestarted());
+        cycle(new Object[] { 13L, 0.5 }, new Object[] { 23L, 0.7 }, new Object[] { 33L, 0.9 });
+        assertTrue(cluster.isRestarted()); // The member is back, the sum jumps by its counter
+    }
+
+    @Test
+    public void cycleWithoutMembersKeepsTheLastSet() throws Exception {
+        cycle(new Object[] { 10L, 0.5 }, new Object[] { 20L, 0.7 }, new Object[] { 30L, 0.9 });
+        assertEquals(0, cycle(null, null, null));
+        cycle(new Object[] { 12L, 0.5 }, new Object[] { 22L, 0.7 }, new Object[] { 32L, 0.9 });
+        assertFalse(cluster.isRestarted());
+    }
+}
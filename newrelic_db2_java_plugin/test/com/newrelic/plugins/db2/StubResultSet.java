@@ -0,0 +1,85 @@
+package com.newrelic.plugins.db2;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+
+/**
+ * A ResultSet over rows held in memory, with the methods the collection code calls: next, getLong, getDouble, getString, getObject, wasNull,
+ * getMetaData and close, and getColumnCount, getColumnName and getColumnType of its meta data
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class StubResultSet implements InvocationHandler {
+
+    private final String[] columns;
+    private final int[] types; // java.sql.Types of each column
+    private final Object[][] rows; // Cells of each row, null for SQL NULL
+    private int row = -1;
+    private boolean wasNull = false;
+
+    private StubResultSet(String[] columns, int[] types, Object[][] rows) {
+        this.columns = columns;
+        this.types = types;
+        this.rows = rows;
+    }
+
+    /**
+     * @param columns String[] column names
+     * @param types int[] java.sql.Types of each column
+     * @param rows Object[][] cells of each row, Number, String or null
+     * @return ResultSet positioned before the first row
+     */
+    public static ResultSet of(String[] columns, int[] types, Object[][] rows) {
+        return (ResultSet) Proxy.newProxyInstance(StubResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+                new StubResultSet(columns, types, rows));
+    }
+
+    /**
+     * @return ResultSetMetaData of the given columns
+     */
+    public static ResultSetMetaData metaData(String[] columns, int[] types) {
+        return (ResultSetMetaData) Proxy.newProxyInstance(StubResultSet.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+                new StubResultSet(columns, types, new Object[0][]));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("next".equals(name)) {
+            return ++row < rows.length;
+        } else if ("wasNull".equals(name)) {
+            return wasNull;
+        } else if ("close".equals(name)) {
+            return null;
+        } else if ("getMetaData".equals(name)) {
+            return metaData(columns, types);
+        } else if ("getColumnCount".equals(name)) {
+            return columns.length;
+        } else if ("getColumnName".equals(name) || "getColumnLabel".equals(name)) {
+            return columns[(Integer) args[0] - 1];
+        } else if ("getColumnType".equals(name)) {
+            return types[(Integer) args[0] - 1];
+        }
+        if (args == null || args.length != 1 || !(args[0] instanceof Integer)) {
+            throw new UnsupportedOperationException(name);
+        }
+        Object cell = rows[row][(Integer) args[0] - 1];
+        wasNull = cell == null;
+        if ("getLong".equals(name)) {
+            return cell == null ? 0L : ((Number) cell).longValue();
+        } else if ("getInt".equals(name)) {
+            return cell == null ? 0 : ((Number) cell).intValue();
+        } else if ("getDouble".equals(name)) {
+            return cell == null ? 0.0 : ((Number) cell).doubleValue();
+        } else if ("getString".equals(name)) {
+            return cell == null ? null : cell.toString();
+        } else if ("getObject".equals(name)) {
+            return cell;
+        }
+        throw new UnsupportedOperationException(name);
+    }
+}
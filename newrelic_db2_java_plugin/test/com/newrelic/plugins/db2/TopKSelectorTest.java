@@ -0,0 +1,120 @@
+package com.newrelic.plugins.db2;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.ResultSet;
+import java.sql.Types;
+
+import org.junit.Test;
+
+/**
+ * Tests the entities TopKSelector keeps of a set category, and the _other rollup of the rest
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class TopKSelectorTest {
+
+    private static final String[] COLUMNS = { "TBSP_NAME", "TBSP_UTILIZATION_PERCENT", "TBSP_USED_PAGES" };
+    private static final int[] TYPES = { Types.VARCHAR, Types.DOUBLE, Types.BIGINT };
+
+    private static ResultSet tablespaces(Object[][] rows) {
+        return StubResultSet.of(COLUMNS, TYPES, rows);
+    }
+
+    private static boolean present(MetricRegistry registry, String name) {
+        return registry.isPresent(registry.findId(name));
+    }
+
+    private static double value(MetricRegistry registry, String name) {
+        return registry.getValue(registry.findId(name));
+    }
+
+    @Test
+    public void keepsTheHighestRankedEntities() throws Exception {
+        MetricRegistry registry = new MetricRegistry("tablespace");
+        registry.setTopK(2, "tbsp_utilization_percent");
+        registry.beginCycle();
+        DB2.collectResults(tablespaces(new Object[][] {
+                { "A", 10.0, 100L },
+                { "B", 90.0, 200L },
+                { "C", 50.0, 300L },
+                { "D", 70.0, 400L },
+                { "E", null, 500L } }), "tablespace", SET, registry);
+
+        assertTrue(present(registry, "tablespace_B/tbsp_used_pages"));
+        assertTrue(present(registry, "tablespace_D/tbsp_used_pages"));
+        assertEquals(90.0, value(registry, "tablespace_B/tbsp_utilization_percent"), 0.0);
+        assertEquals(-1, registry.findId("tablespace_A/tbsp_used_pages"));
+        assertEquals(-1, registry.findId("tablespace_E/tbsp_used_pages")); // No rank value ranks lowest
+
+        assertEquals(3.0, value(registry, "tablespace__other/entities"), 0.0);
+        assertEquals(900L, registry.getLong(registry.findId("tablespace__other/tbsp_used_pages"))); // Integer columns are summed
+        assertEquals(30.0, value(registry, "tablespace__other/tbsp_utilization_percent"), 1e-9); // The others averaged over rows with a value
+        assertEquals(5, registry.getRowsRead());
+    }
+
+    @Test
+    public void noOtherWhenAllEntitiesFit() throws Exception {
+        MetricRegistry registry = new MetricRegistry("tablespace");
+        registry.setTopK(5, "tbsp_utilization_percent");
+        registry.beginCycle();
+        DB2.collectResults(tablespaces(new Object[][] { { "A", 10.0, 100L }, { "B", 20.0, 200L } }), "tablespace", SET, registry);
+        assertTrue(present(registry, "tablespace_A/tbsp_used_pages"));
+        assertTrue(present(registry, "tablespace_B/tbsp_used_pages"));
+        assertFalse(present(registry, "tablespace__other/entities"));
+    }
+
+    @Test
+    public void withoutRankColumnKeepsTheFirstRows() throws Exception {
+        MetricRegistry registry = new MetricRegistry("tablespace");
+        registry.setTopK(2, null);
+        registry.beginCycle();
+        DB2.collectResults(tablespaces(new Object[][] { { "A", 1.0, 1L }, { "B", 99.0, 2L }, { "C", 50.0, 3L } }), "tablespace", SET, registry);
+        assertTrue(present(registry, "tablespace_A/tbsp_used_pages"));
+        assertTrue(present(registry, "tablespace_B/tbsp_used_pages"));
+        assertEquals(1.0, value(registry, "tablespace__other/entities"), 0.0);
+        assertEquals(3L, registry.getLong(registry.findId("tablespace__other/tbsp_used_pages")));
+    }
+
+    @Test
+    public void selectionStartsOverEachCycle() throws Exception {
+        MetricRegistry registry = new MetricRegistry("tablespace");
+        registry.setTopK(1, "tbsp_utilization_percent");
+        registry.beginCycle();
+        DB2.collectResults(tablespaces(new Object[][] { { "A", 80.0, 1L }, { "B", 20.0, 2L } }), "tablespace", SET, registry);
+        assertTrue(present(registry, "tablespace_A/tbsp_used_pages"));
+
+        registry.beginCycle();
+        DB2.collectResults(tablespaces(new Object[][] { { "A", 10.0, 1L }, { "B", 60.0, 2L } }), "tablespace", SET, registry);
+        assertFalse(present(registry, "tablespace_A/tbsp_used_pages"));
+        assertTrue(present(registry, "tablespace_B/tbsp_used_pages"));
+        assertEquals(1.0, value(registry, "tablespace__other/entities"), 0.0);
+        assertEquals(1L, registry.getLong(registry.findId("tablespace__other/tbsp_used_pages")));
+    }
+
+    @Test
+    public void keepsTheTopOfManyRows() throws Exception {
+        Object[][] rows = new Object[10000][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new Object[] { "T" + i, (double) ((i * 7919) % rows.length), 1L }; // A permutation of 0..9999
+        }
+        MetricRegistry registry = new MetricRegistry("tablespace");
+        registry.setTopK(10, "tbsp_utilization_percent");
+        registry.beginCycle();
+        DB2.collectResults(tablespaces(rows), "tablespace", SET, registry);
+        int kept = 0;
+        for (int i = 0; i < rows.length; i++) {
+            double rank = (Double) rows[i][1];
+            int id = registry.findId("tablespace_T" + i + "/tbsp_utilization_percent");
+            boolean isKept = registry.isPresent(id);
+            assertEquals("T" + i, rank >= rows.length - 10, isKept);
+            kept += isKept ? 1 : 0;
+        }
+        assertEquals(10, kept);
+        assertEquals(9990L, registry.getLong(registry.findId("tablespace__other/tbsp_used_pages")));
+    }
+}
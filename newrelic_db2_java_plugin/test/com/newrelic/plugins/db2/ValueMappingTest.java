@@ -0,0 +1,94 @@
+package com.newrelic.plugins.db2;
+
+import static com.newrelic.plugins.db2.util.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Types;
+import java.util.Map;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+/**
+ * Tests the lookup of character column values in ValueMapping tables, and their compilation from the value_mappings attribute
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class ValueMappingTest {
+
+    private static Map<String, ValueMapping> hadr() {
+        return ValueMapping.compile("HADR", JSONValue.parse("{ \"HADR_STATE\" : { \"PEER\" : 5, \"Connected\" : \"1\", \"DISCONNECTED\" : 0 } }"));
+    }
+
+    @Test
+    public void defaultMapsSwitches() {
+        assertEquals(1.0, ValueMapping.DEFAULT.map("YES"), 0.0);
+        assertEquals(1.0, ValueMapping.DEFAULT.map("on"), 0.0);
+        assertEquals(0.0, ValueMapping.DEFAULT.map("OFF"), 0.0);
+        assertEquals(-1.0, ValueMapping.DEFAULT.map("NULL"), 0.0);
+        assertEquals(42.5, ValueMapping.DEFAULT.map("42.5"), 1e-6);
+        assertTrue(Double.isNaN(ValueMapping.DEFAULT.map("NORMAL")));
+        assertTrue(Double.isNaN(ValueMapping.DEFAULT.map(null)));
+    }
+
+    @Test
+    public void defaultMapsHadrStates() {
+        assertEquals(0.0, ValueMapping.DEFAULT.map("DISCONNECTED"), 0.0);
+        assertEquals(1.0, ValueMapping.DEFAULT.map("LOCAL_CATCHUP"), 0.0);
+        assertEquals(3.0, ValueMapping.DEFAULT.map("REMOTE_CATCHUP_PENDING"), 0.0);
+        assertEquals(4.0, ValueMapping.DEFAULT.map("REMOTE_CATCHUP"), 0.0);
+        assertEquals(5.0, ValueMapping.DEFAULT.map("PEER"), 0.0);
+        assertEquals(1.0, ValueMapping.DEFAULT.map("CONNECTED"), 0.0);
+        assertEquals(2.0, ValueMapping.DEFAULT.map("CONGESTED"), 0.0);
+    }
+
+    @Test
+    public void parsesLargeIntegersExactly() {
+        assertEquals(16777217.0, ValueMapping.DEFAULT.map("16777217"), 0.0); // 2^24 + 1, not a float
+        assertEquals(9007199254740992.0, ValueMapping.DEFAULT.map("9007199254740992"), 0.0);
+        assertEquals(-3.0, ValueMapping.DEFAULT.map("-3"), 0.0);
+        assertEquals(1e20, ValueMapping.DEFAULT.map("100000000000000000000"), 1e5); // Beyond a long
+    }
+
+    @Test
+    public void compiledTableExtendsDefault() {
+        Map<String, ValueMapping> mappings = hadr();
+        ValueMapping states = mappings.get("hadr_state"); // Keyed by lower case column name
+        assertEquals(5.0, states.map("PEER"), 0.0);
+        assertEquals(1.0, states.map("CONNECTED"), 0.0); // Values are upper cased, numbers may be strings
+        assertEquals(1.0, states.map("connected"), 0.0);
+        assertEquals(0.0, states.map("DISCONNECTED"), 0.0);
+        assertEquals(1.0, states.map("YES"), 0.0);
+        assertEquals(7.0, states.map("7"), 0.0);
+        assertEquals(4.0, states.map("REMOTE_CATCHUP"), 0.0); // From DEFAULT
+        assertTrue(Double.isNaN(states.map("NORMAL")));
+        assertEquals(ValueMapping.DEFAULT.size(), states.size()); // The declared states override those of DEFAULT
+    }
+
+    @Test
+    public void skipsInvalidEntries() {
+        Map<String, ValueMapping> mappings = ValueMapping.compile("HADR",
+                JSONValue.parse("{ \"HADR_STATE\" : { \"PEER\" : \"high\", \"DISCONNECTED\" : 2 }, \"HADR_ROLE\" : 3 }"));
+        assertEquals(1, mappings.size());
+        assertEquals(5.0, mappings.get("hadr_state").map("PEER"), 0.0); // Skipped, DEFAULT still maps it
+        assertEquals(2.0, mappings.get("hadr_state").map("DISCONNECTED"), 0.0);
+
+        assertTrue(ValueMapping.compile("HADR", null).isEmpty());
+        assertTrue(ValueMapping.compile("HADR", "PEER=5").isEmpty());
+    }
+
+    @Test
+    public void appliesToCharacterColumnsOnly() throws Exception {
+        MetricRegistry registry = new MetricRegistry("hadr");
+        registry.setValueMappings(hadr());
+        registry.beginCycle();
+        DB2.collectResults(StubResultSet.of(new String[] { "HADR_STATE", "HADR_FLAGS", "HADR_LOG_GAP" },
+                new int[] { Types.VARCHAR, Types.VARCHAR, Types.INTEGER }, new Object[][] { { "PEER", "UNKNOWN", 12 } }), "hadr", ROW, registry);
+        assertEquals(5.0, registry.getValue(registry.findId("hadr/hadr_state")), 0.0);
+        assertFalse(registry.isPresent(registry.findId("hadr/hadr_flags"))); // Neither mapped nor a number
+        assertEquals(12L, registry.getLong(registry.findId("hadr/hadr_log_gap")));
+    }
+}
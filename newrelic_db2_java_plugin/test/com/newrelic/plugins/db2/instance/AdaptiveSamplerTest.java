@@ -0,0 +1,137 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests how AdaptiveSampler backs off slow categories, drops optional ones while the agent's cost is too high, and restores both once DB2 is calm
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class AdaptiveSamplerTest {
+
+    private static final long MS = 1000000L; // Nanoseconds
+    private static final long SLOW = 600 * MS; // Over the latency threshold
+    private static final long FAST = 10 * MS; // Well below it
+
+    private static final int OVERVIEW = 0;
+    private static final int TABLESPACE = 1;
+    private static final int SQL = 2; // Optional
+
+    private CategoryScheduler scheduler;
+    private AdaptiveSampler sampler;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("adaptive", true);
+        properties.put("adaptive_latency_threshold", 500);
+        properties.put("adaptive_cost_threshold", 100);
+        properties.put("adaptive_max_backoff", 4);
+        String[] names = { "overview", "tablespace", "sql_overview" };
+        int[] intervals = { 1, 2, 1 };
+        scheduler = new CategoryScheduler("agent", names, intervals);
+        sampler = new AdaptiveSampler(names, intervals, new boolean[] { false, false, true }, new DB2AgentOptions(properties));
+    }
+
+    /**
+     * Record a cycle in which every category ran, and adjust the sampler
+     */
+    private void cycle(long overview, long tablespace, double cost) {
+        sampler.recordLatency(OVERVIEW, overview);
+        sampler.recordLatency(TABLESPACE, tablespace);
+        sampler.recordLatency(SQL, FAST);
+        sampler.recordCost(cost);
+        sampler.adjust(scheduler);
+    }
+
+    @Test
+    public void slowCategoriesBackOffUpToTheMaximum() {
+        cycle(FAST, SLOW, 10.0);
+        assertEquals(AdaptiveSampler.NORMAL, sampler.getState(OVERVIEW));
+        assertEquals(AdaptiveSampler.BACKED_OFF, sampler.getState(TABLESPACE));
+        assertEquals(1, scheduler.getInterval(OVERVIEW));
+        assertEquals(4, scheduler.getInterval(TABLESPACE)); // A multiple of its configured interval
+
+        cycle(FAST, SLOW, 10.0);
+        assertEquals(8, scheduler.getInterval(TABLESPACE));
+        cycle(FAST, SLOW, 10.0);
+        assertEquals(8, scheduler.getInterval(TABLESPACE)); // At most 4 times
+    }
+
+    @Test
+    public void calmRunsRestoreStepByStep() {
+        cycle(FAST, SLOW, 10.0);
+        cycle(FAST, SLOW, 10.0);
+        assertEquals(8, scheduler.getInterval(TABLESPACE));
+        for (int i = 0; i < 2; i++) {
+            cycle(FAST, FAST, 10.0);
+            assertEquals(8, scheduler.getInterval(TABLESPACE));
+        }
+        cycle(FAST, FAST, 10.0);
+        assertEquals(4, scheduler.getInterval(TABLESPACE)); // One step per three calm runs
+        for (int i = 0; i < 3; i++) {
+            cycle(FAST, FAST, 10.0);
+        }
+        assertEquals(2, scheduler.getInterval(TABLESPACE));
+        assertEquals(AdaptiveSampler.NORMAL, sampler.getState(TABLESPACE));
+    }
+
+    @Test
+    public void runsBetweenTheThresholdsAreNotCalm() {
+        cycle(FAST, SLOW, 10.0);
+        for (int i = 0; i < 5; i++) {
+            cycle(FAST, 300 * MS, 10.0); // Below the threshold, but not below half of it
+        }
+        assertEquals(4, scheduler.getInterval(TABLESPACE));
+    }
+
+    @Test
+    public void categoriesThatDidNotRunKeepTheirInterval() {
+        cycle(FAST, SLOW, 10.0);
+        for (int i = 0; i < 5; i++) {
+            sampler.recordLatency(OVERVIEW, FAST);
+            sampler.recordCost(10.0);
+            sampler.adjust(scheduler);
+        }
+        assertEquals(4, scheduler.getInterval(TABLESPACE));
+    }
+
+    @Test
+    public void highCostBacksOffTheSlowestAndDropsOptionalCategories() {
+        cycle(20 * MS, 50 * MS, 150.0);
+        assertEquals(AdaptiveSampler.NORMAL, sampler.getState(OVERVIEW));
+        assertEquals(AdaptiveSampler.BACKED_OFF, sampler.getState(TABLESPACE));
+        assertEquals(AdaptiveSampler.DROPPED, sampler.getState(SQL));
+        assertTrue(scheduler.isSuspended(SQL));
+        assertFalse(scheduler.isSuspended(OVERVIEW));
+
+        cycle(FAST, FAST, 60.0); // Not over the threshold, but not below half of it either
+        cycle(FAST, FAST, 60.0);
+        cycle(FAST, FAST, 60.0);
+        assertTrue(scheduler.isSuspended(SQL));
+
+        cycle(FAST, FAST, 10.0);
+        cycle(FAST, FAST, 10.0);
+        assertTrue(scheduler.isSuspended(SQL));
+        cycle(FAST, FAST, 10.0);
+        assertFalse(scheduler.isSuspended(SQL)); // Restored after three calm cycles
+        assertEquals(AdaptiveSampler.NORMAL, sampler.getState(SQL));
+    }
+
+    @Test
+    public void unknownCostIsCalm() {
+        cycle(FAST, FAST, Double.NaN);
+        assertEquals(AdaptiveSampler.NORMAL, sampler.getState(TABLESPACE));
+        assertEquals(AdaptiveSampler.NORMAL, sampler.getState(SQL));
+        assertTrue(Double.isNaN(sampler.getCost()));
+    }
+}
@@ -0,0 +1,137 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import com.newrelic.metrics.publish.configuration.ConfigurationException;
+import com.newrelic.plugins.db2.DerivedMetrics;
+import com.newrelic.plugins.db2.MetricMeta;
+
+/**
+ * Tests how CategoryPlan checks and compiles the categories of 'metric.category.json': the attributes of each category, the meta data of their
+ * metrics, and the categories it refuses
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CategoryPlanTest {
+
+    private static final String TABLESPACE = "{ \"SQL\" : \"select * from SYSIBMADM.MON_TBSP_UTILIZATION\", \"result\" : \"set\", "
+            + "\"interval\" : \"15m\", \"top_k\" : \"100\", \"top_by\" : \"TBSP_UTILIZATION_PERCENT\", "
+            + "\"value_metrics\" : \"TBSP_UTILIZATION_PERCENT\", \"counter_metrics\" : \"\" }";
+    private static final String DATABASE = "{ \"SQL\" : \"select max(DB_CONN_TIME) as DB_CONN_TIME, sum(ROWS_READ) as ROWS_READ, "
+            + "sum(ROWS_RETURNED) as ROWS_RETURNED from table (mon_get_database(-2))\", \"result\" : \"row\", \"restart_marker\" : \"DB_CONN_TIME\", "
+            + "\"optional\" : \"true\", \"derived_metrics\" : { \"rows_read_per_rows_returned\" : \"delta(ROWS_READ) / delta(ROWS_RETURNED)\", "
+            + "\"returned_per_second\" : { \"expression\" : \"rate(ROWS_RETURNED)\", \"unit\" : \"rows/s\" } }, "
+            + "\"value_metrics\" : \"\", \"counter_metrics\" : \"ROWS_READ, ROWS_RETURNED\" }";
+    private static final String HADR = "{ \"SQL\" : \"select STANDBY_ID,HADR_STATE from table (mon_get_hadr(NULL))\", \"result\" : \"set\", "
+            + "\"value_mappings\" : { \"HADR_STATE\" : { \"DISCONNECTED_PEER\" : 6 } }, \"value_metrics\" : \"\", \"counter_metrics\" : \"\" }";
+
+    private static Map<String, Object> categories(String... nameAndJson) {
+        Map<String, Object> categories = new HashMap<String, Object>();
+        for (int i = 0; i < nameAndJson.length; i += 2) {
+            categories.put(nameAndJson[i], JSONValue.parse(nameAndJson[i + 1]));
+        }
+        return categories;
+    }
+
+    private static void assertRefused(Map<String, Object> categories, String message) {
+        try {
+            CategoryPlan.compile(categories);
+            fail("Compiled a plan with " + message);
+        } catch (ConfigurationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void compilesTheAttributesOfEachCategory() throws Exception {
+        CategoryPlan plan = CategoryPlan.compile(categories("tablespace", TABLESPACE, "database", DATABASE, "hadr", HADR));
+
+        CategoryPlan.Category tablespace = plan.getDefinitions().get("tablespace");
+        assertEquals(15, tablespace.getInterval());
+        assertEquals(100, tablespace.getTopK());
+        assertEquals("TBSP_UTILIZATION_PERCENT", tablespace.getTopBy());
+        assertFalse(tablespace.isOptional());
+        assertNull(tablespace.newDerivedMetrics());
+        assertTrue(tablespace.getValueMappings().isEmpty());
+
+        CategoryPlan.Category database = plan.getDefinitions().get("database");
+        assertEquals("row", database.getResult());
+        assertEquals(1, database.getInterval());
+        assertEquals("DB_CONN_TIME", database.getRestartMarker());
+        assertTrue(database.isOptional());
+        DerivedMetrics derived = database.newDerivedMetrics();
+        assertEquals(2, derived.getNames().length);
+        assertNotSame(derived, database.newDerivedMetrics()); // One for each registry
+
+        assertEquals(6.0, plan.getDefinitions().get("hadr").getValueMappings().get("hadr_state").map("DISCONNECTED_PEER"), 0.0);
+    }
+
+    @Test
+    public void topKOnlyAppliesToSetCategories() throws Exception {
+        String row = "{ \"SQL\" : \"select 1 as ONE from sysibm.sysdummy1\", \"result\" : \"row\", \"top_k\" : \"10\" }";
+        String invalid = "{ \"SQL\" : \"select * from SYSIBMADM.MON_TBSP_UTILIZATION\", \"result\" : \"set\", \"top_k\" : \"many\" }";
+        CategoryPlan plan = CategoryPlan.compile(categories("row", row, "invalid", invalid));
+        assertEquals(0, plan.getDefinitions().get("row").getTopK());
+        assertEquals(0, plan.getDefinitions().get("invalid").getTopK()); // All entities are reported
+    }
+
+    @Test
+    public void collectsTheMetaDataOfTheMetrics() throws Exception {
+        Map<String, MetricMeta> meta = CategoryPlan.compile(categories("tablespace", TABLESPACE, "database", DATABASE)).getMetricMeta();
+        assertTrue(meta.get("database/rows_read").isCounter());
+        assertTrue(meta.get("database/rows_returned").isCounter()); // Spaces in the list are ignored
+        assertFalse(meta.get("tablespace/tbsp_utilization_percent").isCounter());
+        assertFalse(meta.get("database/rows_read_per_rows_returned").isCounter());
+        assertEquals(MetricMeta.DEFAULT_UNIT, meta.get("database/rows_read_per_rows_returned").getUnit());
+        assertEquals("rows/s", meta.get("database/returned_per_second").getUnit());
+    }
+
+    @Test
+    public void refusesInvalidCategories() {
+        assertRefused(categories("overview", "[ \"select 1\" ]"), "a category that is not an object");
+        assertRefused(categories("overview", "{ \"result\" : \"row\" }"), "a category without SQL");
+        assertRefused(categories("overview", "{ \"SQL\" : \" \", \"result\" : \"row\" }"), "a category with blank SQL");
+        assertRefused(categories("overview", "{ \"SQL\" : \"select 1 from sysibm.sysdummy1\", \"result\" : \"rows\" }"), "an unknown result");
+        assertRefused(categories("overview", "{ \"SQL\" : \"select 1 from sysibm.sysdummy1\", \"result\" : \"row\", \"counter_metrics\" : 5 }"),
+                "a counter_metrics number");
+    }
+
+    @Test
+    public void plansOfTheSameAttributesAreEqual() throws Exception {
+        CategoryPlan plan = CategoryPlan.compile(categories("tablespace", TABLESPACE, "hadr", HADR));
+        CategoryPlan same = CategoryPlan.compile(categories("hadr", HADR, "tablespace", TABLESPACE));
+        CategoryPlan other = CategoryPlan.compile(categories("tablespace", TABLESPACE));
+        assertEquals(plan, same);
+        assertEquals(plan.hashCode(), same.hashCode());
+        assertFalse(plan.equals(other));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void attributesCannotBeChanged() throws Exception {
+        Map<String, Object> categories = categories("hadr", HADR);
+        CategoryPlan plan = CategoryPlan.compile(categories);
+        ((Map<String, Object>) categories.get("hadr")).put("interval", "5");
+        assertNotNull(plan.getDefinitions().get("hadr"));
+        assertNull(plan.getDefinitions().get("hadr").getAttributes().get("interval")); // The plan holds a copy
+        try {
+            plan.getDefinitions().get("hadr").getAttributes().put("interval", "5");
+            fail("Changed the attributes of a plan");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+}
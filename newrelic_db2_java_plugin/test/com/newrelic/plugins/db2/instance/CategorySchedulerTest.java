@@ -0,0 +1,153 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the cycles CategoryScheduler runs categories in, and how it spreads the categories of many agents over the cycles of their interval
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CategorySchedulerTest {
+
+    @Test
+    public void runsEveryNthCycle() {
+        CategoryScheduler scheduler = new CategoryScheduler("agent", new String[] { "overview", "tablespace" }, new int[] { 1, 5 });
+        int overview = 0;
+        int tablespace = 0;
+        long last = -1L;
+        for (int i = 0; i < 50; i++) {
+            scheduler.nextCycle();
+            if (scheduler.isDue(0)) {
+                overview++;
+            }
+            if (scheduler.isDue(1)) {
+                if (last >= 0) {
+                    assertEquals(5L, scheduler.getCycle() - last);
+                } else {
+                    assertTrue(scheduler.getCycle() < 5); // First run within its first interval
+                }
+                last = scheduler.getCycle();
+                tablespace++;
+            }
+        }
+        assertEquals(50, overview);
+        assertEquals(10, tablespace);
+    }
+
+    @Test
+    public void spreadsAgentsOverTheInterval() {
+        int interval = 10;
+        int agents = 1000;
+        int[] firstRuns = new int[interval];
+        for (int a = 0; a < agents; a++) {
+            CategoryScheduler scheduler = new CategoryScheduler("db2_" + a, new String[] { "tablespace" }, new int[] { interval });
+            for (int i = 0; i < interval; i++) {
+                scheduler.nextCycle();
+                if (scheduler.isDue(0)) {
+                    firstRuns[i]++;
+                }
+            }
+        }
+        int total = 0;
+        for (int count : firstRuns) {
+            total += count;
+            assertTrue("Uneven spread " + count, count > agents / interval / 2 && count < agents / interval * 2);
+        }
+        assertEquals(agents, total); // Each agent ran exactly once in the first interval
+    }
+
+    @Test
+    public void spreadsSimilarNames() {
+        boolean[] used = new boolean[5];
+        int distinct = 0;
+        for (int a = 0; a < 20; a++) {
+            int cycle = CategoryScheduler.spread("db2_" + a + ":tablespace", 5);
+            if (!used[cycle]) {
+                used[cycle] = true;
+                distinct++;
+            }
+        }
+        assertTrue(distinct >= 4);
+    }
+
+    @Test
+    public void holdSkipsDueCycles() {
+        CategoryScheduler scheduler = new CategoryScheduler("agent", new String[] { "overview" }, new int[] { 1 });
+        scheduler.nextCycle();
+        assertTrue(scheduler.isDue(0));
+        scheduler.hold(0, 3);
+        for (int i = 0; i < 3; i++) {
+            scheduler.nextCycle();
+            assertFalse(scheduler.isDue(0));
+            assertTrue(scheduler.isHeld(0) || i == 2);
+        }
+        scheduler.nextCycle();
+        assertTrue(scheduler.isDue(0));
+    }
+
+    @Test
+    public void suspendedNeverRuns() {
+        CategoryScheduler scheduler = new CategoryScheduler("agent", new String[] { "overview" }, new int[] { 1 });
+        scheduler.setSuspended(0, true);
+        for (int i = 0; i < 5; i++) {
+            scheduler.nextCycle();
+            assertFalse(scheduler.isDue(0));
+        }
+        scheduler.setSuspended(0, false);
+        scheduler.nextCycle();
+        assertTrue(scheduler.isDue(0));
+    }
+
+    @Test
+    public void newIntervalCountsFromLastRun() {
+        CategoryScheduler scheduler = new CategoryScheduler("agent", new String[] { "overview" }, new int[] { 1 });
+        scheduler.nextCycle(); // Runs in cycle 0
+        scheduler.setInterval(0, 3);
+        scheduler.nextCycle();
+        assertFalse(scheduler.isDue(0));
+        scheduler.nextCycle();
+        assertFalse(scheduler.isDue(0));
+        scheduler.nextCycle();
+        assertTrue(scheduler.isDue(0));
+    }
+
+    @Test
+    public void resumeKeepsTheScheduleOfKeptCategories() {
+        CategoryScheduler previous = new CategoryScheduler("agent", new String[] { "tablespace" }, new int[] { 4 });
+        long lastRun = -1L;
+        for (int i = 0; i < 6; i++) {
+            previous.nextCycle();
+            if (previous.isDue(0)) {
+                lastRun = previous.getCycle();
+            }
+        }
+        CategoryScheduler scheduler = new CategoryScheduler("agent", new String[] { "tablespace", "bufferpool" }, new int[] { 4, 1 });
+        scheduler.resume(previous, new int[] { 0, -1 });
+        assertEquals(previous.getCycle(), scheduler.getCycle());
+        for (int i = 0; i < 4; i++) {
+            scheduler.nextCycle();
+            assertEquals(scheduler.getCycle() == lastRun + 4, scheduler.isDue(0));
+            assertTrue(scheduler.isDue(1)); // A new category first runs in the next cycle for an interval of 1
+        }
+    }
+
+    @Test
+    public void parsesIntervals() {
+        assertEquals(1, CategoryScheduler.parseInterval("c", null, 60));
+        assertEquals(5, CategoryScheduler.parseInterval("c", Long.valueOf(5), 60));
+        assertEquals(5, CategoryScheduler.parseInterval("c", "5", 60));
+        assertEquals(15, CategoryScheduler.parseInterval("c", "15m", 60));
+        assertEquals(15, CategoryScheduler.parseInterval("c", "900s", 60));
+        assertEquals(2, CategoryScheduler.parseInterval("c", "90s", 60)); // Rounded up to whole cycles
+        assertEquals(60, CategoryScheduler.parseInterval("c", "1h", 60));
+        assertEquals(1, CategoryScheduler.parseInterval("c", "10s", 60));
+        assertEquals(1, CategoryScheduler.parseInterval("c", "0", 60));
+        assertEquals(1, CategoryScheduler.parseInterval("c", "fast", 60));
+        assertEquals(1, CategoryScheduler.parseInterval("c", "5d", 60));
+    }
+}
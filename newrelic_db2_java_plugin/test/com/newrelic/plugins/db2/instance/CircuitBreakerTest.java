@@ -0,0 +1,136 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the state changes of the CircuitBreaker of a category, and the cycles it holds the category for in the scheduler
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CircuitBreakerTest {
+
+    private static final String TIMEOUT = "57014";
+    private static final String UNDEFINED = "42704";
+
+    private CategoryScheduler scheduler;
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("breaker_failures", 3);
+        properties.put("breaker_max_backoff", 8);
+        String[] names = { "hadr", "overview" };
+        scheduler = new CategoryScheduler("agent", names, new int[] { 1, 1 });
+        breaker = new CircuitBreaker(names, new DB2AgentOptions(properties));
+    }
+
+    /**
+     * Run cycles until the category is due again
+     *
+     * @return int cycles the category was held for
+     */
+    private int heldCycles(int category) {
+        int held = 0;
+        while (true) {
+            scheduler.nextCycle();
+            if (scheduler.isDue(category)) {
+                return held;
+            }
+            held++;
+        }
+    }
+
+    @Test
+    public void opensAfterConsecutiveTransientFailures() {
+        scheduler.nextCycle();
+        breaker.record(0, TIMEOUT, scheduler);
+        breaker.record(0, TIMEOUT, scheduler);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState(0));
+        assertFalse(scheduler.isHeld(0));
+        breaker.record(0, TIMEOUT, scheduler);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState(0));
+        assertEquals(3, breaker.getFailures(0));
+        assertEquals(1, heldCycles(0));
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState(1)); // Each category has a breaker of its own
+    }
+
+    @Test
+    public void backoffDoublesUpToTheMaximum() {
+        scheduler.nextCycle();
+        for (int i = 0; i < 3; i++) {
+            breaker.record(0, TIMEOUT, scheduler);
+        }
+        int[] expected = { 1, 2, 4, 8, 8 };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], heldCycles(0));
+            breaker.record(0, TIMEOUT, scheduler); // The try failed
+        }
+    }
+
+    @Test
+    public void permanentErrorsOpenAtOnce() {
+        scheduler.nextCycle();
+        breaker.record(0, UNDEFINED, scheduler);
+        assertEquals(CircuitBreaker.OPEN_PERMANENT, breaker.getState(0));
+        assertEquals(2, heldCycles(0)); // A quarter of the maximum backoff
+        breaker.record(0, TIMEOUT, scheduler);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState(0)); // The last error decides
+        assertEquals(4, heldCycles(0));
+    }
+
+    @Test
+    public void successCloses() {
+        scheduler.nextCycle();
+        breaker.record(0, "28000", scheduler);
+        heldCycles(0);
+        breaker.record(0, null, scheduler);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState(0));
+        assertEquals(0, breaker.getFailures(0));
+        scheduler.nextCycle();
+        assertTrue(scheduler.isDue(0));
+        breaker.record(0, TIMEOUT, scheduler); // Counting starts over
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState(0));
+    }
+
+    @Test
+    public void lostConnectionsDoNotCount() {
+        scheduler.nextCycle();
+        for (int i = 0; i < 5; i++) {
+            breaker.record(0, "08001", scheduler);
+        }
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState(0));
+        assertEquals(0, breaker.getFailures(0));
+    }
+
+    @Test
+    public void classifiesSqlStates() {
+        assertTrue(CircuitBreaker.isPermanent("42501"));
+        assertTrue(CircuitBreaker.isPermanent("42704"));
+        assertTrue(CircuitBreaker.isPermanent("28000"));
+        assertTrue(CircuitBreaker.isPermanent("0A000"));
+        assertFalse(CircuitBreaker.isPermanent("57014"));
+        assertFalse(CircuitBreaker.isPermanent("40001"));
+        assertFalse(CircuitBreaker.isPermanent(""));
+    }
+
+    @Test
+    public void reloadKeepsTheBreakersOfKeptCategories() throws Exception {
+        scheduler.nextCycle();
+        breaker.record(0, UNDEFINED, scheduler);
+        CircuitBreaker reloaded = new CircuitBreaker(new String[] { "bufferpool", "hadr" }, DB2AgentOptions.defaultOptions(), breaker,
+                new int[] { -1, 0 });
+        assertEquals(CircuitBreaker.CLOSED, reloaded.getState(0));
+        assertEquals(CircuitBreaker.OPEN_PERMANENT, reloaded.getState(1));
+        assertEquals(1, reloaded.getFailures(1));
+    }
+}
@@ -0,0 +1,130 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests how CollectionCoordinator starts the collections of a cycle, and what it reports for a collection that misses the cycle deadline
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CollectionCoordinatorTest {
+
+    /**
+     * An agent whose collection waits for a latch instead of a database
+     */
+    private static class StubAgent extends DB2Agent {
+
+        final AtomicInteger collections = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        volatile CountDownLatch release = new CountDownLatch(0);
+
+        StubAgent(String name, int cycleDeadline) throws Exception {
+            super(name, name + ".example.com:50000", "SAMPLE", "db2inst1", "secret", "", new HashSet<String>(), new HashMap<String, Object>(),
+                    options(cycleDeadline));
+        }
+
+        private static DB2AgentOptions options(int cycleDeadline) throws Exception {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("concurrent", true);
+            properties.put("cycle_deadline", cycleDeadline);
+            properties.put("report_to_newrelic", false);
+            return new DB2AgentOptions(properties);
+        }
+
+        @Override
+        boolean collect() {
+            collections.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            completed.incrementAndGet();
+            return true;
+        }
+    }
+
+    @Test
+    public void firstAgentStartsTheCycle() throws Exception {
+        CollectionCoordinator coordinator = new CollectionCoordinator(4);
+        StubAgent first = new StubAgent("first", 5);
+        StubAgent second = new StubAgent("second", 5);
+        coordinator.register(first);
+        coordinator.register(second);
+        for (int cycle = 1; cycle <= 3; cycle++) {
+            assertTrue(coordinator.awaitCollection(first));
+            assertTrue(coordinator.awaitCollection(second));
+            assertEquals(cycle, first.collections.get());
+            assertEquals(cycle, second.collections.get());
+        }
+    }
+
+    @Test
+    public void lateCollectionIsDroppedAndStartedByTheNextCycle() throws Exception {
+        CollectionCoordinator coordinator = new CollectionCoordinator(4);
+        StubAgent agent = new StubAgent("late", 1);
+        coordinator.register(agent);
+        agent.release = new CountDownLatch(1);
+        assertFalse(coordinator.awaitCollection(agent)); // Misses the deadline of one second
+
+        long start = System.nanoTime();
+        assertFalse(coordinator.awaitCollection(agent)); // Still running
+        agent.release.countDown();
+        while (agent.completed.get() == 0) {
+            Thread.sleep(10L);
+        }
+        Thread.sleep(50L); // Until its Future is done
+        assertFalse(coordinator.awaitCollection(agent)); // Completed late, dropped without starting another collection
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 900L);
+        assertEquals(1, agent.collections.get());
+
+        assertTrue(coordinator.awaitCollection(agent)); // Next cycle
+        assertEquals(2, agent.collections.get());
+    }
+
+    @Test
+    public void waitDoesNotHoldBackTheOtherAgents() throws Exception {
+        final CollectionCoordinator coordinator = new CollectionCoordinator(4);
+        final StubAgent slow = new StubAgent("slow", 2);
+        StubAgent fast = new StubAgent("fast", 2);
+        coordinator.register(slow);
+        coordinator.register(fast);
+        slow.release = new CountDownLatch(1);
+
+        ExecutorService poller = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> slowResult = poller.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return coordinator.awaitCollection(slow);
+                }
+            });
+            while (fast.collections.get() == 0) {
+                Thread.sleep(10L);
+            }
+            long start = System.nanoTime();
+            assertTrue(coordinator.awaitCollection(fast));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000L);
+            slow.release.countDown();
+            assertTrue(slowResult.get());
+        } finally {
+            poller.shutdownNow();
+        }
+    }
+}
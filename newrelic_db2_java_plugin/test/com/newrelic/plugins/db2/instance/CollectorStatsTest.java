@@ -0,0 +1,79 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Tests the totals CollectorStats keeps of the categories and poll cycles of an agent, and carrying them over a reload of the categories
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class CollectorStatsTest {
+
+    private static final long MS = 1000000L; // Nanoseconds
+
+    @Test
+    public void countsRunsAndFailures() {
+        CollectorStats stats = new CollectorStats(new String[] { "overview", "bufferpool" });
+        stats.recordRun(0, 5 * MS, true, 1, 40);
+        stats.recordRun(0, 7 * MS, false, 0, 0);
+        stats.recordRun(1, 3 * MS, true, 4, 80);
+        stats.recordFailure(1, 0L); // Failed before running its query
+        stats.recordFailure(1, 30 * MS); // Timed out
+
+        assertEquals(1L, stats.getRows(0));
+        assertEquals(40L, stats.getCells(0));
+        assertEquals(1L, stats.getErrors(0));
+        assertEquals(2L, stats.getLatency(0).getCount());
+        assertEquals(2L, stats.getErrors(1));
+        assertEquals(2L, stats.getLatency(1).getCount()); // Only the failure that waited is a latency
+        assertEquals(4L, stats.getRows(1));
+    }
+
+    @Test
+    public void totalsPollCycles() {
+        CollectorStats stats = new CollectorStats(new String[] { "overview" });
+        stats.recordGather(8 * MS);
+        stats.recordCycle(2 * MS, 10 * MS);
+        stats.recordCycle(3 * MS, 12 * MS);
+        stats.addReconnects(2L);
+        stats.addReconnects(1L);
+        assertEquals(2L, stats.getCycles());
+        assertEquals(8 * MS, stats.getLastGatherNanos());
+        assertEquals(3 * MS, stats.getLastReportNanos());
+        assertEquals(12 * MS, stats.getLastCycleNanos());
+        assertEquals(22 * MS, stats.getTotalCycleNanos());
+        assertEquals(3L, stats.getReconnects());
+    }
+
+    @Test
+    public void looksUpCategoriesIgnoringCase() {
+        CollectorStats stats = new CollectorStats(new String[] { "overview", "HADR" });
+        assertEquals(1, stats.indexOf("hadr"));
+        assertEquals(-1, stats.indexOf("tablespace"));
+        stats.getCategories()[0] = "changed";
+        assertEquals(0, stats.indexOf("overview")); // A copy is handed out
+    }
+
+    @Test
+    public void reloadKeepsTheTotalsOfKeptCategories() {
+        CollectorStats previous = new CollectorStats(new String[] { "overview", "HADR" });
+        previous.recordRun(1, 5 * MS, false, 2, 6);
+        previous.recordCycle(1 * MS, 9 * MS);
+        previous.addReconnects(1L);
+
+        CollectorStats reloaded = new CollectorStats(new String[] { "HADR", "tablespace" }, previous, new int[] { 1, -1 });
+        assertSame(previous.getLatency(1), reloaded.getLatency(0));
+        assertEquals(2L, reloaded.getRows(0));
+        assertEquals(1L, reloaded.getErrors(0));
+        assertNotSame(previous.getLatency(0), reloaded.getLatency(1)); // A new category starts from zero
+        assertEquals(0L, reloaded.getLatency(1).getCount());
+        assertEquals(1L, reloaded.getCycles());
+        assertEquals(9 * MS, reloaded.getTotalCycleNanos());
+        assertEquals(1L, reloaded.getReconnects());
+    }
+}
@@ -0,0 +1,82 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import com.newrelic.metrics.publish.configuration.ConfigurationException;
+
+/**
+ * Tests reading and validating the options of an agent entry
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class DB2AgentOptionsTest {
+
+    private static DB2AgentOptions options(String key, Object value) throws ConfigurationException {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(key, value);
+        return new DB2AgentOptions(properties);
+    }
+
+    @Test
+    public void spoolSizeFitsAMappedBuffer() throws Exception {
+        assertEquals(0, DB2AgentOptions.defaultOptions().getSpoolSize());
+        assertEquals(0, options("spool_size_mb", -5).getSpoolSize());
+        assertEquals(MetricSpool.MAX_SIZE_MB, options("spool_size_mb", "2047").getSpoolSize());
+        try {
+            options("spool_size_mb", 2048);
+            fail("A spool of 2048 MB cannot be mapped");
+        } catch (ConfigurationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void prometheusBindsTheLoopbackByDefault() throws Exception {
+        assertEquals("127.0.0.1", DB2AgentOptions.defaultOptions().getPrometheusBind());
+        assertEquals("0.0.0.0", options("prometheus_bind", "0.0.0.0").getPrometheusBind());
+    }
+
+    @Test
+    public void categoriesAreNotReloadedByDefault() throws Exception {
+        assertFalse(DB2AgentOptions.defaultOptions().isReloadCategories());
+        assertTrue(options("reload_categories", true).isReloadCategories());
+    }
+
+    @Test
+    public void failingCategoriesRunEveryCycleByDefault() throws Exception {
+        assertEquals(0, DB2AgentOptions.defaultOptions().getBreakerFailures());
+        assertEquals(3, options("breaker_failures", 3).getBreakerFailures());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void templateListsTheDefaults() throws Exception {
+        Reader reader = new FileReader("config/plugin.template.json");
+        try {
+            JSONObject template = (JSONObject) new JSONParser().parse(reader);
+            Map<String, Object> agent = (Map<String, Object>) ((JSONArray) template.get("agents")).get(0);
+            assertEquals(DB2AgentOptions.defaultOptions().toString(), new DB2AgentOptions(agent).toString());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void rejectsNonNumbers() throws Exception {
+        options("spool_size_mb", "large");
+    }
+}
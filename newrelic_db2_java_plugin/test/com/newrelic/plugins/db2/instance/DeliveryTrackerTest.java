@@ -0,0 +1,292 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.newrelic.metrics.publish.Agent;
+import com.newrelic.metrics.publish.binding.Context;
+import com.newrelic.metrics.publish.binding.Request;
+import com.newrelic.metrics.publish.internal.DataCollector;
+import com.newrelic.plugins.db2.MetricRegistry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests DeliveryTracker against a stub of the New Relic metrics endpoint on the loopback interface: the body of a replayed poll cycle, rejected
+ * and failed posts, spooling the counters of the poll cycles the SDK gives up on, and replaying them off the poll thread
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class DeliveryTrackerTest {
+
+    private static final long HOUR = 3600000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final List<JSONObject> received = new CopyOnWriteArrayList<JSONObject>(); // Bodies of the accepted posts
+    private volatile int status = 200;
+    private volatile long delay = 0L; // Milliseconds each post takes
+
+    private Context context;
+    private Agent agent;
+    private DataCollector collector;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new Endpoint());
+        server.start();
+        context = new Context();
+        context.licenseKey = "test";
+        context.internalSetServiceURI("http://127.0.0.1:" + server.getAddress().getPort() + "/platform/v1/metrics");
+        agent = new Agent("com.newrelic.plugins.DB2.test", "1.0.0") {
+            @Override
+            public void pollCycle() {
+            }
+
+            @Override
+            public String getComponentHumanLabel() {
+                return "db2 test";
+            }
+        };
+        Method getCollector = Agent.class.getDeclaredMethod("getCollector"); // As the Runner sets it up
+        getCollector.setAccessible(true);
+        collector = (DataCollector) getCollector.invoke(agent);
+        collector.setContext(context);
+        collector.createComponent(agent.getGUID(), agent.getComponentHumanLabel());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static MetricSpool.Batch batch(String name, float value) {
+        MetricSpool.Batch batch = new MetricSpool.Batch(System.currentTimeMillis());
+        batch.add(name, "ops", value);
+        return batch;
+    }
+
+    private MetricSpool spool(int replayable) throws IOException {
+        MetricSpool spool = new MetricSpool(folder.newFile(), 64 * 1024, HOUR);
+        for (int i = 0; i < replayable; i++) {
+            spool.append(batch("spooled/" + i, i));
+        }
+        return spool;
+    }
+
+    /**
+     * Start the request the SDK reports the next poll cycles into, the way the Runner does once the previous one was delivered or given up on
+     */
+    private Request newRequest() {
+        Request request = new Request(context);
+        collector.setRequest(request);
+        return request;
+    }
+
+    /**
+     * Report a metric into the request and deliver it, the way the Runner does at the end of a poll cycle
+     */
+    private void deliver(Request request) {
+        collector.addData("cycle", "ops", 1.0f);
+        request.deliver();
+    }
+
+    @Test
+    public void publishesAComponentOfOnePollCycle() throws Exception {
+        DeliveryTracker tracker = DeliveryTracker.create(agent);
+        assertNotNull(tracker);
+        assertTrue(tracker.publish(batch("database/lock_waits", 3.0f)));
+        assertEquals(1, received.size());
+        JSONObject component = (JSONObject) ((JSONArray) received.get(0).get("components")).get(0);
+        assertEquals("db2 test", component.get("name"));
+        assertEquals(agent.getGUID(), component.get("guid"));
+        assertEquals(60L, ((Number) component.get("duration")).longValue());
+        Map<?, ?> metrics = (Map<?, ?>) component.get("metrics");
+        assertEquals(3.0, ((Number) metrics.get("Component/database/lock_waits[ops]")).doubleValue(), 0.0);
+    }
+
+    @Test
+    public void rejectedOrFailedPostsAreNotPublished() throws Exception {
+        DeliveryTracker tracker = DeliveryTracker.create(agent);
+        status = 503;
+        assertFalse(tracker.publish(batch("a", 1.0f)));
+        server.stop(0);
+        assertFalse(tracker.publish(batch("a", 1.0f)));
+    }
+
+    @Test
+    public void spoolsThePollCyclesTheSdkGivesUpOn() throws Exception {
+        DeliveryTracker tracker = DeliveryTracker.create(agent);
+        MetricSpool spool = spool(0);
+        tracker.setSpool(spool, 5);
+        status = 503;
+
+        newRequest();
+        for (int i = 0; i < 3; i++) { // Undelivered cycles aggregated into one request by the SDK
+            tracker.startCycle();
+            tracker.record("cycle", "ops", i);
+            tracker.endCycle();
+        }
+        assertEquals(2, spool.getRecords()); // Spooled behind the mark, the last cycle is spooled when the next one starts
+        assertNull(spool.peek(System.currentTimeMillis()));
+
+        newRequest(); // The SDK dropped the request
+        tracker.startCycle();
+        assertEquals(3, spool.getRecords());
+        assertFalse(spool.isMarked());
+        assertEquals(0.0f, spool.peek(System.currentTimeMillis()).getValue(0), 0.0f);
+    }
+
+    @Test
+    public void deliveredPollCyclesAreNotReplayed() throws Exception {
+        DeliveryTracker tracker = DeliveryTracker.create(agent);
+        MetricSpool spool = spool(0);
+        tracker.setSpool(spool, 5);
+
+        status = 503;
+        Request request = newRequest();
+        tracker.startCycle();
+        tracker.record("cycle", "ops", 1.0f);
+        tracker.endCycle();
+        tracker.startCycle();
+        assertEquals(1, spool.getRecords());
+
+        status = 200;
+        deliver(request); // The SDK delivers the aggregated cycles itself
+        tracker.startCycle();
+        assertEquals(0, spool.getRecords());
+    }
+
+    @Test
+    public void replaysOffThePollThread() throws Exception {
+        DeliveryTracker tracker = DeliveryTracker.create(agent);
+        MetricSpool spool = spool(3);
+        tracker.setSpool(spool, 2);
+
+        Request request = newRequest();
+        tracker.startCycle();
+        deliver(request);
+        received.clear();
+        delay = 500L;
+
+        long start = System.nanoTime();
+        tracker.startCycle(); // The previous request was delivered, replay starts
+        assertTrue("The poll thread waited for the replay", System.nanoTime() - start < 400000000L);
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        int replayed = 0;
+        while (replayed < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+            replayed += tracker.takeReplayed();
+        }
+        assertEquals(2, replayed); // Up to the replay batches per delivery
+        assertEquals(2, received.size());
+        assertEquals(1, spool.getRecords());
+        assertEquals("spooled/2", spool.peek(System.currentTimeMillis()).getName(0));
+    }
+
+    @Test
+    public void replayStopsAtTheFirstRejectedPollCycle() throws Exception {
+        DeliveryTracker tracker = DeliveryTracker.create(agent);
+        MetricSpool spool = spool(3);
+        tracker.setSpool(spool, 5);
+        status = 503;
+        tracker.replay();
+        assertEquals(0, tracker.takeReplayed());
+        assertEquals(3, spool.getRecords());
+    }
+
+    @Test
+    public void sinkSpoolsOnlyCounters() throws Exception {
+        DeliveryTracker tracker = DeliveryTracker.create(agent);
+        MetricSpool spool = spool(0);
+        tracker.setSpool(spool, 5);
+        NewRelicSink sink = new NewRelicSink(agent);
+        sink.setDelivery(tracker);
+        MetricRegistry registry = new MetricRegistry("database");
+        status = 503;
+
+        newRequest();
+        tracker.startCycle();
+        sink.report(registry, registry.getId("database/rows_read"), "rows", true, 20.0);
+        sink.report(registry, registry.getId("database/hit_ratio_percent"), "%", false, 97.0);
+        tracker.endCycle();
+        newRequest(); // The SDK dropped the request
+        tracker.startCycle();
+
+        assertEquals(1, spool.getRecords());
+        MetricSpool.Batch spooled = spool.peek(System.currentTimeMillis());
+        assertEquals(1, spooled.size());
+        assertEquals("database/rows_read", spooled.getName(0));
+        assertEquals(20.0f, spooled.getValue(0), 0.0f);
+    }
+
+    @Test
+    public void disabledTrackerStopsSpooling() throws Exception {
+        DeliveryTracker tracker = DeliveryTracker.create(agent);
+        MetricSpool spool = spool(0);
+        tracker.setSpool(spool, 5);
+        status = 503;
+
+        newRequest();
+        tracker.startCycle();
+        tracker.record("cycle", "ops", 1.0f);
+        tracker.endCycle();
+        tracker.disable(new IllegalAccessException("test")); // As when the SDK refuses the reflective lookup
+        newRequest();
+        for (int i = 0; i < 3; i++) {
+            tracker.startCycle();
+            tracker.record("cycle", "ops", i);
+            tracker.endCycle();
+        }
+        assertEquals(0, spool.getRecords());
+    }
+
+    private class Endpoint implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Object body = JSONValue.parse(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            String response = status == 200 ? "{\"status\":\"ok\"}" : "{\"error\":\"Service unavailable\"}";
+            if (status == 200 && body instanceof JSONObject) {
+                received.add((JSONObject) body);
+            }
+            byte[] bytes = response.getBytes("UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the ring of poll cycles MetricSpool keeps in its file: order, wrap-around, the mark the SDK holds records behind, expiry, and recovery of
+ * the file after a restart or corruption
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class MetricSpoolTest {
+
+    private static final long HOUR = 3600000L;
+    private static final int RECORD = 26; // Record header and the encoding of one metric with a two character name and a one character unit
+    private static final long SIZE = 32 + 3 * RECORD + 10; // Header and room for three records, so records wrap around the end of the ring
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MetricSpool.Batch batch(String name, long timestamp) {
+        MetricSpool.Batch batch = new MetricSpool.Batch(timestamp);
+        batch.add(name, "u", name.charAt(1) - '0');
+        return batch;
+    }
+
+    private MetricSpool open(File file) throws IOException {
+        return new MetricSpool(file, SIZE, HOUR);
+    }
+
+    @Test
+    public void replaysInOrder() throws Exception {
+        MetricSpool spool = open(folder.newFile());
+        assertTrue(spool.append(batch("m1", 1L)));
+        assertTrue(spool.append(batch("m2", 2L)));
+        MetricSpool.Batch first = spool.peek(10L);
+        assertEquals("m1", first.getName(0));
+        assertEquals("u", first.getUnit(0));
+        assertEquals(1.0f, first.getValue(0), 0.0f);
+        assertEquals(1L, first.getTimestamp());
+        spool.remove(first);
+        assertEquals("m2", spool.peek(10L).getName(0));
+        spool.remove(spool.peek(10L));
+        assertNull(spool.peek(10L));
+        assertEquals(0, spool.getRecords());
+    }
+
+    @Test
+    public void wrapsAroundAndDropsTheOldest() throws Exception {
+        MetricSpool spool = open(folder.newFile());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(spool.append(batch("m" + i, i)));
+        }
+        assertEquals(3, spool.getRecords());
+        assertEquals(7L, spool.getDropped());
+        for (int i = 7; i < 10; i++) {
+            MetricSpool.Batch batch = spool.peek(10L);
+            assertEquals("m" + i, batch.getName(0)); // Read back across the end of the ring
+            assertEquals(i, batch.getValue(0), 0.0f);
+            spool.remove(batch);
+        }
+        assertNull(spool.peek(10L));
+    }
+
+    @Test
+    public void rejectsABatchLargerThanTheRing() throws Exception {
+        MetricSpool spool = open(folder.newFile());
+        MetricSpool.Batch large = new MetricSpool.Batch(0L);
+        for (int i = 0; i < 20; i++) {
+            large.add("metric" + i, "u", i);
+        }
+        assertFalse(spool.append(large));
+        assertEquals(0, spool.getRecords());
+    }
+
+    @Test
+    public void rewindDiscardsTheRecordsSinceTheMark() throws Exception {
+        MetricSpool spool = open(folder.newFile());
+        spool.append(batch("m1", 1L));
+        spool.mark();
+        spool.append(batch("m2", 2L));
+        spool.append(batch("m3", 3L));
+        MetricSpool.Batch replayable = spool.peek(10L);
+        assertEquals("m1", replayable.getName(0));
+        spool.remove(replayable);
+        assertNull(spool.peek(10L)); // Still held by the SDK
+        assertEquals(2, spool.rewind());
+        assertFalse(spool.isMarked());
+        assertEquals(0, spool.getRecords());
+        assertTrue(spool.append(batch("m4", 4L)));
+        assertEquals("m4", spool.peek(10L).getName(0));
+    }
+
+    @Test
+    public void commitMakesTheRecordsSinceTheMarkReplayable() throws Exception {
+        MetricSpool spool = open(folder.newFile());
+        spool.mark();
+        spool.append(batch("m1", 1L));
+        assertNull(spool.peek(10L));
+        spool.commit();
+        assertEquals("m1", spool.peek(10L).getName(0));
+        assertEquals(0, spool.rewind()); // Nothing is marked any more
+    }
+
+    @Test
+    public void removeIgnoresARecordDroppedWhileItWasPublished() throws Exception {
+        MetricSpool spool = open(folder.newFile());
+        spool.append(batch("m1", 1L));
+        MetricSpool.Batch publishing = spool.peek(10L);
+        for (int i = 2; i <= 4; i++) {
+            spool.append(batch("m" + i, i)); // The ring is full, m1 is dropped
+        }
+        spool.remove(publishing);
+        assertEquals(3, spool.getRecords());
+        assertEquals("m2", spool.peek(10L).getName(0));
+    }
+
+    @Test
+    public void expiredRecordsAreDropped() throws Exception {
+        MetricSpool spool = open(folder.newFile());
+        spool.append(batch("m1", 0L));
+        spool.append(batch("m2", 2 * HOUR));
+        assertEquals("m2", spool.peek(2 * HOUR + 1L).getName(0));
+        assertEquals(1L, spool.getDropped());
+    }
+
+    @Test
+    public void recordsSurviveARestart() throws Exception {
+        File file = folder.newFile();
+        MetricSpool spool = open(file);
+        for (int i = 0; i < 5; i++) {
+            spool.append(batch("m" + i, i));
+        }
+        spool.close();
+        MetricSpool reopened = open(file);
+        assertEquals(3, reopened.getRecords());
+        assertEquals("m2", reopened.peek(10L).getName(0));
+    }
+
+    @Test
+    public void aFileOfAnotherSizeStartsEmpty() throws Exception {
+        File file = folder.newFile();
+        MetricSpool spool = open(file);
+        spool.append(batch("m1", 1L));
+        spool.close();
+        MetricSpool resized = new MetricSpool(file, SIZE + 100, HOUR);
+        assertEquals(0, resized.getRecords());
+        assertNull(resized.peek(10L));
+    }
+
+    @Test
+    public void corruptOffsetsDropTheRecords() throws Exception {
+        File file = folder.newFile();
+        MetricSpool spool = open(file);
+        spool.append(batch("m1", 1L));
+        spool.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(16); // Tail
+        raf.writeLong(SIZE * 10);
+        raf.close();
+        MetricSpool recovered = open(file);
+        assertEquals(0, recovered.getRecords());
+        assertTrue(recovered.append(batch("m2", 2L)));
+        assertEquals("m2", recovered.peek(10L).getName(0));
+    }
+
+    @Test
+    public void corruptRecordLengthDropsTheRecords() throws Exception {
+        File file = folder.newFile();
+        MetricSpool spool = open(file);
+        spool.append(batch("m1", 1L));
+        spool.append(batch("m2", 2L));
+        spool.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(32); // Length of the first record
+        raf.writeInt(1000);
+        raf.close();
+        assertEquals(0, open(file).getRecords());
+    }
+
+    @Test
+    public void rejectsSizesThatCannotBeMapped() throws Exception {
+        long[] sizes = { 0L, 40L, Integer.MAX_VALUE + 1L };
+        for (long size : sizes) {
+            try {
+                new MetricSpool(folder.newFile(), size, HOUR);
+                fail("Opened a spool of " + size + " bytes");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+}
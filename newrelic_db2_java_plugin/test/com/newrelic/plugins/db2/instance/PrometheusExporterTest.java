@@ -0,0 +1,104 @@
+package com.newrelic.plugins.db2.instance;
+
+import static com.newrelic.plugins.db2.util.Constants.POLL_INTERVAL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the payload PrometheusExporter renders from the samples of its agents, and what a scrape gets
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class PrometheusExporterTest {
+
+    private static int freePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static String scrape(int port) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/metrics").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(PrometheusExporter.CONTENT_TYPE, connection.getContentType());
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                body.write(buffer, 0, read);
+            }
+            return body.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void scrapeBeforeTheFirstCycleIsEmpty() throws Exception {
+        int port = freePort();
+        PrometheusExporter exporter = PrometheusExporter.acquire("127.0.0.1", port);
+        assertEquals("", scrape(port));
+        assertEquals(1L, exporter.getScrapes());
+    }
+
+    @Test
+    public void mergesTheFamiliesOfAllAgents() throws Exception {
+        int port = freePort();
+        PrometheusExporter exporter = PrometheusExporter.acquire("127.0.0.1", port);
+        exporter.publish("a", new PrometheusExporter.Samples(new String[] { "db2_lock_waits" }, new String[] { "counter" },
+                new String[] { "db2_lock_waits{agent=\"a\"} 3\n" }));
+        exporter.publish("b", new PrometheusExporter.Samples(new String[] { "db2_lock_waits" }, new String[] { "counter" },
+                new String[] { "db2_lock_waits{agent=\"b\"} 5\n" }));
+        exporter.render();
+        String text = scrape(port);
+        assertEquals("# TYPE db2_lock_waits counter\n", text.substring(0, text.indexOf('\n') + 1));
+        assertEquals(text.indexOf("# TYPE"), text.lastIndexOf("# TYPE")); // The family once
+        assertEquals(3, text.split("\n").length);
+    }
+
+    @Test
+    public void withdrawnAgentLeavesThePayload() throws Exception {
+        int port = freePort();
+        PrometheusExporter exporter = PrometheusExporter.acquire("127.0.0.1", port);
+        exporter.publish("a", new PrometheusExporter.Samples(new String[] { "db2_lock_waits" }, new String[] { "counter" },
+                new String[] { "db2_lock_waits{agent=\"a\"} 3\n" }));
+        exporter.publish("b", new PrometheusExporter.Samples(new String[] { "db2_deadlocks" }, new String[] { "counter" },
+                new String[] { "db2_deadlocks{agent=\"b\"} 1\n" }));
+        exporter.unpublish("a");
+        exporter.render();
+        assertEquals("# TYPE db2_deadlocks counter\ndb2_deadlocks{agent=\"b\"} 1\n", scrape(port));
+    }
+
+    @Test
+    public void samplesExpireAfterTwoPollIntervals() throws Exception {
+        int port = freePort();
+        PrometheusExporter exporter = PrometheusExporter.acquire("127.0.0.1", port);
+        exporter.publish("a", new PrometheusExporter.Samples(new String[] { "db2_lock_waits" }, new String[] { "counter" },
+                new String[] { "db2_lock_waits{agent=\"a\"} 3\n" }));
+        exporter.render();
+        exporter.expire(System.nanoTime() + TimeUnit.SECONDS.toNanos(POLL_INTERVAL));
+        assertEquals(2, scrape(port).split("\n").length);
+        exporter.expire(System.nanoTime() + TimeUnit.SECONDS.toNanos(3 * POLL_INTERVAL));
+        assertEquals("", scrape(port));
+        assertEquals(2L, exporter.getScrapes());
+    }
+
+    @Test
+    public void unknownBindAddressIsNotServed() throws Exception {
+        assertNull(PrometheusExporter.acquire("no-such-host.invalid", freePort()));
+    }
+}
@@ -0,0 +1,189 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the ownership of the agents in a ShardRing.View, and the join and expiry timing of the shards, on a simulated System.nanoTime() clock
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class ShardRingTest {
+
+    private static final int STALE_AFTER = 3; // Seconds, beating every second
+    private static final long INTERVAL = 1000000000L; // Nanoseconds between two beats
+    private static final long START = 1000L * INTERVAL;
+    private static final int AGENTS = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("shards");
+    }
+
+    private static String agent(int i) {
+        return "agent" + i;
+    }
+
+    @Test
+    public void emptyViewOwnsNothing() {
+        assertNull(new ShardRing.View(new String[0], 0L, true).owner(42L));
+    }
+
+    @Test
+    public void viewSpreadsAgentsOverShards() {
+        ShardRing.View view = new ShardRing.View(new String[] { "a", "b", "c" }, 0L, true);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < AGENTS; i++) {
+            String owner = view.owner(ShardRing.hash(agent(i)));
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Uneven share " + counts, count > AGENTS / 6);
+        }
+        assertEquals("a", new ShardRing.View(new String[] { "a" }, 0L, true).owner(Long.MAX_VALUE)); // Wraps around
+    }
+
+    @Test
+    public void joiningShardKeepsMostOwners() {
+        ShardRing.View before = new ShardRing.View(new String[] { "a", "b" }, 0L, true);
+        ShardRing.View after = new ShardRing.View(new String[] { "a", "b", "c" }, 0L, true);
+        for (int i = 0; i < AGENTS; i++) {
+            long position = ShardRing.hash(agent(i));
+            String owner = after.owner(position);
+            assertTrue("c".equals(owner) || owner.equals(before.owner(position))); // Only the agents of the newcomer move
+        }
+    }
+
+    @Test
+    public void joinsAfterThreeBeats() {
+        ShardRing ring = new ShardRing(directory, "a", STALE_AFTER);
+        ring.beat(START);
+        assertFalse(ring.owns(agent(0), START));
+        ring.beat(START + INTERVAL);
+        assertFalse(ring.owns(agent(0), START + INTERVAL));
+        ring.beat(START + 2 * INTERVAL);
+        assertTrue(ring.owns(agent(0), START + 2 * INTERVAL)); // Alone in the ring
+    }
+
+    @Test
+    public void viewExpiresAfterOneAndAHalfIntervals() {
+        ShardRing ring = joined("a", START);
+        long last = START + 2 * INTERVAL;
+        assertTrue(ring.owns(agent(0), last + INTERVAL * 3 / 2));
+        assertFalse(ring.owns(agent(0), last + INTERVAL * 3 / 2 + 1));
+        ring.beat(last + 2 * INTERVAL);
+        assertTrue(ring.owns(agent(0), last + 2 * INTERVAL));
+    }
+
+    @Test
+    public void shardsSplitTheAgents() {
+        ShardRing a = joined("a", START);
+        ShardRing b = new ShardRing(directory, "b", STALE_AFTER);
+        long now = START + 2 * INTERVAL;
+        for (int beat = 0; beat < 3; beat++) {
+            now += INTERVAL;
+            a.beat(now);
+            b.beat(now);
+        }
+        int owned = 0;
+        for (int i = 0; i < AGENTS; i++) {
+            boolean byA = a.owns(agent(i), now);
+            assertTrue(byA != b.owns(agent(i), now));
+            owned += byA ? 1 : 0;
+        }
+        assertTrue(owned > 0 && owned < AGENTS);
+    }
+
+    /**
+     * The heartbeat thread of the first shard stalls right before the second joins: it keeps the view of a ring of its own, which must expire
+     * before the newcomer polls
+     */
+    @Test
+    public void stalledShardStopsBeforeNewcomerPolls() {
+        ShardRing a = joined("a", START);
+        long stalled = START + 2 * INTERVAL;
+        ShardRing b = new ShardRing(directory, "b", STALE_AFTER);
+        long joinedAt = -1L;
+        for (int beat = 0; beat < 4; beat++) {
+            long at = stalled + 1 + beat * INTERVAL;
+            b.beat(at);
+            for (long now = at; now < at + INTERVAL; now += INTERVAL / 10) {
+                for (int i = 0; i < AGENTS; i++) {
+                    if (b.owns(agent(i), now)) {
+                        joinedAt = joinedAt < 0L ? now : joinedAt;
+                        assertFalse("Agent polled by both shards", a.owns(agent(i), now));
+                    }
+                }
+            }
+        }
+        assertEquals(stalled + 1 + 2 * INTERVAL, joinedAt);
+    }
+
+    @Test
+    public void deadShardIsDropped() {
+        ShardRing a = joined("a", START);
+        ShardRing b = new ShardRing(directory, "b", STALE_AFTER);
+        long now = START + 2 * INTERVAL;
+        for (int beat = 0; beat < 3; beat++) {
+            now += INTERVAL;
+            a.beat(now);
+            b.beat(now);
+        }
+        for (int beat = 0; beat < 5; beat++) { // b stops beating, a saw its last beat one interval later and drops it after the stale time
+            now += INTERVAL;
+            a.beat(now);
+        }
+        for (int i = 0; i < AGENTS; i++) {
+            assertTrue(a.owns(agent(i), now));
+        }
+    }
+
+    @Test
+    public void leavingShardHandsOverAtOnce() {
+        ShardRing a = joined("a", START);
+        ShardRing b = new ShardRing(directory, "b", STALE_AFTER);
+        long now = START + 2 * INTERVAL;
+        for (int beat = 0; beat < 3; beat++) {
+            now += INTERVAL;
+            a.beat(now);
+            b.beat(now);
+        }
+        b.leave();
+        assertFalse(b.owns(agent(0), now));
+        now += INTERVAL;
+        a.beat(now);
+        for (int i = 0; i < AGENTS; i++) {
+            assertTrue(a.owns(agent(i), now));
+        }
+    }
+
+    /**
+     * @return ShardRing that beat three times from the given time, alone in the directory
+     */
+    private ShardRing joined(String id, long start) {
+        ShardRing ring = new ShardRing(directory, id, STALE_AFTER);
+        for (int beat = 0; beat < 3; beat++) {
+            ring.beat(start + beat * INTERVAL);
+        }
+        return ring;
+    }
+}
@@ -0,0 +1,94 @@
+package com.newrelic.plugins.db2.instance;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests the sharing of a SharedTarget between agents, and the single reporter of its counters
+ *
+ * @author yylbj@cn.ibm.com
+ *
+ */
+public class SharedTargetTest {
+
+    private static Map<String, Object> options(boolean share) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("share_connections", share);
+        return properties;
+    }
+
+    private static SharedTarget acquire(String host, boolean share) throws Exception {
+        return SharedTarget.acquire(host, "SAMPLE", "db2inst1", "secret", "", new DB2AgentOptions(options(share)));
+    }
+
+    @Test
+    public void agentsOfTheSameDatabaseShareTheTarget() throws Exception {
+        SharedTarget first = acquire("shared.example.com:50000", true);
+        assertSame(first, acquire("SHARED.example.com:50000", true));
+        assertEquals(2, first.getAgents());
+        assertNotSame(first, acquire("shared.example.com:50000", false));
+    }
+
+    @Test
+    public void lastAgentReleasesTheTarget() throws Exception {
+        Object first = new Object();
+        Object second = new Object();
+        SharedTarget target = acquire("release.example.com:50000", true);
+        assertSame(target, acquire("release.example.com:50000", true));
+        assertTrue(target.claimReporter(first));
+
+        target.release(first);
+        assertEquals(1, target.getAgents());
+        assertTrue(target.claimReporter(second)); // Reporting passed on
+        assertSame(target, acquire("release.example.com:50000", true));
+        target.release(second);
+        target.release(first);
+        assertEquals(0, target.getAgents());
+        assertNotSame(target, acquire("release.example.com:50000", true)); // No longer shared
+    }
+
+    @Test
+    public void differentSettingsAreNotShared() throws Exception {
+        SharedTarget first = acquire("settings.example.com:50000", true);
+        SharedTarget other = SharedTarget.acquire("settings.example.com:50000", "SAMPLE", "db2inst1", "changed", "",
+                new DB2AgentOptions(options(true)));
+        assertNotSame(first, other);
+        Map<String, Object> properties = options(true);
+        properties.put("query_timeout", 5);
+        assertNotSame(first, SharedTarget.acquire("settings.example.com:50000", "SAMPLE", "db2inst1", "secret", "", new DB2AgentOptions(properties)));
+        assertSame(first, acquire("settings.example.com:50000", true));
+        assertEquals(2, first.getAgents());
+    }
+
+    @Test
+    public void singleAgentReportsTheCounters() throws Exception {
+        SharedTarget target = acquire("reporter.example.com:50000", true);
+        Object first = new Object();
+        Object second = new Object();
+        assertTrue(target.claimReporter(first));
+        assertFalse(target.claimReporter(second));
+        assertTrue(target.claimReporter(first));
+
+        target.releaseReporter(second); // Not the reporter, ignored
+        assertFalse(target.claimReporter(second));
+        target.releaseReporter(first);
+        assertTrue(target.claimReporter(second));
+        assertFalse(target.claimReporter(first));
+    }
+
+    @Test
+    public void countersAreTakenAsDeltas() throws Exception {
+        SharedTarget target = acquire("deltas.example.com:50000", true);
+        assertArrayEquals(new long[SharedTarget.RECONNECTS_DELTA + 1], target.takeCounterDeltas());
+        assertArrayEquals(new long[SharedTarget.RECONNECTS_DELTA + 1], target.takeCounterDeltas());
+    }
+}